@@ -30,6 +30,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import paulscode.android.mupen64plusae.input.DiagnosticActivity;
 import paulscode.android.mupen64plusae.jni.CoreService;
@@ -39,6 +40,7 @@ import paulscode.android.mupen64plusae.persistent.DisplayPrefsActivity;
 import paulscode.android.mupen64plusae.persistent.GamePrefsActivity;
 import paulscode.android.mupen64plusae.persistent.InputPrefsActivity;
 import paulscode.android.mupen64plusae.persistent.LibraryPrefsActivity;
+import paulscode.android.mupen64plusae.persistent.LibraryRoot;
 import paulscode.android.mupen64plusae.persistent.TouchscreenPrefsActivity;
 import paulscode.android.mupen64plusae.profile.ControllerProfileActivity;
 import paulscode.android.mupen64plusae.profile.ControllerProfileActivityBigScreen;
@@ -78,12 +80,18 @@ public class ActivityHelper
         public static final String SEARCH_PATH          = NAMESPACE + "GALLERY_SEARCH_PATH";
         public static final String DATABASE_PATH        = NAMESPACE + "GALLERY_DATABASE_PATH";
         public static final String CONFIG_PATH          = NAMESPACE + "GALLERY_CONFIG_PATH";
+        public static final String FINGERPRINT_PATH     = NAMESPACE + "GALLERY_FINGERPRINT_PATH";
+        public static final String ZIP_INDEX_PATH       = NAMESPACE + "GALLERY_ZIP_INDEX_PATH";
+        public static final String REPORT_PATH          = NAMESPACE + "GALLERY_REPORT_PATH";
         public static final String ART_DIR              = NAMESPACE + "GALLERY_ART_PATH";
+        public static final String ART_VALIDATORS_PATH  = NAMESPACE + "GALLERY_ART_VALIDATORS_PATH";
         public static final String UNZIP_DIR            = NAMESPACE + "GALLERY_UNZIP_PATH";
         public static final String SEARCH_ZIPS          = NAMESPACE + "GALLERY_SEARCH_ZIP";
         public static final String DOWNLOAD_ART         = NAMESPACE + "GALLERY_DOWNLOAD_ART";
         public static final String CLEAR_GALLERY        = NAMESPACE + "GALLERY_CLEAR_GALLERY";
         public static final String SEARCH_SUBDIR        = NAMESPACE + "GALLERY_SEARCH_SUBDIR";
+        public static final String EXCLUSIONS           = NAMESPACE + "GALLERY_EXCLUSIONS";
+        public static final String LIBRARY_ROOTS        = NAMESPACE + "GALLERY_LIBRARY_ROOTS";
         public static final String CHEAT_ARGS           = NAMESPACE + "CHEAT_ARGS";
         public static final String SAVE_TO_LOAD         = NAMESPACE + "SAVE_TO_LOAD";
         public static final String CORE_LIB             = NAMESPACE + "CORE_LIB";
@@ -270,19 +278,22 @@ public class ActivityHelper
     }
     
     public static void startCacheRomInfoService(Context context, ServiceConnection serviceConnection,
-        String searchPath, String databasePath, String configPath, String artDir, String unzipDir,
-        boolean searchZips, boolean downloadArt, boolean clearGallery, boolean searchSubdirectories)
+        List<LibraryRoot> libraryRoots, String databasePath, String configPath, String fingerprintPath,
+        String zipIndexPath, String reportPath, String artDir, String artValidatorsPath, String unzipDir, boolean downloadArt,
+        boolean clearGallery)
     {
         Intent intent = new Intent(context, CacheRomInfoService.class);
-        intent.putExtra(Keys.SEARCH_PATH, searchPath);
+        intent.putExtra(Keys.LIBRARY_ROOTS, LibraryRoot.toString(libraryRoots));
         intent.putExtra(Keys.DATABASE_PATH, databasePath);
         intent.putExtra(Keys.CONFIG_PATH, configPath);
+        intent.putExtra(Keys.FINGERPRINT_PATH, fingerprintPath);
+        intent.putExtra(Keys.ZIP_INDEX_PATH, zipIndexPath);
+        intent.putExtra(Keys.REPORT_PATH, reportPath);
         intent.putExtra(Keys.ART_DIR, artDir);
+        intent.putExtra(Keys.ART_VALIDATORS_PATH, artValidatorsPath);
         intent.putExtra(Keys.UNZIP_DIR, unzipDir);
-        intent.putExtra(Keys.SEARCH_ZIPS, searchZips);
         intent.putExtra(Keys.DOWNLOAD_ART, downloadArt);
         intent.putExtra(Keys.CLEAR_GALLERY, clearGallery);
-        intent.putExtra(Keys.SEARCH_SUBDIR, searchSubdirectories);
 
         context.startService(intent);
         context.bindService(intent, serviceConnection, Context.BIND_AUTO_CREATE);
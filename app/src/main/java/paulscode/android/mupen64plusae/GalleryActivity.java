@@ -34,6 +34,7 @@ import android.support.v4.view.MenuItemCompat.OnActionExpandListener;
 import android.support.v4.widget.DrawerLayout;
 import android.support.v7.app.ActionBarDrawerToggle;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.SearchView;
@@ -54,11 +55,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Locale;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -67,15 +66,19 @@ import paulscode.android.mupen64plusae.GameSidebar.GameSidebarActionHandler;
 import paulscode.android.mupen64plusae.dialog.ConfirmationDialog;
 import paulscode.android.mupen64plusae.dialog.ConfirmationDialog.PromptConfirmListener;
 import paulscode.android.mupen64plusae.dialog.Popups;
+import paulscode.android.mupen64plusae.dialog.ProgressDialog;
 import paulscode.android.mupen64plusae.game.GameFragment;
 import paulscode.android.mupen64plusae.jni.CoreService;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
 import paulscode.android.mupen64plusae.persistent.GamePrefs;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
+import paulscode.android.mupen64plusae.persistent.LibraryRoot;
 import paulscode.android.mupen64plusae.task.ComputeMd5Task;
-import paulscode.android.mupen64plusae.util.CountryCode;
+import paulscode.android.mupen64plusae.task.CoverArtLoader;
+import paulscode.android.mupen64plusae.task.ExtractRomTask;
+import paulscode.android.mupen64plusae.task.RomFolderWatcher;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.LocaleContextWrapper;
 import paulscode.android.mupen64plusae.util.Notifier;
@@ -86,7 +89,7 @@ import static paulscode.android.mupen64plusae.ActivityHelper.Keys.RESUME_SERVICE
 import static paulscode.android.mupen64plusae.ActivityHelper.Keys.ROM_PATH;
 
 public class GalleryActivity extends AppCompatActivity implements GameSidebarActionHandler, PromptConfirmListener,
-        GameFragment.OnGameActivityFinished
+        GameFragment.OnGameActivityFinished, GalleryModel.Listener, RomFolderWatcher.Listener
 {
     // Saved instance states
     private static final String STATE_QUERY = "query";
@@ -128,8 +131,11 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
     public float galleryAspectRatio;
 
     // Misc.
-    private List<GalleryItem> mGalleryItems = null;
+    private List<GalleryItem> mGalleryItems = new ArrayList<GalleryItem>();
+    private GalleryModel mGalleryModel = null;
+    private RomFolderWatcher mRomFolderWatcher = null;
     private GalleryItem mSelectedItem = null;
+    private String mPendingSidebarMd5 = null;
     private boolean mDragging = false;
 
     private ScanRomsFragment mCacheRomInfoFragment = null;
@@ -146,6 +152,10 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
 
     boolean mResumingService = false;
 
+    //Extraction of a zipped ROM that is about to be played, and its progress dialog
+    private ExtractRomTask mExtractRomTask = null;
+    private ProgressDialog mExtractRomProgress = null;
+
     @Override
     protected void onNewIntent( Intent intent )
     {
@@ -218,6 +228,44 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         // Lay out the content
         setContentView( R.layout.gallery_activity );
         mGridView = (RecyclerView) findViewById( R.id.gridview );
+        mGridView.setAdapter( new GalleryItem.Adapter( this, mGalleryItems ) );
+
+        // Allow the headings to take up the entire width of the layout
+        final GridLayoutManager layoutManager = new GridLayoutManagerBetterScrolling( this, galleryColumns );
+        layoutManager.setSpanSizeLookup( new GridLayoutManager.SpanSizeLookup()
+        {
+            @Override
+            public int getSpanSize( int position )
+            {
+                // Headings will take up every span (column) in the grid
+                if( mGalleryItems.get( position ).isHeading )
+                    return galleryColumns;
+
+                // Games will fit in a single column
+                return 1;
+            }
+        } );
+        mGridView.setLayoutManager( layoutManager );
+        mGridView.addOnScrollListener( new RecyclerView.OnScrollListener()
+        {
+            @Override
+            public void onScrolled( RecyclerView recyclerView, int dx, int dy )
+            {
+                // Decode the visible cover art first, then the art of the next screen
+                final GridLayoutManagerBetterScrolling manager = (GridLayoutManagerBetterScrolling) recyclerView.getLayoutManager();
+                ( (GalleryItem.Adapter) recyclerView.getAdapter() ).onVisibleRangeChanged(
+                        manager.findFirstVisibleItemPosition(), manager.findLastVisibleItemPosition(),
+                        manager.getScrollDirection() );
+            }
+        } );
+        mGridView.setFocusable(false);
+        mGridView.setFocusableInTouchMode(false);
+
+        // The gallery items are loaded in the background
+        mGalleryModel = new GalleryModel( this, this );
+        mRomFolderWatcher = new RomFolderWatcher( mAppData.mupen64plus_ini, mGlobalPrefs.romInfoCache_cfg,
+                mGlobalPrefs.romFingerprints_dat, mGlobalPrefs.romZipIndex_dat, mGlobalPrefs.coverArtDir,
+                mGlobalPrefs.coverArtValidators_dat, mGlobalPrefs.unzippedRomsDir, this );
         refreshGrid();
 
         // Add the toolbar to the activity (which supports the fancy menu/arrow animation)
@@ -328,19 +376,8 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         if( savedInstanceState != null )
         {
             mSelectedItem = null;
-            final String md5 = savedInstanceState.getString( STATE_SIDEBAR );
-            if( md5 != null )
-            {
-                // Repopulate the game sidebar
-                for( final GalleryItem item : mGalleryItems )
-                {
-                    if( md5.equals( item.md5 ) )
-                    {
-                        onGalleryItemClick( item );
-                        break;
-                    }
-                }
-            }
+            // Repopulate the game sidebar once the gallery items are loaded
+            mPendingSidebarMd5 = savedInstanceState.getString( STATE_SIDEBAR );
 
             final String query = savedInstanceState.getString( STATE_QUERY );
             if( query != null )
@@ -367,6 +404,8 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             fm.beginTransaction().add(mExtractTexturesFragment, STATE_EXTRACT_TEXTURES_FRAGMENT).commit();
         }
 
+        updateRomFolderWatcher();
+
         // Set the sidebar opacity on the two sidebars
         mDrawerList.setBackground( new DrawerDrawable( mGlobalPrefs.displayActionBarTransparency ) );
         mGameSidebar.setBackground( new DrawerDrawable(mGlobalPrefs.displayActionBarTransparency ) );
@@ -388,6 +427,25 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         }
     }
 
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        mGalleryModel.destroy();
+        mRomFolderWatcher.destroy();
+
+        // The game can't be launched from a destroyed activity
+        if( mExtractRomTask != null )
+        {
+            mExtractRomTask.cancel( false );
+            mExtractRomTask = null;
+            mExtractRomProgress.dismiss();
+        }
+
+        Log.i( "GalleryActivity", "Config file cache: " + ConfigFile.getCacheHits() + " hits, "
+                + ConfigFile.getCacheMisses() + " misses" );
+    }
+
     @Override
     public void onSaveInstanceState( Bundle savedInstanceState )
     {
@@ -436,7 +494,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             public boolean onMenuItemActionCollapse( MenuItem item )
             {
                 mSearchQuery = "";
-                refreshGrid();
+                mGalleryModel.setQuery( mSearchQuery );
                 return true;
             }
 
@@ -461,7 +519,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             public boolean onQueryTextChange( String query )
             {
                 mSearchQuery = query;
-                refreshGrid();
+                mGalleryModel.setQuery( mSearchQuery );
                 return false;
             }
         } );
@@ -503,10 +561,11 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
                     database.setDatabaseFile(mAppData.mupen64plus_ini);
                 }
 
-                final RomDatabase.RomDetail detail = database.lookupByMd5WithFallback( computedMd5, new File( finalRomPath), header.crc );
+                final RomDatabase.RomDetail detail = database.lookupByMd5WithFallback( computedMd5, new File( finalRomPath),
+                        header.crc, header.countryCode );
                 String artPath = mGlobalPrefs.coverArtDir + "/" + detail.artName;
 
-                launchGameActivity( finalRomPath, null, true, computedMd5, header.crc, header.name,
+                launchGameActivity( finalRomPath, null, computedMd5, header.crc, header.name,
                         header.countryCode.getValue(), artPath, detail.goodName, false );
             }
         }
@@ -613,7 +672,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             case R.id.menuItem_resume:
                 launchGameActivity( item.romFile.getAbsolutePath(),
                         item.zipFile == null ? null : item.zipFile.getAbsolutePath(),
-                        item.isExtracted, item.md5, item.crc, item.headerName,
+                        item.md5, item.crc, item.headerName,
                         item.countryCode.getValue(), item.artPath, item.goodName, false );
                 break;
             case R.id.menuItem_restart:
@@ -633,7 +692,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
                 {
                     launchGameActivity( item.romFile.getAbsolutePath(),
                             item.zipFile == null ? null : item.zipFile.getAbsolutePath(),
-                            item.isExtracted, item.md5, item.crc,
+                            item.md5, item.crc,
                             item.headerName, item.countryCode.getValue(), item.artPath,
                             item.goodName, true );
                 }
@@ -686,7 +745,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             {
                 launchGameActivity( mSelectedItem.romFile.getAbsolutePath(),
                     mSelectedItem.zipFile == null ? null : mSelectedItem.zipFile.getAbsolutePath(),
-                    mSelectedItem.isExtracted, mSelectedItem.md5, mSelectedItem.crc,
+                    mSelectedItem.md5, mSelectedItem.crc,
                     mSelectedItem.headerName, mSelectedItem.countryCode.getValue(), mSelectedItem.artPath,
                     mSelectedItem.goodName, true );
             }
@@ -697,9 +756,9 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             }
             else if(id == REMOVE_FROM_LIBRARY_DIALOG_ID)
             {
-                final ConfigFile config = new ConfigFile( mGlobalPrefs.romInfoCache_cfg );
+                final ConfigFile config = ConfigFile.open( mGlobalPrefs.romInfoCache_cfg );
                 config.remove(mSelectedItem.md5);
-                config.save();
+                config.saveAsync();
                 mDrawerLayout.closeDrawer( GravityCompat.START, false );
                 refreshGrid();
             }
@@ -765,7 +824,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
     {
         launchGameActivity( item.romFile.getAbsolutePath(),
             item.zipFile == null ? null : item.zipFile.getAbsolutePath(),
-            item.isExtracted, item.md5, item.crc, item.headerName, item.countryCode.getValue(),
+            item.md5, item.crc, item.headerName, item.countryCode.getValue(),
             item.artPath, item.goodName, false );
         return true;
     }
@@ -816,10 +875,14 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
                 final boolean downloadArt = extras.getBoolean( ActivityHelper.Keys.DOWNLOAD_ART );
                 final boolean clearGallery = extras.getBoolean( ActivityHelper.Keys.CLEAR_GALLERY );
                 final boolean searchSubdirectories = extras.getBoolean( ActivityHelper.Keys.SEARCH_SUBDIR );
+                final String exclusions = extras.getString( ActivityHelper.Keys.EXCLUSIONS );
 
                 if (searchPath != null)
                 {
-                    refreshRoms(new File(searchPath), searchZips, downloadArt, clearGallery, searchSubdirectories);
+                    final LibraryRoot root = new LibraryRoot( new File( searchPath ).getAbsolutePath(),
+                            searchSubdirectories ? LibraryRoot.DEFAULT_MAX_DEPTH : 0, searchZips,
+                            LibraryRoot.parseExclusions( exclusions ) );
+                    refreshRoms(root, downloadArt, clearGallery);
                 }
             }
         }
@@ -839,9 +902,28 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         }
     }
 
-    private void refreshRoms(final File startDir, boolean searchZips, boolean downloadArt, boolean clearGallery, boolean searchSubdirectories)
+    /**
+     * Adds a folder to the library, or updates how it is scanned, and scans every folder of the
+     * library. Clearing the gallery also removes the other folders from the library.
+     */
+    private void refreshRoms(LibraryRoot root, boolean downloadArt, boolean clearGallery)
     {
-        mCacheRomInfoFragment.refreshRoms(startDir, searchZips, downloadArt, clearGallery, searchSubdirectories, mAppData, mGlobalPrefs);
+        final List<LibraryRoot> roots = new ArrayList<LibraryRoot>();
+        if (!clearGallery)
+        {
+            for (LibraryRoot existing : mAppData.getLibraryRoots())
+            {
+                if (!existing.path.equals(root.path))
+                    roots.add(existing);
+            }
+        }
+        roots.add(root);
+
+        // Remember the library so that it can be watched, the full scan takes care of it meanwhile
+        mAppData.putLibraryRoots(roots, downloadArt);
+        mRomFolderWatcher.stop();
+
+        mCacheRomInfoFragment.refreshRoms(roots, downloadArt, clearGallery, mAppData, mGlobalPrefs);
     }
 
     void refreshGrid( ){
@@ -850,188 +932,87 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         mAppData = new AppData( this );
         mGlobalPrefs = new GlobalPrefs( this, mAppData );
 
-        final ConfigFile config = new ConfigFile( mGlobalPrefs.romInfoCache_cfg );
-
-        final String query = mSearchQuery.toLowerCase( Locale.US );
-        String[] searches = null;
-        if( query.length() > 0 )
-            searches = query.split( " " );
-
-        List<GalleryItem> items = new ArrayList<GalleryItem>();
-        List<GalleryItem> recentItems = null;
-        int currentTime = 0;
-        if( mGlobalPrefs.isRecentShown )
-        {
-            recentItems = new ArrayList<GalleryItem>();
-            currentTime = (int) ( new Date().getTime() / 1000 );
-        }
-
-        for( final String md5 : config.keySet() )
-        {
-            if( !ConfigFile.SECTIONLESS_NAME.equals( md5 ) )
-            {
-                final ConfigSection section = config.get( md5 );
-                String goodName;
-                if( mGlobalPrefs.isFullNameShown || !section.keySet().contains( "baseName" ) )
-                    goodName = section.get( "goodName" );
-                else
-                    goodName = section.get( "baseName" );
+        // Update the grid layout
+        final int oldColumns = galleryColumns;
+        final int oldWidth = galleryWidth;
+        galleryMaxWidth = (int) (getResources().getDimension( R.dimen.galleryImageWidth ) * mGlobalPrefs.coverArtScale);
+        galleryHalfSpacing = (int) getResources().getDimension( R.dimen.galleryHalfSpacing );
+        galleryAspectRatio = galleryMaxWidth * 1.0f
+                / getResources().getDimension( R.dimen.galleryImageHeight )/mGlobalPrefs.coverArtScale;
 
-                boolean matchesSearch = true;
-                if( searches != null && searches.length > 0 )
-                {
-                    // Make sure the ROM name contains every token in the query
-                    final String lowerName = goodName.toLowerCase( Locale.US );
-                    for( final String search : searches )
-                    {
-                        if( search.length() > 0 && !lowerName.contains( search ) )
-                        {
-                            matchesSearch = false;
-                            break;
-                        }
-                    }
-                }
+        final DisplayMetrics metrics = new DisplayMetrics();
+        getWindowManager().getDefaultDisplay().getMetrics( metrics );
 
-                if( matchesSearch )
-                {
-                    final String romPath = config.get( md5, "romPath" );
-                    String zipPath = config.get( md5, "zipPath" );
-                    final String artFullPath = config.get( md5, "artPath" );
-
-                    //We get the file name to support the old gallery format
-                    String artPath = !TextUtils.isEmpty(artFullPath) ? new File(artFullPath).getName() : null;
-
-                    if(artPath != null)
-                        artPath = mGlobalPrefs.coverArtDir + "/" + artPath;
-                    
-                    String crc = config.get( md5, "crc" );
-                    String headerName = config.get( md5, "headerName" );
-                    final String countryCodeString = config.get( md5, "countryCode" );
-                    CountryCode countryCode = CountryCode.UNKNOWN;
-
-                    //We can't really do much if the rompath is null
-                    if (romPath != null)
-                    {
-                        if (countryCodeString != null)
-                        {
-                            countryCode = CountryCode.getCountryCode(Byte.parseByte(countryCodeString));
-                        }
-                        final String lastPlayedStr = config.get(md5, "lastPlayed");
-                        String extracted = config.get(md5, "extracted");
+        final int width = metrics.widthPixels - galleryHalfSpacing * 2;
+        galleryColumns = (int) Math
+                .ceil( width * 1.0 / ( galleryMaxWidth + galleryHalfSpacing * 2 ) );
+        galleryWidth = width / galleryColumns - galleryHalfSpacing * 2;
 
-                        if (crc == null || headerName == null || countryCodeString == null
-                            || extracted == null)
-                        {
-                            final File file = new File(romPath);
-                            final RomHeader header = new RomHeader(file);
-
-                            crc = header.crc;
-                            headerName = header.name;
-                            countryCode = header.countryCode;
-                            extracted = "false";
-
-                            config.put(md5, "crc", crc);
-                            config.put(md5, "headerName", headerName);
-                            config.put(md5, "countryCode", Byte.toString(countryCode.getValue()));
-                            config.put(md5, "extracted", extracted);
-                        }
+        ((GridLayoutManager) mGridView.getLayoutManager()).setSpanCount( galleryColumns );
+        if( galleryColumns != oldColumns || galleryWidth != oldWidth )
+            mGridView.getAdapter().notifyDataSetChanged();
 
-                        int lastPlayed = 0;
-                        if (lastPlayedStr != null)
-                            lastPlayed = Integer.parseInt(lastPlayedStr);
+        CoverArtLoader.getInstance().setThumbnailDir( mGlobalPrefs.coverArtThumbnailDir );
 
-                        final GalleryItem item = new GalleryItem(this, md5, crc, headerName, countryCode, goodName, romPath,
-                            zipPath, extracted.equals("true"), artPath, lastPlayed, mGlobalPrefs.coverArtScale);
-                        items.add(item);
-                        boolean isNotOld = currentTime - item.lastPlayed <= 60 * 60 * 24 * 7; // 7 days
-                        if (mGlobalPrefs.isRecentShown && isNotOld )
-                        {
-                            recentItems.add(item);
-                        }
+        // Read the ROM info cache and rebuild the items in the background
+        mGalleryModel.reload( mGlobalPrefs );
 
-                        // Delete any old files that already exist inside a zip
-                        // file
-                        if (!isNotOld && !TextUtils.isEmpty(zipPath) && extracted.equals("true"))
-                        {
-                            final File deleteFile = new File(romPath);
+        updateRomFolderWatcher();
+    }
 
-                            if(!deleteFile.isDirectory())
-                            {
-                                deleteFile.delete();
-                            }
+    /**
+     * Starts or stops watching the folders of the library, following the preferences.
+     */
+    private void updateRomFolderWatcher()
+    {
+        // The watcher is started once the scan fragment is known, and never runs during a scan
+        if( mCacheRomInfoFragment == null || mCacheRomInfoFragment.IsInProgress() )
+            return;
 
-                            config.put(md5, "extracted", "false");
-                        }
-                    }
-                }
-            }
+        final List<LibraryRoot> roots = mAppData.getLibraryRoots();
+        if( mGlobalPrefs.isRomFolderWatched && !roots.isEmpty() )
+        {
+            mRomFolderWatcher.start( roots, mAppData.getLibraryDownloadArt() );
         }
-
-        config.save();
-
-        Collections.sort( items, new GalleryItem.NameComparator() );
-        if( recentItems != null )
-            Collections.sort( recentItems, new GalleryItem.RecentlyPlayedComparator() );
-
-        List<GalleryItem> combinedItems = items;
-        if( mGlobalPrefs.isRecentShown && recentItems.size() > 0 )
+        else
         {
-            combinedItems = new ArrayList<GalleryItem>();
-
-            combinedItems
-                    .add( new GalleryItem( this, getString( R.string.galleryRecentlyPlayed ) ) );
-            combinedItems.addAll( recentItems );
-
-            combinedItems.add( new GalleryItem( this, getString( R.string.galleryLibrary ) ) );
-            combinedItems.addAll( items );
-
-            items = combinedItems;
+            mRomFolderWatcher.stop();
         }
+    }
 
+    @Override
+    public void onRomFolderChanged()
+    {
+        // Only the changed items are updated in the grid
+        mGalleryModel.reload( mGlobalPrefs );
+    }
+
+    @Override
+    public void onGalleryChanged( List<GalleryItem> items, DiffUtil.DiffResult diff )
+    {
         mGalleryItems = items;
-        mGridView.setAdapter( new GalleryItem.Adapter( this, items ) );
+        final GalleryItem.Adapter adapter = (GalleryItem.Adapter) mGridView.getAdapter();
+        adapter.setItems( items );
+        diff.dispatchUpdatesTo( adapter );
 
-        // Allow the headings to take up the entire width of the layout
-        final List<GalleryItem> finalItems = items;
-        final GridLayoutManager layoutManager = new GridLayoutManagerBetterScrolling( this, galleryColumns );
-        layoutManager.setSpanSizeLookup( new GridLayoutManager.SpanSizeLookup()
+        if( mPendingSidebarMd5 != null )
         {
-            @Override
-            public int getSpanSize( int position )
+            // Repopulate the game sidebar
+            for( final GalleryItem item : items )
             {
-                // Headings will take up every span (column) in the grid
-                if( finalItems.get( position ).isHeading )
-                    return galleryColumns;
-
-                // Games will fit in a single column
-                return 1;
+                if( mPendingSidebarMd5.equals( item.md5 ) )
+                {
+                    onGalleryItemClick( item );
+                    break;
+                }
             }
-        } );
-
-        mGridView.setLayoutManager( layoutManager );
-
-        // Update the grid layout
-        galleryMaxWidth = (int) (getResources().getDimension( R.dimen.galleryImageWidth ) * mGlobalPrefs.coverArtScale);
-        galleryHalfSpacing = (int) getResources().getDimension( R.dimen.galleryHalfSpacing );
-        galleryAspectRatio = galleryMaxWidth * 1.0f
-                / getResources().getDimension( R.dimen.galleryImageHeight )/mGlobalPrefs.coverArtScale;
-
-        final DisplayMetrics metrics = new DisplayMetrics();
-        getWindowManager().getDefaultDisplay().getMetrics( metrics );
-
-        final int width = metrics.widthPixels - galleryHalfSpacing * 2;
-        galleryColumns = (int) Math
-                .ceil( width * 1.0 / ( galleryMaxWidth + galleryHalfSpacing * 2 ) );
-        galleryWidth = width / galleryColumns - galleryHalfSpacing * 2;
-
-        layoutManager.setSpanCount( galleryColumns );
-        mGridView.getAdapter().notifyDataSetChanged();
-        mGridView.setFocusable(false);
-        mGridView.setFocusableInTouchMode(false);
+            mPendingSidebarMd5 = null;
+        }
     }
 
-    public void launchGameActivity( String romPath, String zipPath, boolean extracted, String romMd5, String romCrc,
-            String romHeaderName, byte romCountryCode, String romArtPath, String romGoodName, boolean isRestarting)
+    public void launchGameActivity( final String romPath, final String zipPath, final String romMd5,
+            final String romCrc, final String romHeaderName, final byte romCountryCode, final String romArtPath,
+            final String romGoodName, final boolean isRestarting)
     {
         // Make sure that the storage is accessible
         if( !mAppData.isSdCardAccessible() )
@@ -1047,19 +1028,56 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
 
         // Update the ConfigSection with the new value for lastPlayed
         final String lastPlayed = Integer.toString( (int) ( new Date().getTime() / 1000 ) );
-        final ConfigFile config = new ConfigFile( mGlobalPrefs.romInfoCache_cfg );
+        final ConfigFile config = ConfigFile.open( mGlobalPrefs.romInfoCache_cfg );
         if( config.get(romMd5) != null)
         {
             config.put( romMd5, "lastPlayed", lastPlayed );
 
+            // Written right away, so that a gallery reload keeps the extracted ROM of this game
+            config.saveAsync();
+
             if(!TextUtils.isEmpty(zipPath))
             {
-                romPath = ExtractFileIfNeeded(romMd5, config, romPath, zipPath, extracted);
-            }
+                // Extracting can take a while, the game is started once it is done
+                if(mExtractRomTask != null)
+                    return;
+
+                mExtractRomProgress = new ProgressDialog( this, getString( R.string.toast_launchingEmulator ),
+                        romGoodName, getString( R.string.cacheRomInfo_extractingZip ), false );
+                mExtractRomProgress.show();
+
+                final ExtractedRomCache romCache = new ExtractedRomCache(mGlobalPrefs.unzippedRomsDir,
+                        mGlobalPrefs.extractedRomCacheBytes);
+                mExtractRomTask = new ExtractRomTask( romCache, config, romMd5, romPath, zipPath,
+                        mGlobalPrefs.romZipIndex_dat, new ExtractRomTask.ExtractRomListener()
+                {
+                    @Override
+                    public void onExtractRomFinished( File romFile )
+                    {
+                        mExtractRomTask = null;
+                        mExtractRomProgress.dismiss();
 
-            config.save();
+                        if(romFile == null)
+                        {
+                            Notifier.showToast( GalleryActivity.this, R.string.toast_extractRomFailed );
+                            return;
+                        }
+                        startGameFragment( romFile.getPath(), zipPath, romMd5, romCrc, romHeaderName,
+                                romCountryCode, romArtPath, romGoodName, isRestarting );
+                    }
+                } );
+                mExtractRomTask.execute();
+                return;
+            }
         }
 
+        startGameFragment( romPath, zipPath, romMd5, romCrc, romHeaderName, romCountryCode, romArtPath,
+                romGoodName, isRestarting );
+    }
+
+    private void startGameFragment( String romPath, String zipPath, String romMd5, String romCrc,
+            String romHeaderName, byte romCountryCode, String romArtPath, String romGoodName, boolean isRestarting )
+    {
         ///Drawer layout can be null if this method is called from onCreate
         if(mDrawerLayout != null)
         {
@@ -1156,77 +1174,6 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         return null;
     }
 
-    private String ExtractFileIfNeeded(String md5, ConfigFile config, String romPath, String zipPath, boolean isExtracted)
-    {
-        final File romFile = new File(romPath);
-        String romFileName = romFile.getName();
-        final File extractedRomFile = new File(mGlobalPrefs.unzippedRomsDir + "/" + romFileName);
-        final RomHeader romHeader = new RomHeader( zipPath );
-
-        final boolean isZip = romHeader.isZip;
-
-        if(isZip && (!extractedRomFile.exists() || !isExtracted))
-        {
-            boolean lbFound = false;
-
-            try
-            {
-                final ZipFile zipFile = new ZipFile( zipPath );
-                final Enumeration<? extends ZipEntry> entries = zipFile.entries();
-                while( entries.hasMoreElements() && !lbFound)
-                {
-                    final ZipEntry zipEntry = entries.nextElement();
-
-                    try
-                    {
-                        final InputStream zipStream = zipFile.getInputStream( zipEntry );
-
-                        final File destDir = new File( mGlobalPrefs.unzippedRomsDir );
-                        final String entryName = new File( zipEntry.getName() ).getName();
-                        File tempRomPath = new File( destDir, entryName );
-                        final boolean fileExisted = tempRomPath.exists();
-
-                        if( !fileExisted )
-                        {
-                            tempRomPath = FileUtil.extractRomFile( destDir, zipEntry, zipStream );
-                        }
-
-                        final String computedMd5 = ComputeMd5Task.computeMd5( tempRomPath );
-                        lbFound = computedMd5 != null && computedMd5.equals(md5);
-
-                        //only delete the file if we extracted our selves
-                        if(!lbFound && !fileExisted && tempRomPath != null && !tempRomPath.isDirectory())
-                        {
-                            tempRomPath.delete();
-                        }
-
-                        zipStream.close();
-                    }
-                    catch( final IOException e )
-                    {
-                        Log.w( "CacheRomInfoTask", e );
-                    }
-                }
-                zipFile.close();
-            }
-            catch( final IOException e)
-            {
-                Log.w( "GalleryActivity", e );
-            }
-            catch(ArrayIndexOutOfBoundsException e )
-            {
-                Log.w( "GalleryActivity", e );
-            }
-
-            if(lbFound || romFile.exists())
-            {
-                config.put(md5, "extracted", "true");
-            }
-        }
-
-        return extractedRomFile.getPath();
-    }
-
     @Override
     public boolean onKey(View v, int keyCode, KeyEvent event)
     {
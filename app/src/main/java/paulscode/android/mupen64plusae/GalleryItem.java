@@ -21,9 +21,11 @@
 package paulscode.android.mupen64plusae;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
+import android.util.SparseArray;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -40,7 +42,7 @@ import java.io.File;
 import java.util.Comparator;
 import java.util.List;
 
-import paulscode.android.mupen64plusae.task.LoadBitmapTask;
+import paulscode.android.mupen64plusae.task.CoverArtLoader;
 import paulscode.android.mupen64plusae.util.CountryCode;
 
 public class GalleryItem
@@ -142,11 +144,11 @@ public class GalleryItem
     }
     
     public static class ViewHolder extends RecyclerView.ViewHolder implements OnClickListener,
-            OnLongClickListener
+            OnLongClickListener, CoverArtLoader.Listener
     {
         public GalleryItem item;
         private Context mContext;
-        LoadBitmapTask mLoadBitmapTask = null;
+        CoverArtLoader.Request mArtRequest = null;
         
         public ViewHolder( Context context, View view )
         {
@@ -182,12 +184,38 @@ public class GalleryItem
             }
             return false;
         }
+        
+        @Override
+        public void onCoverArtLoaded( Bitmap bitmap )
+        {
+            mArtRequest = null;
+            if( bitmap != null )
+            {
+                ImageView artView = (ImageView) itemView.findViewById( R.id.imageArt );
+                artView.setImageBitmap( bitmap );
+            }
+        }
+        
+        /**
+         * Stops loading the cover art of the previously bound item.
+         */
+        void cancelArtRequest()
+        {
+            if( mArtRequest != null )
+            {
+                mArtRequest.cancel();
+                mArtRequest = null;
+            }
+        }
     }
     
     public static class Adapter extends RecyclerView.Adapter<ViewHolder>
     {
         private final Context mContext;
-        private final List<GalleryItem> mObjects;
+        private List<GalleryItem> mObjects;
+        
+        /** Cover art being prefetched, by adapter position. */
+        private final SparseArray<CoverArtLoader.Request> mPrefetches = new SparseArray<CoverArtLoader.Request>();
         
         public Adapter( Context context, List<GalleryItem> objects )
         {
@@ -195,6 +223,75 @@ public class GalleryItem
             mObjects = objects;
         }
         
+        /**
+         * Replaces the items. The caller is responsible for notifying the changes.
+         */
+        public void setItems( List<GalleryItem> objects )
+        {
+            mObjects = objects;
+            
+            // The positions of the prefetched art no longer match the items
+            for( int i = 0; i < mPrefetches.size(); i++ )
+                mPrefetches.valueAt( i ).cancel();
+            mPrefetches.clear();
+        }
+        
+        /**
+         * Updates the visible part of the gallery, and prefetches the cover art of the next screen
+         * in the direction the gallery is scrolled.
+         * 
+         * @param first The first visible adapter position.
+         * @param last The last visible adapter position.
+         * @param scrollDirection 1 when scrolling towards the end, -1 towards the start.
+         */
+        public void onVisibleRangeChanged( int first, int last, int scrollDirection )
+        {
+            if( first < 0 || last < first )
+                return;
+            
+            final CoverArtLoader loader = CoverArtLoader.getInstance();
+            loader.setVisibleRange( first, last );
+            
+            // Look one screen ahead, towards the end until the gallery is scrolled
+            final int screenSize = last - first + 1;
+            final int start;
+            final int end;
+            if( scrollDirection < 0 )
+            {
+                start = Math.max( first - screenSize, 0 );
+                end = first - 1;
+            }
+            else
+            {
+                start = last + 1;
+                end = Math.min( last + screenSize, mObjects.size() - 1 );
+            }
+            
+            // Stop prefetching the art that is no longer ahead
+            for( int i = mPrefetches.size() - 1; i >= 0; i-- )
+            {
+                final int position = mPrefetches.keyAt( i );
+                if( position < start || position > end )
+                {
+                    mPrefetches.valueAt( i ).cancel();
+                    mPrefetches.removeAt( i );
+                }
+            }
+            
+            final GalleryActivity activity = (GalleryActivity) mContext;
+            final int artWidth = activity.galleryWidth;
+            final int artHeight = (int) ( activity.galleryWidth / activity.galleryAspectRatio );
+            for( int position = start; position <= end; position++ )
+            {
+                final GalleryItem item = mObjects.get( position );
+                if( item.isHeading || TextUtils.isEmpty( item.artPath ) || mPrefetches.get( position ) != null
+                        || loader.getCached( item.artPath, artWidth, artHeight ) != null )
+                    continue;
+                
+                mPrefetches.put( position, loader.load( item.artPath, artWidth, artHeight, position, null ) );
+            }
+        }
+        
         @Override
         public int getItemCount()
         {
@@ -215,16 +312,8 @@ public class GalleryItem
         
         public void onBindViewHolder( ViewHolder holder, int position )
         {
-            // Clear the now-offscreen bitmap to conserve memory, also cancel any tasks reading the bitmap
-            if( holder.item != null )
-            {
-                if(holder.mLoadBitmapTask != null)
-                {
-                    holder.mLoadBitmapTask.cancel(true);
-                    holder.mLoadBitmapTask = null;
-                }
-                holder.item.clearBitmap();
-            }
+            // Stop loading the art of the now-offscreen item
+            holder.cancelArtRequest();
             
             // Called by RecyclerView to display the data at the specified position.
             View view = holder.itemView;
@@ -261,14 +350,26 @@ public class GalleryItem
                     tv1.setTextSize( TypedValue.COMPLEX_UNIT_DIP, 13.0f*item.scale );
                     artView.setVisibility( View.VISIBLE );
                     
-                    artView.setImageResource( R.drawable.default_coverart );
-
-                    //Load the real cover art in a background task
-                    holder.mLoadBitmapTask = new LoadBitmapTask(item.context, item.artPath, artView); 
-                    holder.mLoadBitmapTask.execute((String) null);
+                    final int artWidth = activity.galleryWidth;
+                    final int artHeight = (int) ( activity.galleryWidth / activity.galleryAspectRatio );
                     
-                    artView.getLayoutParams().width = activity.galleryWidth;
-                    artView.getLayoutParams().height = (int) ( activity.galleryWidth / activity.galleryAspectRatio );
+                    // Show the art scaled to the cell, loading it in the background if it isn't cached
+                    final CoverArtLoader loader = CoverArtLoader.getInstance();
+                    final Bitmap cachedArt = TextUtils.isEmpty( item.artPath ) ? null
+                            : loader.getCached( item.artPath, artWidth, artHeight );
+                    if( cachedArt != null )
+                    {
+                        artView.setImageBitmap( cachedArt );
+                    }
+                    else
+                    {
+                        artView.setImageResource( R.drawable.default_coverart );
+                        if( !TextUtils.isEmpty( item.artPath ) )
+                            holder.mArtRequest = loader.load( item.artPath, artWidth, artHeight, position, holder );
+                    }
+                    
+                    artView.getLayoutParams().width = artWidth;
+                    artView.getLayoutParams().height = artHeight;
                     
                     LinearLayout layout = (LinearLayout) view.findViewById( R.id.info );
                     layout.getLayoutParams().width = activity.galleryWidth;
@@ -277,6 +378,12 @@ public class GalleryItem
             }
         }
         
+        @Override
+        public void onViewRecycled( ViewHolder holder )
+        {
+            holder.cancelArtRequest();
+        }
+        
         public ViewHolder onCreateViewHolder( ViewGroup parent, int viewType )
         {
             LayoutInflater inflater = (LayoutInflater) mContext
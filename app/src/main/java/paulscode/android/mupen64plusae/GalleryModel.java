@@ -0,0 +1,473 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v7.util.DiffUtil;
+import android.text.TextUtils;
+
+import org.mupen64plusae.v3.alpha.R;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
+import paulscode.android.mupen64plusae.util.CountryCode;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
+import paulscode.android.mupen64plusae.util.RomHeader;
+import paulscode.android.mupen64plusae.util.RomSearchIndex;
+
+/**
+ * Builds the list of gallery items on a background thread. The ROM info cache is only read when
+ * {@link #reload(GlobalPrefs)} is called; the sorted items are kept in memory, so changing the
+ * search query only filters them. Every new list is handed to the {@link Listener} together with
+ * the changes from the previous one, so the grid can be updated incrementally.
+ */
+public class GalleryModel
+{
+    /**
+     * Receives the gallery items.
+     */
+    public interface Listener
+    {
+        /**
+         * Called on the UI thread when the gallery items changed.
+         *
+         * @param items The new gallery items, including headings.
+         * @param diff The changes from the previous items.
+         */
+        void onGalleryChanged( List<GalleryItem> items, DiffUtil.DiffResult diff );
+    }
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+
+    /** Headings, created once so that they are kept across updates. */
+    private final GalleryItem mRecentHeading;
+    private final GalleryItem mLibraryHeading;
+
+    /** Latest search query, read by the background thread. */
+    private volatile String mQuery = "";
+
+    /** True once {@link #destroy()} has been called. */
+    private volatile boolean mDestroyed = false;
+
+    // The fields below are only used on the background thread
+
+    /** All games sorted by name, and their ids in the search index. */
+    private List<GalleryItem> mLibrary = new ArrayList<GalleryItem>();
+    private int[] mLibraryIds = new int[0];
+
+    /** Recently played games sorted by last played time, or null if they are not shown. */
+    private List<GalleryItem> mRecent = null;
+    private int[] mRecentIds = null;
+
+    /** Search index of every game, kept up to date across reloads. */
+    private RomSearchIndex mSearchIndex = new RomSearchIndex();
+
+    /** Games in the search index, mapped by MD5. */
+    private final HashMap<String, IndexedRom> mIndexedRoms = new HashMap<String, IndexedRom>();
+
+    /** Items and their keys as last handed to the listener. */
+    private List<GalleryItem> mPublishedItems = new ArrayList<GalleryItem>();
+    private List<String> mPublishedKeys = new ArrayList<String>();
+
+    private final Runnable mFilterRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            publish();
+        }
+    };
+
+    /**
+     * Starts the background thread. Nothing is loaded until {@link #reload(GlobalPrefs)} is called.
+     *
+     * @param context The gallery activity, used by the gallery items.
+     * @param listener The listener receiving the items.
+     */
+    public GalleryModel( Context context, Listener listener )
+    {
+        mContext = context;
+        mListener = listener;
+        mRecentHeading = new GalleryItem( context, context.getString( R.string.galleryRecentlyPlayed ) );
+        mLibraryHeading = new GalleryItem( context, context.getString( R.string.galleryLibrary ) );
+
+        HandlerThread thread = new HandlerThread( "GalleryModel", Process.THREAD_PRIORITY_BACKGROUND );
+        thread.start();
+        mHandler = new Handler( thread.getLooper() );
+        mMainHandler = new Handler( Looper.getMainLooper() );
+    }
+
+    /**
+     * Reads the ROM info cache again, e.g. after a scan, after playing a game, or after the
+     * gallery preferences changed.
+     *
+     * @param globalPrefs The current preferences.
+     */
+    public void reload( GlobalPrefs globalPrefs )
+    {
+        final String romInfoCache = globalPrefs.romInfoCache_cfg;
+        final String coverArtDir = globalPrefs.coverArtDir;
+        final boolean isFullNameShown = globalPrefs.isFullNameShown;
+        final boolean isRecentShown = globalPrefs.isRecentShown;
+        final float coverArtScale = globalPrefs.coverArtScale;
+        final ExtractedRomCache romCache = new ExtractedRomCache( globalPrefs.unzippedRomsDir,
+                globalPrefs.extractedRomCacheBytes );
+
+        mHandler.post( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                load( romInfoCache, coverArtDir, isFullNameShown, isRecentShown, coverArtScale, romCache );
+                publish();
+            }
+        } );
+    }
+
+    /**
+     * Filters the gallery items. Only games with a word starting with each word of the query are
+     * kept, looking at the good name, base name, header name and CRC of the game.
+     * Queries that are set while the previous one is still being filtered are merged.
+     *
+     * @param query The search query, empty to show every game.
+     */
+    public void setQuery( String query )
+    {
+        mQuery = query == null ? "" : query;
+        mHandler.removeCallbacks( mFilterRunnable );
+        mHandler.post( mFilterRunnable );
+    }
+
+    /**
+     * Stops the background thread. No more items are delivered after this is called.
+     */
+    public void destroy()
+    {
+        mDestroyed = true;
+        mHandler.removeCallbacksAndMessages( null );
+        mHandler.getLooper().quit();
+    }
+
+    private void load( String romInfoCache, String coverArtDir, boolean isFullNameShown, boolean isRecentShown,
+            float coverArtScale, ExtractedRomCache romCache )
+    {
+        final ConfigFile config = ConfigFile.open( romInfoCache );
+
+        // Applies a smaller budget, or an emptied cache when recent games are no longer cached
+        romCache.trim( config );
+        final HashSet<String> seenRoms = new HashSet<String>();
+
+        final List<GalleryItem> items = new ArrayList<GalleryItem>();
+        List<GalleryItem> recentItems = null;
+        int currentTime = 0;
+        if( isRecentShown )
+        {
+            recentItems = new ArrayList<GalleryItem>();
+            currentTime = (int) ( new Date().getTime() / 1000 );
+        }
+
+        for( final String md5 : config.keySet() )
+        {
+            if( ConfigFile.SECTIONLESS_NAME.equals( md5 ) )
+                continue;
+
+            final ConfigSection section = config.get( md5 );
+            String goodName;
+            if( isFullNameShown || !section.keySet().contains( "baseName" ) )
+                goodName = section.get( "goodName" );
+            else
+                goodName = section.get( "baseName" );
+
+            final String romPath = config.get( md5, "romPath" );
+            String zipPath = config.get( md5, "zipPath" );
+            final String artFullPath = config.get( md5, "artPath" );
+
+            //We get the file name to support the old gallery format
+            String artPath = !TextUtils.isEmpty( artFullPath ) ? new File( artFullPath ).getName() : null;
+
+            if( artPath != null )
+                artPath = coverArtDir + "/" + artPath;
+
+            String crc = config.get( md5, "crc" );
+            String headerName = config.get( md5, "headerName" );
+            final String countryCodeString = config.get( md5, "countryCode" );
+            CountryCode countryCode = CountryCode.UNKNOWN;
+
+            //We can't really do much if the rompath is null
+            if( romPath == null )
+                continue;
+
+            if( countryCodeString != null )
+            {
+                countryCode = CountryCode.getCountryCode( Byte.parseByte( countryCodeString ) );
+            }
+            final String lastPlayedStr = config.get( md5, "lastPlayed" );
+            String extracted = config.get( md5, "extracted" );
+
+            if( crc == null || headerName == null || countryCodeString == null || extracted == null )
+            {
+                final File file = new File( romPath );
+                final RomHeader header = new RomHeader( file );
+
+                crc = header.crc;
+                headerName = header.name;
+                countryCode = header.countryCode;
+                extracted = "false";
+
+                config.put( md5, "crc", crc );
+                config.put( md5, "headerName", headerName );
+                config.put( md5, "countryCode", Byte.toString( countryCode.getValue() ) );
+                config.put( md5, "extracted", extracted );
+            }
+
+            int lastPlayed = 0;
+            if( lastPlayedStr != null )
+                lastPlayed = Integer.parseInt( lastPlayedStr );
+
+            final GalleryItem item = new GalleryItem( mContext, md5, crc, headerName, countryCode, goodName, romPath,
+                    zipPath, extracted.equals( "true" ), artPath, lastPlayed, coverArtScale );
+            items.add( item );
+            index( md5, section.get( "goodName" ), section.get( "baseName" ), headerName, crc );
+            seenRoms.add( md5 );
+            boolean isNotOld = currentTime - item.lastPlayed <= 60 * 60 * 24 * 7; // 7 days
+            if( isRecentShown && isNotOld )
+            {
+                recentItems.add( item );
+            }
+        }
+
+        // Only writes if an entry was repaired above
+        config.save();
+
+        // Drop the games that are gone from the search index
+        final Iterator<Map.Entry<String, IndexedRom>> iter = mIndexedRoms.entrySet().iterator();
+        while( iter.hasNext() )
+        {
+            final Map.Entry<String, IndexedRom> entry = iter.next();
+            if( !seenRoms.contains( entry.getKey() ) )
+            {
+                mSearchIndex.remove( entry.getValue().id );
+                iter.remove();
+            }
+        }
+
+        // Start over once most of the index is made of removed games
+        if( mSearchIndex.size() > 2 * mIndexedRoms.size() + 64 )
+        {
+            mSearchIndex = new RomSearchIndex();
+            for( IndexedRom indexed : mIndexedRoms.values() )
+                indexed.id = mSearchIndex.add( indexed.fields );
+        }
+
+        Collections.sort( items, new GalleryItem.NameComparator() );
+        mLibrary = items;
+        mLibraryIds = getSearchIds( items );
+
+        if( recentItems != null )
+        {
+            Collections.sort( recentItems, new GalleryItem.RecentlyPlayedComparator() );
+            mRecent = recentItems;
+            mRecentIds = getSearchIds( recentItems );
+        }
+        else
+        {
+            mRecent = null;
+            mRecentIds = null;
+        }
+    }
+
+    /**
+     * Adds a game to the search index, unless it is already indexed with the same names.
+     */
+    private void index( String md5, String... fields )
+    {
+        IndexedRom indexed = mIndexedRoms.get( md5 );
+        if( indexed != null && Arrays.equals( indexed.fields, fields ) )
+            return;
+
+        if( indexed != null )
+            mSearchIndex.remove( indexed.id );
+        mIndexedRoms.put( md5, new IndexedRom( mSearchIndex.add( fields ), fields ) );
+    }
+
+    private int[] getSearchIds( List<GalleryItem> items )
+    {
+        final int[] ids = new int[items.size()];
+        for( int i = 0; i < ids.length; i++ )
+            ids[i] = mIndexedRoms.get( items.get( i ).md5 ).id;
+        return ids;
+    }
+
+    /**
+     * Filters the items with the current query and hands them to the listener.
+     */
+    private void publish()
+    {
+        final BitSet matches = mSearchIndex.search( mQuery );
+
+        final List<GalleryItem> items = new ArrayList<GalleryItem>();
+        final List<String> keys = new ArrayList<String>();
+
+        List<GalleryItem> recentItems = mRecent == null ? null : filter( mRecent, mRecentIds, matches );
+        List<GalleryItem> libraryItems = filter( mLibrary, mLibraryIds, matches );
+
+        if( recentItems != null && recentItems.size() > 0 )
+        {
+            // The same game can be listed twice, so keys are made unique by the section
+            add( items, keys, mRecentHeading, "heading:recent" );
+            for( GalleryItem item : recentItems )
+                add( items, keys, item, "recent:" + item.md5 );
+            add( items, keys, mLibraryHeading, "heading:library" );
+        }
+        for( GalleryItem item : libraryItems )
+            add( items, keys, item, "library:" + item.md5 );
+
+        final DiffUtil.DiffResult diff = DiffUtil.calculateDiff( new ItemDiff( mPublishedItems, mPublishedKeys,
+                items, keys ), false );
+        mPublishedItems = items;
+        mPublishedKeys = keys;
+
+        mMainHandler.post( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if( !mDestroyed )
+                    mListener.onGalleryChanged( items, diff );
+            }
+        } );
+    }
+
+    private static List<GalleryItem> filter( List<GalleryItem> items, int[] ids, BitSet matches )
+    {
+        if( matches == null )
+            return items;
+
+        // The items are already sorted, so keep their order
+        final List<GalleryItem> result = new ArrayList<GalleryItem>();
+        for( int i = 0; i < ids.length; i++ )
+        {
+            if( matches.get( ids[i] ) )
+                result.add( items.get( i ) );
+        }
+        return result;
+    }
+
+    private static void add( List<GalleryItem> items, List<String> keys, GalleryItem item, String key )
+    {
+        items.add( item );
+        keys.add( key );
+    }
+
+    /**
+     * A game in the search index.
+     */
+    private static class IndexedRom
+    {
+        public int id;
+        public final String[] fields;
+
+        public IndexedRom( int id, String[] fields )
+        {
+            this.id = id;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Compares two lists of gallery items by their keys.
+     */
+    private static class ItemDiff extends DiffUtil.Callback
+    {
+        private final List<GalleryItem> mOldItems;
+        private final List<String> mOldKeys;
+        private final List<GalleryItem> mNewItems;
+        private final List<String> mNewKeys;
+
+        public ItemDiff( List<GalleryItem> oldItems, List<String> oldKeys, List<GalleryItem> newItems,
+                List<String> newKeys )
+        {
+            mOldItems = oldItems;
+            mOldKeys = oldKeys;
+            mNewItems = newItems;
+            mNewKeys = newKeys;
+        }
+
+        @Override
+        public int getOldListSize()
+        {
+            return mOldKeys.size();
+        }
+
+        @Override
+        public int getNewListSize()
+        {
+            return mNewKeys.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame( int oldItemPosition, int newItemPosition )
+        {
+            return mOldKeys.get( oldItemPosition ).equals( mNewKeys.get( newItemPosition ) );
+        }
+
+        @Override
+        public boolean areContentsTheSame( int oldItemPosition, int newItemPosition )
+        {
+            // View holders keep their item, so the item must be rebound if anything changed
+            final GalleryItem oldItem = mOldItems.get( oldItemPosition );
+            final GalleryItem newItem = mNewItems.get( newItemPosition );
+            return oldItem == newItem || ( TextUtils.equals( oldItem.goodName, newItem.goodName )
+                    && TextUtils.equals( oldItem.artPath, newItem.artPath )
+                    && TextUtils.equals( oldItem.crc, newItem.crc )
+                    && TextUtils.equals( oldItem.headerName, newItem.headerName )
+                    && oldItem.countryCode == newItem.countryCode
+                    && oldItem.lastPlayed == newItem.lastPlayed
+                    && oldItem.isExtracted == newItem.isExtracted
+                    && equals( oldItem.romFile, newItem.romFile )
+                    && equals( oldItem.zipFile, newItem.zipFile )
+                    && oldItem.scale == newItem.scale );
+        }
+
+        private static boolean equals( File file1, File file2 )
+        {
+            return file1 == null ? file2 == null : file1.equals( file2 );
+        }
+    }
+}
@@ -39,6 +39,8 @@ import android.view.View;
  */
 public class GridLayoutManagerBetterScrolling extends android.support.v7.widget.GridLayoutManager
 {
+    /** Direction of the last scroll: 1 towards the end, -1 towards the start, 0 if never scrolled. */
+    private int mScrollDirection = 0;
 
     public GridLayoutManagerBetterScrolling(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes)
     {
@@ -55,6 +57,39 @@ public class GridLayoutManagerBetterScrolling extends android.support.v7.widget.
         super(context, spanCount, orientation, reverseLayout);
     }
 
+    @Override
+    public int scrollVerticallyBy(int dy, RecyclerView.Recycler recycler, RecyclerView.State state)
+    {
+        return updateScrollDirection(super.scrollVerticallyBy(dy, recycler, state));
+    }
+
+    @Override
+    public int scrollHorizontallyBy(int dx, RecyclerView.Recycler recycler, RecyclerView.State state)
+    {
+        return updateScrollDirection(super.scrollHorizontallyBy(dx, recycler, state));
+    }
+
+    /**
+     * Returns the direction of the last scroll.
+     *
+     * @return 1 if the last scroll moved towards the end of the list, -1 if it moved towards the
+     *         start, 0 if the list was never scrolled.
+     */
+    public int getScrollDirection()
+    {
+        return mScrollDirection;
+    }
+
+    private int updateScrollDirection(int scrolled)
+    {
+        if (scrolled != 0)
+        {
+            mScrollDirection = scrolled > 0 ? 1 : -1;
+        }
+
+        return scrolled;
+    }
+
     @Override
     public View onFocusSearchFailed(View focused, int focusDirection, RecyclerView.Recycler recycler,
         RecyclerView.State state)
@@ -12,6 +12,7 @@ import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.ListView;
 
 import org.mupen64plusae.v3.alpha.R;
@@ -21,6 +22,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import paulscode.android.mupen64plusae.dialog.Prompt;
+import paulscode.android.mupen64plusae.persistent.AppData;
+import paulscode.android.mupen64plusae.persistent.LibraryRoot;
 import paulscode.android.mupen64plusae.util.FileUtil;
 
 public class ScanRomsActivity extends AppCompatActivity implements OnItemClickListener
@@ -31,6 +34,7 @@ public class ScanRomsActivity extends AppCompatActivity implements OnItemClickLi
     private CheckBox mCheckBox2;
     private CheckBox mCheckBox3;
     private CheckBox mCheckBox4;
+    private EditText mExclusions;
     private Button mCancelButton;
     private Button mOkButton;
     private Button mResetButton;
@@ -90,6 +94,7 @@ public class ScanRomsActivity extends AppCompatActivity implements OnItemClickLi
         mCheckBox2.setChecked( true );
         mCheckBox3.setChecked( false );
         mCheckBox4.setChecked( true );
+        mExclusions = (EditText) findViewById( R.id.editTextExclusions );
 
         mResetButton = (Button) findViewById( R.id.buttonReset );
         mResetButton.setOnClickListener(new View.OnClickListener() {
@@ -116,6 +121,7 @@ public class ScanRomsActivity extends AppCompatActivity implements OnItemClickLi
                 data.putExtra(ActivityHelper.Keys.DOWNLOAD_ART, mCheckBox2.isChecked());
                 data.putExtra(ActivityHelper.Keys.CLEAR_GALLERY, mCheckBox3.isChecked());
                 data.putExtra(ActivityHelper.Keys.SEARCH_SUBDIR, mCheckBox4.isChecked());
+                data.putExtra(ActivityHelper.Keys.EXCLUSIONS, mExclusions.getText().toString());
                 ScanRomsActivity.this.setResult(RESULT_OK, data);
 
                 //Save the selected directory
@@ -152,6 +158,15 @@ public class ScanRomsActivity extends AppCompatActivity implements OnItemClickLi
             listView1.setAdapter( adapter );
             listView1.setOnItemClickListener( this );   
         }
+
+        // Show the exclusions of the folder if it is already in the library
+        String exclusions = "";
+        for( LibraryRoot root : new AppData( this ).getLibraryRoots() )
+        {
+            if( root.path.equals( mCurrentPath.getAbsolutePath() ) )
+                exclusions = root.getExclusionsText();
+        }
+        mExclusions.setText( exclusions );
     }
 
     @Override
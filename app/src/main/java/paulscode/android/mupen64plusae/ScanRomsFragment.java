@@ -30,14 +30,16 @@ import android.support.v4.app.Fragment;
 
 import org.mupen64plusae.v3.alpha.R;
 
-import java.io.File;
+import java.util.List;
 
 import paulscode.android.mupen64plusae.dialog.ProgressDialog;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
+import paulscode.android.mupen64plusae.persistent.LibraryRoot;
 import paulscode.android.mupen64plusae.task.CacheRomInfoService;
 import paulscode.android.mupen64plusae.task.CacheRomInfoService.CacheRomInfoListener;
 import paulscode.android.mupen64plusae.task.CacheRomInfoService.LocalBinder;
+import paulscode.android.mupen64plusae.task.CoverArtLoader;
 
 public class ScanRomsFragment extends Fragment implements CacheRomInfoListener
 {    
@@ -57,11 +59,9 @@ public class ScanRomsFragment extends Fragment implements CacheRomInfoListener
     
     private boolean mCachedScanFinish = false;
     
-    private File mStartDir = null;
-    private boolean mSearchZips = false;
+    private List<LibraryRoot> mLibraryRoots = null;
     private boolean mDownloadArt = false;
     private boolean mClearGallery = false;
-    private boolean mSearchSubdirectories = false;
     
     private boolean mInProgress = false;
 
@@ -83,7 +83,7 @@ public class ScanRomsFragment extends Fragment implements CacheRomInfoListener
         {
             CharSequence title = getString( R.string.scanning_title );
             CharSequence message = getString( R.string.toast_pleaseWait );
-            mProgress = new ProgressDialog( mProgress, getActivity(), title, mStartDir.getAbsolutePath(), message, true );
+            mProgress = new ProgressDialog( mProgress, getActivity(), title, getRootsText(), message, true );
             mProgress.show();
         }
         
@@ -148,6 +148,9 @@ public class ScanRomsFragment extends Fragment implements CacheRomInfoListener
     {
         mInProgress = false;
         
+        // The cover art may have been downloaded again
+        CoverArtLoader.getInstance().evictAll();
+        
         if(getActivity() != null)
         {
             ((GalleryActivity)getActivity()).refreshGrid();
@@ -165,14 +168,12 @@ public class ScanRomsFragment extends Fragment implements CacheRomInfoListener
         return mProgress;
     }
 
-    public void refreshRoms( File startDir, boolean searchZips, boolean downloadArt, boolean clearGallery,
-        boolean searchSubdirectories, AppData appData, GlobalPrefs globalPrefs )
+    public void refreshRoms( List<LibraryRoot> libraryRoots, boolean downloadArt, boolean clearGallery,
+        AppData appData, GlobalPrefs globalPrefs )
     {
-        this.mStartDir = startDir;
-        this.mSearchZips = searchZips;
+        this.mLibraryRoots = libraryRoots;
         this.mDownloadArt = downloadArt;
         this.mClearGallery = clearGallery;
-        this.mSearchSubdirectories = searchSubdirectories;
         this.mAppData = appData;
         this.mGlobalPrefs = globalPrefs;
         
@@ -192,7 +193,7 @@ public class ScanRomsFragment extends Fragment implements CacheRomInfoListener
         
         CharSequence title = getString( R.string.scanning_title );
         CharSequence message = getString( R.string.toast_pleaseWait );
-        mProgress = new ProgressDialog( mProgress, getActivity(), title, mStartDir.getAbsolutePath(), message, true );
+        mProgress = new ProgressDialog( mProgress, getActivity(), title, getRootsText(), message, true );
         mProgress.show();
         
         /** Defines callbacks for service binding, passed to bindService() */
@@ -216,9 +217,24 @@ public class ScanRomsFragment extends Fragment implements CacheRomInfoListener
 
         // Asynchronously search for ROMs
         ActivityHelper.startCacheRomInfoService(activity.getApplicationContext(), mServiceConnection,
-            mStartDir.getAbsolutePath(), mAppData.mupen64plus_ini, mGlobalPrefs.romInfoCache_cfg,
-            mGlobalPrefs.coverArtDir, mGlobalPrefs.unzippedRomsDir, mSearchZips,
-            mDownloadArt, mClearGallery, mSearchSubdirectories);
+            mLibraryRoots, mAppData.mupen64plus_ini, mGlobalPrefs.romInfoCache_cfg,
+            mGlobalPrefs.romFingerprints_dat, mGlobalPrefs.romZipIndex_dat, mGlobalPrefs.scanReport_json, mGlobalPrefs.coverArtDir,
+            mGlobalPrefs.coverArtValidators_dat, mGlobalPrefs.unzippedRomsDir, mDownloadArt, mClearGallery);
+    }
+    
+    /**
+     * Returns the paths of the library roots being scanned, one per line.
+     */
+    private String getRootsText()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (LibraryRoot root : mLibraryRoots)
+        {
+            if (builder.length() > 0)
+                builder.append('\n');
+            builder.append(root.path);
+        }
+        return builder.toString();
     }
     
     public boolean IsInProgress()
@@ -197,7 +197,8 @@ public class PromptInputCodeDialog extends DialogFragment
                     onInput(strongestInputCode, maxStrength, hardwareId);
                 }
 
-                mStrengths = strengths;
+                // The provider reuses the array for the next event
+                mStrengths = strengths.clone();
             }
 
             @Override
@@ -28,6 +28,8 @@ import android.hardware.SensorManager;
 import android.media.AudioManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.os.Vibrator;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
@@ -55,6 +57,7 @@ import com.bda.controller.Controller;
 import org.mupen64plusae.v3.alpha.R;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 
@@ -67,6 +70,7 @@ import paulscode.android.mupen64plusae.dialog.Popups;
 import paulscode.android.mupen64plusae.dialog.Prompt;
 import paulscode.android.mupen64plusae.dialog.Prompt.PromptIntegerListener;
 import paulscode.android.mupen64plusae.hack.MogaHack;
+import paulscode.android.mupen64plusae.input.InputLatencyTracer;
 import paulscode.android.mupen64plusae.input.PeripheralController;
 import paulscode.android.mupen64plusae.input.SensorController;
 import paulscode.android.mupen64plusae.input.TouchController;
@@ -86,6 +90,7 @@ import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs.PakType;
 import paulscode.android.mupen64plusae.profile.ControllerProfile;
 import paulscode.android.mupen64plusae.util.CountryCode;
+import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.RomDatabase;
 import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
 
@@ -144,6 +149,7 @@ public class GameFragment extends Fragment implements PromptConfirmListener, Sur
     private VisibleTouchMap mTouchscreenMap;
     private KeyProvider mKeyProvider;
     private AxisProvider mAxisProvider;
+    private HandlerThread mInputThread = null;
     private Controller mMogaController;
     TouchController mTouchscreenController;
     private SensorController mSensorController;
@@ -472,6 +478,26 @@ public class GameFragment extends Fragment implements PromptConfirmListener, Sur
 
         Log.i( "GameFragment", "onDestroy" );
 
+        if( mInputThread != null )
+        {
+            mKeyProvider.stopDispatch();
+            mAxisProvider.stopDispatch();
+            mInputThread.quit();
+        }
+
+        if( InputLatencyTracer.isEnabled() )
+        {
+            InputLatencyTracer.setEnabled( false );
+            try
+            {
+                FileUtil.writeStringToFile( new File( mGlobalPrefs.inputLatencyReport ), InputLatencyTracer.getReport() );
+            }
+            catch( IOException e )
+            {
+                Log.w( "GameFragment", "Unable to write input latency report", e );
+            }
+        }
+
         showSystemBars();
 
         mHandler.removeCallbacks(mLastTouchChecker);
@@ -977,11 +1003,29 @@ public class GameFragment extends Fragment implements PromptConfirmListener, Sur
             }
         }
 
+        // Dispatch peripheral inputs on their own thread, so that UI work doesn't delay them
+        Handler inputHandler = null;
+        if( mGlobalPrefs.useInputThread )
+        {
+            mInputThread = new HandlerThread( "InputDispatch", Process.THREAD_PRIORITY_URGENT_DISPLAY );
+            mInputThread.start();
+            inputHandler = new Handler( mInputThread.getLooper() );
+            Log.i( "GameFragment", "Dispatching inputs on the input thread" );
+        }
+
         // Create the input providers shared among all peripheral controllers
         mKeyProvider = new KeyProvider( inputSource, ImeFormula.DEFAULT,
                 mGlobalPrefs.unmappableKeyCodes );
-        final MogaProvider mogaProvider = new MogaProvider( mMogaController );
+        final MogaProvider mogaProvider = inputHandler == null ? new MogaProvider( mMogaController ) :
+                new MogaProvider( mMogaController, inputHandler );
         mAxisProvider = new AxisProvider();
+        mKeyProvider.setDispatchHandler( inputHandler );
+        mAxisProvider.setDispatchHandler( inputHandler );
+
+        // Peripheral controllers remember the strengths, they only need the ones that changed
+        mogaProvider.setChangesOnly( true );
+        mAxisProvider.setChangesOnly( true );
+        InputLatencyTracer.setEnabled( mGlobalPrefs.isInputLatencyTracingEnabled );
 
         // Request focus for proper listening
         inputSource.requestFocus();
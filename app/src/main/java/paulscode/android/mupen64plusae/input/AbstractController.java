@@ -38,6 +38,10 @@ import paulscode.android.mupen64plusae.jni.CoreFragment;
  * notifyChanged() is called. Subclasses should not call any native methods themselves. (If they do,
  * then this abstract class should be expanded to cover those needs.)
  * <p>
+ * The state of a player is shared by all of its controllers, which may run on different threads
+ * (e.g. touch on the UI thread, peripherals on the input thread). Subclasses hold the lock of
+ * mState while they modify it and call notifyChanged().
+ * <p>
  * Note that this class is stateful, in that it remembers controller button/axis state between calls
  * from the subclass. For best performance, subclasses should only call notifyChanged() when the
  * input state has actually changed, and should bundle the protected field modifications before
@@ -159,9 +163,18 @@ public abstract class AbstractController
      */
     protected void notifyChanged()
     {
+        long notifyNanos = InputLatencyTracer.markNotify();
         int axisX = Math.round( AXIS_SCALE * mState.axisFractionX );
         int axisY = Math.round( AXIS_SCALE * mState.axisFractionY );
-        mCoreFragment.setControllerState( mPlayerNumber - 1, mState.buttons, axisX, axisY );
+        int buttons = 0;
+        for( int i = 0; i < NUM_N64_BUTTONS; i++ )
+        {
+            if( mState.buttons[i] )
+                buttons |= 1 << i;
+        }
+        // States the gateway drops as unchanged are not samples of the delivery latency
+        if( mCoreFragment.setControllerState( mPlayerNumber - 1, buttons, axisX, axisY ) )
+            InputLatencyTracer.markDelivered( mPlayerNumber, notifyNanos );
     }
     
     /**
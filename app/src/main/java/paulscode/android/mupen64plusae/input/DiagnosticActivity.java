@@ -25,6 +25,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.InputDevice.MotionRange;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
@@ -36,12 +37,16 @@ import com.bda.controller.StateEvent;
 
 import org.mupen64plusae.v3.alpha.R;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Locale;
 
 import paulscode.android.mupen64plusae.hack.MogaHack;
 import paulscode.android.mupen64plusae.input.provider.AbstractProvider;
 import paulscode.android.mupen64plusae.persistent.AppData;
+import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
 import paulscode.android.mupen64plusae.util.DeviceUtil;
+import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.LocaleContextWrapper;
 
 public class DiagnosticActivity extends AppCompatActivity implements ControllerListener
@@ -65,8 +70,24 @@ public class DiagnosticActivity extends AppCompatActivity implements ControllerL
     {
         super.onCreate( savedInstanceState );
         AppData appData = new AppData( this );
+        GlobalPrefs globalPrefs = new GlobalPrefs( this, appData );
         setContentView( R.layout.diagnostic_activity );
         
+        // Show the input latency measured during the last game, if it was traced
+        File report = new File( globalPrefs.inputLatencyReport );
+        if( report.exists() )
+        {
+            try
+            {
+                TextView view = (TextView) findViewById( R.id.textLatency );
+                view.setText( FileUtil.readStringFromFile( report ) );
+            }
+            catch( IOException e )
+            {
+                Log.w( "DiagnosticActivity", "Unable to read input latency report", e );
+            }
+        }
+        
         // TODO: Remove hack after MOGA SDK is fixed
         // mMogaController.init();
         MogaHack.init( mMogaController, this );
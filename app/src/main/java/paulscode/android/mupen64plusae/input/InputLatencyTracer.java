@@ -0,0 +1,308 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.input;
+
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import paulscode.android.mupen64plusae.input.provider.AbstractProvider;
+
+/**
+ * Measures how long inputs take from their event timestamp to the moment their controller state
+ * is handed to the core. An input is stamped when its provider receives it, when the provider
+ * dispatches it to the controllers, when a controller notifies the new state and once that state
+ * is delivered. Samples are kept in a lock-free ring buffer holding the most recent inputs.
+ * <p>
+ * Tracing is off by default, and then costs a single volatile read per stage. Event timestamps
+ * only have millisecond resolution, so the time an input waits in the queue is rounded to a
+ * millisecond. They share their clock with {@link System#nanoTime()}.
+ */
+public final class InputLatencyTracer
+{
+    /** Number of samples kept, a power of two. */
+    private static final int CAPACITY = 4096;
+    
+    // Fields of a sample
+    private static final int FIELD_IDS = 0;
+    private static final int FIELD_EVENT = 1;
+    private static final int FIELD_PROVIDER = 2;
+    private static final int FIELD_DISPATCH = 3;
+    private static final int FIELD_NOTIFY = 4;
+    private static final int FIELD_DELIVERED = 5;
+    private static final int NUM_FIELDS = 6;
+    
+    /** Sequence of a slot that is being written. */
+    private static final long WRITING = -1;
+    
+    /** The stages reported, each one the time between two stamps. */
+    private static final String[] STAGE_NAMES = { "Queue", "Provider", "Controller", "Delivery", "Total" };
+    
+    private static volatile boolean sEnabled = false;
+    
+    /** The sequence number of the next sample. */
+    private static final AtomicLong sNext = new AtomicLong();
+    
+    /** The sequence number plus one of the sample in each slot, 0 if the slot is empty. */
+    private static final AtomicLongArray sSequences = new AtomicLongArray( CAPACITY );
+    
+    private static final AtomicLongArray sSamples = new AtomicLongArray( CAPACITY * NUM_FIELDS );
+    
+    /** The input being dispatched by each thread. */
+    private static final ThreadLocal<Event> sEvents = new ThreadLocal<Event>()
+    {
+        @Override
+        protected Event initialValue()
+        {
+            return new Event();
+        }
+    };
+    
+    private static class Event
+    {
+        public boolean active;
+        public int hardwareId;
+        public long eventNanos;
+        public long providerNanos;
+        public long dispatchNanos;
+    }
+    
+    private InputLatencyTracer()
+    {
+    }
+    
+    /**
+     * Turns tracing on or off. Turning it on discards the samples recorded so far.
+     */
+    public static void setEnabled( boolean enabled )
+    {
+        if( enabled && !sEnabled )
+        {
+            for( int i = 0; i < CAPACITY; i++ )
+                sSequences.set( i, 0 );
+        }
+        sEnabled = enabled;
+    }
+    
+    public static boolean isEnabled()
+    {
+        return sEnabled;
+    }
+    
+    /**
+     * Called by a provider when it receives an input.
+     * 
+     * @param hardwareId The identifier of the source device.
+     * @param eventTime The timestamp of the input event, in milliseconds of uptime.
+     */
+    public static void beginEvent( int hardwareId, long eventTime )
+    {
+        beginEvent( hardwareId, eventTime, System.nanoTime() );
+    }
+    
+    /**
+     * Called by a provider when it dispatches an input received earlier, e.g. on the input thread.
+     * The time until it is dispatched counts as provider time.
+     * 
+     * @param hardwareId The identifier of the source device.
+     * @param eventTime The timestamp of the input event, in milliseconds of uptime.
+     * @param receivedNanos When the provider received the input, from {@link System#nanoTime()}.
+     */
+    public static void beginEvent( int hardwareId, long eventTime, long receivedNanos )
+    {
+        if( !sEnabled )
+            return;
+        
+        final Event event = sEvents.get();
+        event.active = true;
+        event.hardwareId = hardwareId;
+        event.eventNanos = eventTime * 1000000L;
+        event.providerNanos = receivedNanos;
+        event.dispatchNanos = receivedNanos;
+    }
+    
+    /**
+     * Called by a provider when it dispatches the input to the controllers.
+     */
+    public static void markDispatched()
+    {
+        if( !sEnabled )
+            return;
+        
+        final Event event = sEvents.get();
+        if( event.active )
+            event.dispatchNanos = System.nanoTime();
+    }
+    
+    /**
+     * Called by a provider once the input has been dispatched.
+     */
+    public static void endEvent()
+    {
+        if( !sEnabled )
+            return;
+        
+        sEvents.get().active = false;
+    }
+    
+    /**
+     * Called by a controller before it notifies the core of a new state.
+     * 
+     * @return The current time, or zero if no input is being traced.
+     */
+    public static long markNotify()
+    {
+        if( !sEnabled || !sEvents.get().active )
+            return 0;
+        
+        return System.nanoTime();
+    }
+    
+    /**
+     * Called by a controller once a changed state was handed to the core. Records a sample.
+     * 
+     * @param player The player number, between 1 and 4, inclusive.
+     * @param notifyNanos The time returned by {@link #markNotify()}.
+     */
+    public static void markDelivered( int player, long notifyNanos )
+    {
+        if( notifyNanos == 0 || !sEnabled )
+            return;
+        
+        final long deliveredNanos = System.nanoTime();
+        final Event event = sEvents.get();
+        final long sequence = sNext.getAndIncrement();
+        final int slot = (int) ( sequence & ( CAPACITY - 1 ) );
+        final int offset = slot * NUM_FIELDS;
+        
+        // Readers skip the slot until the sample is complete
+        sSequences.set( slot, WRITING );
+        sSamples.set( offset + FIELD_IDS, ( (long) event.hardwareId << 32 ) | player );
+        sSamples.set( offset + FIELD_EVENT, event.eventNanos );
+        sSamples.set( offset + FIELD_PROVIDER, event.providerNanos );
+        sSamples.set( offset + FIELD_DISPATCH, event.dispatchNanos );
+        sSamples.set( offset + FIELD_NOTIFY, notifyNanos );
+        sSamples.set( offset + FIELD_DELIVERED, deliveredNanos );
+        sSequences.set( slot, sequence + 1 );
+    }
+    
+    /**
+     * Gets the latency of the recorded samples, per player and per device, as text.
+     */
+    public static String getReport()
+    {
+        // Copy the complete samples, a slot being rewritten meanwhile is skipped
+        final long[] samples = new long[CAPACITY * NUM_FIELDS];
+        int count = 0;
+        for( int slot = 0; slot < CAPACITY; slot++ )
+        {
+            final long sequence = sSequences.get( slot );
+            if( sequence <= 0 )
+                continue;
+            
+            for( int field = 0; field < NUM_FIELDS; field++ )
+                samples[count * NUM_FIELDS + field] = sSamples.get( slot * NUM_FIELDS + field );
+            
+            if( sSequences.get( slot ) == sequence )
+                count++;
+        }
+        
+        final StringBuilder report = new StringBuilder();
+        report.append( String.format( Locale.US, "Input latency of the last %d inputs, in milliseconds%n", count ) );
+        if( count == 0 )
+            return report.toString();
+        
+        // Group the samples by player and by device
+        final SparseArray<Histogram> players = new SparseArray<Histogram>();
+        final SparseArray<Histogram> devices = new SparseArray<Histogram>();
+        for( int i = 0; i < count; i++ )
+        {
+            final long ids = samples[i * NUM_FIELDS + FIELD_IDS];
+            final int player = (int) ids;
+            final int hardwareId = (int) ( ids >>> 32 );
+            
+            if( players.get( player ) == null )
+                players.put( player, new Histogram() );
+            if( devices.get( hardwareId ) == null )
+                devices.put( hardwareId, new Histogram() );
+            players.get( player ).add( samples, i * NUM_FIELDS );
+            devices.get( hardwareId ).add( samples, i * NUM_FIELDS );
+        }
+        
+        for( int i = 0; i < players.size(); i++ )
+            players.valueAt( i ).append( report, "Player " + players.keyAt( i ) );
+        
+        for( int i = 0; i < devices.size(); i++ )
+        {
+            final int hardwareId = devices.keyAt( i );
+            final String name = AbstractProvider.getHardwareName( hardwareId );
+            devices.valueAt( i ).append( report,
+                    "Device " + hardwareId + ( name == null ? "" : " (" + name + ")" ) );
+        }
+        return report.toString();
+    }
+    
+    /**
+     * The durations of the stages of a group of samples.
+     */
+    private static class Histogram
+    {
+        private final long[][] mDurations = new long[STAGE_NAMES.length][CAPACITY];
+        private int mCount = 0;
+        
+        public void add( long[] samples, int offset )
+        {
+            mDurations[0][mCount] = samples[offset + FIELD_PROVIDER] - samples[offset + FIELD_EVENT];
+            mDurations[1][mCount] = samples[offset + FIELD_DISPATCH] - samples[offset + FIELD_PROVIDER];
+            mDurations[2][mCount] = samples[offset + FIELD_NOTIFY] - samples[offset + FIELD_DISPATCH];
+            mDurations[3][mCount] = samples[offset + FIELD_DELIVERED] - samples[offset + FIELD_NOTIFY];
+            mDurations[4][mCount] = samples[offset + FIELD_DELIVERED] - samples[offset + FIELD_EVENT];
+            mCount++;
+        }
+        
+        public void append( StringBuilder report, String title )
+        {
+            report.append( String.format( Locale.US, "%n%s, %d inputs%n", title, mCount ) );
+            report.append( String.format( Locale.US, "  %-10s %8s %8s %8s%n", "", "p50", "p99", "max" ) );
+            for( int stage = 0; stage < STAGE_NAMES.length; stage++ )
+            {
+                final long[] durations = Arrays.copyOf( mDurations[stage], mCount );
+                Arrays.sort( durations );
+                report.append( String.format( Locale.US, "  %-10s %8.3f %8.3f %8.3f%n", STAGE_NAMES[stage],
+                        toMillis( percentile( durations, 50 ) ), toMillis( percentile( durations, 99 ) ),
+                        toMillis( durations[mCount - 1] ) ) );
+            }
+        }
+        
+        private static long percentile( long[] sorted, int percent )
+        {
+            // Nearest rank
+            final int rank = (int) Math.ceil( percent / 100.0 * sorted.length );
+            return sorted[Math.max( rank - 1, 0 )];
+        }
+        
+        private static double toMillis( long nanos )
+        {
+            return nanos / 1000000.0;
+        }
+    }
+}
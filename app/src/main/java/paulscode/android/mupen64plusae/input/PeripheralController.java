@@ -20,6 +20,8 @@
  */
 package paulscode.android.mupen64plusae.input;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.util.SparseArray;
 import android.view.InputDevice;
@@ -87,6 +89,9 @@ public class PeripheralController extends AbstractController implements
     /** Called for menu and back keys */
     private View.OnKeyListener mKeyListener;
     
+    /** Applies functions on the UI thread when inputs are dispatched on the input thread. */
+    private final Handler mUiHandler = new Handler( Looper.getMainLooper() );
+    
     /**
      * Instantiates a new peripheral controller.
      *
@@ -149,11 +154,14 @@ public class PeripheralController extends AbstractController implements
             if( device != null )
                 mCoreFragment.registerVibrator( mPlayerNumber, device.getVibrator() );
             
-            // Apply user changes to the controller state
-            apply( inputCode, strength );
-            
-            // Notify the core that controller state has changed
-            notifyChanged();
+            synchronized( mState )
+            {
+                // Apply user changes to the controller state
+                apply( inputCode, strength );
+                
+                // Notify the core that controller state has changed
+                notifyChanged();
+            }
         }
     }
     
@@ -169,12 +177,15 @@ public class PeripheralController extends AbstractController implements
         // Process multiple simultaneous user inputs from gamepad, keyboard, etc.
         if( mPlayerMap.testHardware( hardwareId, mPlayerNumber ) )
         {
-            // Apply user changes to the controller state
-            for( int i = 0; i < inputCodes.length; i++ )
-                apply( inputCodes[i], strengths[i] );
-            
-            // Notify the core that controller state has changed
-            notifyChanged();
+            synchronized( mState )
+            {
+                // Apply user changes to the controller state
+                for( int i = 0; i < inputCodes.length; i++ )
+                    apply( inputCodes[i], strengths[i] );
+                
+                // Notify the core that controller state has changed
+                notifyChanged();
+            }
         }
     }
     
@@ -249,8 +260,41 @@ public class PeripheralController extends AbstractController implements
                 mState.axisFractionX = 0;
                 mState.axisFractionY = 0;
             }
+            return true;
+        }
+        else if( Looper.myLooper() == Looper.getMainLooper() )
+        {
+            return applyFunction( n64Index, keyDown );
         }
-        else if( keyDown )
+        else
+        {
+            // Functions act on the UI, so they are applied on the UI thread when the inputs are
+            // dispatched on the input thread
+            final int function = n64Index;
+            final boolean functionDown = keyDown;
+            mUiHandler.post( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    applyFunction( function, functionDown );
+                }
+            } );
+            return true;
+        }
+    }
+    
+    /**
+     * Apply a function of the emulator, such as saving or pausing.
+     * 
+     * @param n64Index The index of the function.
+     * @param keyDown  True if the input was pressed, false if it was released.
+     * 
+     * @return True, if the index is a function.
+     */
+    private boolean applyFunction( int n64Index, boolean keyDown )
+    {
+        if( keyDown )
         {
             switch( n64Index )
             {
@@ -317,8 +361,11 @@ public class PeripheralController extends AbstractController implements
                     if (mSensorController != null) {
                         boolean sensorEnabled = !mSensorController.isSensorEnabled();
                         if (!sensorEnabled) {
-                            mState.axisFractionX = 0;
-                            mState.axisFractionY = 0;
+                            synchronized( mState )
+                            {
+                                mState.axisFractionX = 0;
+                                mState.axisFractionY = 0;
+                            }
                             if (mListener != null) {
                                 mListener.onAnalogChanged(mState.axisFractionX, mState.axisFractionY);
                             }
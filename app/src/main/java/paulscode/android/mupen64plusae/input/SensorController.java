@@ -137,10 +137,12 @@ public class SensorController extends AbstractController implements SensorEventL
 
         float magnitude = (float) Math.sqrt((rawX * rawX) + (rawY * rawY));
         float factor = magnitude > 1 ? magnitude : 1;
-        mState.axisFractionX = rawX / factor;
-        mState.axisFractionY = rawY / factor;
-        notifyChanged();
-        mListener.onAnalogChanged(mState.axisFractionX, mState.axisFractionY);
+        synchronized (mState) {
+            mState.axisFractionX = rawX / factor;
+            mState.axisFractionY = rawY / factor;
+            notifyChanged();
+        }
+        mListener.onAnalogChanged(rawX / factor, rawY / factor);
     }
 
     /**
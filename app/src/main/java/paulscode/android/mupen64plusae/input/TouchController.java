@@ -255,8 +255,11 @@ public class TouchController extends AbstractController implements OnTouchListen
             }
         }
         
-        // Process each touch
-        processTouches( mTouchState, mPointerX, mPointerY, mElapsedTime, maxPid, actionCode );
+        // Process each touch, the state is shared with the peripheral controllers of the player
+        synchronized( mState )
+        {
+            processTouches( mTouchState, mPointerX, mPointerY, mElapsedTime, maxPid, actionCode );
+        }
         
         return true;
     }
@@ -74,7 +74,7 @@ public class PlayerMap extends SerializableMap
         deserialize( serializedMap );
     }
     
-    public boolean testHardware( int hardwareId, int player )
+    public synchronized boolean testHardware( int hardwareId, int player )
     {
         return mDisabled || mMap.get( hardwareId, 0 ) == player;
     }
@@ -121,7 +121,7 @@ public class PlayerMap extends SerializableMap
     /**
      * Attempts to reconnect the specified device.
      */
-    public boolean reconnectDevice( int hardwareId )
+    public synchronized boolean reconnectDevice( int hardwareId )
     {
         // If the device is not mapped to any player...
         if( mMap.get( hardwareId ) == 0 && AbstractProvider.isHardwareAvailable( hardwareId ) )
@@ -0,0 +1,238 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.input.map;
+
+import java.util.List;
+
+/**
+ * A lookup grid mapping every location of the digitizer to the N64 button under it. The grid is
+ * baked from the button masks whenever the layout changes, so that hit-testing a touch is a
+ * single array read instead of a scan of every mask followed by a color match.
+ * <p>
+ * The grid is made of square tiles of {@link #TILE_SIZE} pixels, each holding the button found
+ * at its center. This keeps the grid small on high resolution screens, while a tile stays much
+ * smaller than a fingertip.
+ */
+public class TouchHitGrid
+{
+    /** Log2 of the tile size. */
+    private static final int TILE_SHIFT = 2;
+
+    /** Width and height of a tile, in pixels. */
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    /** The error in RGB (256x256x256) space that we tolerate when matching mask colors. */
+    private static final int MATCH_TOLERANCE = 10;
+
+    private final int mColumns;
+    private final int mRows;
+
+    /** The N64 button of each tile, row by row, or {@link TouchMap#UNMAPPED}. */
+    private final short[] mTiles;
+
+    /**
+     * A button mask placed on the digitizer.
+     */
+    public static class Mask
+    {
+        /** The ARGB pixels of the mask image, row by row. */
+        public final int[] pixels;
+        public final int width;
+        public final int height;
+
+        /** Location of the top left corner of the mask on the digitizer, in pixels. */
+        public final int x;
+        public final int y;
+
+        /** Scaling factor applied to the mask image. */
+        public final float scale;
+
+        public Mask( int[] pixels, int width, int height, int x, int y, float scale )
+        {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.x = x;
+            this.y = y;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * Bakes the grid for a given digitizer size.
+     *
+     * @param masks The button masks, in priority order.
+     * @param colors Map from N64 (pseudo-)button to mask color.
+     * @param w The width of the digitizer, in pixels.
+     * @param h The height of the digitizer, in pixels.
+     */
+    public TouchHitGrid( List<Mask> masks, int[] colors, int w, int h )
+    {
+        mColumns = Math.max( 0, ( w + TILE_SIZE - 1 ) >> TILE_SHIFT );
+        mRows = Math.max( 0, ( h + TILE_SIZE - 1 ) >> TILE_SHIFT );
+        mTiles = new short[mColumns * mRows];
+        bake( masks, colors, 0, 0, mColumns, mRows );
+    }
+
+    /**
+     * Copies a grid and bakes again the tiles overlapping a region, such as the old and new
+     * bounds of a button that moved. The other tiles are left as they are.
+     *
+     * @param grid The grid to copy, which is not modified.
+     * @param masks The button masks, in priority order.
+     * @param colors Map from N64 (pseudo-)button to mask color.
+     * @param left The left edge of the region, in pixels.
+     * @param top The top edge of the region, in pixels.
+     * @param right The right edge of the region, in pixels, excluded.
+     * @param bottom The bottom edge of the region, in pixels, excluded.
+     */
+    public TouchHitGrid( TouchHitGrid grid, List<Mask> masks, int[] colors, int left, int top, int right,
+            int bottom )
+    {
+        mColumns = grid.mColumns;
+        mRows = grid.mRows;
+        mTiles = grid.mTiles.clone();
+        bake( masks, colors, Math.max( 0, left >> TILE_SHIFT ), Math.max( 0, top >> TILE_SHIFT ),
+                Math.min( mColumns, ( right + TILE_SIZE - 1 ) >> TILE_SHIFT ),
+                Math.min( mRows, ( bottom + TILE_SIZE - 1 ) >> TILE_SHIFT ) );
+    }
+
+    /**
+     * Returns true if the grid covers a digitizer of the given size.
+     */
+    public boolean hasSize( int w, int h )
+    {
+        return mColumns == Math.max( 0, ( w + TILE_SIZE - 1 ) >> TILE_SHIFT )
+                && mRows == Math.max( 0, ( h + TILE_SIZE - 1 ) >> TILE_SHIFT );
+    }
+
+    /**
+     * Hit-tests the center of each tile in a range of columns and rows, end excluded.
+     */
+    private void bake( List<Mask> masks, int[] colors, int firstColumn, int firstRow, int endColumn, int endRow )
+    {
+        for( int row = firstRow; row < endRow; row++ )
+        {
+            final int y = ( row << TILE_SHIFT ) + TILE_SIZE / 2;
+            for( int column = firstColumn; column < endColumn; column++ )
+            {
+                final int x = ( column << TILE_SHIFT ) + TILE_SIZE / 2;
+                mTiles[row * mColumns + column] = (short) hitTestMasks( masks, colors, x, y );
+            }
+        }
+    }
+
+    /**
+     * Gets the N64 button mapped to a given touch location.
+     *
+     * @param xLocation The x-coordinate of the touch, in pixels.
+     * @param yLocation The y-coordinate of the touch, in pixels.
+     *
+     * @return The N64 button the location is mapped to, or UNMAPPED.
+     */
+    public int get( int xLocation, int yLocation )
+    {
+        final int column = xLocation >> TILE_SHIFT;
+        final int row = yLocation >> TILE_SHIFT;
+        if( xLocation < 0 || yLocation < 0 || column >= mColumns || row >= mRows )
+            return TouchMap.UNMAPPED;
+        return mTiles[row * mColumns + column];
+    }
+
+    /**
+     * Gets the N64 button mapped to a given touch location by searching through every mask, the
+     * way touches were hit-tested before the grid.
+     *
+     * @param masks The button masks, in priority order.
+     * @param colors Map from N64 (pseudo-)button to mask color.
+     * @param xLocation The x-coordinate of the touch, in pixels.
+     * @param yLocation The y-coordinate of the touch, in pixels.
+     *
+     * @return The N64 button the location is mapped to, or UNMAPPED.
+     */
+    public static int hitTestMasks( List<Mask> masks, int[] colors, int xLocation, int yLocation )
+    {
+        // Search through every button mask to see if the corresponding button was touched
+        for( int i = 0; i < masks.size(); i++ )
+        {
+            final Mask mask = masks.get( i );
+            int left = mask.x;
+            int right = left + (int) ( mask.width * mask.scale );
+            int bottom = mask.y;
+            int top = bottom + (int) ( mask.height * mask.scale );
+
+            // See if the touch falls in the vicinity of the button (conservative test)
+            if( xLocation >= left && xLocation < right && yLocation >= bottom && yLocation < top )
+            {
+                // Get the mask color at this location
+                int maskX = Math.min( (int) ( ( xLocation - mask.x ) / mask.scale ), mask.width - 1 );
+                int maskY = Math.min( (int) ( ( yLocation - mask.y ) / mask.scale ), mask.height - 1 );
+                int c = mask.pixels[maskY * mask.width + maskX];
+
+                // Ignore the alpha component if any
+                int rgb = c & 0x00ffffff;
+
+                // Ignore black and get the N64 button associated with this color
+                if( rgb > 0 )
+                    return getButtonFromColor( colors, rgb );
+            }
+        }
+        return TouchMap.UNMAPPED;
+    }
+
+    /**
+     * Gets the N64 button mapped to a given mask color.
+     *
+     * @param colors Map from N64 (pseudo-)button to mask color.
+     * @param color The mask color.
+     *
+     * @return The N64 button the color is mapped to, or UNMAPPED.
+     */
+    private static int getButtonFromColor( int[] colors, int color )
+    {
+        // Find the N64 button whose mask matches the given color. Because we scale the mask images,
+        // the mask boundaries can get softened. Therefore we tolerate a bit of error in the match.
+        int closestMatch = TouchMap.UNMAPPED;
+        int matchDif = MATCH_TOLERANCE * MATCH_TOLERANCE;
+
+        // Get the RGB values of the given color
+        int r = ( color & 0xFF0000 ) >> 16;
+        int g = ( color & 0x00FF00 ) >> 8;
+        int b = ( color & 0x0000FF );
+
+        // Find the mask color with the smallest squared error
+        for( int i = 0; i < colors.length; i++ )
+        {
+            int color2 = colors[i];
+
+            // Compute squared error in RGB space
+            int difR = r - ( ( color2 & 0xFF0000 ) >> 16 );
+            int difG = g - ( ( color2 & 0x00FF00 ) >> 8 );
+            int difB = b - ( ( color2 & 0x0000FF ) );
+            int dif = difR * difR + difG * difG + difB * difB;
+
+            if( dif < matchDif )
+            {
+                closestMatch = i;
+                matchDif = dif;
+            }
+        }
+        return closestMatch;
+    }
+}
@@ -129,15 +129,19 @@ public class TouchMap
     /** Map from N64 (pseudo-)button to mask color. */
     private final int[] mN64ToColor;
     
+    /** Lookup grid baked from the button masks, null until the map is resized. Replaced rather
+     *  than modified, since touches are hit-tested on another thread than the layout changes. */
+    private volatile TouchHitGrid mHitGrid;
+    
+    /** Pixels of each button mask, read from the mask images the first time the grid is baked. */
+    private final ArrayList<int[]> mMaskPixels = new ArrayList<int[]>();
+    
     /** The map from strings in the skin.ini file to N64 button indices. */
     public static final HashMap<String, Integer> MASK_KEYS = new HashMap<String, Integer>();
     
     /** The map from N64 button indices to asset name prefixes in the skin folder. */
     public static SparseArray<String> ASSET_NAMES = new SparseArray<String>();
     
-    /** The error in RGB (256x256x256) space that we tolerate when matching mask colors. */
-    private static final int MATCH_TOLERANCE = 10;
-    
     /** True if A/B buttons are split */
     protected boolean mSplitAB;
     
@@ -213,9 +217,11 @@ public class TouchMap
         buttonScaling.clear();
         buttonImages.clear();
         buttonMasks.clear();
+        mMaskPixels.clear();
         buttonX.clear();
         buttonY.clear();
         buttonNames.clear();
+        mHitGrid = null;
         analogBackScaling = 0;
         analogBackImage = null;
         analogForeImage = null;
@@ -286,6 +292,60 @@ public class TouchMap
             analogBackImage.setScale( ( analogBackScaling * scale ) );
             analogBackImage.fitPercent( analogBackX, getAdjustedYPos(analogBackY), w, h );
         }
+        
+        bakeHitGrid( w, h );
+    }
+    
+    /**
+     * Bakes the button masks into the hit-test grid, at their current locations.
+     * 
+     * @param w The width of the digitizer, in pixels.
+     * @param h The height of the digitizer, in pixels.
+     */
+    private void bakeHitGrid( int w, int h )
+    {
+        mHitGrid = new TouchHitGrid( getHitMasks(), mN64ToColor, w, h );
+    }
+    
+    /**
+     * Gets the area covered by a button mask, in pixels.
+     */
+    private static Rect getBounds( Image mask )
+    {
+        return new Rect( mask.x, mask.y, mask.x + (int) ( mask.width * mask.scale ),
+                mask.y + (int) ( mask.height * mask.scale ) );
+    }
+    
+    /**
+     * Gets the button masks at their current locations, for baking the hit-test grid.
+     */
+    private ArrayList<TouchHitGrid.Mask> getHitMasks()
+    {
+        // Read the pixels in one go, the bitmaps are only needed the first time
+        if( mMaskPixels.size() != buttonMasks.size() )
+        {
+            mMaskPixels.clear();
+            for( Image mask : buttonMasks )
+            {
+                int[] pixels = null;
+                if( mask != null && mask.image != null )
+                {
+                    pixels = new int[mask.width * mask.height];
+                    mask.image.getPixels( pixels, 0, mask.width, 0, 0, mask.width, mask.height );
+                }
+                mMaskPixels.add( pixels );
+            }
+        }
+        
+        ArrayList<TouchHitGrid.Mask> masks = new ArrayList<TouchHitGrid.Mask>();
+        for( int i = 0; i < buttonMasks.size(); i++ )
+        {
+            Image mask = buttonMasks.get( i );
+            int[] pixels = mMaskPixels.get( i );
+            if( pixels != null )
+                masks.add( new TouchHitGrid.Mask( pixels, mask.width, mask.height, mask.x, mask.y, mask.scale ) );
+        }
+        return masks;
     }
     
     /**
@@ -300,34 +360,7 @@ public class TouchMap
      */
     public int getButtonPress( int xLocation, int yLocation )
     {
-        // Search through every button mask to see if the corresponding button was touched
-        for( int i = 0; i < buttonMasks.size(); i++ )
-        {
-            if( buttonMasks.get( i ) != null )
-            {
-                int left = buttonMasks.get( i ).x;
-                int right = left + (int) ( buttonMasks.get( i ).width * buttonMasks.get( i ).scale );
-                int bottom = buttonMasks.get( i ).y;
-                int top = bottom + (int) ( buttonMasks.get( i ).height * buttonMasks.get( i ).scale );
-                
-                // See if the touch falls in the vicinity of the button (conservative test)
-                if( xLocation >= left && xLocation < right && yLocation >= bottom
-                        && yLocation < top )
-                {
-                    // Get the mask color at this location
-                    int c = buttonMasks.get( i ).image.getPixel( (int) ( ( xLocation - buttonMasks.get( i ).x ) / 
-                            ( buttonScaling.get( i ) * scale ) ), (int) ( ( yLocation - buttonMasks.get( i ).y ) / ( buttonScaling.get( i ) * scale ) ) );
-                    
-                    // Ignore the alpha component if any
-                    int rgb = c & 0x00ffffff;
-                    
-                    // Ignore black and get the N64 button associated with this color
-                    if( rgb > 0 )
-                        return getButtonFromColor( rgb );
-                }
-            }
-        }
-        return UNMAPPED;
+        return mHitGrid == null ? UNMAPPED : mHitGrid.get( xLocation, yLocation );
     }
     
     /**
@@ -348,45 +381,6 @@ public class TouchMap
         return new Rect(0, 0, 0, 0);
     }
     
-    /**
-     * Gets the N64 button mapped to a given mask color.
-     * 
-     * @param color The mask color.
-     * 
-     * @return The N64 button the color is mapped to, or UNMAPPED.
-     */
-    private int getButtonFromColor( int color )
-    {
-        // Find the N64 button whose mask matches the given color. Because we scale the mask images,
-        // the mask boundaries can get softened. Therefore we tolerate a bit of error in the match.
-        int closestMatch = UNMAPPED;
-        int matchDif = MATCH_TOLERANCE * MATCH_TOLERANCE;
-        
-        // Get the RGB values of the given color
-        int r = ( color & 0xFF0000 ) >> 16;
-        int g = ( color & 0x00FF00 ) >> 8;
-        int b = ( color & 0x0000FF );
-        
-        // Find the mask color with the smallest squared error
-        for( int i = 0; i < mN64ToColor.length; i++ )
-        {
-            int color2 = mN64ToColor[i];
-            
-            // Compute squared error in RGB space
-            int difR = r - ( ( color2 & 0xFF0000 ) >> 16 );
-            int difG = g - ( ( color2 & 0x00FF00 ) >> 8 );
-            int difB = b - ( ( color2 & 0x0000FF ) );
-            int dif = difR * difR + difG * difG + difB * difB;
-            
-            if( dif < matchDif )
-            {
-                closestMatch = i;
-                matchDif = dif;
-            }
-        }
-        return closestMatch;
-    }
-    
     /**
      * Gets the N64 analog stick displacement.
      * 
@@ -545,10 +539,21 @@ public class TouchMap
                 {
                     if ( buttonNames.get( i ).equals( name ) )
                     {
+                        // Only the tiles under the old and new locations of the mask change
+                        Image mask = buttonMasks.get( i );
+                        Rect bounds = getBounds( mask );
                         buttonX.set( i, x );
                         buttonY.set( i, y );
                         buttonImages.get( i ).fitPercent( buttonX.get( i ), getAdjustedYPos(buttonY.get( i )), w, h );
-                        buttonMasks.get( i ).fitPercent( buttonX.get( i ), getAdjustedYPos(buttonY.get( i )), w, h );
+                        mask.fitPercent( buttonX.get( i ), getAdjustedYPos(buttonY.get( i )), w, h );
+                        bounds.union( getBounds( mask ) );
+                        
+                        TouchHitGrid grid = mHitGrid;
+                        if( grid == null || !grid.hasSize( w, h ) )
+                            bakeHitGrid( w, h );
+                        else
+                            mHitGrid = new TouchHitGrid( grid, getHitMasks(), mN64ToColor, bounds.left,
+                                    bounds.top, bounds.right, bounds.bottom );
                     }
                 }
             }
@@ -24,6 +24,8 @@ import android.view.InputDevice;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
+import java.util.List;
+
 import paulscode.android.mupen64plusae.input.map.InputMap;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.util.SubscriptionManager;
@@ -59,7 +61,8 @@ public abstract class AbstractProvider
         public void onInput( int inputCode, float strength, int hardwareId );
         
         /**
-         * Called when multiple inputs have been dispatched simultaneously.
+         * Called when multiple inputs have been dispatched simultaneously. The arrays are reused
+         * by the provider, so they must be copied to be kept after the call.
          * 
          * @param inputCodes The universal input codes that were dispatched.
          * @param strengths  The input strengths, between 0 and 1, inclusive.
@@ -68,6 +71,9 @@ public abstract class AbstractProvider
         public void onInput( int[] inputCodes, float[] strengths, int hardwareId );
     }
     
+    /** The number of events preallocated by providers that dispatch on an input thread. */
+    protected static final int QUEUE_CAPACITY = 256;
+    
     /** The strength threshold above which an input is said to be "on". */
     public static final float STRENGTH_THRESHOLD = 0.5f;
     
@@ -415,13 +421,15 @@ public abstract class AbstractProvider
      */
     protected void notifyListeners( int inputCode, float strength, int hardwareId )
     {
-        for( OnInputListener listener : mPublisher.getSubscribers() )
-            listener.onInput( inputCode, strength, hardwareId );
+        List<OnInputListener> listeners = mPublisher.getSubscribers();
+        for( int i = 0; i < listeners.size(); i++ )
+            listeners.get( i ).onInput( inputCode, strength, hardwareId );
     }
     
     /**
      * Notifies listeners that multiple inputs were dispatched simultaneously. Subclasses should
-     * invoke this method to publish their input data.
+     * invoke this method to publish their input data. The arrays are handed to every listener as
+     * they are, so that dispatching doesn't allocate.
      * 
      * @param inputCodes The universal input codes that were dispatched.
      * @param strengths  The input strengths, between 0 and 1, inclusive.
@@ -429,7 +437,8 @@ public abstract class AbstractProvider
      */
     protected void notifyListeners( int[] inputCodes, float[] strengths, int hardwareId )
     {
-        for( OnInputListener listener : mPublisher.getSubscribers() )
-            listener.onInput( inputCodes.clone(), strengths.clone(), hardwareId );
+        List<OnInputListener> listeners = mPublisher.getSubscribers();
+        for( int i = 0; i < listeners.size(); i++ )
+            listeners.get( i ).onInput( inputCodes, strengths, hardwareId );
     }
 }
@@ -0,0 +1,188 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.input.provider;
+
+import java.util.Arrays;
+
+/**
+ * Turns the axis values of one device into input strengths, without allocating anything. The
+ * normalization of every axis (flat region, range rescaling, ignored axes) is looked up once when
+ * the device is first seen, and the strengths of the previous event are remembered so that only the
+ * inputs that changed can be dispatched.
+ */
+class AxisNormalizer
+{
+    /** The universal input codes, all of them axis codes. */
+    private final int[] mInputCodes;
+    
+    /** The index of the axis of each input code, in the axis values. */
+    private final int[] mAxisIndices;
+    
+    /** True for the input codes of a positive axis direction. */
+    private final boolean[] mPositive;
+    
+    /** Axis values within this distance of the center count as zero. */
+    private final float[] mCenterFlats;
+    
+    /** Subtracted from the absolute axis value before rescaling it. */
+    private final float[] mOffsets;
+    
+    /** The absolute axis value, minus the offset, is divided by this. */
+    private final float[] mDivisors;
+    
+    /** The strengths of the latest event, one per input code. */
+    private final float[] mStrengths;
+    
+    /** The strengths of the previous event, NaN before the first event. */
+    private final float[] mLastStrengths;
+    
+    /** The input codes and strengths that changed in the latest event. */
+    private final int[] mChangedCodes;
+    private final float[] mChangedStrengths;
+    private int mChangedCount = 0;
+    
+    /** Arrays of the exact size of the changes, by size, allocated the first time they are needed. */
+    private final int[][] mChangedCodesBySize;
+    private final float[][] mChangedStrengthsBySize;
+    
+    /**
+     * Constructor. Every axis starts out as an axis without motion range, whose strength is
+     * always zero.
+     * 
+     * @param inputCodes The universal input codes, all of them axis codes.
+     * @param axisIndices The index of the axis of each input code, in the axis values.
+     * @param axisCount The number of axis values.
+     */
+    AxisNormalizer( int[] inputCodes, int[] axisIndices, int axisCount )
+    {
+        mInputCodes = inputCodes;
+        mAxisIndices = axisIndices;
+        mPositive = new boolean[inputCodes.length];
+        for( int i = 0; i < inputCodes.length; i++ )
+            mPositive[i] = AbstractProvider.inputToAxisDirection( inputCodes[i] );
+        
+        mCenterFlats = new float[axisCount];
+        mOffsets = new float[axisCount];
+        mDivisors = new float[axisCount];
+        Arrays.fill( mCenterFlats, Float.POSITIVE_INFINITY );
+        Arrays.fill( mDivisors, 1 );
+        
+        mStrengths = new float[inputCodes.length];
+        mLastStrengths = new float[inputCodes.length];
+        Arrays.fill( mLastStrengths, Float.NaN );
+        mChangedCodes = new int[inputCodes.length];
+        mChangedStrengths = new float[inputCodes.length];
+        mChangedCodesBySize = new int[inputCodes.length + 1][];
+        mChangedStrengthsBySize = new float[inputCodes.length + 1][];
+    }
+    
+    /**
+     * Sets how the value of an axis is normalized. Values within the flat region are zero, and
+     * values outside of it become sign(value) * (abs(value) - offset) / divisor.
+     * 
+     * @param axisIndex The index of the axis in the axis values.
+     * @param centerFlat The flat region around the center, infinite to ignore the axis.
+     * @param offset Subtracted from the absolute value.
+     * @param divisor The absolute value, minus the offset, is divided by this.
+     */
+    void setAxis( int axisIndex, float centerFlat, float offset, float divisor )
+    {
+        mCenterFlats[axisIndex] = centerFlat;
+        mOffsets[axisIndex] = offset;
+        mDivisors[axisIndex] = divisor;
+    }
+    
+    /**
+     * Computes the strengths of an event.
+     * 
+     * @param axisValues The raw value of every axis.
+     * @return The number of input strengths that changed since the previous event.
+     */
+    int update( float[] axisValues )
+    {
+        mChangedCount = 0;
+        for( int i = 0; i < mInputCodes.length; i++ )
+        {
+            final int axisIndex = mAxisIndices[i];
+            final float value = axisValues[axisIndex];
+            
+            float normalized = 0;
+            if( Math.abs( value ) > mCenterFlats[axisIndex] )
+            {
+                normalized = ( Math.abs( value ) - mOffsets[axisIndex] ) / mDivisors[axisIndex]
+                        * Math.signum( value );
+            }
+            
+            // If the strength points in the correct direction, record it
+            final float strength = mPositive[i] == ( normalized > 0 ) ? Math.abs( normalized ) : 0;
+            mStrengths[i] = strength;
+            
+            // NaN is never equal, so everything counts as changed on the first event
+            if( strength != mLastStrengths[i] )
+            {
+                mChangedCodes[mChangedCount] = mInputCodes[i];
+                mChangedStrengths[mChangedCount] = strength;
+                mChangedCount++;
+                mLastStrengths[i] = strength;
+            }
+        }
+        return mChangedCount;
+    }
+    
+    /**
+     * Gets the strengths of the latest event, one per input code. The array is reused by the next
+     * event.
+     */
+    float[] getStrengths()
+    {
+        return mStrengths;
+    }
+    
+    /**
+     * Gets the input codes that changed in the latest event. The array is reused by the next
+     * event with as many changes.
+     */
+    int[] getChangedCodes()
+    {
+        int[] codes = mChangedCodesBySize[mChangedCount];
+        if( codes == null )
+        {
+            codes = new int[mChangedCount];
+            mChangedCodesBySize[mChangedCount] = codes;
+        }
+        System.arraycopy( mChangedCodes, 0, codes, 0, mChangedCount );
+        return codes;
+    }
+    
+    /**
+     * Gets the strengths of the input codes that changed in the latest event. The array is reused
+     * by the next event with as many changes.
+     */
+    float[] getChangedStrengths()
+    {
+        float[] strengths = mChangedStrengthsBySize[mChangedCount];
+        if( strengths == null )
+        {
+            strengths = new float[mChangedCount];
+            mChangedStrengthsBySize[mChangedCount] = strengths;
+        }
+        System.arraycopy( mChangedStrengths, 0, strengths, 0, mChangedCount );
+        return strengths;
+    }
+}
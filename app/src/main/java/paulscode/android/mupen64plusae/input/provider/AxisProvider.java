@@ -20,33 +20,88 @@
  */
 package paulscode.android.mupen64plusae.input.provider;
 
+import android.os.Handler;
+import android.util.SparseArray;
 import android.view.InputDevice;
 import android.view.InputDevice.MotionRange;
 import android.view.MotionEvent;
 import android.view.View;
 
+import paulscode.android.mupen64plusae.input.InputLatencyTracer;
 import paulscode.android.mupen64plusae.input.map.AxisMap;
 
 /**
- * A class for transforming Android MotionEvent inputs into a common format.
+ * A class for transforming Android MotionEvent inputs into a common format. The motion ranges and
+ * axis classes of each device are looked up once, and the strengths are computed in reused
+ * buffers, so that joystick events don't allocate anything once a device has been seen.
  */
 public class AxisProvider extends AbstractProvider implements View.OnGenericMotionListener
 {
     /** The input codes to listen for. */
     private int[] mInputCodes;
     
+    /** The distinct axis codes of the input codes. */
+    private int[] mAxisCodes;
+    
+    /** The index of the axis of each input code, in mAxisCodes. */
+    private int[] mAxisIndices;
+    
+    /** The raw values of the axes of the latest event. */
+    private float[] mAxisValues;
+    
+    /** The normalization tables of the devices seen so far, by device id. */
+    private final SparseArray<DeviceAxes> mDevices = new SparseArray<DeviceAxes>();
+    
+    /** True to only dispatch the inputs whose strength changed. */
+    private boolean mChangesOnly = false;
+    
+    /** The queue of the input thread, null to dispatch on the UI thread. */
+    private InputEventQueue<QueuedMotion> mQueue = null;
+    
     /** The default number of input codes to listen for. */
     private static final int DEFAULT_NUM_INPUTS = 128;
     
+    /**
+     * The normalization table of a device, valid as long as the device and event source stay the
+     * same.
+     */
+    private static class DeviceAxes
+    {
+        public final InputDevice device;
+        public final int source;
+        public final AxisNormalizer normalizer;
+        
+        public DeviceAxes( InputDevice device, int source, AxisNormalizer normalizer )
+        {
+            this.device = device;
+            this.source = source;
+            this.normalizer = normalizer;
+        }
+    }
+    
+    /**
+     * A joystick event copied for the input thread.
+     */
+    private static class QueuedMotion
+    {
+        public float[] axisValues = new float[0];
+        public InputDevice device;
+        public int source;
+        public int hardwareId;
+        public long eventTime;
+        public long receivedNanos;
+    }
+    
     /**
      * Instantiates a new axis provider.
      */
     public AxisProvider()
     {
         // By default, provide data from all possible axes
-        mInputCodes = new int[DEFAULT_NUM_INPUTS];
-        for( int i = 0; i < mInputCodes.length; i++ )
-            mInputCodes[i] = -( i + 1 );
+        int[] inputCodes = new int[DEFAULT_NUM_INPUTS];
+        for( int i = 0; i < inputCodes.length; i++ )
+            inputCodes[i] = -( i + 1 );
+        setInputCodes( inputCodes );
     }
 
     /**
@@ -71,27 +126,92 @@ public class AxisProvider extends AbstractProvider implements View.OnGenericMoti
      */
     public void setInputCodeFilter( int[] inputCodeFilter )
     {
-        mInputCodes = inputCodeFilter.clone();
+        setInputCodes( inputCodeFilter.clone() );
     }
-
-    private static float getCenteredAxis(MotionEvent event, InputDevice device, int axis)
+    
+    /**
+     * Only dispatches the inputs whose strength changed since the previous event of the same
+     * device, instead of all of them. Listeners must then remember the strengths themselves.
+     * 
+     * @param changesOnly True to only dispatch the inputs that changed.
+     */
+    public void setChangesOnly( boolean changesOnly )
     {
-        final InputDevice.MotionRange range = device.getMotionRange(axis, event.getSource());
-
-        // A joystick at rest does not always report an absolute position of
-        // (0,0). Use the getFlat() method to determine the range of values
-        // bounding the joystick axis center.
-        if (range != null) {
-            final float flat = range.getFlat();
-            final float value = event.getAxisValue(axis);
-            // Ignore axis values that are within the 'flat' region of the
-            // joystick axis center.
-            if (Math.abs(value) > flat) {
-                return value;
+        mChangesOnly = changesOnly;
+    }
+    
+    /**
+     * Dispatches the inputs on the thread of a handler instead of the thread receiving the motion
+     * events. The requested axes are copied into a preallocated queue, and normalized on the input
+     * thread. The input code filter must not change afterwards.
+     * 
+     * @param handler The handler of the input thread, or null to dispatch on the UI thread.
+     */
+    public void setDispatchHandler( Handler handler )
+    {
+        if( handler == null )
+        {
+            mQueue = null;
+            return;
+        }
+        
+        final int axisCount = mAxisCodes.length;
+        mQueue = new InputEventQueue<QueuedMotion>( handler, QUEUE_CAPACITY,
+                new InputEventQueue.Factory<QueuedMotion>()
+                {
+                    @Override
+                    public QueuedMotion create()
+                    {
+                        QueuedMotion motion = new QueuedMotion();
+                        motion.axisValues = new float[axisCount];
+                        return motion;
+                    }
+                }, new InputEventQueue.Consumer<QueuedMotion>()
+                {
+                    @Override
+                    public void consume( QueuedMotion motion )
+                    {
+                        dispatch( motion.device, motion.source, motion.axisValues, motion.hardwareId,
+                                motion.eventTime, motion.receivedNanos );
+                    }
+                } );
+    }
+    
+    /**
+     * Stops dispatching inputs on the input thread, before it quits. Inputs received afterwards
+     * are dropped.
+     */
+    public void stopDispatch()
+    {
+        final InputEventQueue<QueuedMotion> queue = mQueue;
+        if( queue != null )
+            queue.close();
+    }
+    
+    private void setInputCodes( int[] inputCodes )
+    {
+        // Each axis is read once per event, even if both of its directions are listened for
+        SparseArray<Integer> axisIndices = new SparseArray<Integer>();
+        int[] axisCodes = new int[inputCodes.length];
+        mAxisIndices = new int[inputCodes.length];
+        for( int i = 0; i < inputCodes.length; i++ )
+        {
+            int axisCode = inputToAxisCode( inputCodes[i] );
+            Integer axisIndex = axisIndices.get( axisCode );
+            if( axisIndex == null )
+            {
+                axisIndex = axisIndices.size();
+                axisIndices.put( axisCode, axisIndex );
+                axisCodes[axisIndex] = axisCode;
             }
+            mAxisIndices[i] = axisIndex;
         }
-
-        return 0;
+        
+        mInputCodes = inputCodes;
+        mAxisCodes = new int[axisIndices.size()];
+        System.arraycopy( axisCodes, 0, mAxisCodes, 0, mAxisCodes.length );
+        mAxisValues = new float[mAxisCodes.length];
+        mDevices.clear();
     }
 
     /**
@@ -112,94 +232,118 @@ public class AxisProvider extends AbstractProvider implements View.OnGenericMoti
             return false;
 
         InputDevice device = event.getDevice();
-        AxisMap axisInfo = AxisMap.getMap( device );
-
-        // Read all the requested axes
-        float[] strengths = new float[mInputCodes.length];
-        for( int i = 0; i < mInputCodes.length; i++ )
+        if( device == null )
+            return false;
+        
+        long receivedNanos = System.nanoTime();
+        final InputEventQueue<QueuedMotion> queue = mQueue;
+        if( queue == null )
         {
-            int inputCode = mInputCodes[i];
-
-            // Compute the axis code from the input code
-            int axisCode = inputToAxisCode( inputCode );
-
-            // Get the analog value using the Android API
-            float strength = getCenteredAxis(event, device, axisCode);
-
-            // Modify strength if necessary
-            strength = strength != 0 ? normalizeStrength( strength, axisInfo, device, axisCode ) : 0.0f;
-
-            // If the strength points in the correct direction, record it
-            boolean direction1 = inputToAxisDirection( inputCode );
-            boolean direction2 = strength > 0;
-            if( direction1 == direction2 )
-                strengths[i] = Math.abs( strength );
-            else
-                strengths[i] = 0;
+            // Read all the requested axes
+            for( int i = 0; i < mAxisCodes.length; i++ )
+                mAxisValues[i] = event.getAxisValue( mAxisCodes[i] );
+            dispatch( device, event.getSource(), mAxisValues, getHardwareId( event ), event.getEventTime(),
+                    receivedNanos );
+        }
+        else
+        {
+            // Copy the requested axes for the input thread
+            QueuedMotion motion = queue.obtain();
+            if( motion == null )
+                return true;
+            if( motion.axisValues.length != mAxisCodes.length )
+                motion.axisValues = new float[mAxisCodes.length];
+            for( int i = 0; i < mAxisCodes.length; i++ )
+                motion.axisValues[i] = event.getAxisValue( mAxisCodes[i] );
+            motion.device = device;
+            motion.source = event.getSource();
+            motion.hardwareId = getHardwareId( event );
+            motion.eventTime = event.getEventTime();
+            motion.receivedNanos = receivedNanos;
+            queue.queue();
         }
-
-        // Notify listeners about new input data
-        notifyListeners( mInputCodes, strengths, getHardwareId( event ) );
 
         return true;
     }
+    
+    private void dispatch( InputDevice device, int source, float[] axisValues, int hardwareId, long eventTime,
+            long receivedNanos )
+    {
+        InputLatencyTracer.beginEvent( hardwareId, eventTime, receivedNanos );
+        AxisNormalizer normalizer = getNormalizer( device, source );
+        int changedCount = normalizer.update( axisValues );
 
-    private float normalizeStrength( float strength, AxisMap axisInfo, InputDevice device,
-                                     int axisCode )
+        // Notify listeners about new input data
+        InputLatencyTracer.markDispatched();
+        if( !mChangesOnly )
+            notifyListeners( mInputCodes, normalizer.getStrengths(), hardwareId );
+        else if( changedCount > 0 )
+            notifyListeners( normalizer.getChangedCodes(), normalizer.getChangedStrengths(), hardwareId );
+        InputLatencyTracer.endEvent();
+    }
+    
+    private AxisNormalizer getNormalizer( InputDevice device, int source )
     {
-        if( axisInfo != null )
+        DeviceAxes axes = mDevices.get( device.getId() );
+        if( axes == null || axes.device != device || axes.source != source )
         {
-            int axisClass = axisInfo.getClass( axisCode );
-            float tempStrengh = 0;
+            axes = new DeviceAxes( device, source, createNormalizer( device, source ) );
+            mDevices.put( device.getId(), axes );
+        }
+        return axes.normalizer;
+    }
 
-            if( axisClass == AxisMap.AXIS_CLASS_IGNORED )
+    private AxisNormalizer createNormalizer( InputDevice device, int source )
+    {
+        AxisMap axisInfo = AxisMap.getMap( device );
+        AxisNormalizer normalizer = new AxisNormalizer( mInputCodes, mAxisIndices, mAxisCodes.length );
+        for( int i = 0; i < mAxisCodes.length; i++ )
+        {
+            int axisCode = mAxisCodes[i];
+            
+            // A joystick at rest does not always report an absolute position of
+            // (0,0). Use the getFlat() method to determine the range of values
+            // bounding the joystick axis center. Axes without range are always zero.
+            MotionRange range = device.getMotionRange( axisCode, source );
+            int axisClass = axisInfo.getClass( axisCode );
+            if( range == null || axisClass == AxisMap.AXIS_CLASS_IGNORED )
+                continue;
+            
+            MotionRange motionRange = device.getMotionRange( axisCode, InputDevice.SOURCE_JOYSTICK );
+            if( motionRange == null )
             {
-                // We should ignore this axis
-                strength = 0;
+                normalizer.setAxis( i, range.getFlat(), 0, 1 );
+                continue;
             }
-            else if( device != null )
+            
+            switch( axisClass )
             {
-                // We should normalize this axis
-                MotionRange motionRange = device.getMotionRange( axisCode, InputDevice.SOURCE_JOYSTICK );
-                if( motionRange != null )
-                {
-                    switch( axisClass )
-                    {
-                        case AxisMap.AXIS_CLASS_STICK:
-                            // Normalize to [-1,1]
-                            //strength = ( strength - motionRange.getMin() ) / motionRange.getRange() * 2f - 1f;
-                            tempStrengh = (Math.abs(strength) - motionRange.getFlat()) / (1.0f - motionRange.getFlat());
-                            //Restore sign
-                            strength = tempStrengh * Math.signum(strength);
-
-                            break;
-                        case AxisMap.AXIS_CLASS_TRIGGER:
-                            // Normalize to [0,1]
-                            tempStrengh = (Math.abs(strength) - motionRange.getFlat()) / (1.0f - motionRange.getFlat());
-                            //Restore sign
-                            strength = tempStrengh * Math.signum(strength);
-                            break;
-                        case AxisMap.AXIS_CLASS_N64_USB_STICK:
-                            // Normalize to [-1,1]
-                            // The Raphnet adapters through v2.x and some other USB adapters assume the N64
-                            // controller produces values in the range [-127,127].  However, the official N64 spec
-                            // says that raw values of +/- 80 indicate full strength.  Therefore we rescale by
-                            // multiplying by 127/80 (dividing by 0.63).
-                            // http://naesten.dyndns.org:8080/psyq/man/os/osContGetReadData.html
-                            // http://raphnet-tech.com/products/gc_n64_usb_adapters/
-                            // https://github.com/mupen64plus-ae/mupen64plus-ae/issues/89
-                            // https://github.com/mupen64plus-ae/mupen64plus-ae/issues/99
-                            // https://github.com/mupen64plus-ae/mupen64plus-ae/issues/188
-                            // http://www.paulscode.com/forum/index.php?topic=1076
-                            strength = strength / 0.63f;
-                            break;
-                        case AxisMap.AXIS_CLASS_UNKNOWN:
-                        default:
-                            // Do nothing
-                    }
-                }
+                case AxisMap.AXIS_CLASS_STICK:
+                    // Normalize to [-1,1]
+                case AxisMap.AXIS_CLASS_TRIGGER:
+                    // Normalize to [0,1]
+                    normalizer.setAxis( i, range.getFlat(), motionRange.getFlat(), 1.0f - motionRange.getFlat() );
+                    break;
+                case AxisMap.AXIS_CLASS_N64_USB_STICK:
+                    // Normalize to [-1,1]
+                    // The Raphnet adapters through v2.x and some other USB adapters assume the N64
+                    // controller produces values in the range [-127,127].  However, the official N64 spec
+                    // says that raw values of +/- 80 indicate full strength.  Therefore we rescale by
+                    // multiplying by 127/80 (dividing by 0.63).
+                    // http://naesten.dyndns.org:8080/psyq/man/os/osContGetReadData.html
+                    // http://raphnet-tech.com/products/gc_n64_usb_adapters/
+                    // https://github.com/mupen64plus-ae/mupen64plus-ae/issues/89
+                    // https://github.com/mupen64plus-ae/mupen64plus-ae/issues/99
+                    // https://github.com/mupen64plus-ae/mupen64plus-ae/issues/188
+                    // http://www.paulscode.com/forum/index.php?topic=1076
+                    normalizer.setAxis( i, range.getFlat(), 0, 0.63f );
+                    break;
+                case AxisMap.AXIS_CLASS_UNKNOWN:
+                default:
+                    // Do nothing
+                    normalizer.setAxis( i, range.getFlat(), 0, 1 );
             }
         }
-        return strength;
+        return normalizer;
     }
 }
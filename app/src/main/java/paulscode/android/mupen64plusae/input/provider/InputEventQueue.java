@@ -0,0 +1,166 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.input.provider;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queue of input events, copied by the UI thread and dispatched by the input thread. The events
+ * are preallocated and reused, so that queueing allocates nothing. Only one thread may queue
+ * events. Once the input thread has quit, or is stuck for too long, events are dropped.
+ * 
+ * @param <Event> The type of the copied events.
+ */
+final class InputEventQueue<Event>
+{
+    /** Creates the preallocated events. */
+    interface Factory<Event>
+    {
+        Event create();
+    }
+    
+    /** Dispatches the events, on the thread of the handler. */
+    interface Consumer<Event>
+    {
+        void consume( Event event );
+    }
+    
+    /** How long to wait for the input thread to free an event before dropping one. */
+    private static final long MAX_WAIT_NANOS = 8000000;
+    
+    private final Object[] mEvents;
+    private final int mMask;
+    private final Handler mHandler;
+    private final Consumer<Event> mConsumer;
+    
+    /** The number of events dispatched so far. */
+    private final AtomicLong mHead = new AtomicLong();
+    
+    /** The number of events queued so far. */
+    private final AtomicLong mTail = new AtomicLong();
+    
+    /** True while the handler has a dispatch pending. */
+    private final AtomicBoolean mDispatchPosted = new AtomicBoolean();
+    
+    /** True once the handler no longer accepts dispatches. */
+    private volatile boolean mClosed = false;
+    
+    /** True while events are dropped because every event is in use, only accessed when queueing. */
+    private boolean mOverflowing = false;
+    
+    private final Runnable mDispatch = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            // Events queued from now on post another dispatch
+            mDispatchPosted.set( false );
+            
+            long head = mHead.get();
+            while( head != mTail.get() )
+            {
+                mConsumer.consume( get( head ) );
+                head++;
+                mHead.lazySet( head );
+            }
+        }
+    };
+    
+    /**
+     * Constructor.
+     * 
+     * @param handler The handler of the thread that dispatches the events.
+     * @param capacity The number of preallocated events, a power of two.
+     * @param factory Creates the preallocated events.
+     * @param consumer Dispatches the events.
+     */
+    InputEventQueue( Handler handler, int capacity, Factory<Event> factory, Consumer<Event> consumer )
+    {
+        mEvents = new Object[capacity];
+        for( int i = 0; i < capacity; i++ )
+            mEvents[i] = factory.create();
+        mMask = capacity - 1;
+        mHandler = handler;
+        mConsumer = consumer;
+    }
+    
+    /**
+     * Gets the next free event, to be filled in and then queued with {@link #queue()}. If the
+     * input thread is so far behind that every event is in use, this waits a little for one to be
+     * freed rather than dropping an input.
+     * 
+     * @return The event, or null if the input should be dropped.
+     */
+    Event obtain()
+    {
+        if( mClosed )
+            return null;
+        
+        final long tail = mTail.get();
+        if( tail - mHead.get() > mMask )
+        {
+            final long start = System.nanoTime();
+            do
+            {
+                if( System.nanoTime() - start > MAX_WAIT_NANOS )
+                {
+                    if( !mOverflowing )
+                        Log.w( "InputEventQueue", "Input thread is not keeping up, dropping inputs" );
+                    mOverflowing = true;
+                    return null;
+                }
+                Thread.yield();
+            }
+            while( tail - mHead.get() > mMask );
+        }
+        mOverflowing = false;
+        return get( tail );
+    }
+    
+    /**
+     * Queues the event returned by {@link #obtain()}.
+     */
+    void queue()
+    {
+        mTail.lazySet( mTail.get() + 1 );
+        if( mDispatchPosted.compareAndSet( false, true ) && !mHandler.post( mDispatch ) )
+        {
+            // The input thread has quit
+            close();
+        }
+    }
+    
+    /**
+     * Stops queueing, every event is dropped from now on. Called before the input thread quits.
+     */
+    void close()
+    {
+        mClosed = true;
+    }
+    
+    @SuppressWarnings( "unchecked" )
+    private Event get( long index )
+    {
+        return (Event) mEvents[(int) ( index & mMask )];
+    }
+}
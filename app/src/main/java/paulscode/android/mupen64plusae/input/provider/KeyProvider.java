@@ -24,9 +24,12 @@ import java.util.List;
 
 import android.app.AlertDialog.Builder;
 import android.content.DialogInterface;
+import android.os.Handler;
 import android.view.KeyEvent;
 import android.view.View;
 
+import paulscode.android.mupen64plusae.input.InputLatencyTracer;
+
 /**
  * A class for transforming Android KeyEvent inputs into a common format.
  */
@@ -54,6 +57,19 @@ public class KeyProvider extends AbstractProvider implements View.OnKeyListener,
     /** The list of key codes that should be ignored. */
     private final List<Integer> mIgnoredCodes;
     
+    /** The queue of the input thread, null to dispatch on the UI thread. */
+    private InputEventQueue<QueuedKey> mQueue = null;
+    
+    /** A key event copied for the input thread. */
+    private static class QueuedKey
+    {
+        public int inputCode;
+        public float strength;
+        public int hardwareId;
+        public long eventTime;
+        public long receivedNanos;
+    }
+    
     /**
      * Instantiates a new key provider.
      * 
@@ -100,6 +116,49 @@ public class KeyProvider extends AbstractProvider implements View.OnKeyListener,
         builder.setOnKeyListener( this );
     }
     
+    /**
+     * Dispatches the inputs on the thread of a handler instead of the thread receiving the key
+     * events. The events are copied into a preallocated queue.
+     * 
+     * @param handler The handler of the input thread, or null to dispatch on the UI thread.
+     */
+    public void setDispatchHandler( Handler handler )
+    {
+        if( handler == null )
+        {
+            mQueue = null;
+            return;
+        }
+        
+        mQueue = new InputEventQueue<QueuedKey>( handler, QUEUE_CAPACITY,
+                new InputEventQueue.Factory<QueuedKey>()
+                {
+                    @Override
+                    public QueuedKey create()
+                    {
+                        return new QueuedKey();
+                    }
+                }, new InputEventQueue.Consumer<QueuedKey>()
+                {
+                    @Override
+                    public void consume( QueuedKey key )
+                    {
+                        dispatch( key.inputCode, key.strength, key.hardwareId, key.eventTime, key.receivedNanos );
+                    }
+                } );
+    }
+    
+    /**
+     * Stops dispatching inputs on the input thread, before it quits. Inputs received afterwards
+     * are dropped.
+     */
+    public void stopDispatch()
+    {
+        final InputEventQueue<QueuedKey> queue = mQueue;
+        if( queue != null )
+            queue.close();
+    }
+    
     /*
      * (non-Javadoc)
      * 
@@ -139,6 +198,8 @@ public class KeyProvider extends AbstractProvider implements View.OnKeyListener,
             return false;
         }
         
+        long receivedNanos = System.nanoTime();
+        
         // Translate input code and analog strength (ranges between 0.0 and 1.0)
         int inputCode;
         float strength;
@@ -173,9 +234,33 @@ public class KeyProvider extends AbstractProvider implements View.OnKeyListener,
         if( event.getAction() == KeyEvent.ACTION_UP )
             strength = 0;
         
-        // Notify listeners about new input data
-        notifyListeners( inputCode, strength, getHardwareId( event ) );
+        // Notify listeners about new input data, now or on the input thread
+        final InputEventQueue<QueuedKey> queue = mQueue;
+        if( queue == null )
+        {
+            dispatch( inputCode, strength, getHardwareId( event ), event.getEventTime(), receivedNanos );
+        }
+        else
+        {
+            QueuedKey key = queue.obtain();
+            if( key == null )
+                return true;
+            key.inputCode = inputCode;
+            key.strength = strength;
+            key.hardwareId = getHardwareId( event );
+            key.eventTime = event.getEventTime();
+            key.receivedNanos = receivedNanos;
+            queue.queue();
+        }
         
         return true;
     }
+    
+    private void dispatch( int inputCode, float strength, int hardwareId, long eventTime, long receivedNanos )
+    {
+        InputLatencyTracer.beginEvent( hardwareId, eventTime, receivedNanos );
+        InputLatencyTracer.markDispatched();
+        notifyListeners( inputCode, strength, hardwareId );
+        InputLatencyTracer.endEvent();
+    }
 }
@@ -21,6 +21,7 @@
 package paulscode.android.mupen64plusae.input.provider;
 
 import android.os.Handler;
+import android.util.SparseArray;
 
 import com.bda.controller.Controller;
 import com.bda.controller.ControllerListener;
@@ -28,21 +29,43 @@ import com.bda.controller.KeyEvent;
 import com.bda.controller.MotionEvent;
 import com.bda.controller.StateEvent;
 
+import paulscode.android.mupen64plusae.input.InputLatencyTracer;
+
 /**
- * A class for transforming MOGA input events into a common format.
+ * A class for transforming MOGA input events into a common format. The strengths are computed in
+ * buffers reused by every event, so that motion events don't allocate anything.
  */
 public class MogaProvider extends AbstractProvider implements ControllerListener
 {
     private final Controller mController;
     private final int[] mInputCodes;
+    private final int[] mAxisIndices;
+    private final float[] mAxisValues;
+    
+    /** The strengths of each controller, by hardware id. */
+    private final SparseArray<AxisNormalizer> mNormalizers = new SparseArray<AxisNormalizer>();
+    
+    /** True to only dispatch the inputs whose strength changed. */
+    private boolean mChangesOnly = false;
     
     /**
-     * Instantiates a new MOGA provider.
+     * Instantiates a new MOGA provider that receives events on the calling thread.
      */
     public MogaProvider( Controller controller )
+    {
+        this( controller, new Handler() );
+    }
+    
+    /**
+     * Instantiates a new MOGA provider.
+     * 
+     * @param controller The MOGA controller.
+     * @param handler The handler of the thread receiving and dispatching the events.
+     */
+    public MogaProvider( Controller controller, Handler handler )
     {
         mController = controller;
-        mController.setListener( this, new Handler() );
+        mController.setListener( this, handler );
 
         mInputCodes = new int[10];
         //@formatter:off
@@ -57,6 +80,23 @@ public class MogaProvider extends AbstractProvider implements ControllerListener
         mInputCodes[8] = axisToInputCode( MotionEvent.AXIS_LTRIGGER, true  );
         mInputCodes[9] = axisToInputCode( MotionEvent.AXIS_RTRIGGER, true  );
         //@formatter:on
+        
+        // Every input code reads its own axis value
+        mAxisIndices = new int[mInputCodes.length];
+        for( int i = 0; i < mInputCodes.length; i++ )
+            mAxisIndices[i] = i;
+        mAxisValues = new float[mInputCodes.length];
+    }
+    
+    /**
+     * Only dispatches the inputs whose strength changed since the previous event of the same
+     * controller, instead of all of them. Listeners must then remember the strengths themselves.
+     * 
+     * @param changesOnly True to only dispatch the inputs that changed.
+     */
+    public void setChangesOnly( boolean changesOnly )
+    {
+        mChangesOnly = changesOnly;
     }
     
     @Override
@@ -67,36 +107,38 @@ public class MogaProvider extends AbstractProvider implements ControllerListener
         int hardwareId = getHardwareId( event );
         
         // Notify listeners about new input data
+        InputLatencyTracer.beginEvent( hardwareId, event.getEventTime() );
         notifyListeners( inputCode, strength, hardwareId );
+        InputLatencyTracer.endEvent();
     }
     
     @Override
     public void onMotionEvent( MotionEvent event )
     {
-        // Read all the requested axes
-        float[] strengths = new float[mInputCodes.length];
-        for( int i = 0; i < mInputCodes.length; i++ )
+        int hardwareId = getHardwareId( event );
+        InputLatencyTracer.beginEvent( hardwareId, event.getEventTime() );
+        AxisNormalizer normalizer = mNormalizers.get( hardwareId );
+        if( normalizer == null )
         {
-            int inputCode = mInputCodes[i];
-            
-            // Compute the axis code from the input code
-            int axisCode = inputToAxisCode( inputCode );
-            
-            // Get the analog value using the MOGA API
-            float strength = event.getAxisValue( axisCode );
-            
-            // If the strength points in the correct direction, record it
-            boolean direction1 = inputToAxisDirection( inputCode );
-            boolean direction2 = strength > 0;
-            if( direction1 == direction2 )
-                strengths[i] = Math.abs( strength );
-            else
-                strengths[i] = 0;
+            // Values are used as they are, without flat region or rescaling
+            normalizer = new AxisNormalizer( mInputCodes, mAxisIndices, mAxisValues.length );
+            for( int i = 0; i < mAxisValues.length; i++ )
+                normalizer.setAxis( i, 0, 0, 1 );
+            mNormalizers.put( hardwareId, normalizer );
         }
-        int hardwareId = getHardwareId( event );
+        
+        // Read all the requested axes using the MOGA API
+        for( int i = 0; i < mInputCodes.length; i++ )
+            mAxisValues[i] = event.getAxisValue( inputToAxisCode( mInputCodes[i] ) );
+        int changedCount = normalizer.update( mAxisValues );
         
         // Notify listeners about new input data
-        notifyListeners( mInputCodes, strengths, hardwareId );
+        InputLatencyTracer.markDispatched();
+        if( !mChangesOnly )
+            notifyListeners( mInputCodes, normalizer.getStrengths(), hardwareId );
+        else if( changedCount > 0 )
+            notifyListeners( normalizer.getChangedCodes(), normalizer.getChangedStrengths(), hardwareId );
+        InputLatencyTracer.endEvent();
     }
     
     @Override
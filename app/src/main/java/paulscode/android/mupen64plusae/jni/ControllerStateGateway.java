@@ -0,0 +1,126 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.jni;
+
+import java.util.Locale;
+
+/**
+ * Delivers the controller state of one player to the input plugin. The buttons are packed into a
+ * 16-bit mask and stored together with the rounded axes in a single int, shared with the plugin.
+ * An update that doesn't change that int is dropped, and an update that is replaced before the
+ * core polled the controller is never seen by the core, so several updates between two polls cost
+ * no more than one.
+ */
+public class ControllerStateGateway
+{
+    /** The controller index, in the range [0,3]. */
+    private final int mControllerNum;
+    
+    /** The state last delivered to the plugin. */
+    private int mState = 0;
+    
+    /** True once a state has been delivered. */
+    private boolean mHasState = false;
+    
+    /** The poll count of the plugin when the last state was delivered. */
+    private int mPollCount = 0;
+    
+    /** Updates dropped because they didn't change the state. */
+    private long mSuppressedCount = 0;
+    
+    /** Updates delivered to the plugin. */
+    private long mDeliveredCount = 0;
+    
+    /** Delivered updates that were replaced before the core polled the controller. */
+    private long mCoalescedCount = 0;
+    
+    /**
+     * Constructor.
+     * 
+     * @param controllerNum Controller index, in the range [0,3].
+     */
+    public ControllerStateGateway( int controllerNum )
+    {
+        mControllerNum = controllerNum;
+    }
+    
+    /**
+     * Packs a controller state the way the plugin reads it.
+     * 
+     * @param buttons The button bits, bit n being set if button n is pressed.
+     * @param axisX The analog value of the x-axis, in the range [-80,80].
+     * @param axisY The analog value of the y-axis, in the range [-80,80].
+     */
+    public static int pack( int buttons, int axisX, int axisY )
+    {
+        return ( buttons & 0xFFFF ) | ( ( axisX & 0xFF ) << 16 ) | ( ( axisY & 0xFF ) << 24 );
+    }
+    
+    /**
+     * Updates the controller state, unless it didn't change.
+     * 
+     * @param buttons The button bits, bit n being set if button n is pressed.
+     * @param axisX The analog value of the x-axis, in the range [-80,80].
+     * @param axisY The analog value of the y-axis, in the range [-80,80].
+     * 
+     * @return True if the state was handed to the core, false if it was unchanged.
+     */
+    public synchronized boolean update( int buttons, int axisX, int axisY )
+    {
+        final int state = pack( buttons, axisX, axisY );
+        if( mHasState && state == mState )
+        {
+            mSuppressedCount++;
+            return false;
+        }
+        
+        final int pollCount = NativeInput.getPollCount( mControllerNum );
+        if( mHasState && pollCount == mPollCount )
+            mCoalescedCount++;
+        
+        NativeInput.setState( mControllerNum, state );
+        mState = state;
+        mHasState = true;
+        mPollCount = pollCount;
+        mDeliveredCount++;
+        return true;
+    }
+    
+    public synchronized long getSuppressedCount()
+    {
+        return mSuppressedCount;
+    }
+    
+    public synchronized long getDeliveredCount()
+    {
+        return mDeliveredCount;
+    }
+    
+    public synchronized long getCoalescedCount()
+    {
+        return mCoalescedCount;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return String.format( Locale.US, "Controller %d: %d delivered, %d suppressed, %d coalesced",
+                mControllerNum + 1, mDeliveredCount, mSuppressedCount, mCoalescedCount );
+    }
+}
@@ -388,12 +388,18 @@ public class CoreFragment extends Fragment implements CoreServiceListener
         }
     }
 
-    public void setControllerState( int controllerNum, boolean[] buttons, int axisX, int axisY )
+    /**
+     * Hands a controller state to the core.
+     *
+     * @return True if the state was delivered, false if it was unchanged or the core isn't running.
+     */
+    public boolean setControllerState( int controllerNum, int buttons, int axisX, int axisY )
     {
         if(mCoreService != null)
         {
-            mCoreService.setControllerState( controllerNum, buttons, axisX, axisY );
+            return mCoreService.setControllerState( controllerNum, buttons, axisX, axisY );
         }
+        return false;
     }
 
     public void registerVibrator( int player, Vibrator vibrator )
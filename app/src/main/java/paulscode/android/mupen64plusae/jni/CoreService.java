@@ -113,6 +113,8 @@ public class CoreService extends Service
     private boolean mIsShuttingDown = false;
 
     private final IBinder mBinder = new LocalBinder();
+    private final ControllerStateGateway[] mStateGateways = { new ControllerStateGateway( 0 ),
+            new ControllerStateGateway( 1 ), new ControllerStateGateway( 2 ), new ControllerStateGateway( 3 ) };
     private CoreServiceListener mListener = null;
 
     final static int ONGOING_NOTIFICATION_ID = 1;
@@ -287,9 +289,9 @@ public class CoreService extends Service
         NativeImports.setOnFpsChangedListener( fpsListener, fpsRecalcPeriod );
     }
 
-    void setControllerState( int controllerNum, boolean[] buttons, int axisX, int axisY )
+    boolean setControllerState( int controllerNum, int buttons, int axisX, int axisY )
     {
-        NativeInput.setState( controllerNum, buttons, axisX, axisY );
+        return mStateGateways[controllerNum].update( buttons, axisX, axisY );
     }
 
     void registerVibrator( int player, Vibrator vibrator )
@@ -380,6 +382,12 @@ public class CoreService extends Service
 
             mIsRunning = false;
 
+            for( ControllerStateGateway gateway : mStateGateways )
+            {
+                if( gateway.getDeliveredCount() > 0 )
+                    Log.i( "CoreService", gateway.toString() );
+            }
+
             NativeExports.unloadLibraries();
 
             if(mListener != null)
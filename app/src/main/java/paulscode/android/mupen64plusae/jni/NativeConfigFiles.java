@@ -235,7 +235,7 @@ public class NativeConfigFiles
         readHiResSettings(game, global, appData);
 
         // gln64 config file
-        final ConfigFile glideN64_conf = new ConfigFile( appData.glideN64_conf );
+        final ConfigFile glideN64_conf = new ConfigFile( appData.glideN64_conf, true );
 
         mupen64plus_cfg.put( "Video-GLideN64", "configVersion", "17" );
 
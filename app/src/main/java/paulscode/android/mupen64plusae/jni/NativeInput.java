@@ -23,6 +23,10 @@ package paulscode.android.mupen64plusae.jni;
 
 import android.os.Vibrator;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
 /**
  * Calls made between the native input-android library and Java. Any function names changed here
  * should also be changed in the corresponding C code, and vice versa.
@@ -35,9 +39,21 @@ public class NativeInput
     /** Maximum duration for vibration if no further vibration commands are issued. */
     private static final long VIBRATE_TIMEOUT = 1000;
     
+    /** Index of the first controller state in the shared buffer. */
+    private static final int STATE_OFFSET = 0;
+    
+    /** Index of the first poll count in the shared buffer. */
+    private static final int POLL_COUNT_OFFSET = 4;
+    
+    /** Controller states and poll counts, shared with the native code. */
+    private static final ByteBuffer sStateBuffer = ByteBuffer.allocateDirect( 8 * 4 ).order( ByteOrder.nativeOrder() );
+    
+    private static final IntBuffer sState = sStateBuffer.asIntBuffer();
+    
     static
     {
         System.loadLibrary( "mupen64plus-input-android" );
+        setStateBuffer( sStateBuffer );
     }
 
     private static final Vibrator[] sVibrators = new Vibrator[4];
@@ -48,14 +64,36 @@ public class NativeInput
     static native void init();
     
     /**
-     * Set the button/axis state of a controller.
+     * Share the buffer that holds the controller states with the native code, which reads the
+     * state of a controller from it every time the core polls the controller.
+     * 
+     * @param buffer A direct buffer of eight ints in native byte order.
+     */
+    private static native void setStateBuffer( ByteBuffer buffer );
+    
+    /**
+     * Set the button/axis state of a controller. This only writes to memory shared with the native
+     * code, so it doesn't cross JNI.
      * 
      * @param controllerNum Controller index, in the range [0,3].
-     * @param buttons The pressed state of the buttons.
-     * @param axisX The analog value of the x-axis, in the range [-80,80].
-     * @param axisY The analog value of the y-axis, in the range [-80,80].
+     * @param state The button bits in the low 16 bits, the x-axis and y-axis in the third and
+     *            fourth byte, in the range [-80,80].
+     * @see ControllerStateGateway#pack(int, int, int)
      */
-    static native void setState( int controllerNum, boolean[] buttons, int axisX, int axisY );
+    static void setState( int controllerNum, int state )
+    {
+        sState.put( STATE_OFFSET + controllerNum, state );
+    }
+    
+    /**
+     * Get how many times the core polled the state of a controller.
+     * 
+     * @param controllerNum Controller index, in the range [0,3].
+     */
+    static int getPollCount( int controllerNum )
+    {
+        return sState.get( POLL_COUNT_OFFSET + controllerNum );
+    }
     
     /**
      * Set the plugged state and pak type of a controller.
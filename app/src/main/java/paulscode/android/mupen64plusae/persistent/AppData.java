@@ -40,6 +40,7 @@ import org.mupen64plusae.v3.alpha.R;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.Locale;
 
 import paulscode.android.mupen64plusae.preference.PathPreference;
@@ -193,11 +194,15 @@ public class AppData
     // Shared preferences keys
     private static final String KEY_ASSET_VERSION = "assetVersion";
     private static final String KEY_LAST_APP_VERSION_CODE = "lastAppVersion";
+    private static final String KEY_LIBRARY_ROOTS = "libraryRoots";
+    private static final String KEY_LIBRARY_DOWNLOAD_ART = "libraryDownloadArt";
     // ... add more as needed
     
     // Shared preferences default values
     private static final int DEFAULT_ASSET_VERSION = 0;
     private static final int DEFAULT_LAST_APP_VERSION_CODE = 0;
+    private static final String DEFAULT_LIBRARY_ROOTS = null;
+    private static final boolean DEFAULT_LIBRARY_DOWNLOAD_ART = true;
     
     // ... add more as needed
     
@@ -333,6 +338,35 @@ public class AppData
         putInt( KEY_ASSET_VERSION, value );
     }
 
+    /**
+     * Gets the folders of the ROM library.
+     * 
+     * @return The library roots, empty if no scan was run yet.
+     */
+    public List<LibraryRoot> getLibraryRoots()
+    {
+        return LibraryRoot.fromString( mPreferences.getString( KEY_LIBRARY_ROOTS, DEFAULT_LIBRARY_ROOTS ) );
+    }
+    
+    public boolean getLibraryDownloadArt()
+    {
+        return mPreferences.getBoolean( KEY_LIBRARY_DOWNLOAD_ART, DEFAULT_LIBRARY_DOWNLOAD_ART );
+    }
+    
+    /**
+     * Persists the folders of the ROM library, so that they can be scanned again and watched.
+     * 
+     * @param roots The library roots.
+     * @param downloadArt True if cover art is downloaded.
+     */
+    public void putLibraryRoots( List<LibraryRoot> roots, boolean downloadArt )
+    {
+        mPreferences.edit()
+                .putString( KEY_LIBRARY_ROOTS, LibraryRoot.toString( roots ) )
+                .putBoolean( KEY_LIBRARY_DOWNLOAD_ART, downloadArt )
+                .commit();
+    }
+    
     private int getInt( String key, int defaultValue )
     {
         return mPreferences.getInt( key, defaultValue );
@@ -460,7 +494,7 @@ public class AppData
     {
         if(mEmulationProfilesConfig == null)
         {
-            mEmulationProfilesConfig = new ConfigFile( emulationProfiles_cfg );
+            mEmulationProfilesConfig = ConfigFile.open( emulationProfiles_cfg );
         }
 
         return mEmulationProfilesConfig;
@@ -470,7 +504,7 @@ public class AppData
     {
         if(mTouchscreenProfilesConfig == null)
         {
-            mTouchscreenProfilesConfig = new ConfigFile( touchscreenProfiles_cfg );
+            mTouchscreenProfilesConfig = ConfigFile.open( touchscreenProfiles_cfg );
         }
 
         return mTouchscreenProfilesConfig;
@@ -480,7 +514,7 @@ public class AppData
     {
         if(mControllerProfilesConfig == null)
         {
-            mControllerProfilesConfig = new ConfigFile( controllerProfiles_cfg );
+            mControllerProfilesConfig = ConfigFile.open( controllerProfiles_cfg );
         }
 
         return mControllerProfilesConfig;
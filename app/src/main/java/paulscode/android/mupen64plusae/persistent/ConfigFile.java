@@ -20,10 +20,14 @@
  */
 package paulscode.android.mupen64plusae.persistent;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,11 +35,18 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 
 import paulscode.android.mupen64plusae.util.FileUtil;
@@ -66,19 +77,183 @@ public class ConfigFile
     /** Name of the config file. */
     private final String mFilename;
     
-    /** Sections mapped by title for easy lookup, with insertion order retained. */
+    /** Sections mapped by title for easy lookup, with insertion order retained. In lazy mode,
+     *  sections that have not been parsed yet are mapped to null. */
     private final LinkedHashMap<String, ConfigSection> mConfigMap;
     
+    /** True if sections are only parsed when they are first accessed. */
+    private final boolean mLazy;
+    
+    /** Contents of the config file in lazy mode, null otherwise. */
+    private ByteBuffer mMappedFile = null;
+    
+    /** Location of the sections that have not been parsed yet in lazy mode. */
+    private final HashMap<String, SectionRange> mSectionRanges = new HashMap<String, SectionRange>();
+    
+    /** True if saving this instance also updates the process-wide cache. */
+    private final boolean mCached;
+    
+    /** Parsed config files shared by the whole process, mapped by file name. */
+    private static final HashMap<String, CachedFile> sCache = new HashMap<String, CachedFile>();
+    
+    /** Number of times {@link #open(String)} was served from the cache. */
+    private static int sCacheHits = 0;
+    
+    /** Number of times {@link #open(String)} had to read the file. */
+    private static int sCacheMisses = 0;
+    
+    /** True if sections were added or removed since the file was read or last saved. */
+    private boolean mDirty = false;
+    
+    /** Titles of the sections added or replaced since the file was read or last saved. */
+    private final HashSet<String> mChanged = new HashSet<String>();
+    
+    /** Titles of the sections removed since the file was read or last saved. */
+    private final HashSet<String> mRemoved = new HashSet<String>();
+    
+    /** Version of the data this instance was read from or last saved, see {@link #sVersions}. */
+    private int mVersion = 0;
+    
+    /** Last modified time of the file this instance was read from or last saved to. */
+    private long mLastModified = 0;
+    
+    /** Size of the file this instance was read from or last saved to. */
+    private long mSize = 0;
+    
+    /** Number of times each file was saved or queued for saving, mapped by file name. Guarded by
+     *  sPendingWrites. */
+    private static final HashMap<String, Integer> sVersions = new HashMap<String, Integer>();
+    
+    /** Time to wait before a {@link #saveAsync()} write, so that more saves can join it. */
+    private static final int WRITE_DELAY_MS = 500;
+    
+    /** Latest snapshot waiting to be written, mapped by file name. */
+    private static final HashMap<String, Snapshot> sPendingWrites = new HashMap<String, Snapshot>();
+    
+    /** Held while a file is written, so that writes never overlap. */
+    private static final Object sWriteLock = new Object();
+    
+    /** Handler of the background writer thread, created on first use. */
+    private static Handler sWriteHandler = null;
+    
+    /**
+     * Returns a config file from the process-wide cache, reading it only if it changed on disk
+     * since it was last read or saved. The cache is validated against the size and last modified
+     * time of the file.
+     * <p>
+     * The returned instance is copy-on-write: it shares its sections with the cache until they
+     * are modified, so reading is free, and changes are only visible to other instances once
+     * they are saved.
+     * 
+     * @param filename The config file to read from.
+     * 
+     * @return The config file, never null.
+     */
+    public static ConfigFile open( String filename )
+    {
+        final Snapshot pending;
+        final int version;
+        synchronized( sPendingWrites )
+        {
+            pending = sPendingWrites.get( filename );
+            version = getVersion( filename );
+        }
+        
+        // A write that is waiting to happen holds newer data than the file the cache matches
+        if( pending == null )
+        {
+            final File file = new File( filename );
+            synchronized( sCache )
+            {
+                CachedFile cached = sCache.get( filename );
+                if( cached != null && cached.lastModified == file.lastModified() && cached.size == file.length() )
+                {
+                    sCacheHits++;
+                    return new ConfigFile( filename, cached );
+                }
+                sCacheMisses++;
+            }
+        }
+        
+        ConfigFile config = new ConfigFile( filename, false, true );
+        config.load( pending, version );
+        
+        // The file attributes are read before the file, so that a change made while reading is
+        // picked up by the next call
+        if( pending == null )
+            config.share( config.mLastModified, config.mSize );
+        return config;
+    }
+    
+    /**
+     * Returns the number of times {@link #open(String)} was served from the cache.
+     */
+    public static int getCacheHits()
+    {
+        synchronized( sCache )
+        {
+            return sCacheHits;
+        }
+    }
+    
+    /**
+     * Returns the number of times {@link #open(String)} had to read the file.
+     */
+    public static int getCacheMisses()
+    {
+        synchronized( sCache )
+        {
+            return sCacheMisses;
+        }
+    }
+    
     /**
      * Reads the entire config file, and saves the data to internal collections for manipulation.
      * 
      * @param filename The config file to read from.
      */
     public ConfigFile( String filename )
+    {
+        this( filename, false );
+    }
+    
+    /**
+     * Reads the config file, and saves the data to internal collections for manipulation.
+     * <p>
+     * In lazy mode the file is memory mapped and only the location of each section is read up
+     * front. The parameters of a section are parsed the first time the section is accessed, and
+     * sections that are never accessed are saved back byte for byte. This makes looking up a few
+     * sections of a large file much cheaper.
+     * 
+     * @param filename The config file to read from.
+     * @param lazy True to parse sections on first access.
+     */
+    public ConfigFile( String filename, boolean lazy )
+    {
+        this( filename, lazy, false );
+        reload();
+    }
+    
+    private ConfigFile( String filename, boolean lazy, boolean cached )
     {
         mFilename = filename;
+        mLazy = lazy;
+        mCached = cached;
         mConfigMap = new LinkedHashMap<String, ConfigSection>();
-        reload();
+    }
+    
+    /**
+     * Creates a config file that shares the sections of a cached one.
+     */
+    private ConfigFile( String filename, CachedFile cached )
+    {
+        mFilename = filename;
+        mLazy = false;
+        mCached = true;
+        mConfigMap = new LinkedHashMap<String, ConfigSection>( cached.sections );
+        mVersion = cached.version;
+        mLastModified = cached.lastModified;
+        mSize = cached.size;
     }
     
     /**
@@ -90,7 +265,10 @@ public class ConfigFile
      */
     public ConfigSection get( String sectionTitle )
     {
-        return mConfigMap.get( sectionTitle );
+        ConfigSection section = mConfigMap.get( sectionTitle );
+        if( section == null && mSectionRanges.containsKey( sectionTitle ) )
+            section = parseSection( sectionTitle );
+        return section;
     }
     
     /**
@@ -101,7 +279,15 @@ public class ConfigFile
      */
     public void remove( String sectionTitle )
     {
+        if( mConfigMap.containsKey( sectionTitle ) )
+        {
+            mDirty = true;
+            mChanged.remove( sectionTitle );
+            mRemoved.add( sectionTitle );
+        }
+        
         mConfigMap.remove( sectionTitle );
+        mSectionRanges.remove( sectionTitle );
     }
     
     /**
@@ -114,7 +300,7 @@ public class ConfigFile
      */
     public String get( String sectionTitle, String parameter )
     {
-        ConfigSection section = mConfigMap.get( sectionTitle );
+        ConfigSection section = get( sectionTitle );
         
         // The specified section doesn't exist or is empty.. quit
         if( section == null || section.parameters == null )
@@ -139,13 +325,27 @@ public class ConfigFile
      */
     public void put( String sectionTitle, String parameter, String value )
     {
-        ConfigSection section = mConfigMap.get( sectionTitle );
+        ConfigSection section = get( sectionTitle );
         if( section == null )
         {
             // Add a new section
             section = new ConfigSection( sectionTitle );
             mConfigMap.put( sectionTitle, section );
+            mDirty = true;
+        }
+        else if( section.hasValue( parameter, value ) )
+        {
+            // Nothing changes
+            return;
+        }
+        else if( section.shared )
+        {
+            // Copy on write, the cached section may be in use by other instances
+            section = new ConfigSection( section );
+            mConfigMap.put( sectionTitle, section );
         }
+        mChanged.add( sectionTitle );
+        mRemoved.remove( sectionTitle );
         section.put( parameter, value );
     }
     
@@ -154,7 +354,14 @@ public class ConfigFile
      */
     public void clear()
     {
+        if( !mConfigMap.isEmpty() )
+            mDirty = true;
+        
+        mChanged.clear();
+        mRemoved.addAll( mConfigMap.keySet() );
         mConfigMap.clear();
+        mSectionRanges.clear();
+        mMappedFile = null;
     }
     
     /**
@@ -170,9 +377,56 @@ public class ConfigFile
         if( TextUtils.isEmpty( mFilename ) )
             return false;
         
+        final Snapshot pending;
+        final int version;
+        synchronized( sPendingWrites )
+        {
+            pending = sPendingWrites.get( mFilename );
+            version = getVersion( mFilename );
+        }
+        return load( pending, version );
+    }
+    
+    /**
+     * Loads the latest data of the file, overwriting any unsaved changes. A write that is still
+     * waiting to happen is read from memory, and left for the writer thread.
+     * 
+     * @param pending The write waiting to happen, or null.
+     * @param version The version of the file if there is no pending write.
+     * 
+     * @return True if successful.
+     */
+    private boolean load( Snapshot pending, int version )
+    {
         // Free any previously loaded data
         clear();
         
+        boolean success = readLatest( pending, version );
+        
+        // Until it is saved, the data matches the file or the pending write, or there is no file yet
+        mChanged.clear();
+        mRemoved.clear();
+        mDirty = pending == null && !new File( mFilename ).exists();
+        
+        return success;
+    }
+    
+    /**
+     * Reads the config file as it is on disk, and records its size and last modified time.
+     * 
+     * @return True if successful.
+     */
+    private boolean readFile()
+    {
+        // Get the file attributes before reading it, so that a change made while reading is
+        // detected when saving
+        final File file = new File( mFilename );
+        mLastModified = file.lastModified();
+        mSize = file.length();
+        
+        if( mLazy )
+            return reloadLazy();
+        
         FileInputStream fstream;
         try
         {
@@ -219,10 +473,17 @@ public class ConfigFile
     }
     
     /**
-     * Saves the data from 'configMap' back to the config file.
+     * Saves the data from 'configMap' back to the config file. Nothing is written if no section
+     * changed since the file was read or last saved. The new file is written next to the old one
+     * and then renamed over it, so the old file is never left half written.
+     * <p>
+     * If the file was saved by another instance, or changed on disk, since this instance was read,
+     * only the sections changed by this instance are written over the latest data. A section
+     * changed by both is taken from this instance.
      * 
      * @return True if successful. False otherwise.
      * @see #reload()
+     * @see #saveAsync()
      */
     public boolean save()
     {
@@ -233,44 +494,305 @@ public class ConfigFile
             return false; // Quit
         }
         
-        // Ensure parent directories exist before writing file
-        FileUtil.makeDirs(new File( mFilename ).getParentFile().getPath());
+        // Nothing to do
+        if( !isDirty() )
+            return true;
         
-        // Write data to file
-        FileWriter fw = null;
-        try
+        synchronized( sWriteLock )
         {
-            fw = new FileWriter( mFilename );
+            // This supersedes any write still waiting to happen
+            Snapshot pending;
+            synchronized( sPendingWrites )
+            {
+                pending = sPendingWrites.remove( mFilename );
+            }
             
-            // Loop through the sections
-            for( ConfigSection section : mConfigMap.values() )
+            // Don't overwrite what was saved since this instance was read
+            if( isStale() )
+                rebase( pending );
+            
+            boolean success = takeSnapshot().write();
+            if( success )
             {
-                if( section != null )
-                    section.save( fw );
+                final File file = new File( mFilename );
+                mLastModified = file.lastModified();
+                mSize = file.length();
             }
+            return success;
         }
-        catch( IOException ioe )
+    }
+    
+    /**
+     * Saves the data from 'configMap' back to the config file on a background thread, like
+     * {@link #save()}. Saves of the same file that are requested within a short time of each
+     * other are written only once, with the changes of all of them. Reading the file, through
+     * {@link #reload()} or {@link #open(String)}, returns the pending data right away without
+     * waiting for it to be written.
+     */
+    public void saveAsync()
+    {
+        // No filename was specified.
+        if( TextUtils.isEmpty( mFilename ) )
         {
-            Log.e( "ConfigFile", "IOException creating file " + mFilename + ", error message: "
-                    + ioe.getMessage() );
-            return false; // Some problem creating the file.. quit
+            Log.e( "ConfigFile", "Filename not specified in method saveAsync()" );
+            return; // Quit
         }
-        finally
+        
+        // Nothing to do
+        if( !isDirty() )
+            return;
+        
+        final String filename = mFilename;
+        final Snapshot snapshot = takeSnapshot();
+        synchronized( sPendingWrites )
         {
-            if( fw != null )
+            // If a write is already scheduled it will pick up the changes of both snapshots
+            final Snapshot pending = sPendingWrites.get( filename );
+            if( pending != null )
             {
-                try
+                sPendingWrites.put( filename, pending.followedBy( snapshot ) );
+            }
+            else
+            {
+                sPendingWrites.put( filename, snapshot );
+                
+                if( sWriteHandler == null )
                 {
-                    fw.close();
+                    HandlerThread thread = new HandlerThread( "ConfigFileWriter",
+                            Process.THREAD_PRIORITY_BACKGROUND );
+                    thread.start();
+                    sWriteHandler = new Handler( thread.getLooper() );
                 }
-                catch( IOException ignored )
+                
+                sWriteHandler.postDelayed( new Runnable()
                 {
-                }
+                    @Override
+                    public void run()
+                    {
+                        writePending( filename );
+                    }
+                }, WRITE_DELAY_MS );
             }
         }
+    }
+    
+    /**
+     * Returns true if anything changed since the file was read or last saved.
+     * 
+     * @return True if the file needs to be saved.
+     */
+    public boolean isDirty()
+    {
+        if( mDirty )
+            return true;
         
-        // Success
-        return true;
+        for( ConfigSection section : mConfigMap.values() )
+        {
+            if( section != null && section.dirty )
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Writes the pending snapshot of a file, if any.
+     * 
+     * @param filename The config file to write.
+     */
+    private static void writePending( String filename )
+    {
+        synchronized( sWriteLock )
+        {
+            Snapshot snapshot;
+            synchronized( sPendingWrites )
+            {
+                snapshot = sPendingWrites.remove( filename );
+            }
+            if( snapshot == null )
+                return;
+            
+            if( !snapshot.isCurrent() )
+            {
+                // The file changed since the snapshot was taken, only write what the snapshot changed
+                ConfigFile latest = new ConfigFile( filename, true, false );
+                latest.readLatest( snapshot, snapshot.mVersion );
+                snapshot = latest.takeSnapshot();
+            }
+            snapshot.write();
+        }
+    }
+    
+    /**
+     * Returns the number of times a file was saved or queued for saving. Must be called with
+     * sPendingWrites held.
+     */
+    private static int getVersion( String filename )
+    {
+        Integer version = sVersions.get( filename );
+        return version == null ? 0 : version;
+    }
+    
+    /**
+     * Returns true if the file was saved, or changed on disk, since this instance was read or
+     * last saved.
+     */
+    private boolean isStale()
+    {
+        synchronized( sPendingWrites )
+        {
+            if( mVersion != getVersion( mFilename ) )
+                return true;
+        }
+        final File file = new File( mFilename );
+        return file.lastModified() != mLastModified || file.length() != mSize;
+    }
+    
+    /**
+     * Reads the latest data of the file, which is the pending write if it is still based on the
+     * file on disk, or the file on disk with the changes of the pending write applied to it. The
+     * changes are kept, so that they are written by the next snapshot.
+     * 
+     * @param pending The write waiting to happen, or null.
+     * @param version The version of the file if there is no pending write.
+     * 
+     * @return True if successful.
+     */
+    private boolean readLatest( Snapshot pending, int version )
+    {
+        if( pending != null && pending.isCurrent() )
+        {
+            mConfigMap.putAll( pending.mSections );
+            mSectionRanges.putAll( pending.mSectionRanges );
+            mMappedFile = pending.mMappedFile;
+            mChanged.addAll( pending.mChanged );
+            mRemoved.addAll( pending.mRemoved );
+            mVersion = pending.mVersion;
+            mLastModified = pending.mLastModified;
+            mSize = pending.mSize;
+            return true;
+        }
+        
+        boolean success = readFile();
+        mVersion = version;
+        if( pending != null )
+        {
+            apply( pending.mSections, pending.mChanged, pending.mRemoved );
+            mVersion = pending.mVersion;
+            success = true;
+        }
+        return success;
+    }
+    
+    /**
+     * Applies the changes of this instance to the latest data of the file, so that saving it does
+     * not overwrite sections that were saved by other instances since this one was read.
+     * 
+     * @param pending The write waiting to happen, or null.
+     */
+    private void rebase( Snapshot pending )
+    {
+        Log.w( "ConfigFile", mFilename + " was saved since it was read, merging the changes" );
+        
+        final int version;
+        synchronized( sPendingWrites )
+        {
+            version = getVersion( mFilename );
+        }
+        ConfigFile latest = new ConfigFile( mFilename, mLazy, false );
+        latest.readLatest( pending, version );
+        latest.apply( mConfigMap, getChangedSections(), mRemoved );
+        
+        mConfigMap.clear();
+        mConfigMap.putAll( latest.mConfigMap );
+        mSectionRanges.clear();
+        mSectionRanges.putAll( latest.mSectionRanges );
+        mMappedFile = latest.mMappedFile;
+        mChanged.clear();
+        mChanged.addAll( latest.mChanged );
+        mRemoved.clear();
+        mRemoved.addAll( latest.mRemoved );
+        mVersion = latest.mVersion;
+        mLastModified = latest.mLastModified;
+        mSize = latest.mSize;
+        mDirty = true;
+    }
+    
+    /**
+     * Replaces and removes sections.
+     * 
+     * @param sections The sections to take the changed ones from.
+     * @param changed Titles of the sections to replace or add.
+     * @param removed Titles of the sections to remove.
+     */
+    private void apply( Map<String, ConfigSection> sections, Set<String> changed, Set<String> removed )
+    {
+        for( String sectionTitle : removed )
+            remove( sectionTitle );
+        
+        for( String sectionTitle : changed )
+        {
+            mConfigMap.put( sectionTitle, sections.get( sectionTitle ) );
+            mSectionRanges.remove( sectionTitle );
+            mRemoved.remove( sectionTitle );
+            mChanged.add( sectionTitle );
+            mDirty = true;
+        }
+    }
+    
+    /**
+     * Returns the titles of the sections added or modified since the file was read or last saved.
+     */
+    private HashSet<String> getChangedSections()
+    {
+        HashSet<String> changed = new HashSet<String>( mChanged );
+        for( Map.Entry<String, ConfigSection> entry : mConfigMap.entrySet() )
+        {
+            if( entry.getValue() != null && entry.getValue().dirty )
+                changed.add( entry.getKey() );
+        }
+        return changed;
+    }
+    
+    /**
+     * Captures the current data for writing, and marks it as saved. The sections become read-only
+     * and are copied by {@link #put(String, String, String)} before they are modified again, so
+     * the snapshot can be written while this instance keeps changing.
+     */
+    private Snapshot takeSnapshot()
+    {
+        // Find the changes before the sections are marked as saved
+        final HashSet<String> changed = getChangedSections();
+        final HashSet<String> removed = new HashSet<String>( mRemoved );
+        final int baseVersion = mVersion;
+        synchronized( sPendingWrites )
+        {
+            mVersion = getVersion( mFilename ) + 1;
+            sVersions.put( mFilename, mVersion );
+        }
+        
+        final File file = new File( mFilename );
+        final LinkedHashMap<String, ConfigSection> sections;
+        if( mCached )
+        {
+            // Readers of the cache see the new data right away, even before it is written
+            sections = share( file.lastModified(), file.length() );
+        }
+        else
+        {
+            synchronized( sCache )
+            {
+                sCache.remove( mFilename );
+            }
+            share( mConfigMap.values() );
+            sections = new LinkedHashMap<String, ConfigSection>( mConfigMap );
+        }
+        mDirty = false;
+        mChanged.clear();
+        mRemoved.clear();
+        
+        return new Snapshot( mFilename, sections, mMappedFile,
+                new HashMap<String, SectionRange>( mSectionRanges ), mCached, changed, removed,
+                baseVersion, mVersion, mLastModified, mSize );
     }
     
     /**
@@ -283,6 +805,433 @@ public class ConfigFile
         return mConfigMap.keySet();
     }
     
+    /**
+     * Stores the current sections in the process-wide cache. The sections become read-only and
+     * are copied by {@link #put(String, String, String)} before they are modified.
+     */
+    private LinkedHashMap<String, ConfigSection> share( long lastModified, long size )
+    {
+        // Instances created from the cache have no mapped file to parse sections from
+        parseAll();
+        share( mConfigMap.values() );
+        
+        LinkedHashMap<String, ConfigSection> sections = new LinkedHashMap<String, ConfigSection>( mConfigMap );
+        synchronized( sCache )
+        {
+            sCache.put( mFilename, new CachedFile( sections, lastModified, size, mVersion ) );
+        }
+        return sections;
+    }
+    
+    private static void share( Iterable<ConfigSection> sections )
+    {
+        for( ConfigSection section : sections )
+        {
+            if( section != null )
+            {
+                section.shared = true;
+                section.dirty = false;
+            }
+        }
+    }
+    
+    /**
+     * Memory maps the config file and records where each section starts and ends, following the
+     * same syntax rules as {@link ConfigSection#ConfigSection(String, BufferedReader)}.
+     * 
+     * @return True if successful.
+     */
+    private boolean reloadLazy()
+    {
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile( mFilename, "r" );
+            FileChannel channel = file.getChannel();
+            
+            // The mapping stays valid after the channel is closed
+            mMappedFile = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        catch( IOException e )
+        {
+            // File not found... we can't continue
+            return false;
+        }
+        finally
+        {
+            if( file != null )
+            {
+                try
+                {
+                    file.close();
+                }
+                catch( IOException ioe )
+                {
+                    // (Don't care)
+                }
+            }
+        }
+        
+        final int length = mMappedFile.limit();
+        String sectionName = SECTIONLESS_NAME;
+        int sectionStart = 0;
+        int contentStart = 0;
+        int lineStart = 0;
+        mConfigMap.put( sectionName, null );
+        
+        while( lineStart < length )
+        {
+            // Find the end of the line, accepting the same line terminators as BufferedReader
+            int lineEnd = lineStart;
+            byte b;
+            while( lineEnd < length && ( b = mMappedFile.get( lineEnd ) ) != '\n' && b != '\r' )
+                lineEnd++;
+            int nextLine = lineEnd;
+            if( nextLine < length )
+            {
+                if( mMappedFile.get( nextLine ) == '\r' && nextLine + 1 < length
+                        && mMappedFile.get( nextLine + 1 ) == '\n' )
+                    nextLine += 2;
+                else
+                    nextLine++;
+            }
+            
+            // Skip leading and trailing whitespace
+            int first = lineStart;
+            int last = lineEnd - 1;
+            while( first <= last && ( mMappedFile.get( first ) & 0xFF ) <= ' ' )
+                first++;
+            while( last >= first && ( mMappedFile.get( last ) & 0xFF ) <= ' ' )
+                last--;
+            
+            if( first > last )
+            {
+                // A blank line
+                lineStart = nextLine;
+                continue;
+            }
+            
+            byte firstChar = mMappedFile.get( first );
+            if( firstChar == '#' || firstChar == ';'
+                    || ( firstChar == '/' && first < last && mMappedFile.get( first + 1 ) == '/' ) )
+            {
+                // A comment
+                lineStart = nextLine;
+                continue;
+            }
+            
+            int equals = indexOf( '=', first, last );
+            if( equals != -1 )
+            {
+                // A "parameter=value" pair
+                if( equals == first )
+                    break; // This shouldn't happen (bad syntax). Quit.
+                
+                lineStart = nextLine;
+                continue;
+            }
+            
+            if( indexOf( '[', first, last ) == -1 )
+                break; // This shouldn't happen (bad syntax). Quit.
+            
+            // This should be the beginning of the next section
+            String strLine = readRange( mMappedFile, first, last + 1 );
+            int x = strLine.indexOf( '[' );
+            int y = strLine.indexOf( ']' );
+            if( strLine.length() < 3 || y <= x + 1 )
+                break; // This shouldn't happen (bad syntax). Quit.
+            
+            mSectionRanges.put( sectionName, new SectionRange( sectionStart, contentStart, lineStart ) );
+            sectionName = strLine.substring( x + 1, y ).trim();
+            sectionStart = lineStart;
+            contentStart = nextLine;
+            if( !mConfigMap.containsKey( sectionName ) )
+                mConfigMap.put( sectionName, null );
+            
+            lineStart = nextLine;
+        }
+        
+        mSectionRanges.put( sectionName, new SectionRange( sectionStart, contentStart,
+                Math.min( lineStart, length ) ) );
+        
+        // Success
+        return true;
+    }
+    
+    /**
+     * Parses every section that was located by {@link #reloadLazy()} and not accessed yet, which
+     * can be the case after reading the pending write of a lazy instance.
+     */
+    private void parseAll()
+    {
+        for( String sectionTitle : new ArrayList<String>( mSectionRanges.keySet() ) )
+        {
+            if( mConfigMap.containsKey( sectionTitle ) )
+                parseSection( sectionTitle );
+        }
+        mSectionRanges.clear();
+        
+        // A section without a range has nothing to parse it from, it can't be read back
+        for( Iterator<ConfigSection> iterator = mConfigMap.values().iterator(); iterator.hasNext(); )
+        {
+            if( iterator.next() == null )
+                iterator.remove();
+        }
+    }
+    
+    /**
+     * Parses a section that was located by {@link #reloadLazy()}.
+     */
+    private ConfigSection parseSection( String sectionTitle )
+    {
+        SectionRange range = mSectionRanges.remove( sectionTitle );
+        String contents = readRange( mMappedFile, range.contentStart, range.end );
+        BufferedReader br = new BufferedReader( new StringReader( contents ) );
+        ConfigSection section = new ConfigSection( sectionTitle, br );
+        mConfigMap.put( sectionTitle, section );
+        return section;
+    }
+    
+    private int indexOf( char c, int first, int last )
+    {
+        for( int i = first; i <= last; i++ )
+        {
+            if( mMappedFile.get( i ) == c )
+                return i;
+        }
+        return -1;
+    }
+    
+    private static String readRange( ByteBuffer mappedFile, int start, int end )
+    {
+        if( end <= start )
+            return "";
+        
+        byte[] bytes = new byte[end - start];
+        ByteBuffer buffer = mappedFile.duplicate();
+        buffer.position( start );
+        buffer.get( bytes );
+        return new String( bytes );
+    }
+    
+    /**
+     * The data of a config file at the time it was saved, which can be written from any thread.
+     */
+    private static class Snapshot
+    {
+        private final String mFilename;
+        private final LinkedHashMap<String, ConfigSection> mSections;
+        private final ByteBuffer mMappedFile;
+        private final HashMap<String, SectionRange> mSectionRanges;
+        private final boolean mCached;
+        
+        /** Titles of the sections changed and removed since the file was last read. */
+        private final Set<String> mChanged;
+        private final Set<String> mRemoved;
+        
+        /** Version of the data the snapshot was taken from, and of the snapshot itself. */
+        private final int mBaseVersion;
+        private final int mVersion;
+        
+        /** Last modified time and size of the file the snapshot is based on. */
+        private final long mLastModified;
+        private final long mSize;
+        
+        public Snapshot( String filename, LinkedHashMap<String, ConfigSection> sections,
+                ByteBuffer mappedFile, HashMap<String, SectionRange> sectionRanges, boolean cached,
+                Set<String> changed, Set<String> removed, int baseVersion, int version,
+                long lastModified, long size )
+        {
+            mFilename = filename;
+            mSections = sections;
+            mMappedFile = mappedFile;
+            mSectionRanges = sectionRanges;
+            mCached = cached;
+            mChanged = changed;
+            mRemoved = removed;
+            mBaseVersion = baseVersion;
+            mVersion = version;
+            mLastModified = lastModified;
+            mSize = size;
+        }
+        
+        /**
+         * Returns true if the file did not change on disk since the data of the snapshot was read.
+         */
+        public boolean isCurrent()
+        {
+            final File file = new File( mFilename );
+            return file.lastModified() == mLastModified && file.length() == mSize;
+        }
+        
+        /**
+         * Combines this snapshot with a later one of the same file, keeping the changes of both.
+         * 
+         * @param next The later snapshot.
+         * 
+         * @return The combined snapshot.
+         */
+        public Snapshot followedBy( Snapshot next )
+        {
+            HashSet<String> changed = new HashSet<String>( mChanged );
+            changed.removeAll( next.mRemoved );
+            changed.addAll( next.mChanged );
+            HashSet<String> removed = new HashSet<String>( mRemoved );
+            removed.removeAll( next.mChanged );
+            removed.addAll( next.mRemoved );
+            
+            // The next snapshot was taken from the data of this one, it already holds everything
+            if( next.mBaseVersion == mVersion )
+            {
+                return new Snapshot( mFilename, next.mSections, next.mMappedFile, next.mSectionRanges,
+                        next.mCached, changed, removed, mBaseVersion, next.mVersion, mLastModified, mSize );
+            }
+            
+            LinkedHashMap<String, ConfigSection> sections = new LinkedHashMap<String, ConfigSection>( mSections );
+            HashMap<String, SectionRange> sectionRanges = new HashMap<String, SectionRange>( mSectionRanges );
+            for( String sectionTitle : next.mRemoved )
+            {
+                sections.remove( sectionTitle );
+                sectionRanges.remove( sectionTitle );
+            }
+            for( String sectionTitle : next.mChanged )
+            {
+                sections.put( sectionTitle, next.mSections.get( sectionTitle ) );
+                sectionRanges.remove( sectionTitle );
+            }
+            return new Snapshot( mFilename, sections, mMappedFile, sectionRanges, false, changed, removed,
+                    mBaseVersion, next.mVersion, mLastModified, mSize );
+        }
+        
+        /**
+         * Writes the snapshot to a temporary file and renames it over the config file. Must be
+         * called with sWriteLock held.
+         * 
+         * @return True if successful.
+         */
+        public boolean write()
+        {
+            final File file = new File( mFilename );
+            final File tempFile = new File( mFilename + ".tmp" );
+            
+            // Ensure parent directories exist before writing file
+            FileUtil.makeDirs( file.getParentFile().getPath() );
+            
+            boolean success = false;
+            Writer fw = null;
+            try
+            {
+                fw = new BufferedWriter( new FileWriter( tempFile ) );
+                
+                // Loop through the sections
+                for( Map.Entry<String, ConfigSection> entry : mSections.entrySet() )
+                {
+                    ConfigSection section = entry.getValue();
+                    SectionRange range = mSectionRanges.get( entry.getKey() );
+                    if( section != null )
+                        section.save( fw );
+                    else if( range != null )
+                        fw.write( readRange( mMappedFile, range.start, range.end ) ); // Unparsed, copy it as is
+                }
+                
+                fw.close();
+                fw = null;
+                
+                // Replace the old file in one step, which also leaves a mapped old file intact
+                success = tempFile.renameTo( file );
+                if( !success )
+                    Log.e( "ConfigFile", "Unable to rename " + tempFile + " to " + mFilename );
+            }
+            catch( IOException ioe )
+            {
+                Log.e( "ConfigFile", "IOException creating file " + mFilename + ", error message: "
+                        + ioe.getMessage() );
+            }
+            finally
+            {
+                if( fw != null )
+                {
+                    try
+                    {
+                        fw.close();
+                    }
+                    catch( IOException ignored )
+                    {
+                    }
+                }
+                if( !success )
+                    tempFile.delete();
+            }
+            
+            synchronized( sCache )
+            {
+                CachedFile cached = sCache.get( mFilename );
+                if( success && mCached && cached != null && cached.sections == mSections )
+                {
+                    // The cache holds this snapshot, record the attributes of the new file
+                    sCache.put( mFilename, new CachedFile( mSections, file.lastModified(), file.length(),
+                            cached.version ) );
+                }
+                else if( !success || !mCached )
+                {
+                    // The file on disk no longer matches what other instances may have cached
+                    sCache.remove( mFilename );
+                }
+            }
+            
+            return success;
+        }
+    }
+    
+    /**
+     * A parsed config file in the process-wide cache.
+     */
+    private static class CachedFile
+    {
+        /** Read-only sections of the file. */
+        public final LinkedHashMap<String, ConfigSection> sections;
+        
+        /** Last modified time of the file when it was read. */
+        public final long lastModified;
+        
+        /** Size of the file when it was read. */
+        public final long size;
+        
+        /** Version of the data, see {@link ConfigFile#sVersions}. */
+        public final int version;
+        
+        public CachedFile( LinkedHashMap<String, ConfigSection> sections, long lastModified, long size,
+                int version )
+        {
+            this.sections = sections;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.version = version;
+        }
+    }
+    
+    /**
+     * Location of a section in the mapped config file.
+     */
+    private static class SectionRange
+    {
+        /** Start of the section title line, or of the file for the sectionless section. */
+        public final int start;
+        
+        /** Start of the line following the section title. */
+        public final int contentStart;
+        
+        /** Start of the next section title line, or the end of the file. */
+        public final int end;
+        
+        public SectionRange( int start, int contentStart, int end )
+        {
+            this.start = start;
+            this.contentStart = contentStart;
+            this.end = end;
+        }
+    }
+    
     /**
      * The ConfigSection class reads all the parameters in the next section of the config file.
      * Saves the name of the next section (or null if end of file or error). Can also be used to add
@@ -298,6 +1247,13 @@ public class ConfigFile
         // Name of the next section, or null if there are no sections left to read in the file:
         private String nextName = null;
         
+        // True if the section is shared with the config file cache or a saved snapshot, and can't
+        // be modified:
+        private boolean shared = false;
+        
+        // True if the section was modified since the config file was read or last saved:
+        private boolean dirty = false;
+        
         /**
          * Constructor: Creates an empty config section
          * 
@@ -314,6 +1270,19 @@ public class ConfigFile
             name = sectionName;
         }
         
+        /**
+         * Constructor: Creates a modifiable copy of a config section
+         * 
+         * @param source The section to copy.
+         */
+        private ConfigSection( ConfigSection source )
+        {
+            // Lines and parameters are never modified once parsed, so they can be shared
+            parameters = new HashMap<String, ConfigParameter>( source.parameters );
+            lines = new LinkedList<ConfigLine>( source.lines );
+            name = source.name;
+        }
+        
         // TODO: Clean this method up a bit?
         /**
          * Constructor: Reads the next section of the config file, and saves it in 'parameters'.
@@ -458,6 +1427,18 @@ public class ConfigFile
             return confParam.value;
         }
 
+        /**
+         * Returns true if putting the specified value would not change anything.
+         */
+        private boolean hasValue( String parameter, String value )
+        {
+            String current = get( parameter );
+            if( TextUtils.isEmpty( value ) )
+                return current == null;
+            else
+                return value.equals( current );
+        }
+
         /**
          * Remove instances of this parameter.
          * @param parameter
@@ -493,14 +1474,22 @@ public class ConfigFile
         
         /**
          * Adds the specified parameter to this config section, updates the value if it already
-         * exists, or removes the parameter.
+         * exists, or removes the parameter. Sections of a config file returned by
+         * {@link ConfigFile#open(String)} can only be modified through {@link ConfigFile#put}.
          * 
          * @param parameter The name of the parameter.
          * @param value The parameter's value, or null to remove.
          */
         public void put( String parameter, String value )
         {
+            if( hasValue( parameter, value ) )
+                return;
+            
+            if( shared )
+                throw new IllegalStateException( "Section " + name + " is shared, use ConfigFile.put() instead" );
+            
             removePreviousInstance(parameter);
+            dirty = true;
 
             if( !TextUtils.isEmpty( value ) )
             {
@@ -518,7 +1507,7 @@ public class ConfigFile
          * 
          * @throws IOException if a writing error occurs.
          */
-        public void save( FileWriter fw ) throws IOException
+        public void save( Writer fw ) throws IOException
         {
             for( ConfigLine line : lines )
             {
@@ -563,7 +1552,7 @@ public class ConfigFile
          * 
          * @throws IOException If a writing error occurs.
          */
-        public void save( FileWriter fw ) throws IOException
+        public void save( Writer fw ) throws IOException
         {
             int x;
             if( lineType == LINE_PARAM )
@@ -95,6 +95,9 @@ public class GlobalPrefs
     /** The subdirectory containing cover art files. */
     public final String coverArtDir;
 
+    /** The subdirectory containing cover art scaled down to the gallery size. */
+    public final String coverArtThumbnailDir;
+
     /** The subdirectory containing unzipped ROM files. */
     public final String unzippedRomsDir;
 
@@ -104,6 +107,9 @@ public class GlobalPrefs
     /** The subdirectory containing crash logs. */
     public final String crashLogDir;
 
+    /** The file the input latency report is written to. */
+    public final String inputLatencyReport;
+
     /** The subdirectory returned from the core's ConfigGetUserDataPath() method. */
     public final String coreUserDataDir;
 
@@ -128,6 +134,18 @@ public class GlobalPrefs
     /** The path of the rom info cache for the gallery. */
     public final String romInfoCache_cfg;
 
+    /** The path of the index of ROM MD5s computed by previous scans. */
+    public final String romFingerprints_dat;
+
+    /** The path of the index of ROMs inside zip files read by previous scans. */
+    public final String romZipIndex_dat;
+
+    /** The path of the index of the ETag and Last-Modified headers of the cover art. */
+    public final String coverArtValidators_dat;
+
+    /** The path of the timings and counters of the last ROM scan. */
+    public final String scanReport_json;
+
     /** The path of the custom controller profiles file. */
     public final String controllerProfiles_cfg;
 
@@ -182,9 +200,15 @@ public class GlobalPrefs
     /** True if we should cache recently played games for faster load times */
     public final boolean cacheRecentlyPlayed;
 
+    /** The size budget of the ROMs extracted from zip files, in bytes. */
+    public final long extractedRomCacheBytes;
+
     /** True if the full ROM rip info should be shown. */
     public final boolean isFullNameShown;
 
+    /** True if the library folders are watched, so that the gallery follows their changes. */
+    public final boolean isRomFolderWatched;
+
     /** Factor applied to the cover art scale */
     public final float coverArtScale;
 
@@ -296,6 +320,12 @@ public class GlobalPrefs
     /** True to use a high priority thread for the core */
     public final boolean useHighPriorityThread;
 
+    /** True to dispatch peripheral inputs on a dedicated thread instead of the UI thread */
+    public final boolean useInputThread;
+
+    /** True to measure how long inputs take to reach the core */
+    public final boolean isInputLatencyTracingEnabled;
+
     /** Current screen orientation */
     public final int screenOrientation;
 
@@ -407,15 +437,21 @@ public class GlobalPrefs
         // Files
         galleryCacheDir = appData.userDataDir + "/GalleryCache";
         coverArtDir = galleryCacheDir + "/CoverArt";
+        coverArtThumbnailDir = galleryCacheDir + "/CoverArtThumbnails";
         unzippedRomsDir = galleryCacheDir + "/UnzippedRoms";
         profilesDir = appData.userDataDir + "/Profiles";
         crashLogDir = appData.userDataDir + "/CrashLogs";
+        inputLatencyReport = appData.userDataDir + "/inputLatency.txt";
         final String coreConfigDir = appData.userDataDir + "/CoreConfig";
         coreUserDataDir = coreConfigDir + "/UserData";
         coreUserCacheDir = coreConfigDir + "/UserCache";
         hiResTextureDir = coreUserDataDir + "/mupen64plus/hires_texture/"; // MUST match what rice assumes natively
         textureCacheDir = coreUserCacheDir + "/mupen64plus/cache";
         romInfoCache_cfg = galleryCacheDir + "/romInfoCache.cfg";
+        romFingerprints_dat = galleryCacheDir + "/romFingerprints.dat";
+        romZipIndex_dat = galleryCacheDir + "/romZipIndex.dat";
+        coverArtValidators_dat = galleryCacheDir + "/coverArtValidators.dat";
+        scanReport_json = galleryCacheDir + "/scanReport.json";
         controllerProfiles_cfg = profilesDir + "/controller.cfg";
         touchscreenProfiles_cfg = profilesDir + "/touchscreen.cfg";
         emulationProfiles_cfg = profilesDir + "/emulation.cfg";
@@ -440,7 +476,9 @@ public class GlobalPrefs
         // Library prefs
         isRecentShown = mPreferences.getBoolean( "showRecentlyPlayed", true );
         cacheRecentlyPlayed = mPreferences.getBoolean( "cacheRecentlyPlayed", true );
+        extractedRomCacheBytes = cacheRecentlyPlayed ? mPreferences.getInt( "extractedRomCacheSize", 512 ) * 1024L * 1024L : 0;
         isFullNameShown = mPreferences.getBoolean( "showFullNames", true );
+        isRomFolderWatched = mPreferences.getBoolean( "watchRomFolder", false );
         coverArtScale = ( mPreferences.getInt( "libraryArtScale", 100 ) ) / 100.0f;
 
         // Touchscreen prefs
@@ -613,6 +651,8 @@ public class GlobalPrefs
         showBuiltInControllerProfiles = mPreferences.getBoolean(ManageControllerProfilesActivity.SHOW_BUILT_IN_PREF_KEY, true);
 
         useHighPriorityThread = mPreferences.getBoolean( "useHighPriorityThread", false );
+        useInputThread = mPreferences.getBoolean( "useInputThread", false );
+        isInputLatencyTracingEnabled = mPreferences.getBoolean( "inputLatencyTracing", false );
 
         supportedGlesVersion = AppData.getOpenGlEsVersion(context);
 
@@ -790,7 +830,7 @@ public class GlobalPrefs
     {
         if(mEmulationProfilesConfig == null)
         {
-            mEmulationProfilesConfig = new ConfigFile( emulationProfiles_cfg );
+            mEmulationProfilesConfig = ConfigFile.open( emulationProfiles_cfg );
         }
 
         return mEmulationProfilesConfig;
@@ -800,7 +840,7 @@ public class GlobalPrefs
     {
         if(mTouchscreenProfilesConfig == null)
         {
-            mTouchscreenProfilesConfig = new ConfigFile( touchscreenProfiles_cfg );
+            mTouchscreenProfilesConfig = ConfigFile.open( touchscreenProfiles_cfg );
         }
 
         return mTouchscreenProfilesConfig;
@@ -810,7 +850,7 @@ public class GlobalPrefs
     {
         if(mControllerProfilesConfig == null)
         {
-            mControllerProfilesConfig = new ConfigFile( controllerProfiles_cfg );
+            mControllerProfilesConfig = ConfigFile.open( controllerProfiles_cfg );
         }
 
         return mControllerProfilesConfig;
@@ -0,0 +1,232 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A folder of the ROM library and how it is scanned. The library can have several roots, e.g.
+ * one on internal storage and one on an SD card, and every root has its own scan depth, zip
+ * policy and exclusion patterns.
+ * <p>
+ * Exclusion patterns use * for any number of characters other than a slash and ? for a single
+ * one. A pattern without a slash is matched against the name of every file and directory, a
+ * pattern with a slash against their path relative to the root. Excluded directories are not
+ * searched at all.
+ */
+public final class LibraryRoot
+{
+    /** How deep subdirectories are searched when they are searched at all. */
+    public static final int DEFAULT_MAX_DEPTH = 10;
+
+    /** The folder, or a single ROM or zip file. */
+    public final String path;
+
+    /** How many levels of subdirectories are searched, zero to only search the folder itself. */
+    public final int maxDepth;
+
+    /** True if zip files are searched for ROMs. */
+    public final boolean searchZips;
+
+    /** Patterns of the files and directories that are skipped. */
+    public final List<String> exclusions;
+
+    private final Pattern[] mNamePatterns;
+    private final Pattern[] mPathPatterns;
+
+    /**
+     * Constructor.
+     *
+     * @param path The folder, or a single ROM or zip file.
+     * @param maxDepth How many levels of subdirectories are searched.
+     * @param searchZips True if zip files are searched for ROMs.
+     * @param exclusions Patterns of the files and directories that are skipped.
+     */
+    public LibraryRoot( String path, int maxDepth, boolean searchZips, List<String> exclusions )
+    {
+        this.path = path;
+        this.maxDepth = Math.max( 0, maxDepth );
+        this.searchZips = searchZips;
+        this.exclusions = Collections.unmodifiableList( new ArrayList<String>( exclusions ) );
+
+        final List<Pattern> namePatterns = new ArrayList<Pattern>();
+        final List<Pattern> pathPatterns = new ArrayList<Pattern>();
+        for( String exclusion : exclusions )
+        {
+            if( exclusion.indexOf( '/' ) < 0 )
+                namePatterns.add( toPattern( exclusion ) );
+            else
+                pathPatterns.add( toPattern( exclusion ) );
+        }
+        mNamePatterns = namePatterns.toArray( new Pattern[namePatterns.size()] );
+        mPathPatterns = pathPatterns.toArray( new Pattern[pathPatterns.size()] );
+    }
+
+    /**
+     * Returns true if a file or directory of this root must be skipped.
+     *
+     * @param filePath The absolute path of the file or directory.
+     */
+    public boolean isExcluded( String filePath )
+    {
+        if( mNamePatterns.length == 0 && mPathPatterns.length == 0 )
+            return false;
+
+        final String name = filePath.substring( filePath.lastIndexOf( '/' ) + 1 );
+        for( Pattern pattern : mNamePatterns )
+        {
+            if( pattern.matcher( name ).matches() )
+                return true;
+        }
+
+        if( mPathPatterns.length > 0 && filePath.startsWith( path + "/" ) )
+        {
+            final String relativePath = filePath.substring( path.length() + 1 );
+            for( Pattern pattern : mPathPatterns )
+            {
+                if( pattern.matcher( relativePath ).matches() )
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a comma separated list of exclusion patterns, as typed by the user.
+     */
+    public static List<String> parseExclusions( String text )
+    {
+        final List<String> exclusions = new ArrayList<String>();
+        if( text == null )
+            return exclusions;
+
+        for( String exclusion : text.split( "," ) )
+        {
+            exclusion = exclusion.trim();
+            if( exclusion.length() > 0 )
+                exclusions.add( exclusion );
+        }
+        return exclusions;
+    }
+
+    /**
+     * Returns the exclusion patterns as a comma separated list.
+     */
+    public String getExclusionsText()
+    {
+        final StringBuilder builder = new StringBuilder();
+        for( String exclusion : exclusions )
+        {
+            if( builder.length() > 0 )
+                builder.append( ", " );
+            builder.append( exclusion );
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Converts roots to a string, so that they can be persisted or passed to a service.
+     */
+    public static String toString( List<LibraryRoot> roots )
+    {
+        final JSONArray array = new JSONArray();
+        try
+        {
+            for( LibraryRoot root : roots )
+            {
+                final JSONObject object = new JSONObject();
+                object.put( "path", root.path );
+                object.put( "maxDepth", root.maxDepth );
+                object.put( "searchZips", root.searchZips );
+                object.put( "exclusions", new JSONArray( root.exclusions ) );
+                array.put( object );
+            }
+        }
+        catch( JSONException e )
+        {
+            Log.w( "LibraryRoot", e );
+        }
+        return array.toString();
+    }
+
+    /**
+     * Reads roots converted with {@link #toString(List)}.
+     *
+     * @return The roots, empty if the string is null or invalid.
+     */
+    public static List<LibraryRoot> fromString( String string )
+    {
+        final List<LibraryRoot> roots = new ArrayList<LibraryRoot>();
+        if( string == null )
+            return roots;
+
+        try
+        {
+            final JSONArray array = new JSONArray( string );
+            for( int i = 0; i < array.length(); i++ )
+            {
+                final JSONObject object = array.getJSONObject( i );
+                final List<String> exclusions = new ArrayList<String>();
+                final JSONArray exclusionArray = object.optJSONArray( "exclusions" );
+                if( exclusionArray != null )
+                {
+                    for( int j = 0; j < exclusionArray.length(); j++ )
+                        exclusions.add( exclusionArray.getString( j ) );
+                }
+                roots.add( new LibraryRoot( object.getString( "path" ), object.optInt( "maxDepth", 0 ),
+                        object.optBoolean( "searchZips", true ), exclusions ) );
+            }
+        }
+        catch( JSONException e )
+        {
+            Log.w( "LibraryRoot", "Invalid library roots " + string, e );
+            roots.clear();
+        }
+        return roots;
+    }
+
+    private static Pattern toPattern( String glob )
+    {
+        final StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for( int i = 0; i < glob.length(); i++ )
+        {
+            final char c = glob.charAt( i );
+            if( c == '*' || c == '?' )
+            {
+                if( i > literalStart )
+                    regex.append( Pattern.quote( glob.substring( literalStart, i ) ) );
+                regex.append( c == '*' ? "[^/]*" : "[^/]" );
+                literalStart = i + 1;
+            }
+        }
+        if( literalStart < glob.length() )
+            regex.append( Pattern.quote( glob.substring( literalStart ) ) );
+        return Pattern.compile( regex.toString(), Pattern.CASE_INSENSITIVE );
+    }
+}
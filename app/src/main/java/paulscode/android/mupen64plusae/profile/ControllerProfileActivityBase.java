@@ -149,7 +149,7 @@ public abstract class ControllerProfileActivityBase extends AppCompatActivity im
         String name = extras.getString( ActivityHelper.Keys.PROFILE_NAME );
         if( TextUtils.isEmpty( name ) )
             throw new Error( "Invalid usage: profile name cannot be null or empty" );
-        mConfigFile = new ConfigFile( mGlobalPrefs.controllerProfiles_cfg );
+        mConfigFile = ConfigFile.open( mGlobalPrefs.controllerProfiles_cfg );
         ConfigSection section = mConfigFile.get( name );
         if( section == null )
             throw new Error( "Invalid usage: profile name not found in config file" );
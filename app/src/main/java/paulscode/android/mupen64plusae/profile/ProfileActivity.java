@@ -152,7 +152,7 @@ public abstract class ProfileActivity extends AppCompatPreferenceActivity implem
         final String configPath = getConfigFilePath();
         
         // Load the config file and working cache
-        mConfigFile = new ConfigFile( configPath );
+        mConfigFile = ConfigFile.open( configPath );
         
         mPrefs = getSharedPreferences( PREFS_NAME, MODE_PRIVATE );
         transcribe( mConfigFile, mPrefs, mProfileName );
@@ -156,7 +156,7 @@ public class TouchscreenProfileActivity extends AppCompatActivity implements OnT
         String name = extras.getString( ActivityHelper.Keys.PROFILE_NAME );
         if( TextUtils.isEmpty( name ) )
             throw new Error( "Invalid usage: profile name cannot be null or empty" );
-        mConfigFile = new ConfigFile( mGlobalPrefs.touchscreenProfiles_cfg );
+        mConfigFile = ConfigFile.open( mGlobalPrefs.touchscreenProfiles_cfg );
         ConfigSection section = mConfigFile.get( name );
         if( section == null )
         {
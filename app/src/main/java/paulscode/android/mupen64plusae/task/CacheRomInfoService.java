@@ -37,45 +37,42 @@ import android.util.Log;
 
 import org.mupen64plusae.v3.alpha.R;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 import paulscode.android.mupen64plusae.ActivityHelper;
 import paulscode.android.mupen64plusae.GalleryActivity;
 import paulscode.android.mupen64plusae.dialog.ProgressDialog;
 import paulscode.android.mupen64plusae.dialog.ProgressDialog.OnCancelListener;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.LibraryRoot;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.RomDatabase;
-import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
-import paulscode.android.mupen64plusae.util.RomHeader;
+import paulscode.android.mupen64plusae.util.RomFingerprintIndex;
+import paulscode.android.mupen64plusae.util.RomPathIndex;
+import paulscode.android.mupen64plusae.util.RomZipIndex;
 
 public class CacheRomInfoService extends Service
 {
-    private String mSearchPath;
+    private List<LibraryRoot> mLibraryRoots;
     private String mDatabasePath;
     private String mConfigPath;
+    private String mFingerprintPath;
+    private String mZipIndexPath;
+    private String mReportPath;
     private String mArtDir;
+    private String mArtValidatorsPath;
     private String mUnzipDir;
-    private boolean mSearchZips;
     private boolean mDownloadArt;
     private boolean mClearGallery;
-    private boolean mSearchSubdirectories;
-    private boolean mbStopped;
+    private volatile boolean mbStopped;
     
     private int mStartId;
     private Looper mServiceLooper;
@@ -86,6 +83,12 @@ public class CacheRomInfoService extends Service
 
     final static int ONGOING_NOTIFICATION_ID = 1;
     
+    /** Minimum time between two updates of the scan summary in the progress dialog. */
+    private final static long SUMMARY_INTERVAL_MS = 500;
+    
+    private ScanStatistics mStatistics;
+    private long mLastSummaryTime;
+    
     public interface CacheRomInfoListener
     {
         //This is called once the ROM scan is finished
@@ -118,14 +121,19 @@ public class CacheRomInfoService extends Service
         @Override
         public void handleMessage(Message msg) {
 
-            File searchPathFile = new File(mSearchPath);
+            mStatistics = new ScanStatistics();
+            mLastSummaryTime = 0;
             
-            if( mSearchPath == null )
-                throw new IllegalArgumentException( "Root path cannot be null" );
+            if( mLibraryRoots == null || mLibraryRoots.isEmpty() )
+                throw new IllegalArgumentException( "Library roots cannot be null or empty" );
             if( TextUtils.isEmpty( mDatabasePath ) )
                 throw new IllegalArgumentException( "ROM database path cannot be null or empty" );
             if( TextUtils.isEmpty( mConfigPath ) )
                 throw new IllegalArgumentException( "Config file path cannot be null or empty" );
+            if( TextUtils.isEmpty( mFingerprintPath ) )
+                throw new IllegalArgumentException( "Fingerprint index path cannot be null or empty" );
+            if( TextUtils.isEmpty( mZipIndexPath ) )
+                throw new IllegalArgumentException( "Zip index path cannot be null or empty" );
             if( TextUtils.isEmpty( mArtDir ) )
                 throw new IllegalArgumentException( "Art directory cannot be null or empty" );
             if( TextUtils.isEmpty( mUnzipDir ) )
@@ -133,13 +141,22 @@ public class CacheRomInfoService extends Service
             
             // Ensure destination directories exist
             FileUtil.makeDirs(mArtDir);
-            FileUtil.makeDirs(mUnzipDir);
             
             // Create .nomedia file to hide cover art from Android Photo Gallery
             // http://android2know.blogspot.com/2013/01/create-nomedia-file.html
             touchFile( mArtDir + "/.nomedia" );
             
-            final List<File> files = getAllFiles( searchPathFile, 0 );
+            long start = System.nanoTime();
+            final List<LibraryWalker.FoundFile> files = new LibraryWalker( mLibraryRoots, new LibraryWalker.Listener()
+            {
+                @Override
+                public boolean isStopped()
+                {
+                    return mbStopped;
+                }
+            } ).walk();
+            mStatistics.addTime( ScanStatistics.Stage.WALK, start );
+            mStatistics.add( ScanStatistics.Counter.FILES_FOUND, files.size() );
             final RomDatabase database = RomDatabase.getInstance();
             if(!database.hasDatabaseFile())
             {
@@ -149,74 +166,61 @@ public class CacheRomInfoService extends Service
             final ConfigFile config = new ConfigFile( mConfigPath );
             if (mClearGallery)
                 config.clear();
+
+            final RomFingerprintIndex fingerprints = new RomFingerprintIndex( mFingerprintPath );
+            final RomZipIndex zipIndex = new RomZipIndex( mZipIndexPath );
+            final RomPathIndex pathIndex = new RomPathIndex( config );
             
             mListener.GetProgressDialog().setMaxProgress( files.size() );
-            for( final File file : files )
+            mListener.GetProgressDialog().setSubtext( "" );
+            mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_computingMD5 );
+
+            final RomScanPipeline pipeline = new RomScanPipeline( database, config, mArtDir, mUnzipDir,
+                    pathIndex, fingerprints, zipIndex, new RomScanPipeline.Listener()
             {
-                mListener.GetProgressDialog().setSubtext( "" );
-                mListener.GetProgressDialog().setText( file.getName() );
-                mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_searching );
-                
-                if( mbStopped ) break;
-                RomHeader header = new RomHeader( file );
-                if( header.isValid )
+                @Override
+                public boolean isStopped()
                 {
-                    cacheFile( file, database, config, null );
+                    return mbStopped;
                 }
-                else if( header.isZip && mSearchZips && !ConfigHasZip(config, file.getPath()))
+
+                @Override
+                public void onFileProcessed( File file )
                 {
-                    Log.i( "CacheRomInfoService", "Found zip file " + file.getName() );
-                    try
-                    {
-                        ZipFile zipFile = new ZipFile( file );
-                        Enumeration<? extends ZipEntry> entries = zipFile.entries();
-                        while( entries.hasMoreElements() )
-                        {
-                            try
-                            {
-                                ZipEntry zipEntry = entries.nextElement();
-                                mListener.GetProgressDialog().setSubtext( new File(zipEntry.getName()).getName() );
-                                mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_searchingZip );
-
-                                if( mbStopped ) break;
-
-                                InputStream zipStream = zipFile.getInputStream( zipEntry );
-                                mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_extractingZip );
-                                File extractedFile = FileUtil.extractRomFile( new File( mUnzipDir ), zipEntry, zipStream );
-                                
-                                if( mbStopped ) break;
-                                if( extractedFile != null)
-                                {
-                                    RomHeader extractedHeader = new RomHeader( extractedFile );
-                                    if(extractedHeader.isValid)
-                                    {
-                                        cacheFile( extractedFile, database, config, file );
-                                    }
-                 
-                                    extractedFile.delete();
-                                }
-
-                                zipStream.close();
-                            }
-                            catch( IOException|IllegalArgumentException e  )
-                            {
-                                Log.w( "CacheRomInfoService", e );
-                            }
-                        }
-                        zipFile.close();
-                    }
-                    catch( IOException|ArrayIndexOutOfBoundsException e )
+                    mListener.GetProgressDialog().setText( file.getName() );
+                    mListener.GetProgressDialog().incrementProgress( 1 );
+
+                    if( isSummaryDue() )
                     {
-                        Log.w( "CacheRomInfoService", e );
+                        mListener.GetProgressDialog().setSubtext( getString( R.string.cacheRomInfo_scanSummary,
+                                mStatistics.get( ScanStatistics.Counter.FILES_PROCESSED ),
+                                mStatistics.getFilesPerSecond(),
+                                mStatistics.getBytesHashedPerSecond() / ( 1024 * 1024 ) ) );
                     }
                 }
-                mListener.GetProgressDialog().incrementProgress( 1 );
-            }
+            }, mStatistics );
+            pipeline.run( files );
+            fingerprints.save();
+            zipIndex.save();
+
+            mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_refreshingUI );
+
+            start = System.nanoTime();
+            CleanupMissingFiles(config, pathIndex);
+            mStatistics.addTime( ScanStatistics.Stage.CLEANUP, start );
 
-            CleanupMissingFiles(config);
+            start = System.nanoTime();
             downloadCoverArt(database, config);
+            mStatistics.addTime( ScanStatistics.Stage.ART, start );
 
+            start = System.nanoTime();
             config.save();
+            mStatistics.addTime( ScanStatistics.Stage.SAVE, start );
+
+            mStatistics.finish();
+            Log.i( "CacheRomInfoService", "Scan statistics: " + mStatistics );
+            if( !TextUtils.isEmpty( mReportPath ) )
+                mStatistics.writeReport( new File( mReportPath ), mbStopped );
             
             if (mListener != null)
             {
@@ -258,15 +262,17 @@ public class CacheRomInfoService extends Service
         if(intent != null)
         {
             Bundle extras = intent.getExtras();
-            mSearchPath = extras.getString( ActivityHelper.Keys.SEARCH_PATH );
+            mLibraryRoots = LibraryRoot.fromString( extras.getString( ActivityHelper.Keys.LIBRARY_ROOTS ) );
             mDatabasePath = extras.getString( ActivityHelper.Keys.DATABASE_PATH );
             mConfigPath = extras.getString( ActivityHelper.Keys.CONFIG_PATH );
+            mFingerprintPath = extras.getString( ActivityHelper.Keys.FINGERPRINT_PATH );
+            mZipIndexPath = extras.getString( ActivityHelper.Keys.ZIP_INDEX_PATH );
+            mReportPath = extras.getString( ActivityHelper.Keys.REPORT_PATH );
             mArtDir = extras.getString( ActivityHelper.Keys.ART_DIR );
+            mArtValidatorsPath = extras.getString( ActivityHelper.Keys.ART_VALIDATORS_PATH );
             mUnzipDir = extras.getString( ActivityHelper.Keys.UNZIP_DIR );
-            mSearchZips = extras.getBoolean( ActivityHelper.Keys.SEARCH_ZIPS );
             mDownloadArt = extras.getBoolean( ActivityHelper.Keys.DOWNLOAD_ART );
             mClearGallery = extras.getBoolean( ActivityHelper.Keys.CLEAR_GALLERY );
-            mSearchSubdirectories = extras.getBoolean( ActivityHelper.Keys.SEARCH_SUBDIR );
         }
 
         mbStopped = false;
@@ -276,71 +282,6 @@ public class CacheRomInfoService extends Service
         return START_STICKY;
     }
 
-    /**
-     * Get all files in a directory and subdirectories
-     * @param searchPath Path to start search on
-     * @param count How many levels deep we currently are
-     * @return List of files
-     */
-    private List<File> getAllFiles( File searchPath, int count )
-    {
-        List<File> result = new ArrayList<File>();
-        if( searchPath.isDirectory())
-        {
-            File[] allFiles = searchPath.listFiles();
-            if(allFiles != null)
-            {
-                for( File file : allFiles )
-                {
-                    if( mbStopped ) break;
-
-                    //Search subdirectories if option is enabled and we less than 10 levels deep
-                    if(mSearchSubdirectories && count < 10)
-                    {
-                        result.addAll( getAllFiles( file, ++count ) );
-                    }
-                    else if(!file.isDirectory())
-                    {
-                        result.add(file);
-                    }
-
-                }
-            }
-        }
-        else
-        {
-            result.add( searchPath );
-        }
-        return result;
-    }
-    
-    private void cacheFile( File file, RomDatabase database, ConfigFile config, File zipFileLocation )
-    {
-        if( mbStopped ) return;
-        mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_computingMD5 );
-        String md5 = ComputeMd5Task.computeMd5( file );
-        RomHeader header = new RomHeader(file);
-        
-        if( mbStopped ) return;
-        mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_searchingDB );
-        RomDetail detail = database.lookupByMd5WithFallback( md5, file, header.crc );
-        String artPath = mArtDir + "/" + detail.artName;
-        config.put( md5, "goodName", detail.goodName );
-        if (detail.baseName != null && detail.baseName.length() != 0)
-            config.put( md5, "baseName", detail.baseName );
-        config.put( md5, "romPath", file.getAbsolutePath() );
-        config.put( md5, "zipPath", zipFileLocation == null ? "":zipFileLocation.getAbsolutePath() );
-        config.put( md5, "artPath", artPath );
-        config.put( md5, "crc", header.crc );
-        config.put( md5, "headerName", header.name );
-
-        String countryCodeString = Byte.toString(header.countryCode.getValue());
-        config.put( md5, "countryCode",  countryCodeString);
-        config.put( md5, "extracted", "false" );
-
-        mListener.GetProgressDialog().setMessage( R.string.cacheRomInfo_refreshingUI );
-    }
-    
     private static Throwable touchFile( String destPath )
     {
         try
@@ -364,78 +305,6 @@ public class CacheRomInfoService extends Service
         return null;
     }
     
-    private Throwable downloadFile( String sourceUrl, String destPath )
-    {
-        File destFile = new File(destPath);
-        boolean fileCreationSuccess = true;
-        
-        Throwable returnThrowable = null;
-
-        // Be sure destination directory exists
-        FileUtil.makeDirs(destFile.getParentFile().getPath());
-        
-        // Download file
-        InputStream inStream = null;
-        OutputStream outStream = null;
-        try
-        {
-            // Open the streams (throws exceptions)
-            URL url = new URL( sourceUrl );
-            inStream = url.openStream();
-            outStream = new FileOutputStream( destPath );
-
-            // Buffer the streams
-            inStream = new BufferedInputStream( inStream );
-            outStream = new BufferedOutputStream( outStream );
-            
-            // Read/write the streams (throws exceptions)
-            byte[] buffer = new byte[1024];
-            int n;
-            while( ( n = inStream.read( buffer ) ) >= 0 && !mbStopped)
-            {
-                outStream.write( buffer, 0, n );
-            }
-        }
-        catch( Throwable e )
-        {
-            Log.w( "CacheRomInfoService", e );
-            fileCreationSuccess = false;
-            
-            returnThrowable = e;
-        }
-        finally
-        {
-            // Flush output stream and guarantee no memory leaks
-            if( outStream != null )
-                try
-                {
-                    outStream.close();
-                }
-                catch( IOException e )
-                {
-                    Log.w( "CacheRomInfoService", e );
-                }
-            if( inStream != null )
-                try
-                {
-                    inStream.close();
-                }
-                catch( IOException e )
-                {
-                    Log.w( "CacheRomInfoService", e );
-                }
-        }
-        
-        if (!fileCreationSuccess && !destFile.isDirectory())
-        {
-            // Delete any remnants if there was an exception. We don't want a
-            // corrupted graphic
-            destFile.delete();
-        }
-        
-        return returnThrowable;
-    }
-    
     @Override
     public void onDestroy()
     {
@@ -477,118 +346,121 @@ public class CacheRomInfoService extends Service
     }
 
     /**
-     * Return true if the config file already contains the given zip file, this is because
-     * exctracting zip files takes a long time
-     * @param zipFile Zip file to search config file for
-     * @return true if zip file is present
+     * Cleanup any missing files from the config file. Only the ROM files and zip files are
+     * checked, through the path index, and each of their directories is listed once. The files
+     * of roots that are not available, e.g. on an SD card that is not mounted, are kept.
+     * @param theConfigFile Config file to clean up
+     * @param pathIndex Index of the files in the config file
      */
-    private boolean ConfigHasZip(ConfigFile theConfigFile, String zipFile)
+    private void CleanupMissingFiles(ConfigFile theConfigFile, RomPathIndex pathIndex)
     {
-        Set<String> keys = theConfigFile.keySet();
-        boolean found = false;
-
-        Iterator iter = keys.iterator();
-        while (iter.hasNext() && !found) {
-            String key = (String) iter.next();
-            String foundZipPath = theConfigFile.get(key, "zipPath");
-            found = foundZipPath != null && foundZipPath.equals(zipFile);
+        List<String> unavailableRoots = new ArrayList<String>();
+        for (LibraryRoot root : mLibraryRoots)
+        {
+            if (!new File(root.path).exists())
+                unavailableRoots.add(root.path + "/");
         }
-        return found;
-    }
 
-    /**
-     * Cleanup any missing files from the config file
-     * @param theConfigFile
-     */
-    private void CleanupMissingFiles(ConfigFile theConfigFile)
-    {
-        Set<String> keys = theConfigFile.keySet();
-
-        Iterator iter = keys.iterator();
-        while (iter.hasNext()) {
-            String key = (String) iter.next();
-            String foundZipPath = theConfigFile.get(key, "zipPath");
-            String foundRomPath = theConfigFile.get(key, "romPath");
+        for (String missingPath : RomPathIndex.findMissing(pathIndex.getPaths()))
+        {
+            if (isUnderAny(missingPath, unavailableRoots))
+                continue;
 
-            //Check if this is a zip file first
-            if(!TextUtils.isEmpty(foundZipPath))
+            for (String md5 : pathIndex.getMd5s(missingPath))
             {
-                File zipFile = new File(foundZipPath);
+                String foundZipPath = theConfigFile.get(md5, "zipPath");
+                String foundRomPath = theConfigFile.get(md5, "romPath");
 
-                //Zip file doesn't exist, check if the ROM path exists
-                if(!zipFile.exists())
+                //Cleanup the extracted ROM file since this is a zip file
+                if(!TextUtils.isEmpty(foundZipPath) && !TextUtils.isEmpty(foundRomPath))
                 {
-                    if(!TextUtils.isEmpty(foundRomPath))
-                    {
-                        File romFile = new File(foundRomPath);
-
-                        //Cleanup the ROM file since this is a zip file
-                        if(!romFile.exists())
-                        {
-                            Log.w( "CacheRomInfoService", "Removing md5=" + key );
-                            if(!romFile.isDirectory()) romFile.delete();
-                        }
-                    }
-
-                    theConfigFile.remove(key);
-                    keys = theConfigFile.keySet();
-                    iter = keys.iterator();
+                    File romFile = new File(foundRomPath);
+                    if(romFile.exists() && !romFile.isDirectory()) romFile.delete();
                 }
-            }
-            //This was not a zip file, just check the ROM path
-            else if(!TextUtils.isEmpty(foundRomPath))
-            {
-                File romFile = new File(foundRomPath);
 
-                //Cleanup the ROM file since this is a zip file
-                if(!romFile.exists())
-                {
-                    Log.w( "CacheRomInfoService", "Removing md5=" + key );
-
-                    theConfigFile.remove(key);
-                    keys = theConfigFile.keySet();
-                    iter = keys.iterator();
-                }
+                Log.w( "CacheRomInfoService", "Removing md5=" + md5 );
+                theConfigFile.remove(md5);
+                pathIndex.remove(md5);
             }
         }
     }
 
+    private static boolean isUnderAny(String path, List<String> dirs)
+    {
+        for (String dir : dirs)
+        {
+            if (path.startsWith(dir))
+                return true;
+        }
+        return false;
+    }
+
     private void downloadCoverArt(RomDatabase database, ConfigFile theConfigFile)
     {
         if( mDownloadArt )
         {
-            Set<String> keys = theConfigFile.keySet();
-
-            mListener.GetProgressDialog().setMaxProgress( keys.size() );
-            mListener.GetProgressDialog().setSubtext( getString(R.string.cacheRomInfo_downloadingArt) );
-
-            Iterator iter = keys.iterator();
-            while (iter.hasNext()) {
-                String key = (String) iter.next();
+            // The art path was stored by the scan, so the ROMs don't need to be looked up in the
+            // database again. Several ROMs can share the same art, only fetch it once.
+            Set<File> artFiles = new LinkedHashSet<File>();
+            for (String key : theConfigFile.keySet()) {
                 String artPath = theConfigFile.get(key, "artPath");
                 String romFile = theConfigFile.get(key, "romPath");
                 String crc = theConfigFile.get(key, "crc");
 
                 if(!TextUtils.isEmpty(artPath) && !TextUtils.isEmpty(romFile) && !TextUtils.isEmpty(crc))
-                {
-                    RomDetail detail = database.lookupByMd5WithFallback( key, new File(romFile), crc );
+                    artFiles.add(new File(artPath));
+            }
+
+            mListener.GetProgressDialog().setMaxProgress( artFiles.size() );
+            mListener.GetProgressDialog().setSubtext( getString(R.string.cacheRomInfo_downloadingArt) );
 
-                    mListener.GetProgressDialog().setText( new File(romFile).getName() );
+            CoverArtDownloader downloader = new CoverArtDownloader( database.getArtBaseUrl(), mArtValidatorsPath,
+                    CoverArtDownloader.DEFAULT_MAX_CONNECTIONS, new CoverArtDownloader.Listener()
+            {
+                @Override
+                public boolean isStopped()
+                {
+                    return mbStopped;
+                }
 
-                    //Only download art if it's not already present
-                    if(!(new File(artPath)).exists())
+                @Override
+                public void onArtProcessed( File artFile, CoverArtDownloader.Result result )
+                {
+                    Log.i( "CacheRomInfoService", "Art download " + result + ": " + artFile.getPath() );
+                    if( result == CoverArtDownloader.Result.DOWNLOADED )
+                        mStatistics.add( ScanStatistics.Counter.ART_DOWNLOADED, 1 );
+                    else if( result == CoverArtDownloader.Result.NOT_MODIFIED )
+                        mStatistics.add( ScanStatistics.Counter.ART_NOT_MODIFIED, 1 );
+                    else if( result == CoverArtDownloader.Result.FAILED )
+                        mStatistics.add( ScanStatistics.Counter.ART_FAILED, 1 );
+
+                    mListener.GetProgressDialog().setText( artFile.getName() );
+                    mListener.GetProgressDialog().incrementProgress( 1 );
+
+                    if( isSummaryDue() )
                     {
-                        Log.i( "CacheRomInfoService", "Start art download: " +  artPath);
-                        downloadFile( detail.artUrl, artPath );
-
-                        Log.i( "CacheRomInfoService", "End art download: " +  artPath);
+                        mListener.GetProgressDialog().setSubtext( getString( R.string.cacheRomInfo_artSummary,
+                                mStatistics.get( ScanStatistics.Counter.ART_DOWNLOADED ),
+                                mStatistics.get( ScanStatistics.Counter.ART_NOT_MODIFIED ),
+                                mStatistics.get( ScanStatistics.Counter.ART_FAILED ) ) );
                     }
                 }
+            } );
+            downloader.downloadAll( artFiles );
+        }
+    }
 
-                mListener.GetProgressDialog().incrementProgress(1);
+    /**
+     * Returns true if the scan summary in the progress dialog should be updated, so that it isn't
+     * updated for every file. Called from the worker threads.
+     */
+    private synchronized boolean isSummaryDue()
+    {
+        final long now = System.currentTimeMillis();
+        if( now - mLastSummaryTime < SUMMARY_INTERVAL_MS )
+            return false;
 
-                if( mbStopped ) return;
-            }
-        }
+        mLastSummaryTime = now;
+        return true;
     }
 }
@@ -20,17 +20,35 @@
  */
 package paulscode.android.mupen64plusae.task;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.security.MessageDigest;
 import java.util.Locale;
 
 import android.os.AsyncTask;
 
+import paulscode.android.mupen64plusae.util.RomByteOrder;
+
 public class ComputeMd5Task extends AsyncTask<Void, Void, String>
 {
+    /** Size of the chunks ROM images are read and byte swapped in. */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    
+    /** Direct buffer reused by every hash computed on the same thread. */
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>()
+    {
+        @Override
+        protected ByteBuffer initialValue()
+        {
+            return ByteBuffer.allocateDirect( CHUNK_SIZE );
+        }
+    };
+    
     public interface ComputeMd5Listener
     {
         public void onComputeMd5Finished( File file, String md5 );
@@ -66,51 +84,11 @@ public class ComputeMd5Task extends AsyncTask<Void, Void, String>
     
     public static String computeMd5( File file )
     {
-        // From http://stackoverflow.com/a/16938703
-        InputStream inputStream = null;
+        FileInputStream inputStream = null;
         try
         {
-            inputStream = new BufferedInputStream( new FileInputStream( file ) );
-            inputStream.mark( 1 );
-            int firstByte = inputStream.read();
-            inputStream.reset();
-            
-            MessageDigest digester = MessageDigest.getInstance( "MD5" );
-            byte[] bytes = new byte[8192];
-            int byteCount;
-            while( ( byteCount = inputStream.read( bytes ) ) > 0 )
-            {
-                // TODO: Test multiple bytes
-                switch( firstByte )
-                {
-                    case 0x37:
-                        // Byteswap if .v64 image
-                        for( int i = 0; i < byteCount; i += 2 )
-                        {
-                            byte temp = bytes[i];
-                            bytes[i] = bytes[i + 1];
-                            bytes[i + 1] = temp;
-                        }
-                        break;
-                    case 0x40:
-                        // Wordswap if .n64 image
-                        for( int i = 0; i < byteCount; i += 4 )
-                        {
-                            byte temp = bytes[i];
-                            bytes[i] = bytes[i + 3];
-                            bytes[i + 3] = temp;
-                            temp = bytes[i + 1];
-                            bytes[i + 1] = bytes[i + 2];
-                            bytes[i + 2] = temp;
-                        }
-                        break;
-                    default:
-                        // No swap otherwise
-                        break;
-                }
-                digester.update( bytes, 0, byteCount );
-            }
-            return convertHashToString( digester.digest() );
+            inputStream = new FileInputStream( file );
+            return computeMd5( inputStream.getChannel() );
         }
         catch( Exception e )
         {
@@ -131,6 +109,72 @@ public class ComputeMd5Task extends AsyncTask<Void, Void, String>
         }
     }
     
+    /**
+     * Computes the MD5 of a ROM image read from a stream, normalising .v64 and .n64 images to the
+     * .z64 byte order on the fly. This lets ROMs inside zip files be hashed in a single pass,
+     * without extracting them first. The stream is not closed.
+     * 
+     * @param stream Stream positioned at the start of the ROM image.
+     * @return The MD5 as an upper case hex string, or null if the stream could not be read.
+     */
+    public static String computeMd5( InputStream stream )
+    {
+        return computeMd5( Channels.newChannel( stream ) );
+    }
+    
+    /**
+     * Computes the MD5 of a ROM image read from a channel, normalising .v64 and .n64 images to the
+     * .z64 byte order on the fly. The data is read in large chunks into a direct buffer that is
+     * reused by every hash computed on the same thread. The channel is not closed.
+     * 
+     * @param channel Channel positioned at the start of the ROM image.
+     * @return The MD5 as an upper case hex string, or null if the channel could not be read.
+     */
+    public static String computeMd5( ReadableByteChannel channel )
+    {
+        try
+        {
+            MessageDigest digester = MessageDigest.getInstance( "MD5" );
+            ByteBuffer buffer = sBuffer.get();
+            int byteOrder = -1;
+            boolean endOfStream = false;
+            while( !endOfStream )
+            {
+                buffer.clear();
+                endOfStream = fill( channel, buffer );
+                buffer.flip();
+                if( !buffer.hasRemaining() )
+                    break;
+                
+                if( byteOrder == -1 )
+                    byteOrder = RomByteOrder.detect( buffer.get( 0 ) );
+                RomByteOrder.normalize( buffer, byteOrder );
+                digester.update( buffer );
+            }
+            return convertHashToString( digester.digest() );
+        }
+        catch( Exception e )
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Fills the buffer as far as the channel allows. Inflater streams return short reads, which
+     * would otherwise split the byte swapping across word boundaries.
+     * 
+     * @return True if the end of the channel was reached.
+     */
+    private static boolean fill( ReadableByteChannel channel, ByteBuffer buffer ) throws IOException
+    {
+        while( buffer.hasRemaining() )
+        {
+            if( channel.read( buffer ) < 0 )
+                return true;
+        }
+        return false;
+    }
+    
     private static String convertHashToString( byte[] md5Bytes )
     {
         // From http://stackoverflow.com/a/16938703
@@ -0,0 +1,492 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Downloads cover art over a bounded number of parallel connections. The art is stored under the
+ * same file name it has on the server.
+ * <ul>
+ * <li>Art is first written to a partial file next to the art, and only replaces the art once it
+ * is complete. A partial file left behind by a cancelled or failed download is resumed with a
+ * range request, as long as the art on the server didn't change meanwhile.</li>
+ * <li>The ETag and Last-Modified headers of every download are kept in an index outside of the
+ * art directory, and art that already exists is only downloaded again if the server reports that
+ * it changed.</li>
+ * </ul>
+ */
+public class CoverArtDownloader
+{
+    public interface Listener
+    {
+        //This is called by every worker to find out if the download has been cancelled
+        boolean isStopped();
+
+        //This is called by the worker threads once an art file has been handled
+        void onArtProcessed( File artFile, Result result );
+    }
+
+    /**
+     * Outcome of a single art download.
+     */
+    public enum Result
+    {
+        /** The art was downloaded, it was missing or changed on the server. */
+        DOWNLOADED,
+
+        /** The art already exists and didn't change on the server. */
+        NOT_MODIFIED,
+
+        /** The art could not be downloaded. */
+        FAILED,
+
+        /** The download was cancelled, the partial file is kept to resume it later. */
+        STOPPED
+    }
+
+    /** Default number of parallel connections. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    /** Suffix of the file the art is downloaded to before it is complete. */
+    static final String PARTIAL_SUFFIX = ".part";
+
+    private static final String TAG = "CoverArtDownloader";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 20000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final String mBaseUrl;
+    private final ValidatorsIndex mValidators;
+    private final int mMaxConnections;
+    private final Listener mListener;
+
+    /**
+     * Constructor. Reads the validators index, so it shouldn't be called on the UI thread.
+     *
+     * @param baseUrl URL of the directory holding the art on the server, ending with a slash.
+     * @param validatorsPath Path of the index of the ETag and Last-Modified headers of the art.
+     * @param maxConnections Maximum number of downloads running at the same time.
+     * @param listener Listener that receives cancellation requests and progress.
+     */
+    public CoverArtDownloader( String baseUrl, String validatorsPath, int maxConnections, Listener listener )
+    {
+        mBaseUrl = baseUrl;
+        mValidators = new ValidatorsIndex( validatorsPath );
+        mMaxConnections = maxConnections;
+        mListener = listener;
+    }
+
+    /**
+     * Downloads the art files and blocks until they are all handled or the download is cancelled.
+     *
+     * @param artFiles Where to store the art, the file names are looked up on the server.
+     */
+    public void downloadAll( Collection<File> artFiles )
+    {
+        final ConcurrentLinkedQueue<File> queue = new ConcurrentLinkedQueue<File>( artFiles );
+        final int numThreads = Math.max( 1, Math.min( mMaxConnections, artFiles.size() ) );
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for( int i = 0; i < numThreads; i++ )
+        {
+            threads.add( new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+
+                    File artFile;
+                    while( !mListener.isStopped() && ( artFile = queue.poll() ) != null )
+                        mListener.onArtProcessed( artFile, fetch( artFile ) );
+                }
+            }, "CoverArtDownload" + i ) );
+        }
+
+        for( Thread thread : threads )
+            thread.start();
+
+        for( Thread thread : threads )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch( InterruptedException e )
+            {
+                Log.w( TAG, e );
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        mValidators.save();
+    }
+
+    /**
+     * Downloads a single art file on the calling thread.
+     *
+     * @param artFile Where to store the art, the file name is looked up on the server.
+     *
+     * @return The outcome of the download.
+     */
+    public Result download( File artFile )
+    {
+        final Result result = fetch( artFile );
+        mValidators.save();
+        return result;
+    }
+
+    /**
+     * Downloads a single art file, the validators index is only updated in memory.
+     */
+    private Result fetch( File artFile )
+    {
+        final File partFile = new File( artFile.getPath() + PARTIAL_SUFFIX );
+        final Validators validators = mValidators.get( artFile );
+        final String sourceUrl = mBaseUrl + artFile.getName();
+
+        InputStream inStream = null;
+        try
+        {
+            // Be sure destination directory exists
+            final File parent = artFile.getParentFile();
+            if( parent != null && !parent.exists() )
+                parent.mkdirs();
+
+            final HttpURLConnection connection = (HttpURLConnection) new URL( sourceUrl ).openConnection();
+            connection.setConnectTimeout( CONNECT_TIMEOUT_MS );
+            connection.setReadTimeout( READ_TIMEOUT_MS );
+
+            long offset = 0;
+            final String ifRange = validators == null ? null : validators.getIfRange();
+            if( partFile.length() > 0 && ifRange != null )
+            {
+                // Resume the partial download, the server sends everything if the art changed
+                offset = partFile.length();
+                connection.setRequestProperty( "Range", "bytes=" + offset + "-" );
+                connection.setRequestProperty( "If-Range", ifRange );
+            }
+            else if( artFile.exists() )
+            {
+                // Only download the art again if it changed
+                if( validators != null && validators.etag != null )
+                    connection.setRequestProperty( "If-None-Match", validators.etag );
+                if( validators != null && validators.lastModified != null )
+                    connection.setRequestProperty( "If-Modified-Since", validators.lastModified );
+                else
+                    connection.setIfModifiedSince( artFile.lastModified() );
+            }
+
+            final int status = connection.getResponseCode();
+            if( status == HttpURLConnection.HTTP_NOT_MODIFIED )
+                return Result.NOT_MODIFIED;
+
+            final boolean append;
+            if( status == HttpURLConnection.HTTP_PARTIAL && offset > 0 && getRangeStart( connection ) == offset )
+            {
+                append = true;
+            }
+            else if( status == HttpURLConnection.HTTP_OK )
+            {
+                // A new download, remember what it is so that it can be resumed or revalidated
+                append = false;
+                offset = 0;
+                mValidators.put( artFile, new Validators( connection.getHeaderField( "ETag" ),
+                        connection.getHeaderField( "Last-Modified" ) ) );
+            }
+            else
+            {
+                Log.w( TAG, "Unable to download " + sourceUrl + ": HTTP " + status );
+                closeQuietly( connection.getErrorStream() );
+                partFile.delete();
+                return Result.FAILED;
+            }
+
+            final int contentLength = connection.getContentLength();
+            final long expectedLength = contentLength < 0 ? -1 : offset + contentLength;
+
+            inStream = connection.getInputStream();
+            final OutputStream outStream = new FileOutputStream( partFile, append );
+            try
+            {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while( ( n = inStream.read( buffer ) ) >= 0 )
+                {
+                    if( mListener.isStopped() )
+                        return Result.STOPPED;
+
+                    outStream.write( buffer, 0, n );
+                }
+            }
+            finally
+            {
+                outStream.close();
+            }
+
+            if( expectedLength >= 0 && partFile.length() != expectedLength )
+            {
+                // Keep a short file to resume it next time, but never a corrupted one
+                Log.w( TAG, "Incomplete download " + sourceUrl + ": " + partFile.length() + " of " + expectedLength );
+                if( partFile.length() > expectedLength )
+                    partFile.delete();
+                return Result.FAILED;
+            }
+
+            if( !partFile.renameTo( artFile ) )
+            {
+                artFile.delete();
+                if( !partFile.renameTo( artFile ) )
+                {
+                    Log.w( TAG, "Unable to replace " + artFile.getPath() );
+                    return Result.FAILED;
+                }
+            }
+            return Result.DOWNLOADED;
+        }
+        catch( IOException e )
+        {
+            // The partial file is kept so that the download can be resumed
+            Log.w( TAG, "Unable to download " + sourceUrl, e );
+            return Result.FAILED;
+        }
+        finally
+        {
+            // The connection is not disconnected so that the next download can reuse it
+            closeQuietly( inStream );
+        }
+    }
+
+    /**
+     * Returns the first byte of the body of a partial response, or -1 if it is unknown.
+     */
+    private static long getRangeStart( HttpURLConnection connection )
+    {
+        // Content-Range: bytes <start>-<end>/<total>
+        final String contentRange = connection.getHeaderField( "Content-Range" );
+        if( contentRange == null || !contentRange.startsWith( "bytes " ) )
+            return -1;
+
+        final int dash = contentRange.indexOf( '-' );
+        if( dash < 0 )
+            return -1;
+
+        try
+        {
+            return Long.parseLong( contentRange.substring( "bytes ".length(), dash ).trim() );
+        }
+        catch( NumberFormatException e )
+        {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly( InputStream stream )
+    {
+        if( stream == null )
+            return;
+
+        try
+        {
+            stream.close();
+        }
+        catch( IOException e )
+        {
+            Log.w( TAG, e );
+        }
+    }
+
+    /**
+     * The headers used to find out whether the art changed on the server.
+     */
+    private static class Validators
+    {
+        public final String etag;
+        public final String lastModified;
+
+        public Validators( String etag, String lastModified )
+        {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the value of the If-Range header, or null if the art can't be safely resumed.
+         */
+        public String getIfRange()
+        {
+            // Weak ETags can't be used for range requests
+            if( etag != null && !etag.startsWith( "W/" ) )
+                return etag;
+            return lastModified;
+        }
+
+        private static String emptyToNull( String value )
+        {
+            return value == null || value.length() == 0 ? null : value;
+        }
+    }
+
+    /**
+     * The validators of every art file, kept in a single text file with one tab-separated line of
+     * path, ETag and Last-Modified per art file. Only what changed is written back, on top of what
+     * is on disk, so that two downloaders running at the same time don't lose each other's entries.
+     */
+    private static class ValidatorsIndex
+    {
+        /** Serializes the read-modify-write of the index file between downloaders. */
+        private static final Object sFileLock = new Object();
+
+        private final String mFilename;
+        private final Map<String, Validators> mValidators = new HashMap<String, Validators>();
+        private final Map<String, Validators> mChanged = new HashMap<String, Validators>();
+
+        public ValidatorsIndex( String filename )
+        {
+            mFilename = filename;
+            synchronized( sFileLock )
+            {
+                read( mValidators );
+            }
+        }
+
+        public synchronized Validators get( File artFile )
+        {
+            return mValidators.get( artFile.getAbsolutePath() );
+        }
+
+        public synchronized void put( File artFile, Validators validators )
+        {
+            mValidators.put( artFile.getAbsolutePath(), validators );
+            mChanged.put( artFile.getAbsolutePath(), validators );
+        }
+
+        /**
+         * Writes the changed validators back to the index file.
+         */
+        public synchronized void save()
+        {
+            if( mChanged.isEmpty() )
+                return;
+
+            synchronized( sFileLock )
+            {
+                final Map<String, Validators> validators = new HashMap<String, Validators>();
+                read( validators );
+                validators.putAll( mChanged );
+
+                final File indexFile = new File( mFilename );
+                final File tempFile = new File( mFilename + ".tmp" );
+                try
+                {
+                    final File parent = indexFile.getParentFile();
+                    if( parent != null && !parent.exists() )
+                        parent.mkdirs();
+
+                    Writer writer = new FileWriter( tempFile );
+                    try
+                    {
+                        for( Map.Entry<String, Validators> entry : validators.entrySet() )
+                        {
+                            writer.write( entry.getKey() + "\t" + nullToEmpty( entry.getValue().etag ) + "\t"
+                                    + nullToEmpty( entry.getValue().lastModified ) + "\n" );
+                        }
+                    }
+                    finally
+                    {
+                        writer.close();
+                    }
+
+                    if( !tempFile.renameTo( indexFile ) )
+                    {
+                        indexFile.delete();
+                        if( !tempFile.renameTo( indexFile ) )
+                        {
+                            Log.w( TAG, "Unable to rename " + tempFile + " to " + indexFile );
+                            return;
+                        }
+                    }
+                    mChanged.clear();
+                }
+                catch( IOException e )
+                {
+                    Log.w( TAG, "Unable to write " + mFilename, e );
+                }
+            }
+        }
+
+        private void read( Map<String, Validators> validators )
+        {
+            final File indexFile = new File( mFilename );
+            if( !indexFile.exists() )
+                return;
+
+            try
+            {
+                BufferedReader reader = new BufferedReader( new FileReader( indexFile ) );
+                try
+                {
+                    String line;
+                    while( ( line = reader.readLine() ) != null )
+                    {
+                        final String[] fields = line.split( "\t", -1 );
+                        if( fields.length == 3 )
+                        {
+                            validators.put( fields[0], new Validators( Validators.emptyToNull( fields[1] ),
+                                    Validators.emptyToNull( fields[2] ) ) );
+                        }
+                    }
+                }
+                finally
+                {
+                    reader.close();
+                }
+            }
+            catch( IOException e )
+            {
+                Log.w( TAG, "Unable to read " + mFilename, e );
+            }
+        }
+
+        private static String nullToEmpty( String value )
+        {
+            return value == null ? "" : value;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Loads the cover art shown in the gallery at the size it is displayed at. Scaled bitmaps are kept
+ * in a memory cache sized in bytes and in a directory of thumbnails, so the full size art is only
+ * decoded once per gallery size. Requests for art that is already being loaded share the same
+ * decode.
+ * <p>
+ * Decodes run on a small pool of threads, closest to the visible part of the gallery first, see
+ * {@link #setVisibleRange(int, int)}. Cancelling the last request for some art removes its decode
+ * from the queue if it hasn't started yet.
+ * <p>
+ * All methods must be called from the main thread, and listeners are notified on the main thread.
+ */
+public class CoverArtLoader
+{
+    /**
+     * Receives the cover art once it is loaded.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when the cover art is loaded.
+         *
+         * @param bitmap The scaled cover art, or null if it could not be loaded.
+         */
+        void onCoverArtLoaded( Bitmap bitmap );
+    }
+
+    private static final String TAG = "CoverArtLoader";
+
+    /** Quality of the thumbnails written to disk. */
+    private static final int THUMBNAIL_QUALITY = 90;
+
+    /** Maximum number of decoding threads, decoding is mostly bound by storage speed after that. */
+    private static final int MAX_DECODE_THREADS = 2;
+
+    private static CoverArtLoader sInstance = null;
+
+    /** Bitmap the full size art of the current thread was last sampled into, reused by the next decode. */
+    private static final ThreadLocal<Bitmap> sScratchBitmap = new ThreadLocal<Bitmap>();
+
+    /** Scaled cover art, keyed by path and size. */
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    /** Loads in progress, keyed like the memory cache. */
+    private final HashMap<String, Job> mJobs = new HashMap<String, Job>();
+
+    /** Directory holding the thumbnails, or null to only cache in memory. */
+    private volatile String mThumbnailDir = null;
+
+    private final DecodeScheduler mScheduler;
+    private final Handler mMainHandler;
+
+    public static CoverArtLoader getInstance()
+    {
+        if( sInstance == null )
+            sInstance = new CoverArtLoader();
+        return sInstance;
+    }
+
+    private CoverArtLoader()
+    {
+        // Use an eighth of the heap for the bitmaps
+        final int maxBytes = (int) Math.min( Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE );
+        mMemoryCache = new LruCache<String, Bitmap>( maxBytes )
+        {
+            @Override
+            protected int sizeOf( String key, Bitmap bitmap )
+            {
+                return bitmap.getByteCount();
+            }
+        };
+
+        final int numThreads = Math.max( 1, Math.min( Runtime.getRuntime().availableProcessors() - 1, MAX_DECODE_THREADS ) );
+        mScheduler = new DecodeScheduler( "CoverArtDecode", numThreads );
+        mMainHandler = new Handler( Looper.getMainLooper() );
+    }
+
+    /**
+     * Sets the directory the thumbnails are stored in.
+     *
+     * @param thumbnailDir The directory, created when the first thumbnail is written.
+     */
+    public void setThumbnailDir( String thumbnailDir )
+    {
+        mThumbnailDir = thumbnailDir;
+    }
+
+    /**
+     * Returns the cover art if it is in the memory cache.
+     *
+     * @param artPath The path of the full size cover art.
+     * @param width The width to scale the art to.
+     * @param height The height to scale the art to.
+     *
+     * @return The scaled cover art, or null if it has to be loaded.
+     */
+    public Bitmap getCached( String artPath, int width, int height )
+    {
+        return mMemoryCache.get( getKey( artPath, width, height ) );
+    }
+
+    /**
+     * Loads the cover art in the background.
+     *
+     * @param artPath The path of the full size cover art.
+     * @param width The width to scale the art to.
+     * @param height The height to scale the art to.
+     * @param position The adapter position the art is shown at, used to prioritize the decode.
+     * @param listener Notified when the art is loaded, unless the request is cancelled first. May
+     *            be null to only prefetch the art into the cache.
+     *
+     * @return The request, used to cancel it.
+     */
+    public Request load( String artPath, int width, int height, int position, Listener listener )
+    {
+        final String key = getKey( artPath, width, height );
+        Job job = mJobs.get( key );
+        if( job == null )
+        {
+            job = new Job( key, artPath, width, height, position );
+            mJobs.put( key, job );
+            mScheduler.execute( job );
+        }
+        else if( listener != null )
+        {
+            // Someone is waiting for the art to show it, not just prefetching it
+            job.mPosition = position;
+        }
+
+        final Request request = new Request( job, listener );
+        job.mRequests.add( request );
+        return request;
+    }
+
+    /**
+     * Sets the part of the gallery that is visible. Queued decodes closest to it run first.
+     *
+     * @param first The first visible adapter position.
+     * @param last The last visible adapter position.
+     */
+    public void setVisibleRange( int first, int last )
+    {
+        mScheduler.setVisibleRange( first, last );
+    }
+
+    /**
+     * Removes every bitmap from the memory cache, e.g. after the cover art was downloaded again.
+     * Thumbnails on disk are replaced when they are older than the art they were made from.
+     */
+    public void evictAll()
+    {
+        mMemoryCache.evictAll();
+    }
+
+    private static String getKey( String artPath, int width, int height )
+    {
+        return artPath + "@" + width + "x" + height;
+    }
+
+    /**
+     * A pending load of cover art.
+     */
+    public class Request
+    {
+        private Job mJob;
+        private final Listener mListener;
+
+        private Request( Job job, Listener listener )
+        {
+            mJob = job;
+            mListener = listener;
+        }
+
+        /**
+         * Stops the listener from being notified. The art is not loaded if nobody else requested
+         * it.
+         */
+        public void cancel()
+        {
+            if( mJob == null )
+                return;
+
+            mJob.mRequests.remove( this );
+            if( mJob.mRequests.isEmpty() )
+            {
+                // Nobody wants the art anymore, drop the decode if it hasn't started
+                mJob.mCancelled = true;
+                mScheduler.remove( mJob );
+                if( mJobs.get( mJob.mKey ) == mJob )
+                    mJobs.remove( mJob.mKey );
+            }
+            mJob = null;
+        }
+    }
+
+    /**
+     * Loads one scaled cover art for every request waiting on it.
+     */
+    private class Job implements DecodeScheduler.Task
+    {
+        private final String mKey;
+        private final String mArtPath;
+        private final int mWidth;
+        private final int mHeight;
+        private volatile int mPosition;
+        private volatile boolean mCancelled = false;
+        private final ArrayList<Request> mRequests = new ArrayList<Request>();
+
+        public Job( String key, String artPath, int width, int height, int position )
+        {
+            mKey = key;
+            mArtPath = artPath;
+            mWidth = width;
+            mHeight = height;
+            mPosition = position;
+        }
+
+        @Override
+        public int getPosition()
+        {
+            return mPosition;
+        }
+
+        @Override
+        public void run()
+        {
+            Bitmap bitmap = null;
+            try
+            {
+                bitmap = loadScaled( mArtPath, mWidth, mHeight, mThumbnailDir, this );
+            }
+            catch( OutOfMemoryError e )
+            {
+                Log.w( TAG, "Out of memory decoding " + mArtPath );
+            }
+
+            final Bitmap result = bitmap;
+            mMainHandler.post( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    onLoaded( result );
+                }
+            } );
+        }
+
+        private void onLoaded( Bitmap bitmap )
+        {
+            if( mJobs.get( mKey ) == this )
+                mJobs.remove( mKey );
+
+            // Keep the art even if the requests were cancelled while it was decoded
+            if( bitmap != null )
+                mMemoryCache.put( mKey, bitmap );
+
+            for( Request request : mRequests )
+            {
+                request.mJob = null;
+                if( request.mListener != null )
+                    request.mListener.onCoverArtLoaded( bitmap );
+            }
+            mRequests.clear();
+        }
+    }
+
+    /**
+     * Loads the cover art from its thumbnail, or scales the full size art and writes the thumbnail.
+     */
+    private static Bitmap loadScaled( String artPath, int width, int height, String thumbnailDir, Job job )
+    {
+        if( TextUtils.isEmpty( artPath ) || width <= 0 || height <= 0 )
+            return null;
+
+        final File art = new File( artPath );
+        final long artModified = art.lastModified();
+        if( artModified == 0 )
+            return null;
+
+        // Use the thumbnail unless the art was replaced after it was written
+        final File thumbnail = thumbnailDir == null ? null
+                : new File( thumbnailDir, art.getName() + "_" + width + "x" + height + ".jpg" );
+        if( thumbnail != null && thumbnail.lastModified() >= artModified )
+        {
+            final Bitmap bitmap = BitmapFactory.decodeFile( thumbnail.getPath() );
+            if( bitmap != null && bitmap.getWidth() == width && bitmap.getHeight() == height )
+                return bitmap;
+        }
+
+        // Decoding the full size art is the slow part, skip it if the job was cancelled meanwhile
+        if( job.mCancelled )
+            return null;
+
+        final Bitmap bitmap = decodeScaled( artPath, width, height );
+        if( bitmap != null && thumbnail != null )
+            writeThumbnail( bitmap, thumbnail );
+        return bitmap;
+    }
+
+    /**
+     * Decodes the full size art a power of two smaller, but no smaller than the requested size, then
+     * scales it to the exact size.
+     */
+    private static Bitmap decodeScaled( String artPath, int width, int height )
+    {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile( artPath, options );
+        if( options.outWidth <= 0 || options.outHeight <= 0 )
+            return null;
+
+        int sampleSize = 1;
+        while( options.outWidth / ( sampleSize * 2 ) >= width && options.outHeight / ( sampleSize * 2 ) >= height )
+            sampleSize *= 2;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+
+        // Sample into the bitmap of the previous decode when it is large enough
+        final Bitmap scratch = sScratchBitmap.get();
+        final int sampledWidth = ( options.outWidth + sampleSize - 1 ) / sampleSize;
+        final int sampledHeight = ( options.outHeight + sampleSize - 1 ) / sampleSize;
+        if( scratch != null && scratch.getAllocationByteCount() >= sampledWidth * sampledHeight * 4 )
+            options.inBitmap = scratch;
+
+        Bitmap sampled;
+        try
+        {
+            sampled = BitmapFactory.decodeFile( artPath, options );
+        }
+        catch( IllegalArgumentException e )
+        {
+            // The scratch bitmap can't be reused for this image
+            options.inBitmap = null;
+            sampled = BitmapFactory.decodeFile( artPath, options );
+        }
+        if( sampled == null )
+            return null;
+        sScratchBitmap.set( sampled );
+
+        // The scaled bitmap must not share the scratch bitmap
+        Bitmap scaled = Bitmap.createScaledBitmap( sampled, width, height, true );
+        if( scaled == sampled )
+            scaled = sampled.copy( sampled.getConfig(), false );
+        return scaled;
+    }
+
+    private static void writeThumbnail( Bitmap bitmap, File thumbnail )
+    {
+        final File parent = thumbnail.getParentFile();
+        if( !parent.exists() && !parent.mkdirs() )
+            return;
+
+        // Write to a temporary file so that a partial thumbnail is never read
+        File temp = null;
+        try
+        {
+            temp = File.createTempFile( thumbnail.getName(), ".tmp", parent );
+            final OutputStream out = new FileOutputStream( temp );
+            try
+            {
+                bitmap.compress( Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out );
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if( !temp.renameTo( thumbnail ) )
+                temp.delete();
+        }
+        catch( IOException e )
+        {
+            Log.w( TAG, "Unable to write thumbnail " + thumbnail.getPath(), e );
+            if( temp != null )
+                temp.delete();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Runs decode tasks on a small fixed pool of background threads. Each task belongs to a position
+ * in the gallery, and the queued task closest to the visible part of the gallery always runs
+ * next, so the art on screen is decoded before the art that was scrolled past or is being
+ * prefetched. Queued tasks can be removed before they run.
+ */
+class DecodeScheduler
+{
+    /**
+     * A task placed at a position of the gallery.
+     */
+    interface Task extends Runnable
+    {
+        /**
+         * Returns the adapter position the task is for. Read by the worker threads, so it must be
+         * safe to call from any thread.
+         */
+        int getPosition();
+    }
+
+    /** Queued tasks, in the order they were queued. */
+    private final ArrayList<Task> mQueue = new ArrayList<Task>();
+
+    /** Visible adapter positions, inclusive. */
+    private int mFirstVisible = 0;
+    private int mLastVisible = Integer.MAX_VALUE;
+
+    /**
+     * Starts the worker threads.
+     *
+     * @param name Name of the threads.
+     * @param numThreads Number of worker threads.
+     */
+    public DecodeScheduler( String name, int numThreads )
+    {
+        for( int i = 0; i < numThreads; i++ )
+        {
+            Thread thread = new Thread( new Worker(), name + i );
+            thread.setDaemon( true );
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a task.
+     */
+    public synchronized void execute( Task task )
+    {
+        mQueue.add( task );
+        notify();
+    }
+
+    /**
+     * Removes a task that has not started running yet.
+     *
+     * @return True if the task was removed, false if it already started.
+     */
+    public synchronized boolean remove( Task task )
+    {
+        return mQueue.remove( task );
+    }
+
+    /**
+     * Sets the part of the gallery that is visible, used to pick the next task to run.
+     *
+     * @param first The first visible adapter position.
+     * @param last The last visible adapter position.
+     */
+    public synchronized void setVisibleRange( int first, int last )
+    {
+        mFirstVisible = first;
+        mLastVisible = last;
+    }
+
+    private synchronized Task take() throws InterruptedException
+    {
+        while( mQueue.isEmpty() )
+            wait();
+
+        // The queue only holds the art of a few screens, a linear search is fine
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for( int i = 0; i < mQueue.size(); i++ )
+        {
+            final int distance = getDistance( mQueue.get( i ).getPosition() );
+            if( distance < bestDistance )
+            {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return mQueue.remove( best );
+    }
+
+    private int getDistance( int position )
+    {
+        if( position < mFirstVisible )
+            return mFirstVisible - position;
+        else if( position > mLastVisible )
+            return position - mLastVisible;
+        else
+            return 0;
+    }
+
+    private class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+
+            while( true )
+            {
+                final Task task;
+                try
+                {
+                    task = take();
+                }
+                catch( InterruptedException e )
+                {
+                    return;
+                }
+
+                try
+                {
+                    task.run();
+                }
+                catch( RuntimeException e )
+                {
+                    Log.e( "DecodeScheduler", "Decode task failed", e );
+                }
+            }
+        }
+    }
+}
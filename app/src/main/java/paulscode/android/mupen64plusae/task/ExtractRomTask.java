@@ -0,0 +1,78 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.File;
+
+import android.os.AsyncTask;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
+import paulscode.android.mupen64plusae.util.RomZipIndex;
+
+/**
+ * Gets the extracted copy of a zipped ROM from the {@link ExtractedRomCache} in the background,
+ * since reading the zip index and extracting and verifying the ROM can take seconds. The config
+ * file is saved once the ROM is extracted, and must not be used by anyone else until then.
+ */
+public class ExtractRomTask extends AsyncTask<Void, Void, File>
+{
+    public interface ExtractRomListener
+    {
+        //This is called once the ROM is extracted, with null if it could not be
+        public void onExtractRomFinished( File romFile );
+    }
+
+    private final ExtractedRomCache mRomCache;
+    private final ConfigFile mConfig;
+    private final String mMd5;
+    private final String mRomPath;
+    private final String mZipPath;
+    private final String mZipIndexPath;
+    private final ExtractRomListener mListener;
+
+    public ExtractRomTask( ExtractedRomCache romCache, ConfigFile config, String md5, String romPath,
+            String zipPath, String zipIndexPath, ExtractRomListener listener )
+    {
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+
+        mRomCache = romCache;
+        mConfig = config;
+        mMd5 = md5;
+        mRomPath = romPath;
+        mZipPath = zipPath;
+        mZipIndexPath = zipIndexPath;
+        mListener = listener;
+    }
+
+    @Override
+    protected File doInBackground( Void... params )
+    {
+        final File romFile = mRomCache.get( mConfig, mMd5, mRomPath, mZipPath, new RomZipIndex( mZipIndexPath ) );
+        mConfig.save();
+        return romFile;
+    }
+
+    @Override
+    protected void onPostExecute( File result )
+    {
+        mListener.onExtractRomFinished( result );
+    }
+}
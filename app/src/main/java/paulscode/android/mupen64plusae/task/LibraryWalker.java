@@ -0,0 +1,272 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import paulscode.android.mupen64plusae.persistent.LibraryRoot;
+
+/**
+ * Lists the files of the library roots. Each root is walked on its own thread, so that roots on
+ * different storage devices are listed at the same time. Directories are walked iteratively and
+ * are identified by their canonical path, so symbolic link loops end and a directory is only
+ * listed once, by the same root on every scan:
+ * <ul>
+ * <li>A directory inside several roots belongs to the most specific one, the root with the
+ * longest canonical path. That root's depth, zip and exclusion settings apply to it, and the other
+ * roots don't walk into it.</li>
+ * <li>A directory outside every root, reached through a symbolic link, belongs to the first root
+ * in the list that reaches it.</li>
+ * </ul>
+ */
+public class LibraryWalker
+{
+    public interface Listener
+    {
+        //This is called by every walker thread to find out if the scan has been cancelled
+        boolean isStopped();
+    }
+
+    /**
+     * A file found in a root.
+     */
+    public static class FoundFile
+    {
+        public final File file;
+        public final LibraryRoot root;
+
+        public FoundFile( File file, LibraryRoot root )
+        {
+            this.file = file;
+            this.root = root;
+        }
+    }
+
+    private final List<LibraryRoot> mRoots;
+    private final Listener mListener;
+
+    /** Canonical paths of the roots, in the same order. */
+    private final List<String> mRootPaths = new ArrayList<String>();
+
+    /**
+     * Constructor.
+     *
+     * @param roots The library roots.
+     * @param listener Listener that receives cancellation requests.
+     */
+    public LibraryWalker( List<LibraryRoot> roots, Listener listener )
+    {
+        mRoots = roots;
+        mListener = listener;
+    }
+
+    /**
+     * Walks every root and blocks until they are all listed.
+     *
+     * @return The files found, grouped by root in the order of the roots.
+     */
+    public List<FoundFile> walk()
+    {
+        mRootPaths.clear();
+        for( LibraryRoot root : mRoots )
+            mRootPaths.add( getCanonicalPath( new File( root.path ) ) );
+
+        final List<List<FoundFile>> results = new ArrayList<List<FoundFile>>();
+        final List<Map<String, List<FoundFile>>> outsideResults = new ArrayList<Map<String, List<FoundFile>>>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        for( int i = 0; i < mRoots.size(); i++ )
+        {
+            final int index = i;
+            final List<FoundFile> result = new ArrayList<FoundFile>();
+            final Map<String, List<FoundFile>> outsideResult = new LinkedHashMap<String, List<FoundFile>>();
+            results.add( result );
+            outsideResults.add( outsideResult );
+            threads.add( new Thread( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+                    walk( index, result, outsideResult );
+                }
+            }, "LibraryWalk" + i ) );
+        }
+
+        for( Thread thread : threads )
+            thread.start();
+
+        for( Thread thread : threads )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch( InterruptedException e )
+            {
+                Log.w( "LibraryWalker", e );
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Directories outside every root may have been listed by several roots, keep the first
+        final List<FoundFile> files = new ArrayList<FoundFile>();
+        final Set<String> outsideDirs = new HashSet<String>();
+        for( int i = 0; i < results.size(); i++ )
+        {
+            files.addAll( results.get( i ) );
+            for( Map.Entry<String, List<FoundFile>> entry : outsideResults.get( i ).entrySet() )
+            {
+                if( outsideDirs.add( entry.getKey() ) )
+                    files.addAll( entry.getValue() );
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Walks a root.
+     *
+     * @param index The index of the root.
+     * @param result Receives the files of the directories the root owns.
+     * @param outsideResult Receives the files of the directories outside every root, mapped by
+     *                      canonical path.
+     */
+    private void walk( int index, List<FoundFile> result, Map<String, List<FoundFile>> outsideResult )
+    {
+        final LibraryRoot root = mRoots.get( index );
+        final File rootFile = new File( root.path );
+        if( rootFile.isFile() )
+        {
+            result.add( new FoundFile( rootFile, root ) );
+            return;
+        }
+
+        final Set<String> visited = new HashSet<String>();
+        final ArrayDeque<Directory> pending = new ArrayDeque<Directory>();
+        pending.add( new Directory( rootFile, 0 ) );
+        while( !pending.isEmpty() && !mListener.isStopped() )
+        {
+            final Directory dir = pending.poll();
+            final String path = getCanonicalPath( dir.file );
+            if( !visited.add( path ) )
+                continue;
+
+            final int owner = getOwner( path );
+            final List<FoundFile> dirResult;
+            if( owner == index )
+            {
+                dirResult = result;
+            }
+            else if( owner < 0 )
+            {
+                dirResult = new ArrayList<FoundFile>();
+                outsideResult.put( path, dirResult );
+            }
+            else
+            {
+                // A more specific root lists it
+                continue;
+            }
+
+            final File[] files = dir.file.listFiles();
+            if( files == null )
+                continue;
+
+            for( File file : files )
+            {
+                if( root.isExcluded( file.getPath() ) )
+                    continue;
+
+                if( file.isDirectory() )
+                {
+                    if( dir.depth < root.maxDepth )
+                        pending.add( new Directory( file, dir.depth + 1 ) );
+                }
+                else
+                {
+                    dirResult.add( new FoundFile( file, root ) );
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the root owning a directory: the root with the longest canonical path
+     * containing it, the first one if several roots have the same path. Returns -1 if the
+     * directory is outside every root.
+     */
+    private int getOwner( String path )
+    {
+        int owner = -1;
+        int ownerLength = -1;
+        for( int i = 0; i < mRootPaths.size(); i++ )
+        {
+            final String rootPath = mRootPaths.get( i );
+            if( rootPath.length() > ownerLength && isUnder( path, rootPath ) )
+            {
+                owner = i;
+                ownerLength = rootPath.length();
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * Returns true if a path is the given path or a path inside it.
+     */
+    private static boolean isUnder( String path, String parent )
+    {
+        return path.equals( parent ) || path.startsWith( parent.endsWith( "/" ) ? parent : parent + "/" );
+    }
+
+    private static String getCanonicalPath( File file )
+    {
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            return file.getAbsolutePath();
+        }
+    }
+
+    private static class Directory
+    {
+        public final File file;
+        public final int depth;
+
+        public Directory( File file, int depth )
+        {
+            this.file = file;
+            this.depth = depth;
+        }
+    }
+}
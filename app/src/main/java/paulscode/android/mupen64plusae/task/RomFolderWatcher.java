@@ -0,0 +1,636 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.persistent.LibraryRoot;
+import paulscode.android.mupen64plusae.task.LibraryWalker.FoundFile;
+import paulscode.android.mupen64plusae.util.RomDatabase;
+import paulscode.android.mupen64plusae.util.RomFingerprintIndex;
+import paulscode.android.mupen64plusae.util.RomPathIndex;
+import paulscode.android.mupen64plusae.util.RomZipIndex;
+
+/**
+ * Keeps the ROM info config file up to date while the library folders change, without a full
+ * scan. Every directory of the library roots is watched with a {@link FileObserver}, down to the
+ * depth of its root and skipping its exclusions. Files that are
+ * written, moved in, moved out or deleted are collected into a batch, so that copying a whole
+ * folder results in a single update once the copy is over. The files of a batch go through the
+ * same {@link RomScanPipeline} as a full scan, and the ROMs of deleted files are removed from the
+ * config file.
+ * <p>
+ * Changes made while the watcher isn't running are only picked up by the next full scan.
+ */
+public class RomFolderWatcher
+{
+    public interface Listener
+    {
+        //This is called on the UI thread once a batch of changes has been stored in the config file
+        void onRomFolderChanged();
+    }
+
+    /** Time without any change before a batch is processed. */
+    private static final long QUIET_PERIOD_MS = 2000;
+
+    /** Maximum time a batch waits for the changes to settle, so that long copies show up. */
+    private static final long MAX_BATCH_DELAY_MS = 10000;
+
+    private static final int WATCH_MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.MOVED_FROM | FileObserver.DELETE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static final String TAG = "RomFolderWatcher";
+
+    private final String mDatabasePath;
+    private final String mConfigPath;
+    private final String mFingerprintPath;
+    private final String mZipIndexPath;
+    private final String mArtDir;
+    private final String mArtValidatorsPath;
+    private final String mUnzipDir;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+
+    /** True once the watcher is stopped, cancels the batch being processed. */
+    private volatile boolean mStopped = true;
+
+    // The fields below are only used on the background thread
+
+    /** The watched roots as a string, null when nothing is watched. */
+    private String mRoots = null;
+    private boolean mDownloadArt;
+
+    /** Observers of the watched directories, mapped by path. */
+    private final HashMap<String, DirectoryObserver> mObservers = new HashMap<String, DirectoryObserver>();
+
+    /** Canonical paths of the watched directories, so that symbolic link loops are not followed. */
+    private final HashSet<String> mCanonicalPaths = new HashSet<String>();
+
+    /** Paths written or moved in since the last batch, and the root they belong to. */
+    private final LinkedHashMap<String, LibraryRoot> mChanged = new LinkedHashMap<String, LibraryRoot>();
+
+    /** Paths deleted or moved out since the last batch, directories included. */
+    private final LinkedHashMap<String, LibraryRoot> mDeleted = new LinkedHashMap<String, LibraryRoot>();
+
+    /** Uptime of the first change of the current batch, zero if there is none. */
+    private long mBatchStart = 0;
+
+    private final Runnable mProcessBatchRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            processBatch();
+        }
+    };
+
+    /**
+     * Starts the background thread. Nothing is watched until {@link #start} is called.
+     *
+     * @param databasePath Path of the ROM database.
+     * @param configPath Path of the ROM info config file.
+     * @param fingerprintPath Path of the index of ROM MD5s computed by previous scans.
+     * @param zipIndexPath Path of the index of ROMs inside zip files read by previous scans.
+     * @param artDir Directory where cover art is stored.
+     * @param artValidatorsPath Path of the index of the ETag and Last-Modified headers of the art.
+     * @param unzipDir Directory zipped ROMs are extracted to when they are played.
+     * @param listener Listener notified when the config file changed.
+     */
+    public RomFolderWatcher( String databasePath, String configPath, String fingerprintPath,
+            String zipIndexPath, String artDir, String artValidatorsPath, String unzipDir, Listener listener )
+    {
+        mDatabasePath = databasePath;
+        mConfigPath = configPath;
+        mFingerprintPath = fingerprintPath;
+        mZipIndexPath = zipIndexPath;
+        mArtDir = artDir;
+        mArtValidatorsPath = artValidatorsPath;
+        mUnzipDir = unzipDir;
+        mListener = listener;
+
+        HandlerThread thread = new HandlerThread( TAG, Process.THREAD_PRIORITY_BACKGROUND );
+        thread.start();
+        mHandler = new Handler( thread.getLooper() );
+        mMainHandler = new Handler( Looper.getMainLooper() );
+    }
+
+    /**
+     * Starts watching the library roots. Does nothing if they are already watched with the same
+     * options.
+     *
+     * @param roots The library roots.
+     * @param downloadArt True if the cover art of new ROMs should be downloaded.
+     */
+    public void start( final List<LibraryRoot> roots, final boolean downloadArt )
+    {
+        final String rootsString = LibraryRoot.toString( roots );
+        mStopped = false;
+        mHandler.post( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if( rootsString.equals( mRoots ) && downloadArt == mDownloadArt )
+                    return;
+
+                unwatchAll();
+                mRoots = rootsString;
+                mDownloadArt = downloadArt;
+                for( LibraryRoot root : roots )
+                {
+                    // Roots made of a single file have no directory to watch
+                    final File rootFile = new File( root.path );
+                    if( rootFile.isDirectory() )
+                        watch( rootFile, root, 0, false );
+                }
+                Log.i( TAG, "Watching " + mObservers.size() + " directories of " + roots.size() + " roots" );
+            }
+        } );
+    }
+
+    /**
+     * Stops watching, e.g. before a full scan. Pending changes are dropped.
+     */
+    public void stop()
+    {
+        mStopped = true;
+        mHandler.post( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                unwatchAll();
+                mRoots = null;
+            }
+        } );
+    }
+
+    /**
+     * Stops watching and stops the background thread.
+     */
+    public void destroy()
+    {
+        stop();
+        mHandler.post( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mHandler.getLooper().quit();
+            }
+        } );
+    }
+
+    /**
+     * Watches a directory and its subdirectories, as deep as its root allows.
+     *
+     * @param dir The directory.
+     * @param root The root the directory belongs to.
+     * @param depth How many levels below the root the directory is.
+     * @param addFiles True to add the files already in the directory to the batch, for
+     *            directories that appeared while watching.
+     */
+    private void watch( File dir, LibraryRoot root, int depth, boolean addFiles )
+    {
+        final String path = dir.getPath();
+        final String canonicalPath = getCanonicalPath( dir );
+        if( mObservers.containsKey( path ) || mCanonicalPaths.contains( canonicalPath ) )
+            return;
+
+        // Watch before listing, so that a file created in between is not missed
+        final DirectoryObserver observer = new DirectoryObserver( path, canonicalPath, root, depth );
+        mObservers.put( path, observer );
+        mCanonicalPaths.add( canonicalPath );
+        observer.startWatching();
+
+        final File[] files = dir.listFiles();
+        if( files == null )
+            return;
+
+        for( File file : files )
+        {
+            if( root.isExcluded( file.getPath() ) )
+                continue;
+
+            if( file.isDirectory() )
+            {
+                if( depth < root.maxDepth )
+                    watch( file, root, depth + 1, addFiles );
+            }
+            else if( addFiles )
+            {
+                addChanged( file.getPath(), root );
+            }
+        }
+    }
+
+    /**
+     * Stops watching a directory and its subdirectories.
+     */
+    private void unwatch( String path )
+    {
+        final Iterator<Map.Entry<String, DirectoryObserver>> iter = mObservers.entrySet().iterator();
+        while( iter.hasNext() )
+        {
+            final Map.Entry<String, DirectoryObserver> entry = iter.next();
+            if( isUnder( entry.getKey(), path ) )
+            {
+                entry.getValue().stopWatching();
+                mCanonicalPaths.remove( entry.getValue().canonicalPath );
+                iter.remove();
+            }
+        }
+    }
+
+    private void unwatchAll()
+    {
+        for( DirectoryObserver observer : mObservers.values() )
+            observer.stopWatching();
+        mObservers.clear();
+        mCanonicalPaths.clear();
+        mChanged.clear();
+        mDeleted.clear();
+        mBatchStart = 0;
+        mHandler.removeCallbacks( mProcessBatchRunnable );
+    }
+
+    private void onEvent( DirectoryObserver observer, int event, String name )
+    {
+        // Ignore events that were queued before the directory stopped being watched
+        if( mObservers.get( observer.path ) != observer )
+            return;
+
+        if( ( event & ( FileObserver.DELETE_SELF | FileObserver.MOVE_SELF ) ) != 0 )
+        {
+            // The parent reports the same change, unless this is the ROM folder itself
+            unwatch( observer.path );
+            addDeleted( observer.path, observer.root );
+            return;
+        }
+
+        if( name == null )
+            return;
+
+        final File file = new File( observer.path, name );
+        if( observer.root.isExcluded( file.getPath() ) )
+            return;
+
+        if( ( event & ( FileObserver.DELETE | FileObserver.MOVED_FROM ) ) != 0 )
+        {
+            unwatch( file.getPath() );
+            addDeleted( file.getPath(), observer.root );
+        }
+        else if( ( event & ( FileObserver.CREATE | FileObserver.MOVED_TO ) ) != 0 && file.isDirectory() )
+        {
+            if( observer.depth < observer.root.maxDepth )
+                watch( file, observer.root, observer.depth + 1, true );
+        }
+        else if( ( event & ( FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO ) ) != 0 )
+        {
+            // New files are only picked up once they are closed, so that they are complete
+            addChanged( file.getPath(), observer.root );
+        }
+    }
+
+    private void addChanged( String path, LibraryRoot root )
+    {
+        mChanged.put( path, root );
+        scheduleBatch();
+    }
+
+    private void addDeleted( String path, LibraryRoot root )
+    {
+        mChanged.remove( path );
+        mDeleted.put( path, root );
+        scheduleBatch();
+    }
+
+    /**
+     * Processes the batch once no change happened for a while, or once it waited long enough.
+     */
+    private void scheduleBatch()
+    {
+        final long now = SystemClock.uptimeMillis();
+        if( mBatchStart == 0 )
+            mBatchStart = now;
+
+        final long delay = Math.max( 0, Math.min( QUIET_PERIOD_MS, mBatchStart + MAX_BATCH_DELAY_MS - now ) );
+        mHandler.removeCallbacks( mProcessBatchRunnable );
+        mHandler.postDelayed( mProcessBatchRunnable, delay );
+    }
+
+    private void processBatch()
+    {
+        mBatchStart = 0;
+        if( mStopped || mRoots == null )
+            return;
+
+        // A path that was deleted and then created again, e.g. by a file manager replacing a
+        // file, is only a change
+        final List<String> deleted = new ArrayList<String>();
+        for( Map.Entry<String, LibraryRoot> entry : mDeleted.entrySet() )
+        {
+            final File file = new File( entry.getKey() );
+            if( !file.exists() )
+                deleted.add( entry.getKey() );
+            else if( file.isFile() && !mChanged.containsKey( entry.getKey() ) )
+                mChanged.put( entry.getKey(), entry.getValue() );
+        }
+
+        final List<FoundFile> changed = new ArrayList<FoundFile>();
+        for( Map.Entry<String, LibraryRoot> entry : mChanged.entrySet() )
+        {
+            final File file = new File( entry.getKey() );
+            if( file.isFile() )
+                changed.add( new FoundFile( file, entry.getValue() ) );
+        }
+        mChanged.clear();
+        mDeleted.clear();
+
+        if( deleted.isEmpty() && changed.isEmpty() )
+            return;
+
+        final ScanStatistics statistics = new ScanStatistics();
+        final RomDatabase database = RomDatabase.getInstance();
+        if( !database.hasDatabaseFile() )
+            database.setDatabaseFile( mDatabasePath );
+
+        // The batch works on its own copy, the original tells what it changed when it is saved
+        final ConfigFile original = ConfigFile.open( mConfigPath );
+        final ConfigFile config = ConfigFile.open( mConfigPath );
+        final RomFingerprintIndex fingerprints = new RomFingerprintIndex( mFingerprintPath );
+        final RomZipIndex zipIndex = new RomZipIndex( mZipIndexPath );
+        final RomPathIndex pathIndex = new RomPathIndex( config );
+
+        long start = System.nanoTime();
+        final Set<String> removedMd5s = removeDeleted( config, pathIndex, deleted );
+        statistics.addTime( ScanStatistics.Stage.CLEANUP, start );
+
+        // The ROMs the changed files used to contain, dropped below unless they are still there.
+        // They are taken out of the index so that changed zip files are searched again.
+        final Set<String> previousMd5s = new HashSet<String>();
+        for( FoundFile found : changed )
+            previousMd5s.addAll( pathIndex.getMd5s( found.file.getAbsolutePath() ) );
+        for( String md5 : previousMd5s )
+            pathIndex.remove( md5 );
+
+        statistics.add( ScanStatistics.Counter.FILES_FOUND, changed.size() );
+        final RomScanPipeline pipeline = new RomScanPipeline( database, config, mArtDir, mUnzipDir, pathIndex,
+                fingerprints, zipIndex, new RomScanPipeline.Listener()
+        {
+            @Override
+            public boolean isStopped()
+            {
+                return mStopped;
+            }
+
+            @Override
+            public void onFileProcessed( File file )
+            {
+            }
+        }, statistics );
+        pipeline.run( changed );
+
+        // A full scan takes over if the watcher was stopped meanwhile
+        if( mStopped )
+            return;
+
+        final Set<String> cachedMd5s = pipeline.getCachedMd5s();
+        for( String md5 : previousMd5s )
+        {
+            if( !cachedMd5s.contains( md5 ) )
+            {
+                Log.i( TAG, "Removing md5=" + md5 );
+                config.remove( md5 );
+                removedMd5s.add( md5 );
+            }
+        }
+
+        if( mDownloadArt && !cachedMd5s.isEmpty() )
+        {
+            start = System.nanoTime();
+            downloadMissingArt( database, config, cachedMd5s, statistics );
+            statistics.addTime( ScanStatistics.Stage.ART, start );
+        }
+
+        start = System.nanoTime();
+        fingerprints.save();
+        zipIndex.save();
+        saveChanges( original, config, cachedMd5s, removedMd5s );
+        statistics.addTime( ScanStatistics.Stage.SAVE, start );
+
+        statistics.finish();
+        Log.i( TAG, changed.size() + " changed, " + deleted.size() + " deleted: " + statistics );
+
+        mMainHandler.post( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if( !mStopped )
+                    mListener.onRomFolderChanged();
+            }
+        } );
+    }
+
+    /**
+     * Saves what a batch changed over the latest data of the config file. Parameters the batch did
+     * not change are left alone, so that values the gallery saved while the batch ran, like the
+     * last played time, are not overwritten with the ones the batch started from.
+     * 
+     * @param original The config file as it was when the batch started.
+     * @param batch The config file the batch updated.
+     * @param cachedMd5s The ROMs the batch found.
+     * @param removedMd5s The ROMs the batch removed.
+     */
+    private void saveChanges( ConfigFile original, ConfigFile batch, Set<String> cachedMd5s,
+            Set<String> removedMd5s )
+    {
+        final ConfigFile latest = ConfigFile.open( mConfigPath );
+        for( String md5 : removedMd5s )
+        {
+            if( !cachedMd5s.contains( md5 ) )
+                latest.remove( md5 );
+        }
+
+        for( String md5 : cachedMd5s )
+        {
+            final ConfigSection section = batch.get( md5 );
+            final ConfigSection originalSection = original.get( md5 );
+
+            // Don't bring back a ROM removed from the library meanwhile
+            if( originalSection != null && latest.get( md5 ) == null )
+                continue;
+
+            for( String parameter : section.keySet() )
+            {
+                final String value = section.get( parameter );
+                if( originalSection == null || !value.equals( originalSection.get( parameter ) ) )
+                    latest.put( md5, parameter, value );
+            }
+        }
+        latest.save();
+    }
+
+    /**
+     * Removes the ROMs stored in deleted files or directories from the config file.
+     * 
+     * @return The MD5s of the removed ROMs.
+     */
+    private static Set<String> removeDeleted( ConfigFile config, RomPathIndex pathIndex, List<String> deleted )
+    {
+        final Set<String> removedMd5s = new HashSet<String>();
+        for( String deletedPath : deleted )
+        {
+            final Set<String> md5s = pathIndex.getMd5s( deletedPath );
+            md5s.addAll( pathIndex.getMd5sUnder( deletedPath ) );
+            for( String md5 : md5s )
+            {
+                Log.i( TAG, "Removing md5=" + md5 );
+
+                // Also remove the copy extracted from the zip file
+                final String zipPath = config.get( md5, "zipPath" );
+                final String romPath = config.get( md5, "romPath" );
+                if( !TextUtils.isEmpty( zipPath ) && !TextUtils.isEmpty( romPath ) )
+                {
+                    final File romFile = new File( romPath );
+                    if( !romFile.isDirectory() )
+                        romFile.delete();
+                }
+
+                config.remove( md5 );
+                pathIndex.remove( md5 );
+                removedMd5s.add( md5 );
+            }
+        }
+        return removedMd5s;
+    }
+
+    /**
+     * Downloads the cover art of new ROMs, art that already exists is left alone.
+     */
+    private void downloadMissingArt( RomDatabase database, ConfigFile config, Set<String> md5s,
+            final ScanStatistics statistics )
+    {
+        final Set<File> artFiles = new LinkedHashSet<File>();
+        for( String md5 : md5s )
+        {
+            final String artPath = config.get( md5, "artPath" );
+            if( !TextUtils.isEmpty( artPath ) && !new File( artPath ).exists() )
+                artFiles.add( new File( artPath ) );
+        }
+
+        if( artFiles.isEmpty() )
+            return;
+
+        new CoverArtDownloader( database.getArtBaseUrl(), mArtValidatorsPath, CoverArtDownloader.DEFAULT_MAX_CONNECTIONS,
+                new CoverArtDownloader.Listener()
+        {
+            @Override
+            public boolean isStopped()
+            {
+                return mStopped;
+            }
+
+            @Override
+            public void onArtProcessed( File artFile, CoverArtDownloader.Result result )
+            {
+                if( result == CoverArtDownloader.Result.DOWNLOADED )
+                    statistics.add( ScanStatistics.Counter.ART_DOWNLOADED, 1 );
+                else if( result == CoverArtDownloader.Result.FAILED )
+                    statistics.add( ScanStatistics.Counter.ART_FAILED, 1 );
+            }
+        } ).downloadAll( artFiles );
+    }
+
+    private static String getCanonicalPath( File file )
+    {
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Returns true if a path is the given path or a path inside it.
+     */
+    private static boolean isUnder( String path, String parent )
+    {
+        return path.equals( parent ) || path.startsWith( parent + "/" );
+    }
+
+    /**
+     * Watches a single directory and hands its events to the background thread.
+     */
+    private class DirectoryObserver extends FileObserver
+    {
+        public final String path;
+        public final String canonicalPath;
+        public final LibraryRoot root;
+        public final int depth;
+
+        public DirectoryObserver( String path, String canonicalPath, LibraryRoot root, int depth )
+        {
+            super( path, WATCH_MASK );
+            this.path = path;
+            this.canonicalPath = canonicalPath;
+            this.root = root;
+            this.depth = depth;
+        }
+
+        @Override
+        public void onEvent( final int event, final String name )
+        {
+            mHandler.post( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    RomFolderWatcher.this.onEvent( DirectoryObserver.this, event, name );
+                }
+            } );
+        }
+    }
+}
@@ -0,0 +1,582 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.task.LibraryWalker.FoundFile;
+import paulscode.android.mupen64plusae.util.RomDatabase;
+import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
+import paulscode.android.mupen64plusae.util.RomFingerprintIndex;
+import paulscode.android.mupen64plusae.util.RomHeader;
+import paulscode.android.mupen64plusae.util.RomHeaderReader;
+import paulscode.android.mupen64plusae.util.RomPathIndex;
+import paulscode.android.mupen64plusae.util.RomZipIndex;
+
+/**
+ * Staged ROM scanner used by {@link CacheRomInfoService}. Every file found by the directory walk
+ * goes through the following stages, each one fed by its own bounded queue:
+ * <ol>
+ * <li>Header sniff: a single thread reads the first bytes of the file to decide whether it is a
+ * ROM, a zip file or something we don't care about.</li>
+ * <li>Hashing: a small pool of workers computes the MD5 of ROMs. ROMs inside zip files are hashed
+ * straight from the zip stream, without being extracted. ROMs that have not changed since the
+ * last scan are looked up in the {@link RomFingerprintIndex} instead of being hashed again, and
+ * zip files that have not changed are not opened at all, their ROMs come from the
+ * {@link RomZipIndex}.</li>
+ * <li>Writer: a single thread stores the results in the ROM info config file, so the config file
+ * is never touched by more than one thread.</li>
+ * </ol>
+ * Cancellation is cooperative, once the listener reports the scan as stopped every stage drops
+ * the work it receives and only forwards the end-of-stream markers.
+ */
+public class RomScanPipeline
+{
+    public interface Listener
+    {
+        //This is called by every stage to find out if the scan has been cancelled
+        boolean isStopped();
+
+        //This is called by the writer thread once a file has gone through every stage
+        void onFileProcessed( File file );
+    }
+
+    /** Capacity of each of the stage queues. */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /** Maximum number of hashing workers, hashing is mostly bound by storage speed after that. */
+    private static final int MAX_HASH_WORKERS = 4;
+
+    /** End of stream marker for the sniff queue. */
+    private static final FoundFile END_OF_FILES = new FoundFile( new File( "" ), null );
+
+    /** End of stream marker for the hash queue. */
+    private static final ScanJob END_OF_JOBS = new ScanJob( null, false, null );
+
+    /** End of stream marker for the writer queue. */
+    private static final ScanResult END_OF_RESULTS = new ScanResult( null );
+
+    private final RomDatabase mDatabase;
+    private final ConfigFile mConfig;
+    private final String mArtDir;
+    private final String mUnzipDir;
+    private final RomPathIndex mPathIndex;
+    private final RomFingerprintIndex mFingerprints;
+    private final RomZipIndex mZipIndex;
+    private final Listener mListener;
+    private final ScanStatistics mStatistics;
+    private final int mNumWorkers;
+
+    /** Headers read by the sniff stage, so that the hashing stage doesn't read them again. */
+    private final RomHeaderReader mHeaders = new RomHeaderReader();
+
+    /** MD5s of the ROMs stored in the config file, only touched by the writer stage. */
+    private final Set<String> mCachedMd5s = new HashSet<String>();
+
+    private final BlockingQueue<FoundFile> mSniffQueue = new ArrayBlockingQueue<FoundFile>( QUEUE_CAPACITY );
+    private final BlockingQueue<ScanJob> mHashQueue = new ArrayBlockingQueue<ScanJob>( QUEUE_CAPACITY );
+    private final BlockingQueue<ScanResult> mWriteQueue = new ArrayBlockingQueue<ScanResult>( QUEUE_CAPACITY );
+
+    /**
+     * Constructor.
+     *
+     * @param database ROM database used to look up ROM details, must already be loaded.
+     * @param config ROM info config file the results are written to.
+     * @param artDir Directory where cover art is stored.
+     * @param unzipDir Directory zipped ROMs are extracted to when they are played.
+     * @param pathIndex Index of the files in the config file, kept up to date by the writer. Zip
+     *            files that are already indexed and have not changed are not searched again.
+     * @param fingerprints Index of the ROMs hashed by previous scans.
+     * @param zipIndex Index of the ROMs inside the zip files read by previous scans.
+     * @param listener Listener that receives cancellation requests and progress.
+     * @param statistics Receives the timings and counters of every stage.
+     */
+    public RomScanPipeline( RomDatabase database, ConfigFile config, String artDir, String unzipDir,
+            RomPathIndex pathIndex, RomFingerprintIndex fingerprints, RomZipIndex zipIndex,
+            Listener listener, ScanStatistics statistics )
+    {
+        mDatabase = database;
+        mConfig = config;
+        mArtDir = artDir;
+        mUnzipDir = unzipDir;
+        mPathIndex = pathIndex;
+        mFingerprints = fingerprints;
+        mZipIndex = zipIndex;
+        mListener = listener;
+        mStatistics = statistics;
+        mNumWorkers = Math.max( 1, Math.min( Runtime.getRuntime().availableProcessors(), MAX_HASH_WORKERS ) );
+    }
+
+    /**
+     * Runs every file through the pipeline and blocks until all stages are done. The calling
+     * thread acts as the directory walk stage.
+     *
+     * @param files Files found by the directory walk, zip files are only searched if their root
+     *            allows it.
+     */
+    public void run( List<FoundFile> files )
+    {
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add( new Thread( new SniffStage(), "RomScanSniff" ) );
+        for( int i = 0; i < mNumWorkers; i++ )
+            threads.add( new Thread( new HashStage(), "RomScanHash" + i ) );
+        threads.add( new Thread( new WriteStage(), "RomScanWrite" ) );
+
+        for( Thread thread : threads )
+            thread.start();
+
+        for( FoundFile file : files )
+        {
+            if( mListener.isStopped() ) break;
+            put( mSniffQueue, file );
+        }
+        put( mSniffQueue, END_OF_FILES );
+
+        for( Thread thread : threads )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch( InterruptedException e )
+            {
+                Log.w( "RomScanPipeline", e );
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        mStatistics.add( ScanStatistics.Counter.HEADERS_READ, mHeaders.getReadCount() );
+    }
+
+    /**
+     * Returns the MD5s of the ROMs stored in the config file, once {@link #run(List)} returned.
+     */
+    public Set<String> getCachedMd5s()
+    {
+        return mCachedMd5s;
+    }
+
+    /**
+     * Reads the header of each file and forwards ROMs and zip files to the hashing stage.
+     */
+    private class SniffStage implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+
+            FoundFile found;
+            while( ( found = take( mSniffQueue ) ) != END_OF_FILES )
+            {
+                if( mListener.isStopped() ) continue;
+
+                File file = found.file;
+                long start = System.nanoTime();
+                RomHeader header = mHeaders.read( file );
+                mStatistics.addTime( ScanStatistics.Stage.SNIFF, start );
+                if( header.isValid )
+                {
+                    put( mHashQueue, new ScanJob( file, false, null ) );
+                    continue;
+                }
+
+                if( header.isZip && found.root.searchZips )
+                {
+                    List<RomZipIndex.Entry> entries = mZipIndex.get( file );
+                    if( entries == null )
+                    {
+                        Log.i( "RomScanPipeline", "Found zip file " + file.getName() );
+                        put( mHashQueue, new ScanJob( file, true, null ) );
+                        continue;
+                    }
+
+                    mStatistics.add( ScanStatistics.Counter.ZIP_INDEX_HITS, 1 );
+                    if( !entries.isEmpty() && !mPathIndex.containsZip( file.getAbsolutePath() ) )
+                    {
+                        put( mHashQueue, new ScanJob( file, true, entries ) );
+                        continue;
+                    }
+                }
+
+                // Nothing to hash, just let the writer account for it
+                put( mWriteQueue, new ScanResult( file ) );
+            }
+
+            for( int i = 0; i < mNumWorkers; i++ )
+                put( mHashQueue, END_OF_JOBS );
+        }
+    }
+
+    /**
+     * Computes the MD5 of ROMs and extracts the ROMs contained in zip files.
+     */
+    private class HashStage implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+
+            ScanJob job;
+            while( ( job = take( mHashQueue ) ) != END_OF_JOBS )
+            {
+                if( mListener.isStopped() ) continue;
+
+                ScanResult result = new ScanResult( job.file );
+                if( job.zipEntries != null )
+                    lookupZip( job.file, job.zipEntries, result );
+                else if( job.isZip )
+                    hashZip( job.file, result );
+                else
+                    result.roms.add( hashRom( job.file ) );
+
+                put( mWriteQueue, result );
+            }
+
+            put( mWriteQueue, END_OF_RESULTS );
+        }
+
+        /**
+         * Gets the ROMs of a zip file that has not changed since it was indexed.
+         */
+        private void lookupZip( File file, List<RomZipIndex.Entry> entries, ScanResult result )
+        {
+            for( RomZipIndex.Entry entry : entries )
+            {
+                File romPath = new File( mUnzipDir, new File( entry.name ).getName() );
+                result.roms.add( lookupRom( entry.md5, romPath, file, entry.getHeader() ) );
+            }
+        }
+
+        private void hashZip( File file, ScanResult result )
+        {
+            // Stat the file before reading it, so that a change made while it is read is caught
+            // by the next scan
+            long size = file.length();
+            long lastModified = file.lastModified();
+            List<RomZipIndex.Entry> indexEntries = new ArrayList<RomZipIndex.Entry>();
+            boolean complete = true;
+            try
+            {
+                long start = System.nanoTime();
+                ZipFile zipFile = new ZipFile( file );
+                mStatistics.addTime( ScanStatistics.Stage.ZIP, start );
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while( entries.hasMoreElements() )
+                {
+                    try
+                    {
+                        ZipEntry zipEntry = entries.nextElement();
+
+                        if( mListener.isStopped() )
+                        {
+                            complete = false;
+                            break;
+                        }
+
+                        RomInfo rom = hashZipEntry( zipFile, zipEntry, file, lastModified, indexEntries );
+                        if( rom != null )
+                            result.roms.add( rom );
+                    }
+                    catch( IOException|IllegalArgumentException e )
+                    {
+                        Log.w( "RomScanPipeline", e );
+                        complete = false;
+                    }
+                }
+                zipFile.close();
+
+                if( complete )
+                    mZipIndex.put( file, size, lastModified, indexEntries );
+            }
+            catch( IOException|ArrayIndexOutOfBoundsException e )
+            {
+                Log.w( "RomScanPipeline", e );
+            }
+        }
+
+        /**
+         * Sniffs the header and computes the MD5 of a zip entry in a single pass over the
+         * inflated data, nothing is written to disk.
+         *
+         * @param lastModified The last modified time of the zip file before it was opened.
+         * @param indexEntries Receives the entry if it is a ROM.
+         *
+         * @return The ROM info, or null if the entry is not a ROM.
+         */
+        private RomInfo hashZipEntry( ZipFile zipFile, ZipEntry zipEntry, File file, long lastModified,
+                List<RomZipIndex.Entry> indexEntries ) throws IOException
+        {
+            long start = System.nanoTime();
+            File romPath;
+            RomHeader header;
+            String md5;
+            InputStream zipStream = new BufferedInputStream( zipFile.getInputStream( zipEntry ) );
+            try
+            {
+                byte[] buffer = new byte[0x40];
+                zipStream.mark( buffer.length );
+                int offset = 0;
+                int n;
+                while( offset < buffer.length && ( n = zipStream.read( buffer, offset, buffer.length - offset ) ) > 0 )
+                    offset += n;
+                zipStream.reset();
+
+                mStatistics.add( ScanStatistics.Counter.ZIP_BYTES_INFLATED, offset );
+                if( offset < buffer.length )
+                    return null;
+
+                header = new RomHeader( buffer );
+                if( !header.isValid )
+                    return null;
+
+                // Store the location the ROM will be extracted to when it is played
+                romPath = new File( mUnzipDir, new File( zipEntry.getName() ).getName() );
+
+                md5 = mFingerprints.getMd5( file, zipEntry );
+                if( md5 == null )
+                {
+                    md5 = ComputeMd5Task.computeMd5( zipStream );
+                    if( md5 == null )
+                        throw new IOException( "Unable to hash " + zipEntry.getName() + " in " + file );
+                    mFingerprints.put( file, zipEntry, lastModified, md5 );
+                    mStatistics.add( ScanStatistics.Counter.FINGERPRINT_MISSES, 1 );
+                    if( zipEntry.getSize() > 0 )
+                    {
+                        mStatistics.add( ScanStatistics.Counter.ZIP_BYTES_INFLATED, zipEntry.getSize() - offset );
+                        mStatistics.add( ScanStatistics.Counter.BYTES_HASHED, zipEntry.getSize() );
+                    }
+                }
+                else
+                {
+                    mStatistics.add( ScanStatistics.Counter.FINGERPRINT_HITS, 1 );
+                }
+
+                indexEntries.add( new RomZipIndex.Entry( zipEntry.getName(), zipEntry.getSize(),
+                        zipEntry.getCrc(), buffer.clone(), md5 ) );
+            }
+            finally
+            {
+                zipStream.close();
+                mStatistics.addTime( ScanStatistics.Stage.ZIP, start );
+            }
+            return lookupRom( md5, romPath, file, header );
+        }
+
+        private RomInfo hashRom( File file )
+        {
+            String md5 = mFingerprints.getMd5( file );
+            if( md5 == null )
+            {
+                // Stat the file before hashing it, so that a change made while it is hashed is
+                // caught by the next scan
+                long size = file.length();
+                long lastModified = file.lastModified();
+                long start = System.nanoTime();
+                md5 = ComputeMd5Task.computeMd5( file );
+                mStatistics.addTime( ScanStatistics.Stage.HASH, start );
+                mStatistics.add( ScanStatistics.Counter.BYTES_HASHED, size );
+                mStatistics.add( ScanStatistics.Counter.FINGERPRINT_MISSES, 1 );
+                mFingerprints.put( file, size, lastModified, md5 );
+            }
+            else
+            {
+                mStatistics.add( ScanStatistics.Counter.FINGERPRINT_HITS, 1 );
+            }
+            return lookupRom( md5, file, null, mHeaders.read( file ) );
+        }
+
+        private RomInfo lookupRom( String md5, File romPath, File zipFileLocation, RomHeader header )
+        {
+            if( md5 == null )
+                return new RomInfo( null, romPath, zipFileLocation, header, null );
+
+            long start = System.nanoTime();
+            RomDetail detail = mDatabase.lookupByMd5WithFallback( md5, romPath, header.crc, header.countryCode );
+            mStatistics.addTime( ScanStatistics.Stage.LOOKUP, start );
+            mStatistics.add( ScanStatistics.Counter.ROMS_FOUND, 1 );
+            return new RomInfo( md5, romPath, zipFileLocation, header, detail );
+        }
+    }
+
+    /**
+     * Stores the results of the hashing stage in the config file.
+     */
+    private class WriteStage implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+
+            int finishedWorkers = 0;
+            while( finishedWorkers < mNumWorkers )
+            {
+                ScanResult result = take( mWriteQueue );
+                if( result == END_OF_RESULTS )
+                {
+                    finishedWorkers++;
+                    continue;
+                }
+
+                if( mListener.isStopped() ) continue;
+
+                long start = System.nanoTime();
+                for( RomInfo rom : result.roms )
+                    cacheRom( rom );
+                mStatistics.addTime( ScanStatistics.Stage.WRITE, start );
+                mStatistics.add( ScanStatistics.Counter.FILES_PROCESSED, 1 );
+
+                mListener.onFileProcessed( result.file );
+            }
+        }
+
+        private void cacheRom( RomInfo rom )
+        {
+            if( rom.md5 == null )
+                return;
+
+            String md5 = rom.md5;
+            String artPath = mArtDir + "/" + rom.detail.artName;
+            String romPath = rom.romPath.getAbsolutePath();
+            String zipPath = rom.zipFile == null ? "" : rom.zipFile.getAbsolutePath();
+            mConfig.put( md5, "goodName", rom.detail.goodName );
+            if( rom.detail.baseName != null && rom.detail.baseName.length() != 0 )
+                mConfig.put( md5, "baseName", rom.detail.baseName );
+            mConfig.put( md5, "romPath", romPath );
+            mConfig.put( md5, "zipPath", zipPath );
+            mConfig.put( md5, "artPath", artPath );
+            mConfig.put( md5, "crc", rom.header.crc );
+            mConfig.put( md5, "headerName", rom.header.name );
+
+            String countryCodeString = Byte.toString( rom.header.countryCode.getValue() );
+            mConfig.put( md5, "countryCode", countryCodeString );
+
+            // The extracted copy of a zipped ROM stays valid as long as the MD5 is the same
+            if( mConfig.get( md5, "extracted" ) == null )
+                mConfig.put( md5, "extracted", "false" );
+            mPathIndex.put( md5, romPath, zipPath );
+            mCachedMd5s.add( md5 );
+        }
+    }
+
+    private static <T> T take( BlockingQueue<T> queue )
+    {
+        while( true )
+        {
+            try
+            {
+                return queue.take();
+            }
+            catch( InterruptedException e )
+            {
+                // Keep going, the end of stream markers are always delivered
+                Log.w( "RomScanPipeline", e );
+            }
+        }
+    }
+
+    private static <T> void put( BlockingQueue<T> queue, T item )
+    {
+        while( true )
+        {
+            try
+            {
+                queue.put( item );
+                return;
+            }
+            catch( InterruptedException e )
+            {
+                // Keep going, dropping an end of stream marker would hang the pipeline
+                Log.w( "RomScanPipeline", e );
+            }
+        }
+    }
+
+    /**
+     * A file that needs to go through the hashing stage.
+     */
+    private static class ScanJob
+    {
+        public final File file;
+        public final boolean isZip;
+
+        /** The ROMs of the zip file if they are indexed, null if the zip file must be read. */
+        public final List<RomZipIndex.Entry> zipEntries;
+
+        public ScanJob( File file, boolean isZip, List<RomZipIndex.Entry> zipEntries )
+        {
+            this.file = file;
+            this.isZip = isZip;
+            this.zipEntries = zipEntries;
+        }
+    }
+
+    /**
+     * All the ROMs found in a single file, zip files can contain more than one.
+     */
+    private static class ScanResult
+    {
+        public final File file;
+        public final List<RomInfo> roms = new ArrayList<RomInfo>();
+
+        public ScanResult( File file )
+        {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Everything the writer needs to know about a ROM.
+     */
+    private static class RomInfo
+    {
+        public final String md5;
+        public final File romPath;
+        public final File zipFile;
+        public final RomHeader header;
+        public final RomDetail detail;
+
+        public RomInfo( String md5, File romPath, File zipFile, RomHeader header, RomDetail detail )
+        {
+            this.md5 = md5;
+            this.romPath = romPath;
+            this.zipFile = zipFile;
+            this.header = header;
+            this.detail = detail;
+        }
+    }
+}
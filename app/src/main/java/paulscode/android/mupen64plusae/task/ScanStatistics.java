@@ -0,0 +1,260 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.task;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings and counters of a ROM scan, used to find out where the time of a slow scan goes. Every
+ * method is thread safe, so the stages of the scan can all record into the same instance.
+ * <p>
+ * The time of a stage is the sum of the time spent in it by every thread, so stages that run on
+ * several threads at once can add up to more than the duration of the scan.
+ */
+public class ScanStatistics
+{
+    /**
+     * The stages of a scan.
+     */
+    public enum Stage
+    {
+        /** Listing the files of the search directory. */
+        WALK,
+
+        /** Reading the header of every file found. */
+        SNIFF,
+
+        /** Computing the MD5 of ROM files. */
+        HASH,
+
+        /** Reading zip directories, and inflating and hashing the ROMs they contain. */
+        ZIP,
+
+        /** Looking up ROMs in the ROM database. */
+        LOOKUP,
+
+        /** Storing the ROMs in the ROM info config file. */
+        WRITE,
+
+        /** Removing the ROMs that no longer exist from the config file. */
+        CLEANUP,
+
+        /** Downloading the cover art. */
+        ART,
+
+        /** Saving the config file. */
+        SAVE
+    }
+
+    /**
+     * The quantities counted during a scan.
+     */
+    public enum Counter
+    {
+        /** Files found by the directory walk. */
+        FILES_FOUND,
+
+        /** Files that went through every stage of the pipeline. */
+        FILES_PROCESSED,
+
+        /** ROMs found, including the ones inside zip files. */
+        ROMS_FOUND,
+
+        /** Bytes read to compute MD5s, after inflation for zipped ROMs. */
+        BYTES_HASHED,
+
+        /** Bytes inflated from zip files. */
+        ZIP_BYTES_INFLATED,
+
+        /** MD5s found in the fingerprint index. */
+        FINGERPRINT_HITS,
+
+        /** MD5s that had to be computed. */
+        FINGERPRINT_MISSES,
+
+        /** Zip files found unchanged in the zip index, and not opened. */
+        ZIP_INDEX_HITS,
+
+        /** ROM headers read from storage. */
+        HEADERS_READ,
+
+        /** Cover art downloaded. */
+        ART_DOWNLOADED,
+
+        /** Cover art that was already up to date. */
+        ART_NOT_MODIFIED,
+
+        /** Cover art that could not be downloaded. */
+        ART_FAILED
+    }
+
+    private final long mStartTime = System.currentTimeMillis();
+    private final long mStartNanos = System.nanoTime();
+    private volatile long mEndNanos = 0;
+    private final AtomicLongArray mStageNanos = new AtomicLongArray( Stage.values().length );
+    private final AtomicLongArray mCounters = new AtomicLongArray( Counter.values().length );
+
+    /**
+     * Adds the time elapsed since a call to {@link System#nanoTime()} to a stage.
+     *
+     * @param stage The stage the time was spent in.
+     * @param startNanos The value of {@link System#nanoTime()} when the work started.
+     */
+    public void addTime( Stage stage, long startNanos )
+    {
+        mStageNanos.addAndGet( stage.ordinal(), System.nanoTime() - startNanos );
+    }
+
+    public void add( Counter counter, long amount )
+    {
+        mCounters.addAndGet( counter.ordinal(), amount );
+    }
+
+    public long get( Counter counter )
+    {
+        return mCounters.get( counter.ordinal() );
+    }
+
+    /**
+     * Returns the time spent in a stage, in milliseconds.
+     */
+    public long getTimeMs( Stage stage )
+    {
+        return mStageNanos.get( stage.ordinal() ) / 1000000;
+    }
+
+    /**
+     * Marks the end of the scan, later rates are computed up to this point.
+     */
+    public void finish()
+    {
+        mEndNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the time since the scan started, or the duration of the scan once it finished.
+     */
+    public long getElapsedMs()
+    {
+        final long endNanos = mEndNanos == 0 ? System.nanoTime() : mEndNanos;
+        return ( endNanos - mStartNanos ) / 1000000;
+    }
+
+    public double getFilesPerSecond()
+    {
+        return perSecond( get( Counter.FILES_PROCESSED ) );
+    }
+
+    public double getBytesHashedPerSecond()
+    {
+        return perSecond( get( Counter.BYTES_HASHED ) );
+    }
+
+    private double perSecond( long amount )
+    {
+        final long elapsedMs = getElapsedMs();
+        return elapsedMs == 0 ? 0 : amount * 1000.0 / elapsedMs;
+    }
+
+    /**
+     * Writes the statistics as a JSON object.
+     *
+     * @param file The report file, replaced if it already exists.
+     * @param stopped True if the scan was cancelled.
+     */
+    public void writeReport( File file, boolean stopped )
+    {
+        final File tempFile = new File( file.getPath() + ".tmp" );
+        try
+        {
+            final JSONObject stages = new JSONObject();
+            for( Stage stage : Stage.values() )
+                stages.put( toKey( stage.name() ), getTimeMs( stage ) );
+
+            final JSONObject counters = new JSONObject();
+            for( Counter counter : Counter.values() )
+                counters.put( toKey( counter.name() ), get( counter ) );
+
+            final JSONObject report = new JSONObject();
+            report.put( "startTime", mStartTime );
+            report.put( "elapsedMs", getElapsedMs() );
+            report.put( "stopped", stopped );
+            report.put( "stageMs", stages );
+            report.put( "counters", counters );
+            report.put( "filesPerSecond", getFilesPerSecond() );
+            report.put( "bytesHashedPerSecond", getBytesHashedPerSecond() );
+
+            final Writer writer = new FileWriter( tempFile );
+            try
+            {
+                writer.write( report.toString( 2 ) );
+            }
+            finally
+            {
+                writer.close();
+            }
+
+            if( !tempFile.renameTo( file ) )
+                Log.w( "ScanStatistics", "Unable to replace scan report " + file );
+        }
+        catch( IOException|JSONException e )
+        {
+            Log.w( "ScanStatistics", "Unable to write scan report " + file, e );
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Turns an enum constant name such as FILES_FOUND into filesFound.
+     */
+    private static String toKey( String name )
+    {
+        final StringBuilder key = new StringBuilder();
+        for( String word : name.toLowerCase( Locale.US ).split( "_" ) )
+        {
+            if( key.length() == 0 )
+                key.append( word );
+            else
+                key.append( Character.toUpperCase( word.charAt( 0 ) ) ).append( word.substring( 1 ) );
+        }
+        return key.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append( String.format( Locale.US, "elapsed=%dms", getElapsedMs() ) );
+        for( Stage stage : Stage.values() )
+            builder.append( String.format( Locale.US, " %s=%dms", toKey( stage.name() ), getTimeMs( stage ) ) );
+        for( Counter counter : Counter.values() )
+            builder.append( String.format( Locale.US, " %s=%d", toKey( counter.name() ), get( counter ) ) );
+        return builder.toString();
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.task.ComputeMd5Task;
+
+/**
+ * Keeps the ROMs extracted from zip files so that they can be played. ROMs are only extracted when
+ * they are launched, and are kept afterwards so that the next launch starts right away. The cache
+ * has a size budget; the ROMs played least recently are deleted first to stay within it.
+ * <p>
+ * The ROM info config file records which ROMs are extracted ("extracted") and when they were last
+ * played ("lastPlayed"). A ROM is extracted to a temporary file and only moved in place once its
+ * MD5 matches, so the cache never holds a partial or corrupt ROM.
+ * <p>
+ * This class is not thread safe, and the caller saves the config file.
+ */
+public class ExtractedRomCache
+{
+    /** Suffix of the files ROMs are extracted to before they are verified. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** Age after which a temporary file is considered left behind by an interrupted extraction. */
+    private static final long STALE_TEMP_FILE_MS = 60 * 60 * 1000;
+
+    /** Free space left on the storage device after a ROM is extracted. */
+    private static final long FREE_SPACE_MARGIN = 16 * 1024 * 1024;
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param dir The directory ROMs are extracted to.
+     * @param maxBytes The size budget of the cache, zero to only keep the ROM being played.
+     */
+    public ExtractedRomCache( String dir, long maxBytes )
+    {
+        mDir = new File( dir );
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the extracted copy of a zipped ROM, extracting it first if it is not cached. Room
+     * is made for the ROM before it is extracted.
+     *
+     * @param config The ROM info config file.
+     * @param md5 The MD5 of the ROM.
+     * @param romPath The path of the ROM in the config file, its name is kept.
+     * @param zipPath The path of the zip file containing the ROM.
+     * @param zipIndex Index of the zip files, to find the entry without searching the zip file.
+     *
+     * @return The extracted ROM, or null if it could not be extracted.
+     */
+    public File get( ConfigFile config, String md5, String romPath, String zipPath, RomZipIndex zipIndex )
+    {
+        final File romFile = getFile( romPath );
+        if( "true".equals( config.get( md5, "extracted" ) ) && romFile.isFile() )
+            return romFile;
+
+        FileUtil.makeDirs( mDir.getPath() );
+        ZipFile zipFile = null;
+        try
+        {
+            zipFile = new ZipFile( zipPath );
+
+            // Go straight to the entry if the zip file is indexed, search every entry otherwise
+            final RomZipIndex.Entry indexEntry = zipIndex.find( new File( zipPath ), md5 );
+            if( indexEntry != null )
+            {
+                final ZipEntry zipEntry = zipFile.getEntry( indexEntry.name );
+                if( zipEntry != null && zipEntry.getCrc() == indexEntry.crc
+                        && extract( config, md5, zipFile, zipEntry, romFile ) )
+                {
+                    return romFile;
+                }
+            }
+
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while( entries.hasMoreElements() )
+            {
+                final ZipEntry zipEntry = entries.nextElement();
+                if( !zipEntry.isDirectory() && extract( config, md5, zipFile, zipEntry, romFile ) )
+                    return romFile;
+            }
+            Log.w( "ExtractedRomCache", "ROM " + md5 + " not found in " + zipPath );
+        }
+        catch( IOException|IllegalArgumentException e )
+        {
+            Log.w( "ExtractedRomCache", e );
+        }
+        finally
+        {
+            if( zipFile != null )
+            {
+                try
+                {
+                    zipFile.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the ROMs played least recently until the cache fits its budget, and the temporary
+     * files left by interrupted extractions. The ROM launched last is always kept, since it may be
+     * the one being played.
+     *
+     * @param config The ROM info config file.
+     */
+    public void trim( ConfigFile config )
+    {
+        final File[] files = mDir.listFiles();
+        if( files != null )
+        {
+            final long staleTime = System.currentTimeMillis() - STALE_TEMP_FILE_MS;
+            for( File file : files )
+            {
+                if( file.getName().endsWith( TEMP_SUFFIX ) && file.lastModified() < staleTime )
+                    file.delete();
+            }
+        }
+
+        final List<CachedRom> roms = getCachedRoms( config, null );
+        if( !roms.isEmpty() )
+            roms.remove( roms.size() - 1 );
+        evict( config, roms, 0 );
+    }
+
+    /**
+     * Extracts a zip entry if it is the ROM, verifying its MD5 as it is written.
+     *
+     * @return True if the entry is the ROM and it was extracted.
+     */
+    private boolean extract( ConfigFile config, String md5, ZipFile zipFile, ZipEntry zipEntry, File romFile )
+            throws IOException
+    {
+        final InputStream zipStream = new BufferedInputStream( zipFile.getInputStream( zipEntry ) );
+        try
+        {
+            // Skip the entries that are not ROMs without inflating them
+            final byte[] buffer = new byte[RomHeader.SIZE];
+            zipStream.mark( buffer.length );
+            int offset = 0;
+            int n;
+            while( offset < buffer.length && ( n = zipStream.read( buffer, offset, buffer.length - offset ) ) > 0 )
+                offset += n;
+            zipStream.reset();
+            if( offset < buffer.length || !new RomHeader( buffer ).isValid )
+                return false;
+
+            if( !reserve( config, md5, romFile, zipEntry.getSize() ) )
+            {
+                Log.w( "ExtractedRomCache", "Not enough space to extract " + zipEntry.getName() );
+                return false;
+            }
+
+            Log.i( "ExtractedRomCache", "Extracting " + zipEntry.getName() + " to " + romFile );
+            final File tempFile = new File( romFile.getPath() + TEMP_SUFFIX );
+            final OutputStream outStream = new BufferedOutputStream( new FileOutputStream( tempFile ) );
+            String computedMd5;
+            try
+            {
+                computedMd5 = ComputeMd5Task.computeMd5( new TeeInputStream( zipStream, outStream ) );
+            }
+            finally
+            {
+                try
+                {
+                    outStream.close();
+                }
+                catch( IOException e )
+                {
+                    computedMd5 = null;
+                }
+            }
+
+            // Replace the old file in one step so that a crash never leaves a partial ROM behind
+            if( computedMd5 == null || !computedMd5.equalsIgnoreCase( md5 ) || !tempFile.renameTo( romFile ) )
+            {
+                tempFile.delete();
+                return false;
+            }
+        }
+        finally
+        {
+            zipStream.close();
+        }
+
+        // Another zipped ROM may have been extracted to the same file
+        for( CachedRom rom : getCachedRoms( config, null ) )
+        {
+            if( rom.file.equals( romFile ) )
+                config.put( rom.md5, "extracted", "false" );
+        }
+        config.put( md5, "extracted", "true" );
+        return true;
+    }
+
+    /**
+     * Deletes the ROMs played least recently until a ROM fits in the budget and on the storage
+     * device.
+     *
+     * @return True if there is enough free space on the storage device to extract the ROM.
+     */
+    private boolean reserve( ConfigFile config, String md5, File romFile, long size )
+    {
+        final long romSize = Math.max( size, 0 );
+        evict( config, getCachedRoms( config, romFile ), romSize );
+        return mDir.getUsableSpace() >= romSize + FREE_SPACE_MARGIN;
+    }
+
+    private void evict( ConfigFile config, List<CachedRom> roms, long reservedBytes )
+    {
+        long usedBytes = reservedBytes;
+        for( CachedRom rom : roms )
+            usedBytes += rom.size;
+
+        for( CachedRom rom : roms )
+        {
+            if( usedBytes <= mMaxBytes && mDir.getUsableSpace() >= reservedBytes + FREE_SPACE_MARGIN )
+                break;
+
+            Log.i( "ExtractedRomCache", "Evicting " + rom.file );
+            rom.file.delete();
+            config.put( rom.md5, "extracted", "false" );
+            usedBytes -= rom.size;
+        }
+    }
+
+    /**
+     * Returns the extracted ROMs, played least recently first. Entries whose file is gone are
+     * marked as not extracted.
+     *
+     * @param excludedFile A file to leave out, null to list every ROM.
+     */
+    private List<CachedRom> getCachedRoms( ConfigFile config, File excludedFile )
+    {
+        final List<CachedRom> roms = new ArrayList<CachedRom>();
+        for( String md5 : config.keySet() )
+        {
+            if( ConfigFile.SECTIONLESS_NAME.equals( md5 ) || !"true".equals( config.get( md5, "extracted" ) )
+                    || TextUtils.isEmpty( config.get( md5, "zipPath" ) ) )
+            {
+                continue;
+            }
+
+            final File file = getFile( config.get( md5, "romPath" ) );
+            if( !file.isFile() )
+            {
+                config.put( md5, "extracted", "false" );
+                continue;
+            }
+
+            if( !file.equals( excludedFile ) )
+                roms.add( new CachedRom( md5, file, SafeMethods.toInt( config.get( md5, "lastPlayed" ), 0 ) ) );
+        }
+
+        Collections.sort( roms, new Comparator<CachedRom>()
+        {
+            @Override
+            public int compare( CachedRom rom1, CachedRom rom2 )
+            {
+                return rom1.lastPlayed < rom2.lastPlayed ? -1 : ( rom1.lastPlayed == rom2.lastPlayed ? 0 : 1 );
+            }
+        } );
+        return roms;
+    }
+
+    /**
+     * Returns where a ROM is extracted to. Only the name of the ROM path is used, so that the
+     * cache still works after the directory moved.
+     */
+    private File getFile( String romPath )
+    {
+        return new File( mDir, new File( romPath ).getName() );
+    }
+
+    /**
+     * An extracted ROM.
+     */
+    private static class CachedRom
+    {
+        public final String md5;
+        public final File file;
+        public final long size;
+        public final int lastPlayed;
+
+        public CachedRom( String md5, File file, int lastPlayed )
+        {
+            this.md5 = md5;
+            this.file = file;
+            this.size = file.length();
+            this.lastPlayed = lastPlayed;
+        }
+    }
+
+    /**
+     * Copies everything read from a stream to another stream.
+     */
+    private static class TeeInputStream extends FilterInputStream
+    {
+        private final OutputStream mOutStream;
+
+        public TeeInputStream( InputStream inStream, OutputStream outStream )
+        {
+            super( inStream );
+            mOutStream = outStream;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            final int b = super.read();
+            if( b >= 0 )
+                mOutStream.write( b );
+            return b;
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException
+        {
+            final int n = super.read( buffer, offset, length );
+            if( n > 0 )
+                mOutStream.write( buffer, offset, n );
+            return n;
+        }
+
+        @Override
+        public long skip( long n ) throws IOException
+        {
+            // Skipped bytes would be missing from the copy
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Utility class that converts ROM images to the native (.z64, big endian) byte order.
+ * <ul>
+ * <li>.z64 images start with 0x80 and are already in the native order.</li>
+ * <li>.v64 images start with 0x37 and have every 16-bit half word byte swapped.</li>
+ * <li>.n64 images start with 0x40 and have every 32-bit word byte swapped.</li>
+ * </ul>
+ * The swaps are done a whole word at a time through a view of the buffer, which is much faster
+ * than swapping individual bytes.
+ */
+public final class RomByteOrder
+{
+    /** Image is already in the native byte order. */
+    public static final int Z64 = 0;
+
+    /** Image has every half word byte swapped. */
+    public static final int V64 = 1;
+
+    /** Image has every word byte swapped. */
+    public static final int N64 = 2;
+
+    private RomByteOrder()
+    {
+    }
+
+    /**
+     * Detects the byte order of a ROM image from its first byte.
+     *
+     * @param firstByte The first byte of the image.
+     *
+     * @return {@link #Z64}, {@link #V64} or {@link #N64}.
+     */
+    public static int detect( byte firstByte )
+    {
+        switch( firstByte )
+        {
+            case 0x37:
+                return V64;
+            case 0x40:
+                return N64;
+            default:
+                return Z64;
+        }
+    }
+
+    /**
+     * Converts a ROM image buffer to the native byte order in place.
+     *
+     * @param buffer The image data.
+     */
+    public static void normalize( byte[] buffer )
+    {
+        if( buffer.length > 0 )
+            normalize( ByteBuffer.wrap( buffer ), detect( buffer[0] ) );
+    }
+
+    /**
+     * Converts the bytes between the position and the limit of a buffer to the native byte order
+     * in place. The position and limit of the buffer are left untouched. Trailing bytes that don't
+     * make up a whole half word or word are not swapped.
+     *
+     * @param buffer The image data.
+     * @param byteOrder The byte order of the data, as returned by {@link #detect(byte)}.
+     */
+    public static void normalize( ByteBuffer buffer, int byteOrder )
+    {
+        if( byteOrder == V64 )
+        {
+            swapHalfWords( buffer.asIntBuffer() );
+
+            // Swap the last half word if the data is not a whole number of words
+            if( buffer.remaining() % 4 >= 2 )
+            {
+                ShortBuffer halfWords = buffer.asShortBuffer();
+                int last = halfWords.limit() - 1;
+                halfWords.put( last, Short.reverseBytes( halfWords.get( last ) ) );
+            }
+        }
+        else if( byteOrder == N64 )
+        {
+            swapWords( buffer.asIntBuffer() );
+        }
+    }
+
+    private static void swapHalfWords( IntBuffer words )
+    {
+        // Reversing a word and rotating it by 16 bits swaps the bytes of both half words in place
+        int count = words.limit();
+        for( int i = 0; i < count; i++ )
+            words.put( i, Integer.rotateLeft( Integer.reverseBytes( words.get( i ) ), 16 ) );
+    }
+
+    private static void swapWords( IntBuffer words )
+    {
+        int count = words.limit();
+        for( int i = 0; i < count; i++ )
+            words.put( i, Integer.reverseBytes( words.get( i ) ) );
+    }
+}
@@ -19,17 +19,12 @@
  */
 package paulscode.android.mupen64plusae.util;
 
-import android.text.TextUtils;
 import android.util.Log;
 
 import org.apache.commons.lang.NullArgumentException;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
-
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import java.util.List;
 
 /**
  * This class wraps the <a href=https://github.com/mupen64plus/mupen64plus-core/tree/master/data>ROM
@@ -90,15 +85,16 @@ import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
  * like URLs for the cover art and wiki entries.
  * 
  * @see RomHeader
+ * @see RomDatabaseIndex
  * @see assets/mupen64plus_data/mupen64plus.ini
  */
 public class RomDatabase
 {
-    private static final String ART_URL_TEMPLATE = "http://paulscode.com/downloads/Mupen64Plus-AE/CoverArt/%s";
+    /** Location of the cover art, the name of the art file is appended to it. */
+    private static final String ART_BASE_URL = "http://paulscode.com/downloads/Mupen64Plus-AE/CoverArt/";
     private static final String WIKI_URL_TEMPLATE = "https://github.com/mupen64plus-ae/mupen64plus-ae-meta/wiki/%s";
     
-    private ConfigFile mConfigFile = null;
-    private final HashMap<String, ArrayList<ConfigSection>> mCrcMap = new HashMap<String, ArrayList<ConfigSection>>();
+    private RomDatabaseIndex mIndex = null;
     
     private static RomDatabase instance = null;
     protected RomDatabase() {
@@ -111,31 +107,43 @@ public class RomDatabase
        return instance;
     }
     
+    /**
+     * Opens the ROM database. The ini file is compiled into an indexed binary file the first time
+     * it is used, and whenever it changes. Later runs just memory map the compiled file.
+     * 
+     * @param mupen64plusIni Path of the mupen64plus.ini file.
+     */
     public void setDatabaseFile( String mupen64plusIni )
     {
-        mConfigFile = new ConfigFile( mupen64plusIni );
-        for( String key : mConfigFile.keySet() )
-        {
-            ConfigSection section = mConfigFile.get( key );
-            if( section != null )
-            {
-                String crc = section.get( "CRC" );
-                if( crc != null )
-                {
-                    if( mCrcMap.get( crc ) == null )
-                        mCrcMap.put( crc, new ArrayList<ConfigSection>() );
-                    mCrcMap.get( crc ).add( section );
-                }
-            }
-        }
+        mIndex = RomDatabaseIndex.open( mupen64plusIni, mupen64plusIni + ".idx" );
     }
     
     public boolean hasDatabaseFile()
     {
-        return mConfigFile != null;
+        return mIndex != null;
+    }
+    
+    public String getArtBaseUrl()
+    {
+        return ART_BASE_URL;
     }
     
     public RomDetail lookupByMd5WithFallback( String md5, File file, String crc )
+    {
+        return lookupByMd5WithFallback( md5, file, crc, null );
+    }
+
+    /**
+     * Looks up a ROM by MD5, falling back to the CRC if the MD5 is not in the database.
+     *
+     * @param md5 MD5 of the ROM.
+     * @param file ROM file, used to generate a name if the ROM is not in the database.
+     * @param crc CRC of the ROM.
+     * @param countryCode Country code of the ROM if already known, or null to read it from the
+     *                    ROM header when the CRC is ambiguous.
+     * @return The ROM details, never null.
+     */
+    public RomDetail lookupByMd5WithFallback( String md5, File file, String crc, CountryCode countryCode )
     {
         RomDetail detail = lookupByMd5( md5 );
         if( detail == null )
@@ -143,13 +151,14 @@ public class RomDatabase
             RomDetail[] romDetails = lookupByCrc( crc );
             if(romDetails.length > 1)
             {
-                RomHeader romHeader = new RomHeader(file);
+                if(countryCode == null)
+                    countryCode = new RomHeader(file).countryCode;
                 int count = 0;
                 // CRC in the database more than once;
                 // Attempt to auto-select the correct match based on country code of rom
                 for(RomDetail romDetail : romDetails)
                 {
-                    if(romDetail.goodName.contains(romHeader.countryCode.toString())) {
+                    if(romDetail.goodName.contains(countryCode.toString())) {
                         detail = romDetail;
                         ++count;
                     }
@@ -195,21 +204,39 @@ public class RomDatabase
     }
 
     
+    /**
+     * Looks up a ROM by MD5.
+     * 
+     * @param md5 MD5 of the ROM.
+     * @return The ROM details, or null if the ROM is not in the database or the database could
+     *         not be opened.
+     */
     public RomDetail lookupByMd5( String md5 )
     {
-        ConfigSection section = mConfigFile.get( md5 );
-        return section == null ? null : new RomDetail( section );
+        if( mIndex == null )
+            return null;
+        
+        RomDatabaseIndex.Record record = mIndex.lookupByMd5( md5 );
+        return record == null ? null : new RomDetail( record );
     }
     
+    /**
+     * Looks up all the ROMs with a CRC.
+     * 
+     * @param crc CRC of the ROM.
+     * @return The ROM details, empty if the CRC is not in the database or the database could not
+     *         be opened.
+     */
     public RomDetail[] lookupByCrc( String crc )
     {
-        ArrayList<ConfigSection> sections = mCrcMap.get( crc );
-        if( sections == null )
+        if( mIndex == null )
             return new RomDetail[0];
         
-        RomDetail[] results = new RomDetail[sections.size()];
+        List<RomDatabaseIndex.Record> records = mIndex.lookupByCrc( crc );
+        
+        RomDetail[] results = new RomDetail[records.size()];
         for( int i = 0; i < results.length; i++ )
-            results[i] = new RomDetail( sections.get( i ) );
+            results[i] = new RomDetail( records.get( i ) );
         return results;
     }
     
@@ -226,19 +253,19 @@ public class RomDatabase
         public final int players;
         public final boolean rumble;
         
-        private RomDetail( ConfigSection section )
+        private RomDetail( RomDatabaseIndex.Record record )
         {
-            // Never pass a null section
-            if( section == null )
-                throw new NullArgumentException( "section" );
+            // Never pass a null record
+            if( record == null )
+                throw new NullArgumentException( "record" );
             
-            crc = section.get( "CRC" );
+            crc = record.crc;
             
             // Use an empty goodname (not null) for certain homebrew ROMs
             if( "00000000 00000000".equals( crc ) )
                 goodName = "";
             else
-                goodName = section.get( "GoodName" );
+                goodName = record.goodName;
             
             if( goodName != null )
             {
@@ -247,7 +274,7 @@ public class RomDatabase
                 
                 // Generate the cover art URL string
                 artName = baseName.replaceAll( "['\\.!]", "" ).replaceAll( "\\W+", "_" ) + ".png";
-                artUrl = String.format( ART_URL_TEMPLATE, artName );
+                artUrl = ART_BASE_URL + artName;
                 
                 // Generate wiki page URL string
                 String _wikiUrl = null;
@@ -266,21 +293,13 @@ public class RomDatabase
                 wikiUrl = null;
             }
             
-            // Some ROMs have multiple entries. Instead of duplicating common data, the ini file
-            // just references another entry.
-            String refMd5 = section.get( "RefMD5" );
-            if( !TextUtils.isEmpty( refMd5 ) )
-                section = mConfigFile.get( refMd5 );
-            
-            if( section != null )
+            // Some ROMs have multiple entries, the index already resolved the referenced entry.
+            if( record.hasReference )
             {
-                saveType = section.get( "SaveType" );
-                String statusString = section.get( "Status" );
-                String playersString = section.get( "Players" );
-                String rumbleString = section.get( "Rumble" );
-                status = TextUtils.isEmpty( statusString ) ? 0 : Integer.parseInt( statusString );
-                players = TextUtils.isEmpty( playersString ) ? 4 : Integer.parseInt( playersString );
-                rumble = TextUtils.isEmpty( rumbleString ) ? true : "Yes".equals( rumbleString );
+                saveType = record.saveType;
+                status = record.status;
+                players = record.players;
+                rumble = record.rumble;
             }
             else
             {
@@ -306,7 +325,7 @@ public class RomDatabase
             baseName = goodName.split( " \\(" )[0].trim();
             // Generate the cover art URL string
             artName = baseName.replaceAll( "['\\.!]", "" ).replaceAll( "\\W+", "_" ) + ".png";
-            artUrl = String.format( ART_URL_TEMPLATE, artName );
+            artUrl = ART_BASE_URL + artName;
 
             // Generate wiki page URL string
             String _wikiUrl = null;
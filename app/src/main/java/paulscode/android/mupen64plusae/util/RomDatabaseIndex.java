@@ -0,0 +1,579 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+
+/**
+ * Compiled, read-only form of the ROM database (mupen64plus.ini). The ini file is parsed once and
+ * compiled into a binary file next to it, which is memory mapped on every later run. Lookups are
+ * binary searches over the mapped file, nothing needs to be parsed or kept on the heap.
+ * <p>
+ * The compiled file is laid out as follows, all values are big endian:
+ * <ul>
+ * <li>Header: magic, version, size and last modified time of the ini file it was compiled from,
+ * number of MD5 entries, number of CRC entries, offset of the MD5 table, offset of the CRC
+ * table.</li>
+ * <li>MD5 table: 16 byte MD5 and record offset, sorted by MD5.</li>
+ * <li>CRC table: 64 bit CRC and record offset, sorted by CRC, entries with the same CRC are kept
+ * in the order they appear in the ini file.</li>
+ * <li>Records: offsets of the CRC, good name and save type strings, status, players, rumble and
+ * a flag telling whether the RefMD5 of the entry could be resolved. RefMD5 references are
+ * resolved at compile time.</li>
+ * <li>String pool: length prefixed UTF-8 strings, shared between records.</li>
+ * </ul>
+ * All methods are safe to call from multiple threads once the index is opened.
+ */
+public final class RomDatabaseIndex
+{
+    private static final int MAGIC = 0x4D363444; // "M64D"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int MD5_SIZE = 16;
+    private static final int MD5_ENTRY_SIZE = MD5_SIZE + 4;
+    private static final int CRC_ENTRY_SIZE = 8 + 4;
+    private static final int RECORD_SIZE = 4 * 5 + 2;
+
+    private static final int NO_STRING = -1;
+
+    private final ByteBuffer mBuffer;
+    private final int mMd5Count;
+    private final int mCrcCount;
+    private final int mMd5Table;
+    private final int mCrcTable;
+
+    /**
+     * The details of a ROM stored in the index.
+     */
+    public static class Record
+    {
+        public final String crc;
+        public final String goodName;
+        public final String saveType;
+        public final int status;
+        public final int players;
+        public final boolean rumble;
+
+        /** False if the entry refers to another entry (RefMD5) that does not exist. */
+        public final boolean hasReference;
+
+        private Record( String crc, String goodName, String saveType, int status, int players,
+                boolean rumble, boolean hasReference )
+        {
+            this.crc = crc;
+            this.goodName = goodName;
+            this.saveType = saveType;
+            this.status = status;
+            this.players = players;
+            this.rumble = rumble;
+            this.hasReference = hasReference;
+        }
+    }
+
+    private RomDatabaseIndex( ByteBuffer buffer )
+    {
+        mBuffer = buffer;
+        mMd5Count = buffer.getInt( 24 );
+        mCrcCount = buffer.getInt( 28 );
+        mMd5Table = buffer.getInt( 32 );
+        mCrcTable = buffer.getInt( 36 );
+    }
+
+    /**
+     * Opens the compiled form of a ROM database, compiling it first if it does not exist yet or
+     * if the ini file has changed since it was compiled.
+     *
+     * @param iniPath Path of the mupen64plus.ini file.
+     * @param indexPath Path of the compiled file.
+     *
+     * @return The index, or null if the ini file could not be read.
+     */
+    public static RomDatabaseIndex open( String iniPath, String indexPath )
+    {
+        File iniFile = new File( iniPath );
+        File indexFile = new File( indexPath );
+
+        ByteBuffer buffer = map( indexFile );
+        if( buffer != null && isCurrent( buffer, iniFile ) )
+            return new RomDatabaseIndex( buffer );
+
+        Log.i( "RomDatabaseIndex", "Compiling ROM database " + iniPath );
+        byte[] compiled = compile( iniFile );
+        if( compiled == null )
+            return null;
+
+        if( write( compiled, indexFile ) )
+        {
+            buffer = map( indexFile );
+            if( buffer != null && isCurrent( buffer, iniFile ) )
+                return new RomDatabaseIndex( buffer );
+        }
+
+        // Couldn't write or map the compiled file, just use it from the heap this time
+        return new RomDatabaseIndex( ByteBuffer.wrap( compiled ) );
+    }
+
+    /**
+     * Looks up a ROM by MD5.
+     *
+     * @param md5 MD5 of the ROM as a hex string.
+     *
+     * @return The ROM details, or null if not found.
+     */
+    public Record lookupByMd5( String md5 )
+    {
+        byte[] key = parseMd5( md5 );
+        if( key == null )
+            return null;
+
+        int low = 0;
+        int high = mMd5Count - 1;
+        while( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            int entry = mMd5Table + mid * MD5_ENTRY_SIZE;
+            int cmp = compareMd5( entry, key );
+            if( cmp < 0 )
+                low = mid + 1;
+            else if( cmp > 0 )
+                high = mid - 1;
+            else
+                return readRecord( mBuffer.getInt( entry + MD5_SIZE ) );
+        }
+        return null;
+    }
+
+    /**
+     * Looks up all the ROMs with a given CRC.
+     *
+     * @param crc CRC of the ROM, as two space separated hex words.
+     *
+     * @return The ROM details in database order, empty if not found.
+     */
+    public List<Record> lookupByCrc( String crc )
+    {
+        List<Record> results = new ArrayList<Record>();
+        long key;
+        try
+        {
+            key = parseCrc( crc );
+        }
+        catch( IllegalArgumentException e )
+        {
+            return results;
+        }
+
+        // Find the first entry with the given CRC
+        int low = 0;
+        int high = mCrcCount;
+        while( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+            if( mBuffer.getLong( mCrcTable + mid * CRC_ENTRY_SIZE ) < key )
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        for( int i = low; i < mCrcCount; i++ )
+        {
+            int entry = mCrcTable + i * CRC_ENTRY_SIZE;
+            if( mBuffer.getLong( entry ) != key )
+                break;
+
+            Record record = readRecord( mBuffer.getInt( entry + 8 ) );
+
+            // Keep the exact matching behavior of the ini file
+            if( crc.equals( record.crc ) )
+                results.add( record );
+        }
+        return results;
+    }
+
+    private Record readRecord( int offset )
+    {
+        String crc = readString( mBuffer.getInt( offset ) );
+        String goodName = readString( mBuffer.getInt( offset + 4 ) );
+        String saveType = readString( mBuffer.getInt( offset + 8 ) );
+        int status = mBuffer.getInt( offset + 12 );
+        int players = mBuffer.getInt( offset + 16 );
+        boolean rumble = mBuffer.get( offset + 20 ) != 0;
+        boolean hasReference = mBuffer.get( offset + 21 ) != 0;
+        return new Record( crc, goodName, saveType, status, players, rumble, hasReference );
+    }
+
+    private String readString( int offset )
+    {
+        if( offset == NO_STRING )
+            return null;
+
+        int length = mBuffer.getShort( offset ) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for( int i = 0; i < length; i++ )
+            bytes[i] = mBuffer.get( offset + 2 + i );
+        try
+        {
+            return new String( bytes, "UTF-8" );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            // UTF-8 is always supported
+            throw new RuntimeException( e );
+        }
+    }
+
+    private int compareMd5( int entry, byte[] key )
+    {
+        for( int i = 0; i < MD5_SIZE; i++ )
+        {
+            int a = mBuffer.get( entry + i ) & 0xFF;
+            int b = key[i] & 0xFF;
+            if( a != b )
+                return a < b ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private static boolean isCurrent( ByteBuffer buffer, File iniFile )
+    {
+        return buffer.capacity() >= HEADER_SIZE
+                && buffer.getInt( 0 ) == MAGIC
+                && buffer.getInt( 4 ) == VERSION
+                && buffer.getLong( 8 ) == iniFile.length()
+                && buffer.getLong( 16 ) == iniFile.lastModified();
+    }
+
+    private static ByteBuffer map( File indexFile )
+    {
+        if( !indexFile.exists() )
+            return null;
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile( indexFile, "r" );
+            FileChannel channel = file.getChannel();
+
+            // The mapping stays valid after the channel is closed
+            return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomDatabaseIndex", "Unable to map " + indexFile + ": " + e.getMessage() );
+            return null;
+        }
+        finally
+        {
+            if( file != null )
+            {
+                try
+                {
+                    file.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+
+    private static boolean write( byte[] compiled, File indexFile )
+    {
+        File tempFile = new File( indexFile.getPath() + ".tmp" );
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream( tempFile );
+            out.write( compiled );
+            out.close();
+            out = null;
+            return tempFile.renameTo( indexFile );
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomDatabaseIndex", "Unable to write " + indexFile + ": " + e.getMessage() );
+            return false;
+        }
+        finally
+        {
+            if( out != null )
+            {
+                try
+                {
+                    out.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Parses the ini file and builds the binary form of the database.
+     */
+    private static byte[] compile( File iniFile )
+    {
+        if( !iniFile.exists() )
+            return null;
+
+        ConfigFile config = new ConfigFile( iniFile.getPath() );
+        List<Md5Entry> md5Entries = new ArrayList<Md5Entry>();
+        List<CrcEntry> crcEntries = new ArrayList<CrcEntry>();
+        List<ConfigSection> records = new ArrayList<ConfigSection>();
+
+        for( String key : config.keySet() )
+        {
+            ConfigSection section = config.get( key );
+            byte[] md5 = parseMd5( key );
+            if( section == null || md5 == null )
+                continue;
+
+            int record = records.size();
+            records.add( section );
+            md5Entries.add( new Md5Entry( md5, record ) );
+
+            String crc = section.get( "CRC" );
+            if( crc != null )
+            {
+                try
+                {
+                    crcEntries.add( new CrcEntry( parseCrc( crc ), record ) );
+                }
+                catch( IllegalArgumentException e )
+                {
+                    Log.w( "RomDatabaseIndex", "Invalid CRC " + crc + " for " + key );
+                }
+            }
+        }
+
+        Collections.sort( md5Entries, new Comparator<Md5Entry>()
+        {
+            @Override
+            public int compare( Md5Entry lhs, Md5Entry rhs )
+            {
+                for( int i = 0; i < MD5_SIZE; i++ )
+                {
+                    int a = lhs.md5[i] & 0xFF;
+                    int b = rhs.md5[i] & 0xFF;
+                    if( a != b )
+                        return a < b ? -1 : 1;
+                }
+                return 0;
+            }
+        } );
+
+        // Collections.sort is stable, so entries with the same CRC keep their ini file order
+        Collections.sort( crcEntries, new Comparator<CrcEntry>()
+        {
+            @Override
+            public int compare( CrcEntry lhs, CrcEntry rhs )
+            {
+                return lhs.crc < rhs.crc ? -1 : ( lhs.crc == rhs.crc ? 0 : 1 );
+            }
+        } );
+
+        int md5Table = HEADER_SIZE;
+        int crcTable = md5Table + md5Entries.size() * MD5_ENTRY_SIZE;
+        int recordTable = crcTable + crcEntries.size() * CRC_ENTRY_SIZE;
+        int stringPool = recordTable + records.size() * RECORD_SIZE;
+
+        try
+        {
+            ByteArrayOutputStream strings = new ByteArrayOutputStream();
+            DataOutputStream stringsOut = new DataOutputStream( strings );
+            HashMap<String, Integer> stringOffsets = new HashMap<String, Integer>();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( stringPool );
+            DataOutputStream out = new DataOutputStream( bytes );
+
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( iniFile.length() );
+            out.writeLong( iniFile.lastModified() );
+            out.writeInt( md5Entries.size() );
+            out.writeInt( crcEntries.size() );
+            out.writeInt( md5Table );
+            out.writeInt( crcTable );
+
+            for( Md5Entry entry : md5Entries )
+            {
+                out.write( entry.md5 );
+                out.writeInt( recordTable + entry.record * RECORD_SIZE );
+            }
+
+            for( CrcEntry entry : crcEntries )
+            {
+                out.writeLong( entry.crc );
+                out.writeInt( recordTable + entry.record * RECORD_SIZE );
+            }
+
+            for( ConfigSection section : records )
+            {
+                out.writeInt( poolString( section.get( "CRC" ), stringPool, stringsOut, stringOffsets ) );
+                out.writeInt( poolString( section.get( "GoodName" ), stringPool, stringsOut, stringOffsets ) );
+
+                // Some ROMs have multiple entries. Instead of duplicating common data, the ini file
+                // just references another entry.
+                String refMd5 = section.get( "RefMD5" );
+                if( !TextUtils.isEmpty( refMd5 ) )
+                    section = config.get( refMd5 );
+
+                if( section != null )
+                {
+                    String statusString = section.get( "Status" );
+                    String playersString = section.get( "Players" );
+                    String rumbleString = section.get( "Rumble" );
+                    out.writeInt( poolString( section.get( "SaveType" ), stringPool, stringsOut, stringOffsets ) );
+                    out.writeInt( parseInt( statusString, 0 ) );
+                    out.writeInt( parseInt( playersString, 4 ) );
+                    out.writeByte( TextUtils.isEmpty( rumbleString ) || "Yes".equals( rumbleString ) ? 1 : 0 );
+                    out.writeByte( 1 );
+                }
+                else
+                {
+                    out.writeInt( NO_STRING );
+                    out.writeInt( 0 );
+                    out.writeInt( 4 );
+                    out.writeByte( 1 );
+                    out.writeByte( 0 );
+                }
+            }
+
+            out.flush();
+            stringsOut.flush();
+            strings.writeTo( bytes );
+            return bytes.toByteArray();
+        }
+        catch( IOException e )
+        {
+            // Writing to memory doesn't fail
+            Log.e( "RomDatabaseIndex", "Unable to compile ROM database", e );
+            return null;
+        }
+    }
+
+    private static int poolString( String value, int stringPool, DataOutputStream stringsOut,
+            HashMap<String, Integer> stringOffsets ) throws IOException
+    {
+        if( value == null )
+            return NO_STRING;
+
+        Integer offset = stringOffsets.get( value );
+        if( offset == null )
+        {
+            byte[] utf8 = value.getBytes( "UTF-8" );
+            offset = stringPool + stringsOut.size();
+            stringsOut.writeShort( utf8.length );
+            stringsOut.write( utf8 );
+            stringOffsets.put( value, offset );
+        }
+        return offset;
+    }
+
+    private static int parseInt( String value, int defaultValue )
+    {
+        if( TextUtils.isEmpty( value ) )
+            return defaultValue;
+
+        try
+        {
+            return Integer.parseInt( value );
+        }
+        catch( NumberFormatException e )
+        {
+            return defaultValue;
+        }
+    }
+
+    private static byte[] parseMd5( String md5 )
+    {
+        if( md5 == null || md5.length() != MD5_SIZE * 2 )
+            return null;
+
+        byte[] result = new byte[MD5_SIZE];
+        for( int i = 0; i < MD5_SIZE; i++ )
+        {
+            int high = Character.digit( md5.charAt( i * 2 ), 16 );
+            int low = Character.digit( md5.charAt( i * 2 + 1 ), 16 );
+            if( high < 0 || low < 0 )
+                return null;
+            result[i] = (byte) ( ( high << 4 ) | low );
+        }
+        return result;
+    }
+
+    private static long parseCrc( String crc )
+    {
+        if( crc == null )
+            throw new IllegalArgumentException( "CRC cannot be null" );
+
+        String[] words = crc.trim().split( "\\s+" );
+        if( words.length != 2 )
+            throw new IllegalArgumentException( "Invalid CRC: " + crc );
+
+        // NumberFormatException is an IllegalArgumentException
+        return ( Long.parseLong( words[0], 16 ) << 32 ) | Long.parseLong( words[1], 16 );
+    }
+
+    private static class Md5Entry
+    {
+        public final byte[] md5;
+        public final int record;
+
+        public Md5Entry( byte[] md5, int record )
+        {
+            this.md5 = md5;
+            this.record = record;
+        }
+    }
+
+    private static class CrcEntry
+    {
+        public final long crc;
+        public final int record;
+
+        public CrcEntry( long crc, int record )
+        {
+            this.crc = crc;
+            this.record = record;
+        }
+    }
+}
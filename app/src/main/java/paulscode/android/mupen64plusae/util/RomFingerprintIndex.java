@@ -0,0 +1,295 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * Persistent index of the MD5 of every ROM seen by the ROM scanner. Each entry is keyed by the
+ * absolute path of the ROM (or of the zip file plus the entry name) and remembers the size and
+ * last modified time the MD5 was computed for. As long as those still match, the ROM does not
+ * need to be hashed again.
+ * <p>
+ * The index is stored in a small binary file instead of a {@link paulscode.android.mupen64plusae.persistent.ConfigFile}
+ * because ROM paths commonly contain brackets, which are not allowed in section titles.
+ * <p>
+ * All methods are thread safe.
+ */
+public class RomFingerprintIndex
+{
+    /** Version of the file format, bump it when the format changes. */
+    private static final int VERSION = 1;
+
+    /** Separator between a zip file path and the name of one of its entries. */
+    private static final String ZIP_ENTRY_SEPARATOR = "!/";
+
+    /** Name of the index file. */
+    private final String mFilename;
+
+    /** Fingerprints mapped by path. */
+    private final HashMap<String, Fingerprint> mFingerprints = new HashMap<String, Fingerprint>();
+
+    /** Paths that were looked up or updated since the index was loaded. */
+    private final HashSet<String> mSeen = new HashSet<String>();
+
+    /**
+     * Loads the index from disk. A missing or unreadable file results in an empty index.
+     *
+     * @param filename The index file to read from and save to.
+     */
+    public RomFingerprintIndex( String filename )
+    {
+        mFilename = filename;
+        load();
+    }
+
+    /**
+     * Returns the MD5 of a ROM file if it has not changed since it was last hashed.
+     *
+     * @param file The ROM file.
+     *
+     * @return The MD5 of the ROM, or null if the file is new or has changed.
+     */
+    public synchronized String getMd5( File file )
+    {
+        return lookup( file.getAbsolutePath(), file.length(), file.lastModified() );
+    }
+
+    /**
+     * Returns the MD5 of a ROM inside a zip file if the zip file has not changed since the ROM was
+     * last hashed.
+     *
+     * @param zipFile The zip file containing the ROM.
+     * @param zipEntry The zip entry of the ROM.
+     *
+     * @return The MD5 of the ROM, or null if the entry is new or the zip file has changed.
+     */
+    public synchronized String getMd5( File zipFile, ZipEntry zipEntry )
+    {
+        return lookup( getKey( zipFile, zipEntry ), zipEntry.getSize(), zipFile.lastModified() );
+    }
+
+    /**
+     * Records the MD5 of a ROM file.
+     *
+     * @param file The ROM file.
+     * @param size The size of the file before it was hashed.
+     * @param lastModified The last modified time of the file before it was hashed.
+     * @param md5 The MD5 of the ROM.
+     */
+    public synchronized void put( File file, long size, long lastModified, String md5 )
+    {
+        String path = file.getAbsolutePath();
+        update( path, path, size, lastModified, md5 );
+    }
+
+    /**
+     * Records the MD5 of a ROM inside a zip file.
+     *
+     * @param zipFile The zip file containing the ROM.
+     * @param zipEntry The zip entry of the ROM.
+     * @param lastModified The last modified time of the zip file before it was read.
+     * @param md5 The MD5 of the ROM.
+     */
+    public synchronized void put( File zipFile, ZipEntry zipEntry, long lastModified, String md5 )
+    {
+        update( getKey( zipFile, zipEntry ), zipFile.getAbsolutePath(), zipEntry.getSize(), lastModified, md5 );
+    }
+
+    /**
+     * Saves the index back to disk. Entries that were not seen since the index was loaded are
+     * dropped if the file they refer to no longer exists.
+     *
+     * @return True if successful.
+     */
+    public synchronized boolean save()
+    {
+        if( TextUtils.isEmpty( mFilename ) )
+        {
+            Log.e( "RomFingerprintIndex", "Filename not specified in method save()" );
+            return false;
+        }
+
+        Iterator<Map.Entry<String, Fingerprint>> iter = mFingerprints.entrySet().iterator();
+        while( iter.hasNext() )
+        {
+            Map.Entry<String, Fingerprint> entry = iter.next();
+            if( !mSeen.contains( entry.getKey() ) && !new File( entry.getValue().file ).exists() )
+                iter.remove();
+        }
+
+        File indexFile = new File( mFilename );
+        File tempFile = new File( mFilename + ".tmp" );
+        FileUtil.makeDirs( indexFile.getParentFile().getPath() );
+
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ) ) );
+            out.writeInt( VERSION );
+            out.writeInt( mFingerprints.size() );
+            for( Map.Entry<String, Fingerprint> entry : mFingerprints.entrySet() )
+            {
+                Fingerprint fingerprint = entry.getValue();
+                out.writeUTF( entry.getKey() );
+                out.writeUTF( fingerprint.file );
+                out.writeLong( fingerprint.size );
+                out.writeLong( fingerprint.lastModified );
+                out.writeUTF( fingerprint.md5 );
+            }
+            out.close();
+            out = null;
+
+            // Replace the old index in one step so that a crash never leaves a partial file behind
+            if( !tempFile.renameTo( indexFile ) )
+            {
+                Log.e( "RomFingerprintIndex", "Unable to rename " + tempFile + " to " + indexFile );
+                return false;
+            }
+        }
+        catch( IOException e )
+        {
+            Log.e( "RomFingerprintIndex", "IOException writing file " + mFilename + ", error message: "
+                    + e.getMessage() );
+            return false;
+        }
+        finally
+        {
+            if( out != null )
+            {
+                try
+                {
+                    out.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+                tempFile.delete();
+            }
+        }
+
+        return true;
+    }
+
+    private void load()
+    {
+        if( TextUtils.isEmpty( mFilename ) )
+            return;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( mFilename ) ) );
+            if( in.readInt() != VERSION )
+                return;
+
+            int count = in.readInt();
+            for( int i = 0; i < count; i++ )
+            {
+                String key = in.readUTF();
+                String file = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String md5 = in.readUTF();
+                mFingerprints.put( key, new Fingerprint( file, size, lastModified, md5 ) );
+            }
+        }
+        catch( FileNotFoundException e )
+        {
+            // First scan, nothing to load
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomFingerprintIndex", "Index file could not be read: " + mFilename );
+            mFingerprints.clear();
+        }
+        finally
+        {
+            if( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+
+    private String lookup( String key, long size, long lastModified )
+    {
+        mSeen.add( key );
+        Fingerprint fingerprint = mFingerprints.get( key );
+        if( fingerprint != null && fingerprint.size == size && fingerprint.lastModified == lastModified )
+            return fingerprint.md5;
+        return null;
+    }
+
+    private void update( String key, String file, long size, long lastModified, String md5 )
+    {
+        mSeen.add( key );
+        if( md5 == null )
+            mFingerprints.remove( key );
+        else
+            mFingerprints.put( key, new Fingerprint( file, size, lastModified, md5 ) );
+    }
+
+    private static String getKey( File zipFile, ZipEntry zipEntry )
+    {
+        return zipFile.getAbsolutePath() + ZIP_ENTRY_SEPARATOR + zipEntry.getName();
+    }
+
+    /**
+     * The size and last modified time of a file when its MD5 was computed.
+     */
+    private static class Fingerprint
+    {
+        /** Path of the file on disk, the zip file for zip entries. */
+        public final String file;
+        public final long size;
+        public final long lastModified;
+        public final String md5;
+
+        public Fingerprint( String file, long size, long lastModified, String md5 )
+        {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+        }
+    }
+}
@@ -22,10 +22,12 @@ package paulscode.android.mupen64plusae.util;
 
 import android.util.Log;
 
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * Utility class for retrieving information
@@ -33,6 +35,19 @@ import java.io.IOException;
  */
 public final class RomHeader
 {
+    /** Size of the header in bytes. */
+    public static final int SIZE = 0x40;
+    
+    /** Buffer the header of a file is read into, one per thread since it is parsed right away. */
+    private static final ThreadLocal<ByteBuffer> sReadBuffer = new ThreadLocal<ByteBuffer>()
+    {
+        @Override
+        protected ByteBuffer initialValue()
+        {
+            return ByteBuffer.allocate( SIZE );
+        }
+    };
+    
     // @formatter:off
     public final byte init_PI_BSB_DOM1_LAT_REG;  // 0x00
     public final byte init_PI_BSB_DOM1_PGS_REG;  // 0x01
@@ -115,7 +130,7 @@ public final class RomHeader
         }
         else
         {
-            swapBytes( buffer );
+            RomByteOrder.normalize( buffer );
             init_PI_BSB_DOM1_LAT_REG = buffer[0x00];
             init_PI_BSB_DOM1_PGS_REG = buffer[0x01];
             init_PI_BSB_DOM1_PWD_REG = buffer[0x02];
@@ -151,22 +166,30 @@ public final class RomHeader
 
     private static byte[] readFile( File file )
     {
-        byte[] buffer = new byte[0x40];
-        DataInputStream in = null;
+        if( file == null )
+        {
+            Log.w( "RomHeader", "File does not exist: " + file );
+            return null;
+        }
+        
+        final ByteBuffer buffer = sReadBuffer.get();
+        buffer.clear();
+        FileInputStream in = null;
         try
         {
-            in = new DataInputStream( new FileInputStream( file ) );
-            in.read( buffer );
+            // Positional reads, the channel never has to track or seek a file position
+            in = new FileInputStream( file );
+            final FileChannel channel = in.getChannel();
+            while( buffer.hasRemaining() )
+            {
+                if( channel.read( buffer, buffer.position() ) <= 0 )
+                    break;
+            }
         }
         catch( IOException e )
         {
             Log.w( "RomHeader", "ROM file could not be read: " + file );
-            buffer = null;
-        }
-        catch( NullPointerException e )
-        {
-            Log.w( "RomHeader", "File does not exist: " + file );
-            buffer = null;
+            return null;
         }
         finally
         {
@@ -180,34 +203,11 @@ public final class RomHeader
                 Log.w( "RomHeader", "ROM file could not be closed: " + file );
             }
         }
-        return buffer;
-    }
-    
-    private static void swapBytes( byte[] buffer )
-    {
-        if( buffer[0] == 0x37 )
-        {
-            // Byteswap if .v64 image
-            for( int i = 0; i < buffer.length; i += 2 )
-            {
-                byte temp = buffer[i];
-                buffer[i] = buffer[i + 1];
-                buffer[i + 1] = temp;
-            }
-        }
-        else if( buffer[0] == 0x40 )
-        {
-            // Wordswap if .n64 image
-            for( int i = 0; i < buffer.length; i += 4 )
-            {
-                byte temp = buffer[i];
-                buffer[i] = buffer[i + 3];
-                buffer[i + 3] = temp;
-                temp = buffer[i + 1];
-                buffer[i + 1] = buffer[i + 2];
-                buffer[i + 2] = temp;
-            }
-        }
+        
+        // Files shorter than a header are padded with zeroes
+        final byte[] bytes = buffer.array();
+        Arrays.fill( bytes, buffer.position(), bytes.length, (byte) 0 );
+        return bytes;
     }
     
     private static int readInt( byte[] buffer, int start )
@@ -0,0 +1,79 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates {@link RomHeader}s and remembers them, so that the header of a ROM is only read from
+ * storage once even if several stages of a scan need it. A header is read again if the size or
+ * the modification time of its file changed. Create one reader per scan; it is thread safe.
+ */
+public final class RomHeaderReader
+{
+    private final ConcurrentHashMap<String, Entry> mHeaders = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger mReadCount = new AtomicInteger();
+
+    /**
+     * Returns the header of a ROM file, reading it only if it is not known yet.
+     *
+     * @param file The ROM file.
+     *
+     * @return The header, never null.
+     */
+    public RomHeader read( File file )
+    {
+        final String path = file.getPath();
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+
+        Entry entry = mHeaders.get( path );
+        if( entry == null || entry.length != length || entry.lastModified != lastModified )
+        {
+            mReadCount.incrementAndGet();
+            entry = new Entry( length, lastModified, new RomHeader( file ) );
+            mHeaders.put( path, entry );
+        }
+        return entry.header;
+    }
+
+    /**
+     * Returns the number of headers read from storage.
+     */
+    public int getReadCount()
+    {
+        return mReadCount.get();
+    }
+
+    private static class Entry
+    {
+        public final long length;
+        public final long lastModified;
+        public final RomHeader header;
+
+        public Entry( long length, long lastModified, RomHeader header )
+        {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.header = header;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.text.TextUtils;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+
+/**
+ * Maps the files of the ROM info config file to the MD5s of the ROMs they hold, so that the scan
+ * can find the ROMs of a file without going through every section. ROM files are mapped by their
+ * romPath, and zip files by their zipPath; the romPath of a zipped ROM is only where it gets
+ * extracted to, so it is not indexed. The index is thread safe.
+ */
+public class RomPathIndex
+{
+    /** MD5s of the ROMs that are not in a zip file, mapped by romPath. */
+    private final HashMap<String, String> mRomPaths = new HashMap<String, String>();
+
+    /** MD5s of the ROMs in each zip file, mapped by zipPath. */
+    private final HashMap<String, Set<String>> mZipPaths = new HashMap<String, Set<String>>();
+
+    /** Where each ROM is stored, mapped by MD5. */
+    private final HashMap<String, Location> mLocations = new HashMap<String, Location>();
+
+    /**
+     * Creates an empty index.
+     */
+    public RomPathIndex()
+    {
+    }
+
+    /**
+     * Indexes every ROM of a ROM info config file.
+     *
+     * @param config The ROM info config file.
+     */
+    public RomPathIndex( ConfigFile config )
+    {
+        for( String md5 : config.keySet() )
+        {
+            if( ConfigFile.SECTIONLESS_NAME.equals( md5 ) )
+                continue;
+
+            put( md5, config.get( md5, "romPath" ), config.get( md5, "zipPath" ) );
+        }
+    }
+
+    /**
+     * Adds a ROM, or moves it if it was already indexed somewhere else.
+     *
+     * @param md5 The MD5 of the ROM.
+     * @param romPath The path of the ROM file, or where it gets extracted to if it is zipped.
+     * @param zipPath The path of the zip file containing the ROM, null or empty if it isn't zipped.
+     */
+    public synchronized void put( String md5, String romPath, String zipPath )
+    {
+        remove( md5 );
+
+        final Location location = new Location( romPath, TextUtils.isEmpty( zipPath ) ? null : zipPath );
+        if( location.zipPath != null )
+        {
+            Set<String> md5s = mZipPaths.get( location.zipPath );
+            if( md5s == null )
+            {
+                md5s = new HashSet<String>();
+                mZipPaths.put( location.zipPath, md5s );
+            }
+            md5s.add( md5 );
+        }
+        else if( !TextUtils.isEmpty( romPath ) )
+        {
+            mRomPaths.put( romPath, md5 );
+        }
+        else
+        {
+            return;
+        }
+        mLocations.put( md5, location );
+    }
+
+    /**
+     * Removes a ROM.
+     *
+     * @param md5 The MD5 of the ROM.
+     */
+    public synchronized void remove( String md5 )
+    {
+        final Location location = mLocations.remove( md5 );
+        if( location == null )
+            return;
+
+        if( location.zipPath != null )
+        {
+            final Set<String> md5s = mZipPaths.get( location.zipPath );
+            md5s.remove( md5 );
+            if( md5s.isEmpty() )
+                mZipPaths.remove( location.zipPath );
+        }
+        else if( md5.equals( mRomPaths.get( location.romPath ) ) )
+        {
+            mRomPaths.remove( location.romPath );
+        }
+    }
+
+    /**
+     * Returns true if ROMs of a zip file are indexed.
+     */
+    public synchronized boolean containsZip( String zipPath )
+    {
+        return mZipPaths.containsKey( zipPath );
+    }
+
+    /**
+     * Returns the MD5s of the ROMs held by a ROM file or a zip file.
+     */
+    public synchronized Set<String> getMd5s( String path )
+    {
+        final Set<String> md5s = new HashSet<String>();
+        final String romMd5 = mRomPaths.get( path );
+        if( romMd5 != null )
+            md5s.add( romMd5 );
+        final Set<String> zipMd5s = mZipPaths.get( path );
+        if( zipMd5s != null )
+            md5s.addAll( zipMd5s );
+        return md5s;
+    }
+
+    /**
+     * Returns the MD5s of the ROMs held by the ROM and zip files inside a directory, at any
+     * depth.
+     */
+    public synchronized Set<String> getMd5sUnder( String dir )
+    {
+        final String prefix = dir + "/";
+        final Set<String> md5s = new HashSet<String>();
+        for( Map.Entry<String, String> entry : mRomPaths.entrySet() )
+        {
+            if( entry.getKey().startsWith( prefix ) )
+                md5s.add( entry.getValue() );
+        }
+        for( Map.Entry<String, Set<String>> entry : mZipPaths.entrySet() )
+        {
+            if( entry.getKey().startsWith( prefix ) )
+                md5s.addAll( entry.getValue() );
+        }
+        return md5s;
+    }
+
+    /**
+     * Returns the paths of every indexed ROM file and zip file.
+     */
+    public synchronized Set<String> getPaths()
+    {
+        final Set<String> paths = new HashSet<String>( mRomPaths.keySet() );
+        paths.addAll( mZipPaths.keySet() );
+        return paths;
+    }
+
+    /**
+     * Finds the files that don't exist. Files are grouped by directory and each directory is
+     * listed once, which is much cheaper than checking every file on its own when directories
+     * hold many files.
+     *
+     * @param paths The paths of the files.
+     *
+     * @return The paths of the files that don't exist.
+     */
+    public static Set<String> findMissing( Collection<String> paths )
+    {
+        final HashMap<String, Set<String>> namesByParent = new HashMap<String, Set<String>>();
+        final Set<String> missing = new HashSet<String>();
+        for( String path : paths )
+        {
+            final String parent = new File( path ).getParent();
+            if( parent == null )
+            {
+                if( !new File( path ).exists() )
+                    missing.add( path );
+                continue;
+            }
+
+            Set<String> names = namesByParent.get( parent );
+            if( names == null )
+            {
+                names = new HashSet<String>();
+                final String[] list = new File( parent ).list();
+                if( list != null )
+                {
+                    for( String name : list )
+                        names.add( name );
+                }
+                namesByParent.put( parent, names );
+            }
+
+            if( !names.contains( new File( path ).getName() ) )
+                missing.add( path );
+        }
+        return missing;
+    }
+
+    private static class Location
+    {
+        public final String romPath;
+        public final String zipPath;
+
+        public Location( String romPath, String zipPath )
+        {
+            this.romPath = romPath;
+            this.zipPath = zipPath;
+        }
+    }
+}
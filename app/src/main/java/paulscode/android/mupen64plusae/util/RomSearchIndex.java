@@ -0,0 +1,205 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * In-memory inverted index used to search the ROM library. Every ROM is given an id when it is
+ * added, and the words of its names are mapped to the ids of the ROMs containing them. A query
+ * matches a ROM if every word of the query is the start of one of the ROM's words, so "sup mar"
+ * finds "Super Mario 64".
+ * <p>
+ * ROMs can be added and removed at any time. Removed ids are not reused; once most of the ids are
+ * removed, build a new index instead. This class is not thread safe.
+ */
+public class RomSearchIndex
+{
+    /** Ids of the ROMs containing each word, sorted by word for prefix lookups. */
+    private final TreeMap<String, Postings> mPostings = new TreeMap<String, Postings>();
+
+    /** Ids that have not been removed. */
+    private final BitSet mLive = new BitSet();
+
+    /** Number of ids handed out. */
+    private int mSize = 0;
+
+    /**
+     * Adds a ROM to the index.
+     *
+     * @param fields The names to search the ROM by, e.g. good name, header name and CRC. Null
+     *            fields are ignored.
+     *
+     * @return The id of the ROM.
+     */
+    public int add( String... fields )
+    {
+        final int id = mSize++;
+        mLive.set( id );
+
+        for( String field : fields )
+        {
+            for( String token : tokenize( field ) )
+            {
+                Postings postings = mPostings.get( token );
+                if( postings == null )
+                {
+                    postings = new Postings();
+                    mPostings.put( token, postings );
+                }
+                postings.add( id );
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Removes a ROM from the index. It will no longer be returned by {@link #search(String)}.
+     *
+     * @param id The id returned by {@link #add(String...)}.
+     */
+    public void remove( int id )
+    {
+        mLive.clear( id );
+    }
+
+    /**
+     * Returns the number of ids handed out, including the removed ones.
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of ROMs in the index.
+     */
+    public int liveCount()
+    {
+        return mLive.cardinality();
+    }
+
+    /**
+     * Finds the ROMs matching a query.
+     *
+     * @param query The words to look for, in any order.
+     *
+     * @return The ids of the matching ROMs, or null if the query contains no words, in which case
+     *         every ROM matches.
+     */
+    public BitSet search( String query )
+    {
+        final Set<String> tokens = new LinkedHashSet<String>( tokenize( query ) );
+        if( tokens.isEmpty() )
+            return null;
+
+        BitSet result = null;
+        for( String token : tokens )
+        {
+            // Union the ids of every word starting with the token...
+            final BitSet matches = new BitSet( mSize );
+            final SortedMap<String, Postings> words = mPostings.subMap( token, token + Character.MAX_VALUE );
+            for( Postings postings : words.values() )
+                postings.addTo( matches );
+
+            // ...and intersect them with the other tokens
+            if( result == null )
+            {
+                result = matches;
+                result.and( mLive );
+            }
+            else
+            {
+                result.and( matches );
+            }
+
+            if( result.isEmpty() )
+                break;
+        }
+        return result;
+    }
+
+    /**
+     * Splits text into lower case words made of letters and digits.
+     *
+     * @param text The text to split, may be null.
+     *
+     * @return The words, in order.
+     */
+    public static List<String> tokenize( String text )
+    {
+        final List<String> tokens = new ArrayList<String>();
+        if( text == null )
+            return tokens;
+
+        final String lowerText = text.toLowerCase( Locale.US );
+        int start = -1;
+        for( int i = 0; i <= lowerText.length(); i++ )
+        {
+            final boolean isWordChar = i < lowerText.length() && Character.isLetterOrDigit( lowerText.charAt( i ) );
+            if( isWordChar && start == -1 )
+            {
+                start = i;
+            }
+            else if( !isWordChar && start != -1 )
+            {
+                tokens.add( lowerText.substring( start, i ) );
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Ids of the ROMs containing a word, in increasing order.
+     */
+    private static class Postings
+    {
+        private int[] mIds = new int[4];
+        private int mCount = 0;
+
+        public void add( int id )
+        {
+            // A word may occur several times in the names of a ROM
+            if( mCount > 0 && mIds[mCount - 1] == id )
+                return;
+
+            if( mCount == mIds.length )
+            {
+                final int[] ids = new int[mCount * 2];
+                System.arraycopy( mIds, 0, ids, 0, mCount );
+                mIds = ids;
+            }
+            mIds[mCount++] = id;
+        }
+
+        public void addTo( BitSet set )
+        {
+            for( int i = 0; i < mCount; i++ )
+                set.set( mIds[i] );
+        }
+    }
+}
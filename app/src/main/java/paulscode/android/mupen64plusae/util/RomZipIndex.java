@@ -0,0 +1,324 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2026 Mupen64PlusAE contributors
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ */
+package paulscode.android.mupen64plusae.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent index of the ROMs inside every zip file seen by the ROM scanner. Each zip file is
+ * keyed by its absolute path and remembers the size and last modified time it had when its
+ * entries were read. As long as those still match, the zip file does not need to be opened again:
+ * the scan gets its ROMs from the index, and launching one of them can go straight to its entry.
+ * <p>
+ * Zip files without any ROM are indexed too, with no entries, so they are not searched again
+ * either.
+ * <p>
+ * All methods are thread safe.
+ */
+public class RomZipIndex
+{
+    /** Version of the file format, bump it when the format changes. */
+    private static final int VERSION = 1;
+
+    /** Name of the index file. */
+    private final String mFilename;
+
+    /** Indexed zip files mapped by path. */
+    private final HashMap<String, Archive> mArchives = new HashMap<String, Archive>();
+
+    /** Paths that were looked up or updated since the index was loaded. */
+    private final HashSet<String> mSeen = new HashSet<String>();
+
+    /**
+     * Loads the index from disk. A missing or unreadable file results in an empty index.
+     *
+     * @param filename The index file to read from and save to.
+     */
+    public RomZipIndex( String filename )
+    {
+        mFilename = filename;
+        load();
+    }
+
+    /**
+     * Returns the ROMs of a zip file if it has not changed since its entries were read.
+     *
+     * @param zipFile The zip file.
+     *
+     * @return The ROMs of the zip file, or null if the zip file is new or has changed.
+     */
+    public synchronized List<Entry> get( File zipFile )
+    {
+        final String path = zipFile.getAbsolutePath();
+        mSeen.add( path );
+        final Archive archive = mArchives.get( path );
+        if( archive != null && archive.size == zipFile.length() && archive.lastModified == zipFile.lastModified() )
+            return archive.entries;
+        return null;
+    }
+
+    /**
+     * Returns the entry of a ROM in a zip file if the zip file has not changed since its entries
+     * were read.
+     *
+     * @param zipFile The zip file.
+     * @param md5 The MD5 of the ROM.
+     *
+     * @return The entry of the ROM, or null if it is not indexed.
+     */
+    public synchronized Entry find( File zipFile, String md5 )
+    {
+        final List<Entry> entries = get( zipFile );
+        if( entries != null )
+        {
+            for( Entry entry : entries )
+            {
+                if( entry.md5.equals( md5 ) )
+                    return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records the ROMs of a zip file.
+     *
+     * @param zipFile The zip file.
+     * @param size The size of the zip file before its entries were read.
+     * @param lastModified The last modified time of the zip file before its entries were read.
+     * @param entries The ROMs of the zip file.
+     */
+    public synchronized void put( File zipFile, long size, long lastModified, List<Entry> entries )
+    {
+        final String path = zipFile.getAbsolutePath();
+        mSeen.add( path );
+        mArchives.put( path, new Archive( size, lastModified, entries ) );
+    }
+
+    /**
+     * Saves the index back to disk. Zip files that were not seen since the index was loaded are
+     * dropped if they no longer exist.
+     *
+     * @return True if successful.
+     */
+    public synchronized boolean save()
+    {
+        if( TextUtils.isEmpty( mFilename ) )
+        {
+            Log.e( "RomZipIndex", "Filename not specified in method save()" );
+            return false;
+        }
+
+        Iterator<String> iter = mArchives.keySet().iterator();
+        while( iter.hasNext() )
+        {
+            String path = iter.next();
+            if( !mSeen.contains( path ) && !new File( path ).exists() )
+                iter.remove();
+        }
+
+        File indexFile = new File( mFilename );
+        File tempFile = new File( mFilename + ".tmp" );
+        FileUtil.makeDirs( indexFile.getParentFile().getPath() );
+
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ) ) );
+            out.writeInt( VERSION );
+            out.writeInt( mArchives.size() );
+            for( Map.Entry<String, Archive> item : mArchives.entrySet() )
+            {
+                Archive archive = item.getValue();
+                out.writeUTF( item.getKey() );
+                out.writeLong( archive.size );
+                out.writeLong( archive.lastModified );
+                out.writeInt( archive.entries.size() );
+                for( Entry entry : archive.entries )
+                {
+                    out.writeUTF( entry.name );
+                    out.writeLong( entry.size );
+                    out.writeLong( entry.crc );
+                    out.write( entry.header );
+                    out.writeUTF( entry.md5 );
+                }
+            }
+            out.close();
+            out = null;
+
+            // Replace the old index in one step so that a crash never leaves a partial file behind
+            if( !tempFile.renameTo( indexFile ) )
+            {
+                Log.e( "RomZipIndex", "Unable to rename " + tempFile + " to " + indexFile );
+                return false;
+            }
+        }
+        catch( IOException e )
+        {
+            Log.e( "RomZipIndex", "IOException writing file " + mFilename + ", error message: "
+                    + e.getMessage() );
+            return false;
+        }
+        finally
+        {
+            if( out != null )
+            {
+                try
+                {
+                    out.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+                tempFile.delete();
+            }
+        }
+
+        return true;
+    }
+
+    private void load()
+    {
+        if( TextUtils.isEmpty( mFilename ) )
+            return;
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( mFilename ) ) );
+            if( in.readInt() != VERSION )
+                return;
+
+            int count = in.readInt();
+            for( int i = 0; i < count; i++ )
+            {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                int entryCount = in.readInt();
+                List<Entry> entries = new ArrayList<Entry>( entryCount );
+                for( int j = 0; j < entryCount; j++ )
+                {
+                    String name = in.readUTF();
+                    long entrySize = in.readLong();
+                    long crc = in.readLong();
+                    byte[] header = new byte[RomHeader.SIZE];
+                    in.readFully( header );
+                    String md5 = in.readUTF();
+                    entries.add( new Entry( name, entrySize, crc, header, md5 ) );
+                }
+                mArchives.put( path, new Archive( size, lastModified, entries ) );
+            }
+        }
+        catch( FileNotFoundException e )
+        {
+            // First scan, nothing to load
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomZipIndex", "Index file could not be read: " + mFilename );
+            mArchives.clear();
+        }
+        finally
+        {
+            if( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+
+    /**
+     * A ROM inside a zip file.
+     */
+    public static class Entry
+    {
+        /** Name of the zip entry. */
+        public final String name;
+
+        /** Uncompressed size of the zip entry. */
+        public final long size;
+
+        /** CRC-32 of the zip entry, as stored in the central directory. */
+        public final long crc;
+
+        /** The ROM header, in big endian byte order. */
+        private final byte[] header;
+
+        public final String md5;
+
+        public Entry( String name, long size, long crc, byte[] header, String md5 )
+        {
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+            this.header = header;
+            this.md5 = md5;
+        }
+
+        /**
+         * Returns the ROM header, which holds the CRC and name of the ROM.
+         */
+        public RomHeader getHeader()
+        {
+            return new RomHeader( header.clone() );
+        }
+    }
+
+    /**
+     * The size and last modified time of a zip file when its entries were read.
+     */
+    private static class Archive
+    {
+        public final long size;
+        public final long lastModified;
+        public final List<Entry> entries;
+
+        public Archive( long size, long lastModified, List<Entry> entries )
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.entries = Collections.unmodifiableList( entries );
+        }
+    }
+}
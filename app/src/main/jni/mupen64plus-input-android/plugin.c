@@ -44,26 +44,13 @@
 #define RD_WRITEEPROM       		0x05   	// write eeprom
 #define RD_RESETCONTROLLER  		0xff   	// reset controller
 
-// Internal constants
-static const unsigned short BUTTON_BITS[] =
-{
-        0x0001,  // R_DPAD
-        0x0002,  // L_DPAD
-        0x0004,  // D_DPAD
-        0x0008,  // U_DPAD
-        0x0010,  // START_BUTTON
-        0x0020,  // Z_TRIG
-        0x0040,  // B_BUTTON
-        0x0080,  // A_BUTTON
-        0x0100,  // R_CBUTTON
-        0x0200,  // L_CBUTTON
-        0x0400,  // D_CBUTTON
-        0x0800,  // U_CBUTTON
-        0x1000,  // R_TRIG
-        0x2000,  // L_TRIG
-        0x4000,  // Reserved1
-        0x8000   // Reserved2
-};
+// Layout of the controller state shared with Java, as ints in native byte order. The state of a
+// controller packs the button bits in its low 16 bits (same order as the BUTTONS structure) and
+// the x and y axes in its two high bytes. The poll counts are incremented every time the core
+// reads the state of a controller, so that Java can tell if an update was seen.
+#define STATE_OFFSET                0
+#define POLL_COUNT_OFFSET           4
+#define STATE_BUFFER_INTS           8
 
 // Internal variables
 static JavaVM* _javaVM;
@@ -71,9 +58,7 @@ static jclass _jniClass = NULL;
 static jmethodID _jniRumble = NULL;
 static int _androidPluggedState[4];
 static int _androidPakType[4];
-static unsigned char _androidButtonState[4][16];
-static signed char _androidAnalogX[4];
-static signed char _androidAnalogY[4];
+static volatile jint* _androidState = NULL;
 static int _pluginInitialized = 0;
 static CONTROL* _controllerInfos = NULL;
 
@@ -156,19 +141,16 @@ JNIEXPORT void JNICALL Java_paulscode_android_mupen64plusae_jni_NativeInput_setC
     }
 }
 
-JNIEXPORT void JNICALL Java_paulscode_android_mupen64plusae_jni_NativeInput_setState(JNIEnv* env, jclass jcls, jint controllerNum, jbooleanArray mp64pButtons,
-        jint mp64pXAxis, jint mp64pYAxis)
+JNIEXPORT void JNICALL Java_paulscode_android_mupen64plusae_jni_NativeInput_setStateBuffer(JNIEnv* env, jclass jcls, jobject buffer)
 {
-    jboolean* elements = (*env)->GetBooleanArrayElements(env, mp64pButtons, NULL);
-    int b;
-    for (b = 0; b < 16; b++)
+    if ((*env)->GetDirectBufferCapacity(env, buffer) < STATE_BUFFER_INTS * (jlong) sizeof(jint))
     {
-        _androidButtonState[controllerNum][b] = elements[b];
+        DebugMessage(M64MSG_ERROR, "Controller state buffer is too small");
+        return;
     }
-    (*env)->ReleaseBooleanArrayElements(env, mp64pButtons, elements, 0);
 
-    _androidAnalogX[controllerNum] = (signed char) ((int) mp64pXAxis);
-    _androidAnalogY[controllerNum] = (signed char) ((int) mp64pYAxis);
+    // The buffer is referenced by a static field in Java, so it is never collected
+    _androidState = (volatile jint*) (*env)->GetDirectBufferAddress(env, buffer);
 }
 
 //*****************************************************************************
@@ -280,20 +262,20 @@ EXPORT void CALL InitiateControllers(CONTROL_INFO controlInfo)
 
 EXPORT void CALL GetKeys(int controllerNum, BUTTONS* keys)
 {
-    // Reset the controller state
-    keys->Value = 0;
-
-    // Set the button bits
-    int b;
-    for (b = 0; b < 16; b++)
+    // Read the latest state written by Java
+    jint state = 0;
+    if (_androidState != NULL)
     {
-        if (_androidButtonState[controllerNum][b])
-            keys->Value |= BUTTON_BITS[b];
+        state = _androidState[STATE_OFFSET + controllerNum];
+        _androidState[POLL_COUNT_OFFSET + controllerNum]++;
     }
 
+    // Set the button bits
+    keys->Value = (unsigned int) state & 0xFFFF;
+
     // Set the analog bytes
-    keys->X_AXIS = _androidAnalogX[controllerNum];
-    keys->Y_AXIS = _androidAnalogY[controllerNum];
+    keys->X_AXIS = (signed char) ((state >> 16) & 0xFF);
+    keys->Y_AXIS = (signed char) ((state >> 24) & 0xFF);
 }
 
 EXPORT void CALL ControllerCommand(int controllerNum, unsigned char* command)
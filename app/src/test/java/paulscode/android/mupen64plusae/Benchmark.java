@@ -0,0 +1,62 @@
+package paulscode.android.mupen64plusae;
+
+import org.junit.Assume;
+
+import java.util.Locale;
+
+/**
+ * Runs and reports the timing tests. These are skipped unless the {@code benchmarks} system
+ * property is set, e.g. {@code gradlew test -Dbenchmarks=true}, since they take a while and their
+ * numbers mean little on a loaded build machine.
+ */
+public final class Benchmark
+{
+    /** Something to time, returning a value derived from its work so that it is not optimized away. */
+    public interface Run
+    {
+        long run() throws Exception;
+    }
+
+    // Where results are consumed, volatile so the writes can't be elided
+    private static volatile long sSink;
+
+    private Benchmark()
+    {
+    }
+
+    /**
+     * Skips the calling test unless benchmarks were asked for.
+     */
+    public static void assumeEnabled()
+    {
+        Assume.assumeTrue( "Set -Dbenchmarks=true to run", Boolean.getBoolean( "benchmarks" ) );
+    }
+
+    /**
+     * Times a run several times after letting the JIT warm it up.
+     *
+     * @return The shortest of the measured runs, in nanoseconds.
+     */
+    public static long bestOf( int warmupRuns, int measuredRuns, Run run ) throws Exception
+    {
+        long best = Long.MAX_VALUE;
+        for( int i = 0; i < warmupRuns + measuredRuns; i++ )
+        {
+            long start = System.nanoTime();
+            sSink += run.run();
+            long elapsed = System.nanoTime() - start;
+
+            if( i >= warmupRuns )
+                best = Math.min( best, elapsed );
+        }
+        return best;
+    }
+
+    /**
+     * Prints one line of results, prefixed with the name of the benchmark.
+     */
+    public static void report( Class<?> benchmark, String format, Object... args )
+    {
+        System.out.println( benchmark.getSimpleName() + ": " + String.format( Locale.US, format, args ) );
+    }
+}
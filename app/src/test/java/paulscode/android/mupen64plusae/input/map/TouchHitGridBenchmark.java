@@ -0,0 +1,171 @@
+package paulscode.android.mupen64plusae.input.map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import paulscode.android.mupen64plusae.Benchmark;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link TouchHitGrid} against the search through every button mask it replaced, and
+ * compares the cost of a touch in ns when benchmarks are enabled. The layout is made of round masks
+ * spread over a 1920x1080 digitizer, each split into several colors like the d-pad and C-button
+ * masks.
+ * <p>
+ * On a device the mask search also paid for a Bitmap.getPixel call per touch, which is not
+ * included here.
+ */
+public class TouchHitGridBenchmark
+{
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int MASK_SIZE = 256;
+    private static final float MASK_SCALE = 1.5f;
+    private static final int NUM_MASKS = 9;
+    private static final int NUM_TOUCHES = 1 << 16;
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 10;
+
+    private static int[] sColors;
+    private static List<TouchHitGrid.Mask> sMasks;
+    private static TouchHitGrid sGrid;
+    private static int[] sTouchX;
+    private static int[] sTouchY;
+
+    @BeforeClass
+    public static void createLayout()
+    {
+        sColors = new int[TouchMap.NUM_N64_PSEUDOBUTTONS];
+        for( int i = 0; i < sColors.length; i++ )
+            sColors[i] = ( ( i + 1 ) * 0x3F ) << 16 | ( ( i * 0x51 ) & 0xFF ) << 8 | ( i * 0x2B + 0x10 ) & 0xFF;
+
+        sMasks = new ArrayList<TouchHitGrid.Mask>();
+        int scaledSize = (int) ( MASK_SIZE * MASK_SCALE );
+        for( int i = 0; i < NUM_MASKS; i++ )
+        {
+            int x = ( i % 5 ) * ( WIDTH - scaledSize ) / 4;
+            int y = ( i / 5 ) * ( HEIGHT - scaledSize );
+            sMasks.add( new TouchHitGrid.Mask( createMask( i * 4 % sColors.length ), MASK_SIZE, MASK_SIZE, x, y,
+                    MASK_SCALE ) );
+        }
+
+        sGrid = new TouchHitGrid( sMasks, sColors, WIDTH, HEIGHT );
+
+        Random random = new Random( 64 );
+        sTouchX = new int[NUM_TOUCHES];
+        sTouchY = new int[NUM_TOUCHES];
+        for( int i = 0; i < NUM_TOUCHES; i++ )
+        {
+            sTouchX[i] = random.nextInt( WIDTH );
+            sTouchY[i] = random.nextInt( HEIGHT );
+        }
+    }
+
+    @Test
+    public void gridMatchesMasksAtTileCenters()
+    {
+        int half = TouchHitGrid.TILE_SIZE / 2;
+        for( int y = half; y < HEIGHT; y += TouchHitGrid.TILE_SIZE )
+        {
+            for( int x = half; x < WIDTH; x += TouchHitGrid.TILE_SIZE )
+                assertEquals( TouchHitGrid.hitTestMasks( sMasks, sColors, x, y ), sGrid.get( x, y ) );
+        }
+    }
+
+    @Test
+    public void outsideOfDigitizerIsUnmapped()
+    {
+        assertEquals( TouchMap.UNMAPPED, sGrid.get( -1, 10 ) );
+        assertEquals( TouchMap.UNMAPPED, sGrid.get( 10, -1 ) );
+        assertEquals( TouchMap.UNMAPPED, sGrid.get( WIDTH + TouchHitGrid.TILE_SIZE, 10 ) );
+        assertEquals( TouchMap.UNMAPPED, sGrid.get( 10, HEIGHT + TouchHitGrid.TILE_SIZE ) );
+    }
+
+    @Test
+    public void movingAMaskRebakesItsTiles()
+    {
+        List<TouchHitGrid.Mask> moved = new ArrayList<TouchHitGrid.Mask>( sMasks );
+        TouchHitGrid.Mask mask = moved.get( 0 );
+        int scaledSize = (int) ( MASK_SIZE * MASK_SCALE );
+        int x = WIDTH / 2 - 3;
+        int y = HEIGHT - scaledSize / 2;
+        moved.set( 0, new TouchHitGrid.Mask( mask.pixels, mask.width, mask.height, x, y, mask.scale ) );
+
+        TouchHitGrid grid = new TouchHitGrid( sGrid, moved, sColors, Math.min( mask.x, x ), Math.min( mask.y, y ),
+                Math.max( mask.x, x ) + scaledSize, Math.max( mask.y, y ) + scaledSize );
+        TouchHitGrid expected = new TouchHitGrid( moved, sColors, WIDTH, HEIGHT );
+        for( int touchY = 0; touchY < HEIGHT; touchY++ )
+        {
+            for( int touchX = 0; touchX < WIDTH; touchX++ )
+                assertEquals( expected.get( touchX, touchY ), grid.get( touchX, touchY ) );
+        }
+    }
+
+    @Test
+    public void hitTestCost() throws Exception
+    {
+        Benchmark.assumeEnabled();
+
+        Benchmark.report( TouchHitGridBenchmark.class, "masks %.1f ns/touch, grid %.1f ns/touch", measure( false ),
+                measure( true ) );
+
+        long bake = Benchmark.bestOf( 0, 1, new Benchmark.Run()
+        {
+            @Override
+            public long run()
+            {
+                return new TouchHitGrid( sMasks, sColors, WIDTH, HEIGHT ).get( 0, 0 );
+            }
+        } );
+        Benchmark.report( TouchHitGridBenchmark.class, "baking the grid took %.1f ms", bake / 1e6 );
+    }
+
+    private static double measure( final boolean grid ) throws Exception
+    {
+        long best = Benchmark.bestOf( WARMUP_RUNS, MEASURED_RUNS, new Benchmark.Run()
+        {
+            @Override
+            public long run()
+            {
+                long sum = 0;
+                for( int i = 0; i < NUM_TOUCHES; i++ )
+                {
+                    if( grid )
+                        sum += sGrid.get( sTouchX[i], sTouchY[i] );
+                    else
+                        sum += TouchHitGrid.hitTestMasks( sMasks, sColors, sTouchX[i], sTouchY[i] );
+                }
+                return sum;
+            }
+        } );
+        return best / (double) NUM_TOUCHES;
+    }
+
+    /**
+     * Creates a round mask split into four quadrants of consecutive button colors, on black.
+     */
+    private static int[] createMask( int firstButton )
+    {
+        int[] pixels = new int[MASK_SIZE * MASK_SIZE];
+        int center = MASK_SIZE / 2;
+        for( int y = 0; y < MASK_SIZE; y++ )
+        {
+            for( int x = 0; x < MASK_SIZE; x++ )
+            {
+                int dX = x - center;
+                int dY = y - center;
+                if( dX * dX + dY * dY < center * center )
+                {
+                    int quadrant = ( dX < 0 ? 0 : 1 ) + ( dY < 0 ? 0 : 2 );
+                    pixels[y * MASK_SIZE + x] = 0xFF000000 | sColors[( firstButton + quadrant ) % sColors.length];
+                }
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,147 @@
+package paulscode.android.mupen64plusae.input.provider;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the strengths computed by {@link AxisNormalizer}, and that computing and dispatching them
+ * doesn't allocate once a device has been seen.
+ */
+public class AxisNormalizerTest
+{
+    private static final float DELTA = 1e-6f;
+
+    // Axis 0 and axis 1, both directions, as the default filter of AxisProvider
+    private static final int X_POS = AbstractProvider.axisToInputCode( 0, true );
+    private static final int X_NEG = AbstractProvider.axisToInputCode( 0, false );
+    private static final int Y_POS = AbstractProvider.axisToInputCode( 1, true );
+    private static final int Y_NEG = AbstractProvider.axisToInputCode( 1, false );
+    private static final int[] INPUT_CODES = { X_POS, X_NEG, Y_POS, Y_NEG };
+    private static final int[] AXIS_INDICES = { 0, 0, 1, 1 };
+
+    @Test
+    public void rescalesOutsideOfFlatRegion()
+    {
+        AxisNormalizer normalizer = newNormalizer();
+        normalizer.setAxis( 0, 0.1f, 0.1f, 0.9f );
+
+        normalizer.update( new float[] { 0.55f, 0 } );
+        assertArrayEquals( new float[] { 0.5f, 0, 0, 0 }, normalizer.getStrengths(), DELTA );
+
+        normalizer.update( new float[] { -1, 0 } );
+        assertArrayEquals( new float[] { 0, 1, 0, 0 }, normalizer.getStrengths(), DELTA );
+
+        normalizer.update( new float[] { 0.05f, 0 } );
+        assertArrayEquals( new float[] { 0, 0, 0, 0 }, normalizer.getStrengths(), DELTA );
+    }
+
+    @Test
+    public void rescalesN64Adapters()
+    {
+        AxisNormalizer normalizer = newNormalizer();
+        normalizer.setAxis( 1, 0, 0, 0.63f );
+
+        normalizer.update( new float[] { 0, -0.63f } );
+        assertArrayEquals( new float[] { 0, 0, 0, 1 }, normalizer.getStrengths(), DELTA );
+    }
+
+    @Test
+    public void axesWithoutRangeAreZero()
+    {
+        AxisNormalizer normalizer = newNormalizer();
+
+        normalizer.update( new float[] { 1, -1 } );
+        assertArrayEquals( new float[] { 0, 0, 0, 0 }, normalizer.getStrengths(), DELTA );
+    }
+
+    @Test
+    public void reportsOnlyChangedStrengths()
+    {
+        AxisNormalizer normalizer = newNormalizer();
+        normalizer.setAxis( 0, 0, 0, 1 );
+        normalizer.setAxis( 1, 0, 0, 1 );
+
+        // Everything is new on the first event
+        assertEquals( 4, normalizer.update( new float[] { 0.5f, 0 } ) );
+        assertArrayEquals( INPUT_CODES, normalizer.getChangedCodes() );
+
+        assertEquals( 0, normalizer.update( new float[] { 0.5f, 0 } ) );
+        assertEquals( 0, normalizer.getChangedCodes().length );
+
+        // Crossing the center changes both directions of the axis
+        assertEquals( 2, normalizer.update( new float[] { -0.25f, 0 } ) );
+        assertArrayEquals( new int[] { X_POS, X_NEG }, normalizer.getChangedCodes() );
+        assertArrayEquals( new float[] { 0, 0.25f }, normalizer.getChangedStrengths(), DELTA );
+
+        assertEquals( 1, normalizer.update( new float[] { -0.25f, 1 } ) );
+        assertArrayEquals( new int[] { Y_POS }, normalizer.getChangedCodes() );
+        assertArrayEquals( new float[] { 1 }, normalizer.getChangedStrengths(), DELTA );
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue( bean instanceof com.sun.management.ThreadMXBean );
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue( threads.isThreadAllocatedMemorySupported() );
+        threads.setThreadAllocatedMemoryEnabled( true );
+
+        // The default filter of AxisProvider: both directions of 64 axes
+        int[] inputCodes = new int[128];
+        int[] axisIndices = new int[inputCodes.length];
+        for( int i = 0; i < inputCodes.length; i++ )
+        {
+            inputCodes[i] = -( i + 1 );
+            axisIndices[i] = i / 2;
+        }
+        AxisNormalizer normalizer = new AxisNormalizer( inputCodes, axisIndices, 64 );
+        for( int i = 0; i < 64; i++ )
+            normalizer.setAxis( i, 0.05f, 0.05f, 0.95f );
+
+        float[] axisValues = new float[64];
+        float checksum = 0;
+
+        // Let every size of changes be seen once, and the JIT compile the loop
+        for( int i = 0; i < 20000; i++ )
+            checksum += moveSticks( normalizer, axisValues, i );
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes( threadId );
+        for( int i = 0; i < 100000; i++ )
+            checksum += moveSticks( normalizer, axisValues, i );
+        long allocated = threads.getThreadAllocatedBytes( threadId ) - before;
+
+        // Leave room for the measurement itself, far less than one array per event
+        assertTrue( "Allocated " + allocated + " bytes", allocated < 1024 );
+        assertTrue( checksum != 0 );
+    }
+
+    private static float moveSticks( AxisNormalizer normalizer, float[] axisValues, int event )
+    {
+        // Two sticks moving in circles, the other axes at rest
+        double angle = ( event % 360 ) * Math.PI / 180;
+        axisValues[0] = (float) Math.cos( angle );
+        axisValues[1] = (float) Math.sin( angle );
+        axisValues[11] = (float) Math.cos( angle * 2 );
+        axisValues[14] = (float) Math.sin( angle * 2 );
+
+        float sum = 0;
+        normalizer.update( axisValues );
+        float[] strengths = normalizer.getChangedStrengths();
+        for( int i = 0; i < strengths.length; i++ )
+            sum += strengths[i];
+        return sum + normalizer.getChangedCodes().length;
+    }
+
+    private static AxisNormalizer newNormalizer()
+    {
+        return new AxisNormalizer( INPUT_CODES, AXIS_INDICES, 2 );
+    }
+}
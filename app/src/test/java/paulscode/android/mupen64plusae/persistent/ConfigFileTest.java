@@ -0,0 +1,96 @@
+package paulscode.android.mupen64plusae.persistent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that saves of {@link ConfigFile} instances that are out of date merge with what was saved
+ * meanwhile, and leave the process-wide cache complete.
+ */
+public class ConfigFileTest
+{
+    private File mFile;
+
+    @Before
+    public void createFile() throws IOException
+    {
+        mFile = File.createTempFile( "config", ".cfg" );
+        Writer writer = new FileWriter( mFile );
+        try
+        {
+            writer.write( "[Mario]\ngoodName=Super Mario 64\n\n[Zelda]\ngoodName=Ocarina of Time\n\n"
+                    + "[Kart]\ngoodName=Mario Kart 64\n\n" );
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    @After
+    public void deleteFile()
+    {
+        mFile.delete();
+    }
+
+    @Test
+    public void staleSaveOfCachedFileKeepsEverySection()
+    {
+        ConfigFile stale = ConfigFile.open( mFile.getPath() );
+
+        ConfigFile other = ConfigFile.open( mFile.getPath() );
+        other.put( "Zelda", "lastPlayed", "100" );
+        other.save();
+
+        stale.put( "Mario", "lastPlayed", "200" );
+        stale.save();
+
+        // Served from the cache the stale save left behind
+        ConfigFile config = ConfigFile.open( mFile.getPath() );
+        assertSections( config );
+
+        // Nothing is lost when the cached data is saved again
+        config.put( "Kart", "lastPlayed", "300" );
+        config.save();
+        assertSections( new ConfigFile( mFile.getPath() ) );
+        assertEquals( "300", new ConfigFile( mFile.getPath() ).get( "Kart", "lastPlayed" ) );
+    }
+
+    @Test
+    public void staleSaveOfLazyFileMerges()
+    {
+        ConfigFile stale = new ConfigFile( mFile.getPath(), true );
+
+        ConfigFile other = ConfigFile.open( mFile.getPath() );
+        other.put( "Zelda", "lastPlayed", "100" );
+        other.save();
+
+        stale.put( "Mario", "lastPlayed", "200" );
+        stale.save();
+
+        assertSections( ConfigFile.open( mFile.getPath() ) );
+        assertSections( new ConfigFile( mFile.getPath() ) );
+    }
+
+    private static void assertSections( ConfigFile config )
+    {
+        assertEquals( 4, config.keySet().size() );
+        for( String sectionTitle : config.keySet() )
+            assertNotNull( sectionTitle, config.get( sectionTitle ) );
+
+        assertEquals( "Super Mario 64", config.get( "Mario", "goodName" ) );
+        assertEquals( "200", config.get( "Mario", "lastPlayed" ) );
+        assertEquals( "Ocarina of Time", config.get( "Zelda", "goodName" ) );
+        assertEquals( "100", config.get( "Zelda", "lastPlayed" ) );
+        assertEquals( "Mario Kart 64", config.get( "Kart", "goodName" ) );
+    }
+}
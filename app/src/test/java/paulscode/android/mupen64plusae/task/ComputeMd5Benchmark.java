@@ -0,0 +1,196 @@
+package paulscode.android.mupen64plusae.task;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import paulscode.android.mupen64plusae.Benchmark;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link ComputeMd5Task#computeMd5(File)} hashes .z64, .v64 and .n64 images the same
+ * way as the byte by byte swap loop it replaced, and compares their throughput in MB/s when
+ * benchmarks are enabled.
+ */
+public class ComputeMd5Benchmark
+{
+    // Not a multiple of the read buffer, so the swap of the last partial read is checked
+    private static final int CHECKED_IMAGE_SIZE = 256 * 1024 + 12;
+    private static final int TIMED_IMAGE_SIZE = 16 * 1024 * 1024;
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    @Test
+    public void allByteOrdersHashTheSame() throws Exception
+    {
+        File[] images = createImages( CHECKED_IMAGE_SIZE );
+        try
+        {
+            String expected = legacyMd5( images[0] );
+            for( File image : images )
+            {
+                assertEquals( expected, ComputeMd5Task.computeMd5( image ) );
+                assertEquals( expected, legacyMd5( image ) );
+            }
+        }
+        finally
+        {
+            deleteImages( images );
+        }
+    }
+
+    @Test
+    public void throughput() throws Exception
+    {
+        Benchmark.assumeEnabled();
+
+        File[] images = createImages( TIMED_IMAGE_SIZE );
+        try
+        {
+            for( File image : images )
+            {
+                String name = image.getName().substring( image.getName().lastIndexOf( '.' ) + 1 );
+                Benchmark.report( ComputeMd5Benchmark.class, "%s: legacy %.1f MB/s, current %.1f MB/s", name,
+                        measure( image, true ), measure( image, false ) );
+            }
+        }
+        finally
+        {
+            deleteImages( images );
+        }
+    }
+
+    private static double measure( final File image, final boolean legacy ) throws Exception
+    {
+        long best = Benchmark.bestOf( WARMUP_RUNS, MEASURED_RUNS, new Benchmark.Run()
+        {
+            @Override
+            public long run() throws Exception
+            {
+                return ( legacy ? legacyMd5( image ) : ComputeMd5Task.computeMd5( image ) ).hashCode();
+            }
+        } );
+        return ( image.length() / ( 1024.0 * 1024.0 ) ) / ( best / 1e9 );
+    }
+
+    /**
+     * Writes the same random image in .z64, .v64 and .n64 byte order, in that order.
+     */
+    private static File[] createImages( int size ) throws IOException
+    {
+        byte[] image = new byte[size];
+        new Random( 64 ).nextBytes( image );
+        image[0] = (byte) 0x80;
+        image[1] = (byte) 0x37;
+        image[2] = (byte) 0x12;
+        image[3] = (byte) 0x40;
+
+        byte[] v64 = image.clone();
+        for( int i = 0; i < v64.length; i += 2 )
+            swap( v64, i, i + 1 );
+
+        byte[] n64 = image.clone();
+        for( int i = 0; i < n64.length; i += 4 )
+        {
+            swap( n64, i, i + 3 );
+            swap( n64, i + 1, i + 2 );
+        }
+
+        File[] images = new File[3];
+        try
+        {
+            images[0] = writeImage( image, ".z64" );
+            images[1] = writeImage( v64, ".v64" );
+            images[2] = writeImage( n64, ".n64" );
+        }
+        catch( IOException e )
+        {
+            deleteImages( images );
+            throw e;
+        }
+        return images;
+    }
+
+    private static void deleteImages( File[] images )
+    {
+        for( File image : images )
+        {
+            if( image != null )
+                image.delete();
+        }
+    }
+
+    /**
+     * The byte by byte implementation computeMd5 used before, kept as the baseline.
+     */
+    private static String legacyMd5( File file ) throws Exception
+    {
+        InputStream inputStream = new FileInputStream( file );
+        try
+        {
+            int firstByte = -1;
+            MessageDigest digester = MessageDigest.getInstance( "MD5" );
+            byte[] bytes = new byte[8192];
+            int byteCount;
+            while( ( byteCount = inputStream.read( bytes ) ) > 0 )
+            {
+                if( firstByte == -1 )
+                    firstByte = bytes[0];
+
+                if( firstByte == 0x37 )
+                {
+                    for( int i = 0; i < byteCount; i += 2 )
+                        swap( bytes, i, i + 1 );
+                }
+                else if( firstByte == 0x40 )
+                {
+                    for( int i = 0; i < byteCount; i += 4 )
+                    {
+                        swap( bytes, i, i + 3 );
+                        swap( bytes, i + 1, i + 2 );
+                    }
+                }
+                digester.update( bytes, 0, byteCount );
+            }
+
+            StringBuilder result = new StringBuilder();
+            for( byte b : digester.digest() )
+                result.append( String.format( "%02X", b ) );
+            return result.toString();
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    private static void swap( byte[] bytes, int i, int j )
+    {
+        byte temp = bytes[i];
+        bytes[i] = bytes[j];
+        bytes[j] = temp;
+    }
+
+    private static File writeImage( byte[] image, String extension ) throws IOException
+    {
+        File file = File.createTempFile( "md5bench", extension );
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( image );
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,326 @@
+package paulscode.android.mupen64plusae.task;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link CoverArtDownloader} against a local HTTP server that supports ETags, conditional
+ * requests and byte ranges like the real cover art server.
+ */
+public class CoverArtDownloaderTest
+{
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Mon, 01 May 2017 00:00:00 GMT";
+
+    private HttpServer mServer;
+    private File mArtDir;
+    private File mValidatorsFile;
+    private final Map<String, byte[]> mArt = new ConcurrentHashMap<String, byte[]>();
+    private final List<String> mRequests = Collections.synchronizedList( new ArrayList<String>() );
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mMaxActive = new AtomicInteger();
+    private volatile String mEtag = ETAG;
+    private volatile int mResponseDelayMs = 0;
+
+    @Before
+    public void startServer() throws IOException
+    {
+        mArtDir = File.createTempFile( "coverart", "" );
+        mArtDir.delete();
+        mArtDir.mkdirs();
+        mValidatorsFile = File.createTempFile( "validators", ".dat" );
+        mValidatorsFile.delete();
+
+        mServer = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+        mServer.setExecutor( Executors.newCachedThreadPool() );
+        mServer.createContext( "/art/", new ArtHandler() );
+        mServer.start();
+    }
+
+    @After
+    public void stopServer()
+    {
+        mServer.stop( 0 );
+        for( File file : mArtDir.listFiles() )
+            file.delete();
+        mArtDir.delete();
+        mValidatorsFile.delete();
+    }
+
+    @Test
+    public void downloadsMissingArt() throws IOException
+    {
+        byte[] art = addArt( "Super_Mario_64.png", 5000 );
+
+        File artFile = new File( mArtDir, "Super_Mario_64.png" );
+        assertEquals( CoverArtDownloader.Result.DOWNLOADED, newDownloader( 1 ).download( artFile ) );
+        assertArrayEquals( art, read( artFile ) );
+        assertFalse( new File( artFile.getPath() + CoverArtDownloader.PARTIAL_SUFFIX ).exists() );
+        assertEquals( 1, mArtDir.listFiles().length );
+    }
+
+    @Test
+    public void revalidatesExistingArt() throws IOException
+    {
+        byte[] art = addArt( "Super_Mario_64.png", 5000 );
+        File artFile = new File( mArtDir, "Super_Mario_64.png" );
+        newDownloader( 1 ).download( artFile );
+
+        // The validators are read back from the index
+        CoverArtDownloader downloader = newDownloader( 1 );
+        mRequests.clear();
+        assertEquals( CoverArtDownloader.Result.NOT_MODIFIED, downloader.download( artFile ) );
+        assertEquals( "If-None-Match: " + ETAG, mRequests.get( 0 ) );
+        assertArrayEquals( art, read( artFile ) );
+
+        // The art changed on the server
+        mEtag = "\"v2\"";
+        byte[] newArt = addArt( "Super_Mario_64.png", 6000 );
+        assertEquals( CoverArtDownloader.Result.DOWNLOADED, downloader.download( artFile ) );
+        assertArrayEquals( newArt, read( artFile ) );
+    }
+
+    @Test
+    public void resumesPartialDownload() throws IOException
+    {
+        byte[] art = addArt( "Mario_Kart_64.png", 10000 );
+        File artFile = new File( mArtDir, "Mario_Kart_64.png" );
+        write( new File( artFile.getPath() + CoverArtDownloader.PARTIAL_SUFFIX ), Arrays.copyOf( art, 4000 ) );
+        writeValidators( artFile, ETAG, LAST_MODIFIED );
+
+        assertEquals( CoverArtDownloader.Result.DOWNLOADED, newDownloader( 1 ).download( artFile ) );
+        assertEquals( "Range: bytes=4000-", mRequests.get( 0 ) );
+        assertArrayEquals( art, read( artFile ) );
+    }
+
+    @Test
+    public void restartsPartialDownloadOfChangedArt() throws IOException
+    {
+        byte[] art = addArt( "Mario_Kart_64.png", 10000 );
+        File artFile = new File( mArtDir, "Mario_Kart_64.png" );
+        write( new File( artFile.getPath() + CoverArtDownloader.PARTIAL_SUFFIX ), new byte[4000] );
+        writeValidators( artFile, "\"v0\"", "" );
+
+        assertEquals( CoverArtDownloader.Result.DOWNLOADED, newDownloader( 1 ).download( artFile ) );
+        assertArrayEquals( art, read( artFile ) );
+    }
+
+    @Test
+    public void missingArtFails()
+    {
+        File artFile = new File( mArtDir, "Unknown.png" );
+        assertEquals( CoverArtDownloader.Result.FAILED, newDownloader( 1 ).download( artFile ) );
+        assertFalse( artFile.exists() );
+    }
+
+    @Test
+    public void limitsParallelConnections() throws IOException
+    {
+        List<File> artFiles = new ArrayList<File>();
+        for( int i = 0; i < 20; i++ )
+        {
+            addArt( "Game_" + i + ".png", 2000 );
+            artFiles.add( new File( mArtDir, "Game_" + i + ".png" ) );
+        }
+        mResponseDelayMs = 20;
+
+        final AtomicInteger processed = new AtomicInteger();
+        new CoverArtDownloader( getBaseUrl(), mValidatorsFile.getPath(), 3, new CoverArtDownloader.Listener()
+        {
+            @Override
+            public boolean isStopped()
+            {
+                return false;
+            }
+
+            @Override
+            public void onArtProcessed( File artFile, CoverArtDownloader.Result result )
+            {
+                assertEquals( CoverArtDownloader.Result.DOWNLOADED, result );
+                processed.incrementAndGet();
+            }
+        } ).downloadAll( artFiles );
+
+        assertEquals( 20, processed.get() );
+        assertTrue( "Too many connections: " + mMaxActive.get(), mMaxActive.get() <= 3 );
+        assertTrue( "Downloads did not overlap", mMaxActive.get() > 1 );
+        for( File artFile : artFiles )
+            assertTrue( artFile.exists() );
+    }
+
+    private CoverArtDownloader newDownloader( int maxConnections )
+    {
+        return new CoverArtDownloader( getBaseUrl(), mValidatorsFile.getPath(), maxConnections, new CoverArtDownloader.Listener()
+        {
+            @Override
+            public boolean isStopped()
+            {
+                return false;
+            }
+
+            @Override
+            public void onArtProcessed( File artFile, CoverArtDownloader.Result result )
+            {
+            }
+        } );
+    }
+
+    private String getBaseUrl()
+    {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + "/art/";
+    }
+
+    private byte[] addArt( String name, int size )
+    {
+        byte[] art = new byte[size];
+        new Random( size ).nextBytes( art );
+        mArt.put( name, art );
+        return art;
+    }
+
+    private static byte[] read( File file ) throws IOException
+    {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            int offset = 0;
+            int n;
+            while( offset < bytes.length && ( n = in.read( bytes, offset, bytes.length - offset ) ) > 0 )
+                offset += n;
+        }
+        finally
+        {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Seeds the validators index with the headers of an earlier download of the art.
+     */
+    private void writeValidators( File artFile, String etag, String lastModified ) throws IOException
+    {
+        write( mValidatorsFile, ( artFile.getAbsolutePath() + "\t" + etag + "\t" + lastModified + "\n" ).getBytes() );
+    }
+
+    private static void write( File file, byte[] bytes ) throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( bytes );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Serves the art like a plain static file server.
+     */
+    private class ArtHandler implements HttpHandler
+    {
+        @Override
+        public void handle( HttpExchange exchange ) throws IOException
+        {
+            int active = mActive.incrementAndGet();
+            while( true )
+            {
+                int max = mMaxActive.get();
+                if( active <= max || mMaxActive.compareAndSet( max, active ) )
+                    break;
+            }
+
+            try
+            {
+                if( mResponseDelayMs > 0 )
+                    Thread.sleep( mResponseDelayMs );
+                respond( exchange );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                mActive.decrementAndGet();
+                exchange.close();
+            }
+        }
+
+        private void respond( HttpExchange exchange ) throws IOException
+        {
+            String name = exchange.getRequestURI().getPath().substring( "/art/".length() );
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst( "If-None-Match" );
+            String range = exchange.getRequestHeaders().getFirst( "Range" );
+            String ifRange = exchange.getRequestHeaders().getFirst( "If-Range" );
+            if( ifNoneMatch != null )
+                mRequests.add( "If-None-Match: " + ifNoneMatch );
+            else if( range != null )
+                mRequests.add( "Range: " + range );
+            else
+                mRequests.add( "GET" );
+
+            byte[] art = mArt.get( name );
+            if( art == null )
+            {
+                exchange.sendResponseHeaders( 404, -1 );
+                return;
+            }
+
+            exchange.getResponseHeaders().set( "ETag", mEtag );
+            exchange.getResponseHeaders().set( "Last-Modified", LAST_MODIFIED );
+            if( mEtag.equals( ifNoneMatch ) )
+            {
+                exchange.sendResponseHeaders( 304, -1 );
+                return;
+            }
+
+            int start = 0;
+            if( range != null && range.startsWith( "bytes=" ) && range.endsWith( "-" ) && mEtag.equals( ifRange ) )
+            {
+                start = Integer.parseInt( range.substring( "bytes=".length(), range.length() - 1 ) );
+                exchange.getResponseHeaders().set( "Content-Range",
+                        "bytes " + start + "-" + ( art.length - 1 ) + "/" + art.length );
+                exchange.sendResponseHeaders( 206, art.length - start );
+            }
+            else
+            {
+                exchange.sendResponseHeaders( 200, art.length );
+            }
+
+            OutputStream body = exchange.getResponseBody();
+            body.write( art, start, art.length - start );
+            body.close();
+        }
+    }
+}